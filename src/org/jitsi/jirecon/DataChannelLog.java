@@ -0,0 +1,348 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.util.*;
+
+/**
+ * An append-only log of every message received on the data channel, so that
+ * conference events can be replayed later without recording again.
+ * <p>
+ * The file starts with {@link #MAGIC} and {@link #VERSION}, followed by one
+ * record per message:
+ *
+ * <pre>
+ * int  length of payload
+ * long receive time (milliseconds since epoch)
+ * int  SCTP stream id
+ * byte type, TYPE_STRING or TYPE_BINARY
+ * byte[length] payload, strings are UTF-8 encoded
+ * </pre>
+ *
+ * All integers are in network byte order. Records are queued and written in
+ * batches by a dedicated thread, so appending never blocks the caller. If the
+ * queue is full, the record is dropped and counted.
+ *
+ * @author lishunyang
+ */
+public class DataChannelLog
+{
+    /**
+     * The <tt>Logger</tt>, used to log messages to standard output.
+     */
+    private static final Logger logger = Logger.getLogger(DataChannelLog.class);
+
+    /**
+     * Magic bytes at the beginning of the log file.
+     */
+    public static final byte[] MAGIC = new byte[] { 'J', 'R', 'D', 'C' };
+
+    /**
+     * Version of the log file format.
+     */
+    public static final byte VERSION = 1;
+
+    /**
+     * Record type of a string message.
+     */
+    public static final byte TYPE_STRING = 0;
+
+    /**
+     * Record type of a binary message.
+     */
+    public static final byte TYPE_BINARY = 1;
+
+    /**
+     * Maximum number of records waiting to be written.
+     */
+    private static final int QUEUE_CAPACITY = 4096;
+
+    /**
+     * Maximum number of records written between two flushes.
+     */
+    private static final int MAX_BATCH_SIZE = 256;
+
+    /**
+     * Records waiting to be written.
+     */
+    private final BlockingQueue<Record> queue =
+        new ArrayBlockingQueue<Record>(QUEUE_CAPACITY);
+
+    /**
+     * The stream we write the records to.
+     */
+    private final DataOutputStream output;
+
+    /**
+     * The thread which writes records.
+     */
+    private final Thread writerThread;
+
+    /**
+     * Indicates whether this log has been closed.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Used to synchronize {@link #enqueue(Record)} with {@link #close()}, so
+     * that no record is queued after the writer thread has written the last
+     * ones.
+     */
+    private final Object closeSyncRoot = new Object();
+
+    /**
+     * Number of records which have been written.
+     */
+    private final AtomicLong writtenRecords = new AtomicLong();
+
+    /**
+     * Number of records which have been dropped because the queue was full.
+     */
+    private final AtomicLong droppedRecords = new AtomicLong();
+
+    /**
+     * Open the log file and start the writer thread. Records are appended if
+     * the file exists.
+     *
+     * @param filename Path of the log file.
+     * @throws IOException if the file could not be opened.
+     */
+    public DataChannelLog(String filename)
+        throws IOException
+    {
+        final File file = new File(filename);
+        final boolean isNew = !file.exists() || 0 == file.length();
+
+        output =
+            new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+                file, true)));
+        if (isNew)
+        {
+            output.write(MAGIC);
+            output.writeByte(VERSION);
+            output.flush();
+        }
+
+        writerThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                writeLoop();
+            }
+        }, DataChannelLog.class.getName());
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Append a string message.
+     *
+     * @param sid The SCTP stream id the message arrived on.
+     * @param msg The message.
+     * @param receivedAt When the message was received.
+     */
+    public void append(int sid, String msg, long receivedAt)
+    {
+        enqueue(new Record(receivedAt, sid, TYPE_STRING, msg));
+    }
+
+    /**
+     * Append a binary message.
+     *
+     * @param sid The SCTP stream id the message arrived on.
+     * @param data The message.
+     * @param receivedAt When the message was received.
+     */
+    public void append(int sid, byte[] data, long receivedAt)
+    {
+        enqueue(new Record(receivedAt, sid, TYPE_BINARY, data));
+    }
+
+    /**
+     * Write the records which are still queued and close the file.
+     * <p>
+     * <strong>Warning:</strong> Records appended after this are dropped.
+     */
+    public void close()
+    {
+        synchronized (closeSyncRoot)
+        {
+            if (closed)
+                return;
+            closed = true;
+        }
+
+        writerThread.interrupt();
+        try
+        {
+            writerThread.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        // Left by a failed write, or by an interrupted join.
+        int left = queue.size();
+        queue.clear();
+        droppedRecords.addAndGet(left);
+
+        logger.info("Data channel log closed, written: " + writtenRecords.get()
+            + ", dropped: " + droppedRecords.get());
+    }
+
+    /**
+     * Get the number of records which have been written.
+     *
+     * @return The number of written records.
+     */
+    public long getWrittenRecords()
+    {
+        return writtenRecords.get();
+    }
+
+    /**
+     * Get the number of records which have been dropped.
+     *
+     * @return The number of dropped records.
+     */
+    public long getDroppedRecords()
+    {
+        return droppedRecords.get();
+    }
+
+    /**
+     * Queue a record without blocking.
+     *
+     * @param record The record.
+     */
+    private void enqueue(Record record)
+    {
+        synchronized (closeSyncRoot)
+        {
+            if (!closed && queue.offer(record))
+                return;
+        }
+        droppedRecords.incrementAndGet();
+    }
+
+    /**
+     * Take records from {@link #queue} and write them in batches until this
+     * log is closed, then write what's left and close the file.
+     */
+    private void writeLoop()
+    {
+        final List<Record> batch = new ArrayList<Record>(MAX_BATCH_SIZE);
+
+        try
+        {
+            while (!closed)
+            {
+                try
+                {
+                    batch.add(queue.take());
+                }
+                catch (InterruptedException e)
+                {
+                    // close() wakes us up this way.
+                    continue;
+                }
+                queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+                writeBatch(batch);
+            }
+
+            while (0 != queue.drainTo(batch, MAX_BATCH_SIZE))
+                writeBatch(batch);
+        }
+        catch (IOException e)
+        {
+            logger.error("Failed to write data channel log", e);
+            closed = true;
+        }
+        finally
+        {
+            try
+            {
+                output.close();
+            }
+            catch (IOException e)
+            {
+                logger.error("Failed to close data channel log", e);
+            }
+        }
+    }
+
+    /**
+     * Write a batch of records, flush them and clear the batch.
+     *
+     * @param batch The records.
+     * @throws IOException if writing failed.
+     */
+    private void writeBatch(List<Record> batch)
+        throws IOException
+    {
+        for (Record record : batch)
+        {
+            final byte[] payload =
+                TYPE_STRING == record.type ? ((String) record.payload)
+                    .getBytes("UTF-8") : (byte[]) record.payload;
+
+            output.writeInt(payload.length);
+            output.writeLong(record.receivedAt);
+            output.writeInt(record.sid);
+            output.writeByte(record.type);
+            output.write(payload);
+        }
+        output.flush();
+
+        writtenRecords.addAndGet(batch.size());
+        batch.clear();
+    }
+
+    /**
+     * A message waiting to be written.
+     *
+     * @author lishunyang
+     */
+    private static class Record
+    {
+        /**
+         * When the message was received.
+         */
+        final long receivedAt;
+
+        /**
+         * The SCTP stream id the message arrived on.
+         */
+        final int sid;
+
+        /**
+         * {@link DataChannelLog#TYPE_STRING} or
+         * {@link DataChannelLog#TYPE_BINARY}.
+         */
+        final byte type;
+
+        /**
+         * The message, a <tt>String</tt> or a <tt>byte[]</tt>. Strings are
+         * encoded by the writer thread.
+         */
+        final Object payload;
+
+        Record(long receivedAt, int sid, byte type, Object payload)
+        {
+            this.receivedAt = receivedAt;
+            this.sid = sid;
+            this.type = type;
+            this.payload = payload;
+        }
+    }
+}
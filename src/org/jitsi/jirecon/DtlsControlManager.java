@@ -7,8 +7,6 @@ package org.jitsi.jirecon;
 
 import java.util.*;
 import net.java.sip.communicator.impl.protocol.jabber.extensions.jingle.*;
-import org.jitsi.impl.neomedia.transform.dtls.*;
-import org.jitsi.service.libjitsi.*;
 import org.jitsi.service.neomedia.*;
 
 /**
@@ -158,24 +156,8 @@ public class DtlsControlManager
 
         if (null == control)
         {
-            if (MediaType.DATA == mediaType)
-            {
-                // Do add SRTP extensions, because the server-side code
-                // (org.jitsi.impl.neomedia.transform.dtls.TlsServerImpl)
-                // expects them in all cases.
-                control = new DtlsControlImpl(false);
-            }
-            else
-            {
-                LibJitsi.start();
-
-                 // As for the other media types (such as "audio" or "video"), we
-                 // can use MediaService to create DtlsControl.
-                MediaService mediaService = LibJitsi.getMediaService();
-                control =
-                    (DtlsControl) mediaService
-                        .createSrtpControl(SrtpControlType.DTLS_SRTP);
-            }
+            // The key pair and certificate have been generated in advance.
+            control = DtlsControlPool.getInstance().take(mediaType);
 
             dtlsControls.put(mediaType, control);
             /*
@@ -0,0 +1,396 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.impl.neomedia.transform.dtls.*;
+import org.jitsi.jirecon.utils.*;
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.service.neomedia.*;
+import org.jitsi.util.*;
+
+/**
+ * A process-wide pool of <tt>DtlsControl</tt>s which have been created in the
+ * background, so that the key pair and self-signed certificate every
+ * <tt>DtlsControl</tt> generates are not paid for when a task starts.
+ * <p>
+ * Every <tt>MediaType</tt> has its own pool, which is refilled after each
+ * take. A pooled <tt>DtlsControl</tt> which is older than the rotation period
+ * is thrown away, so identities don't stay around for long. The pools are
+ * rotated and refilled in the background too, so that a take after a quiet
+ * period doesn't find only expired ones.
+ * 
+ * @author lishunyang
+ * 
+ */
+public class DtlsControlPool
+{
+    /**
+     * The <tt>Logger</tt>, used to log messages to standard output.
+     */
+    private static final Logger logger = Logger
+        .getLogger(DtlsControlPool.class);
+
+    /**
+     * The default number of <tt>DtlsControl</tt>s kept for every
+     * <tt>MediaType</tt>.
+     */
+    private static final int DEFAULT_POOL_SIZE = 2;
+
+    /**
+     * The default time in milliseconds a pooled <tt>DtlsControl</tt> may be
+     * used after it has been created.
+     */
+    private static final int DEFAULT_ROTATION_PERIOD = 3600000;
+
+    /**
+     * The <tt>DtlsControlPool</tt> shared by all tasks.
+     */
+    private static DtlsControlPool instance;
+
+    /**
+     * The number of <tt>DtlsControl</tt>s kept for every <tt>MediaType</tt>.
+     */
+    private final int poolSize;
+
+    /**
+     * The time in milliseconds a pooled <tt>DtlsControl</tt> may be used
+     * after it has been created.
+     */
+    private final long rotationPeriod;
+
+    /**
+     * Map between <tt>MediaType</tt> and its pooled <tt>DtlsControl</tt>s.
+     */
+    private final Map<MediaType, BlockingQueue<PooledControl>> pools =
+        new EnumMap<MediaType, BlockingQueue<PooledControl>>(MediaType.class);
+
+    /**
+     * The smallest interval in milliseconds between two background rotations.
+     */
+    private static final long MIN_ROTATION_INTERVAL = 1000;
+
+    /**
+     * The interval in milliseconds between two background rotations.
+     */
+    private final long rotationInterval;
+
+    /**
+     * Creates <tt>DtlsControl</tt>s and rotates the pools in the background.
+     */
+    private final ScheduledExecutorService generator = Executors
+        .newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "DtlsControlPool");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    /**
+     * Number of takes answered from the pool.
+     */
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * Number of takes which had to create a <tt>DtlsControl</tt>.
+     */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Number of <tt>DtlsControl</tt>s which have been created.
+     */
+    private final AtomicLong generated = new AtomicLong();
+
+    /**
+     * Total time in milliseconds spent creating <tt>DtlsControl</tt>s.
+     */
+    private final AtomicLong totalGenerationTime = new AtomicLong();
+
+    /**
+     * Longest time in milliseconds spent creating a <tt>DtlsControl</tt>.
+     */
+    private final AtomicLong maxGenerationTime = new AtomicLong();
+
+    /**
+     * Get the <tt>DtlsControlPool</tt> shared by all tasks, create it if it's
+     * the first time.
+     * 
+     * @return The <tt>DtlsControlPool</tt>.
+     */
+    public static synchronized DtlsControlPool getInstance()
+    {
+        if (null == instance)
+        {
+            LibJitsi.start();
+            ConfigurationService configuration =
+                LibJitsi.getConfigurationService();
+
+            instance =
+                new DtlsControlPool(configuration.getInt(
+                    ConfigurationKey.DTLS_POOL_SIZE_KEY, DEFAULT_POOL_SIZE),
+                    configuration.getInt(
+                        ConfigurationKey.DTLS_ROTATION_PERIOD_KEY,
+                        DEFAULT_ROTATION_PERIOD));
+        }
+
+        return instance;
+    }
+
+    /**
+     * Construction method. Starts filling the pools.
+     * 
+     * @param poolSize The number of <tt>DtlsControl</tt>s kept for every
+     *            <tt>MediaType</tt>, 0 to create them when they are taken.
+     * @param rotationPeriod The time in milliseconds a pooled
+     *            <tt>DtlsControl</tt> may be used after it has been created.
+     */
+    private DtlsControlPool(int poolSize, long rotationPeriod)
+    {
+        this.poolSize = Math.max(0, poolSize);
+        this.rotationPeriod = rotationPeriod;
+        this.rotationInterval =
+            Math.max(MIN_ROTATION_INTERVAL, rotationPeriod / 4);
+
+        for (MediaType mediaType : MediaType.values())
+        {
+            pools.put(mediaType, new LinkedBlockingQueue<PooledControl>());
+            refill(mediaType);
+        }
+
+        if (0 != this.poolSize)
+        {
+            generator.scheduleWithFixedDelay(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    rotate(System.currentTimeMillis());
+                }
+            }, rotationInterval, rotationInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Take a <tt>DtlsControl</tt> of a <tt>MediaType</tt>. A pooled one is
+     * returned if there is one which is not too old, otherwise one is created
+     * at once.
+     * 
+     * @param mediaType The <tt>MediaType</tt>.
+     * @return The <tt>DtlsControl</tt>, which is not used by anyone else.
+     */
+    public DtlsControl take(MediaType mediaType)
+    {
+        final BlockingQueue<PooledControl> pool = pools.get(mediaType);
+        final long now = System.currentTimeMillis();
+        PooledControl pooled;
+
+        try
+        {
+            while (null != (pooled = pool.poll()))
+            {
+                if (now - pooled.createdAt < rotationPeriod)
+                {
+                    hits.incrementAndGet();
+                    return pooled.control;
+                }
+
+                // Too old, rotate it out.
+                pooled.control.cleanup(null);
+            }
+
+            logger.info("No " + mediaType + " DtlsControl in pool, misses: "
+                + misses.incrementAndGet() + ", hits: " + hits.get());
+            return create(mediaType);
+        }
+        finally
+        {
+            refill(mediaType);
+        }
+    }
+
+    /**
+     * Get the number of takes answered from the pool.
+     * 
+     * @return The number of hits.
+     */
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of takes which had to create a <tt>DtlsControl</tt>.
+     * 
+     * @return The number of misses.
+     */
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    /**
+     * Get the average time in milliseconds spent creating a
+     * <tt>DtlsControl</tt>.
+     * 
+     * @return The average time, 0 if none has been created.
+     */
+    public long getAverageGenerationTime()
+    {
+        final long count = generated.get();
+
+        return 0 == count ? 0 : totalGenerationTime.get() / count;
+    }
+
+    /**
+     * Get the longest time in milliseconds spent creating a
+     * <tt>DtlsControl</tt>.
+     * 
+     * @return The longest time.
+     */
+    public long getMaxGenerationTime()
+    {
+        return maxGenerationTime.get();
+    }
+
+    /**
+     * Throw away the pooled <tt>DtlsControl</tt>s which will have expired
+     * before the next rotation, and refill the pools. It runs on
+     * {@link #generator}.
+     * 
+     * @param now The current time.
+     */
+    private void rotate(long now)
+    {
+        for (MediaType mediaType : MediaType.values())
+        {
+            final BlockingQueue<PooledControl> pool = pools.get(mediaType);
+            int rotated = 0;
+
+            for (PooledControl pooled : pool)
+            {
+                // A take may have got it meanwhile.
+                if (now - pooled.createdAt >= rotationPeriod - rotationInterval
+                    && pool.remove(pooled))
+                {
+                    pooled.control.cleanup(null);
+                    rotated++;
+                }
+            }
+
+            if (0 != rotated)
+            {
+                logger.info("Rotated " + rotated + " pooled " + mediaType
+                    + " DtlsControls.");
+                refill(mediaType);
+            }
+        }
+    }
+
+    /**
+     * Create pooled <tt>DtlsControl</tt>s of a <tt>MediaType</tt> in the
+     * background until its pool is full.
+     * 
+     * @param mediaType The <tt>MediaType</tt>.
+     */
+    private void refill(final MediaType mediaType)
+    {
+        if (0 == poolSize)
+            return;
+
+        generator.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                final BlockingQueue<PooledControl> pool = pools.get(mediaType);
+
+                while (pool.size() < poolSize)
+                {
+                    final long createdAt = System.currentTimeMillis();
+                    pool.offer(new PooledControl(create(mediaType), createdAt));
+                }
+            }
+        });
+    }
+
+    /**
+     * Create a <tt>DtlsControl</tt> of a <tt>MediaType</tt>, and measure how
+     * long it takes.
+     * 
+     * @param mediaType The <tt>MediaType</tt>.
+     * @return The <tt>DtlsControl</tt>.
+     */
+    private DtlsControl create(MediaType mediaType)
+    {
+        final long startTime = System.currentTimeMillis();
+        final DtlsControl control;
+
+        if (MediaType.DATA == mediaType)
+        {
+            // Do add SRTP extensions, because the server-side code
+            // (org.jitsi.impl.neomedia.transform.dtls.TlsServerImpl)
+            // expects them in all cases.
+            control = new DtlsControlImpl(false);
+        }
+        else
+        {
+            // As for the other media types (such as "audio" or "video"), we
+            // can use MediaService to create DtlsControl.
+            MediaService mediaService = LibJitsi.getMediaService();
+            control =
+                (DtlsControl) mediaService
+                    .createSrtpControl(SrtpControlType.DTLS_SRTP);
+        }
+
+        final long time = System.currentTimeMillis() - startTime;
+        generated.incrementAndGet();
+        totalGenerationTime.addAndGet(time);
+        long max;
+        while (time > (max = maxGenerationTime.get())
+            && !maxGenerationTime.compareAndSet(max, time))
+            ;
+
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Created " + mediaType + " DtlsControl in " + time
+                + " ms, average " + getAverageGenerationTime() + " ms");
+        }
+
+        return control;
+    }
+
+    /**
+     * A <tt>DtlsControl</tt> waiting in a pool.
+     * 
+     * @author lishunyang
+     */
+    private static class PooledControl
+    {
+        /**
+         * The <tt>DtlsControl</tt>.
+         */
+        final DtlsControl control;
+
+        /**
+         * When it was created.
+         */
+        final long createdAt;
+
+        PooledControl(DtlsControl control, long createdAt)
+        {
+            this.control = control;
+            this.createdAt = createdAt;
+        }
+    }
+}
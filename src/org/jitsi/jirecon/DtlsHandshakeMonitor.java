@@ -0,0 +1,301 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.ice4j.socket.*;
+import org.jitsi.service.neomedia.*;
+import org.jitsi.util.*;
+
+/**
+ * Watches the DTLS handshakes of a task on the wire, so that we know how long
+ * each of them takes and how often it retransmits, and can wait for all of
+ * them with a deadline.
+ * <p>
+ * The socket of every <tt>MediaType</tt> is wrapped by
+ * {@link #wrapSocket(MediaType, DatagramSocket)}. A handshake starts when we
+ * send its first handshake record. Sending a handshake fragment with a
+ * message_seq and fragment_offset we have sent before is counted as a
+ * retransmit. It completes
+ * when we receive the peer's ChangeCipherSpec, which comes with the last
+ * flight of the peer (we are the DTLS client).
+ * 
+ * @author lishunyang
+ * 
+ */
+public class DtlsHandshakeMonitor
+{
+    /**
+     * The <tt>Logger</tt>, used to log messages to standard output.
+     */
+    private static final Logger logger = Logger
+        .getLogger(DtlsHandshakeMonitor.class);
+
+    /**
+     * DTLS content type of ChangeCipherSpec records.
+     */
+    private static final int CHANGE_CIPHER_SPEC = 20;
+
+    /**
+     * DTLS content type of handshake records.
+     */
+    private static final int HANDSHAKE = 22;
+
+    /**
+     * Length of the DTLS record header.
+     */
+    private static final int RECORD_HEADER_LENGTH = 13;
+
+    /**
+     * Length of the DTLS handshake message header.
+     */
+    private static final int HANDSHAKE_HEADER_LENGTH = 12;
+
+    /**
+     * Map between <tt>MediaType</tt> and the state of its handshake.
+     */
+    private final Map<MediaType, Handshake> handshakes =
+        new ConcurrentHashMap<MediaType, Handshake>();
+
+    /**
+     * Wrap the socket of a <tt>MediaType</tt>, so that its DTLS handshake is
+     * watched.
+     * 
+     * @param mediaType The <tt>MediaType</tt>.
+     * @param socket The socket the DTLS records go through.
+     * @return The wrapped socket, which has to be used instead.
+     * @throws SocketException if the socket could not be wrapped.
+     */
+    public DatagramSocket wrapSocket(MediaType mediaType, DatagramSocket socket)
+        throws SocketException
+    {
+        final Handshake handshake = new Handshake();
+        handshakes.put(mediaType, handshake);
+
+        return new DelegatingDatagramSocket(socket)
+        {
+            @Override
+            public void send(DatagramPacket p)
+                throws IOException
+            {
+                handshake.sent(p.getData(), p.getOffset(), p.getLength());
+                super.send(p);
+            }
+
+            @Override
+            public void receive(DatagramPacket p)
+                throws IOException
+            {
+                super.receive(p);
+                handshake.received(p.getData(), p.getOffset(), p.getLength());
+            }
+        };
+    }
+
+    /**
+     * Wait until the handshakes of some <tt>MediaType</tt>s have completed,
+     * or until a deadline, and log their durations and retransmits.
+     * 
+     * @param mediaTypes The <tt>MediaType</tt>s to wait for.
+     * @param timeout The maximum time in milliseconds to wait for all of them.
+     * @return The <tt>MediaType</tt>s whose handshake has not completed.
+     */
+    public Set<MediaType> waitForAll(Collection<MediaType> mediaTypes,
+        long timeout)
+    {
+        final long deadline = System.currentTimeMillis() + timeout;
+        final Set<MediaType> incomplete = new HashSet<MediaType>();
+
+        for (MediaType mediaType : mediaTypes)
+        {
+            final Handshake handshake = handshakes.get(mediaType);
+            boolean completed = false;
+
+            if (null != handshake)
+            {
+                try
+                {
+                    completed =
+                        handshake.completed.await(
+                            Math.max(0, deadline - System.currentTimeMillis()),
+                            TimeUnit.MILLISECONDS);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            if (!completed)
+                incomplete.add(mediaType);
+        }
+
+        for (MediaType mediaType : mediaTypes)
+        {
+            logger.info("DTLS handshake of " + mediaType + ": "
+                + (incomplete.contains(mediaType) ? "not completed"
+                    : getDuration(mediaType) + " ms") + ", retransmits: "
+                + getRetransmits(mediaType));
+        }
+
+        return incomplete;
+    }
+
+    /**
+     * Get how long the handshake of a <tt>MediaType</tt> took.
+     * 
+     * @param mediaType The <tt>MediaType</tt>.
+     * @return The duration in milliseconds, or -1 if it has not completed.
+     */
+    public long getDuration(MediaType mediaType)
+    {
+        final Handshake handshake = handshakes.get(mediaType);
+        if (null == handshake || 0 == handshake.endTime)
+            return -1;
+
+        return handshake.endTime - handshake.startTime;
+    }
+
+    /**
+     * Get how many handshake messages of a <tt>MediaType</tt> have been sent
+     * again.
+     * 
+     * @param mediaType The <tt>MediaType</tt>.
+     * @return The number of retransmits.
+     */
+    public int getRetransmits(MediaType mediaType)
+    {
+        final Handshake handshake = handshakes.get(mediaType);
+
+        return null == handshake ? 0 : handshake.retransmits.get();
+    }
+
+    /**
+     * Check whether a packet is a DTLS record with a content type, in the
+     * clear epoch 0 if it's a handshake record.
+     * 
+     * @param buf The buffer of the packet.
+     * @param off The offset of the packet.
+     * @param len The length of the packet.
+     * @param contentType The content type.
+     * @return <tt>true</tt> if it is such a record.
+     */
+    public static boolean isRecord(byte[] buf, int off, int len,
+        int contentType)
+    {
+        if (len < RECORD_HEADER_LENGTH
+            || contentType != (buf[off] & 0xFF)
+            || (byte) 0xFE != buf[off + 1])
+            return false;
+
+        return HANDSHAKE != contentType
+            || (0 == buf[off + 3] && 0 == buf[off + 4]);
+    }
+
+    /**
+     * Identify the first handshake fragment of a handshake record in epoch 0
+     * by its message_seq and fragment_offset, so that retransmits can be told
+     * apart from the other fragments of a message.
+     * 
+     * @param buf The buffer of the packet.
+     * @param off The offset of the packet.
+     * @param len The length of the packet.
+     * @return message_seq &lt;&lt; 24 | fragment_offset, or -1 if it's not
+     *         such a record.
+     */
+    public static long getFragmentId(byte[] buf, int off, int len)
+    {
+        if (!isRecord(buf, off, len, HANDSHAKE)
+            || len < RECORD_HEADER_LENGTH + HANDSHAKE_HEADER_LENGTH)
+            return -1;
+
+        // msg_type(1) length(3) message_seq(2) fragment_offset(3)
+        final int i = off + RECORD_HEADER_LENGTH + 4;
+        final long messageSeq = ((buf[i] & 0xFF) << 8) | (buf[i + 1] & 0xFF);
+        final long fragmentOffset =
+            ((buf[i + 2] & 0xFF) << 16) | ((buf[i + 3] & 0xFF) << 8)
+                | (buf[i + 4] & 0xFF);
+
+        return (messageSeq << 24) | fragmentOffset;
+    }
+
+    /**
+     * The state of one handshake.
+     * 
+     * @author lishunyang
+     */
+    private static class Handshake
+    {
+        /**
+         * The handshake fragments we have sent.
+         */
+        private final Set<Long> sentFragments = new HashSet<Long>();
+
+        /**
+         * The number of handshake messages sent again.
+         */
+        final AtomicInteger retransmits = new AtomicInteger();
+
+        /**
+         * Released when the handshake has completed.
+         */
+        final CountDownLatch completed = new CountDownLatch(1);
+
+        /**
+         * When we sent the first handshake record.
+         */
+        volatile long startTime = 0;
+
+        /**
+         * When the handshake completed.
+         */
+        volatile long endTime = 0;
+
+        /**
+         * Inspect a packet we are sending.
+         * 
+         * @param buf The buffer of the packet.
+         * @param off The offset of the packet.
+         * @param len The length of the packet.
+         */
+        void sent(byte[] buf, int off, int len)
+        {
+            final long fragmentId = getFragmentId(buf, off, len);
+            if (fragmentId < 0)
+                return;
+
+            synchronized (sentFragments)
+            {
+                if (0 == startTime)
+                    startTime = System.currentTimeMillis();
+                if (!sentFragments.add(fragmentId))
+                    retransmits.incrementAndGet();
+            }
+        }
+
+        /**
+         * Inspect a packet we have received.
+         * 
+         * @param buf The buffer of the packet.
+         * @param off The offset of the packet.
+         * @param len The length of the packet.
+         */
+        void received(byte[] buf, int off, int len)
+        {
+            if (0 == endTime && 0 != startTime
+                && isRecord(buf, off, len, CHANGE_CIPHER_SPEC))
+            {
+                endTime = System.currentTimeMillis();
+                completed.countDown();
+            }
+        }
+    }
+}
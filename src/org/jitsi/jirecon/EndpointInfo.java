@@ -40,6 +40,11 @@ public class EndpointInfo
         ssrcs.put(mediaType, ssrc);
     }
 
+    public void removeSsrc(MediaType mediaType)
+    {
+        ssrcs.remove(mediaType);
+    }
+
     public String getId()
     {
         return id;
@@ -57,6 +62,8 @@ public class EndpointInfo
 
     public long getSsrc(MediaType mediaType)
     {
-        return ssrcs.get(mediaType);
+        final Long ssrc = ssrcs.get(mediaType);
+
+        return null == ssrc ? -1 : ssrc;
     }
 }
@@ -0,0 +1,406 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.ice4j.*;
+import org.ice4j.ice.harvest.*;
+import org.ice4j.socket.*;
+import org.ice4j.stunclient.*;
+import org.jitsi.jirecon.utils.*;
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.util.*;
+
+/**
+ * A process-level cache of the host addresses and of their server reflexive
+ * mappings, so that every task doesn't discover them again.
+ * <p>
+ * Entries expire after a TTL. When the host addresses are discovered again
+ * and turn out to have changed, all reflexive mappings are dropped too,
+ * because they may not be valid any more.
+ * <p>
+ * Discoveries run without holding the cache, and concurrent lookups of the
+ * same reflexive address share one discovery. Failed discoveries are cached
+ * too, so that an unreachable STUN server doesn't delay every task.
+ *
+ * @author lishunyang
+ *
+ */
+public class HarvestCache
+{
+    /**
+     * The <tt>Logger</tt>, used to log messages to standard output.
+     */
+    private static final Logger logger = Logger.getLogger(HarvestCache.class);
+
+    /**
+     * The default time in milliseconds an entry stays in the cache.
+     */
+    private static final int DEFAULT_TTL = 60000;
+
+    /**
+     * The <tt>HarvestCache</tt> shared by all tasks.
+     */
+    private static HarvestCache instance;
+
+    /**
+     * The time in milliseconds an entry stays in the cache.
+     */
+    private final long ttl;
+
+    /**
+     * The cached host addresses, null if they have not been discovered yet.
+     */
+    private List<InetAddress> hostAddresses;
+
+    /**
+     * When {@link #hostAddresses} was discovered.
+     */
+    private long hostAddressesTime;
+
+    /**
+     * Map between "local address/STUN server" and the reflexive address of
+     * the local address.
+     */
+    private final Map<String, Mapping> reflexiveAddresses =
+        new HashMap<String, Mapping>();
+
+    /**
+     * Map between "local address/STUN server" and the discovery of the
+     * reflexive address which is in progress.
+     */
+    private final Map<String, FutureTask<TransportAddress>> discoveries =
+        new HashMap<String, FutureTask<TransportAddress>>();
+
+    /**
+     * Number of lookups answered from the cache.
+     */
+    private long hits = 0;
+
+    /**
+     * Number of lookups which needed a discovery.
+     */
+    private long misses = 0;
+
+    /**
+     * Number of times the host addresses have changed.
+     */
+    private long changes = 0;
+
+    /**
+     * Get the <tt>HarvestCache</tt> shared by all tasks, create it if it's
+     * the first time.
+     * <p>
+     * <strong>Warning:</strong> LibJitsi must be started.
+     *
+     * @return The <tt>HarvestCache</tt>.
+     */
+    public static synchronized HarvestCache getInstance()
+    {
+        if (null == instance)
+        {
+            instance =
+                new HarvestCache(LibJitsi.getConfigurationService().getInt(
+                    ConfigurationKey.HARVEST_CACHE_TTL_KEY, DEFAULT_TTL));
+        }
+
+        return instance;
+    }
+
+    /**
+     * Construction method.
+     *
+     * @param ttl The time in milliseconds an entry stays in the cache.
+     */
+    public HarvestCache(long ttl)
+    {
+        this.ttl = ttl;
+    }
+
+    /**
+     * Get the addresses of the host interfaces which ICE may use.
+     *
+     * @return The host addresses.
+     * @throws SocketException if the interfaces could not be listed.
+     */
+    public List<InetAddress> getHostAddresses()
+        throws SocketException
+    {
+        final long now = System.currentTimeMillis();
+
+        synchronized (this)
+        {
+            if (null != hostAddresses && now - hostAddressesTime < ttl)
+            {
+                hits++;
+                return hostAddresses;
+            }
+            misses++;
+        }
+
+        final List<InetAddress> discovered = discoverHostAddresses();
+
+        synchronized (this)
+        {
+            if (null != hostAddresses && !hostAddresses.equals(discovered))
+            {
+                changes++;
+                reflexiveAddresses.clear();
+                discoveries.clear();
+                logger.info("Host addresses changed from " + hostAddresses
+                    + " to " + discovered);
+            }
+            hostAddresses = Collections.unmodifiableList(discovered);
+            hostAddressesTime = now;
+
+            return hostAddresses;
+        }
+    }
+
+    /**
+     * Get the server reflexive address of a local address, as seen by a STUN
+     * server.
+     *
+     * @param localAddress The local address.
+     * @param stunServer The address of the STUN server.
+     * @return The reflexive address, the port is meaningless.
+     * @throws IOException if the STUN server could not be asked, now or
+     *             within the TTL.
+     */
+    public TransportAddress getReflexiveAddress(
+        final InetAddress localAddress, final TransportAddress stunServer)
+        throws IOException
+    {
+        // Drop the mappings if the host addresses have changed.
+        getHostAddresses();
+
+        final String key = localAddress.getHostAddress() + "/" + stunServer;
+        final long now = System.currentTimeMillis();
+        FutureTask<TransportAddress> discovery;
+        boolean discovering = false;
+
+        synchronized (this)
+        {
+            final Mapping mapping = reflexiveAddresses.get(key);
+            if (null != mapping && now - mapping.time < ttl)
+            {
+                hits++;
+                return getAddress(mapping.address, stunServer);
+            }
+
+            discovery = discoveries.get(key);
+            if (null == discovery)
+            {
+                misses++;
+                discovery =
+                    new FutureTask<TransportAddress>(
+                        new Callable<TransportAddress>()
+                        {
+                            @Override
+                            public TransportAddress call()
+                                throws IOException
+                            {
+                                return discoverReflexiveAddress(localAddress,
+                                    stunServer);
+                            }
+                        });
+                discoveries.put(key, discovery);
+                discovering = true;
+            }
+        }
+
+        TransportAddress address = null;
+        if (discovering)
+        {
+            discovery.run();
+            try
+            {
+                address = discovery.get();
+            }
+            catch (Exception e)
+            {
+                logger.warn("Failed to ask STUN server " + stunServer
+                    + " from " + localAddress + ": " + e.getMessage());
+            }
+
+            synchronized (this)
+            {
+                // Unless the host addresses have changed meanwhile.
+                if (discoveries.get(key) == discovery)
+                {
+                    discoveries.remove(key);
+                    reflexiveAddresses.put(key, new Mapping(address, now));
+                }
+            }
+        }
+        else
+        {
+            try
+            {
+                address = discovery.get();
+            }
+            catch (ExecutionException e)
+            {
+                address = null;
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        return getAddress(address, stunServer);
+    }
+
+    /**
+     * Check the result of a reflexive address discovery.
+     *
+     * @param address The reflexive address, null if the discovery failed.
+     * @param stunServer The address of the STUN server.
+     * @return <tt>address</tt>.
+     * @throws IOException if the discovery failed.
+     */
+    private static TransportAddress getAddress(TransportAddress address,
+        TransportAddress stunServer)
+        throws IOException
+    {
+        if (null == address)
+            throw new IOException("No answer from STUN server " + stunServer);
+        return address;
+    }
+
+    /**
+     * Get the number of lookups answered from the cache.
+     *
+     * @return The number of hits.
+     */
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    /**
+     * Get the number of lookups which needed a discovery.
+     *
+     * @return The number of misses.
+     */
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * Get the number of times the host addresses have changed.
+     *
+     * @return The number of changes.
+     */
+    public synchronized long getChanges()
+    {
+        return changes;
+    }
+
+    /**
+     * List the addresses of the interfaces which are up and not loopback,
+     * honouring the interface filters of ice4j. IPv6 link-local addresses are
+     * left out.
+     *
+     * @return The host addresses.
+     * @throws SocketException if the interfaces could not be listed.
+     */
+    protected List<InetAddress> discoverHostAddresses()
+        throws SocketException
+    {
+        final List<InetAddress> addresses = new ArrayList<InetAddress>();
+        final String[] allowed = HostCandidateHarvester.getAllowedInterfaces();
+        final String[] blocked = HostCandidateHarvester.getBlockedInterfaces();
+        final Enumeration<NetworkInterface> interfaces =
+            NetworkInterface.getNetworkInterfaces();
+
+        while (null != interfaces && interfaces.hasMoreElements())
+        {
+            final NetworkInterface iface = interfaces.nextElement();
+
+            if (!iface.isUp() || iface.isLoopback() || iface.isVirtual())
+                continue;
+            if (null != allowed
+                && !Arrays.asList(allowed).contains(iface.getName()))
+                continue;
+            if (null != blocked
+                && Arrays.asList(blocked).contains(iface.getName()))
+                continue;
+
+            final Enumeration<InetAddress> ifaceAddresses =
+                iface.getInetAddresses();
+            while (ifaceAddresses.hasMoreElements())
+            {
+                final InetAddress address = ifaceAddresses.nextElement();
+
+                if (!address.isLinkLocalAddress())
+                    addresses.add(address);
+            }
+        }
+
+        return addresses;
+    }
+
+    /**
+     * Ask a STUN server for the reflexive address of a local address, from a
+     * temporary socket bound to it.
+     *
+     * @param localAddress The local address.
+     * @param stunServer The address of the STUN server.
+     * @return The reflexive address, or null if there was no answer.
+     * @throws IOException if the socket could not be bound.
+     */
+    protected TransportAddress discoverReflexiveAddress(
+        InetAddress localAddress, TransportAddress stunServer)
+        throws IOException
+    {
+        final SimpleAddressDetector detector =
+            new SimpleAddressDetector(stunServer);
+        final DatagramSocket socket = new DatagramSocket(0, localAddress);
+
+        try
+        {
+            detector.start();
+            return detector.getMappingFor(new IceUdpSocketWrapper(socket));
+        }
+        finally
+        {
+            detector.shutDown();
+            socket.close();
+        }
+    }
+
+    /**
+     * A cached reflexive address.
+     *
+     * @author lishunyang
+     */
+    private static class Mapping
+    {
+        /**
+         * The reflexive address, null if it could not be discovered.
+         */
+        final TransportAddress address;
+
+        /**
+         * When it was discovered.
+         */
+        final long time;
+
+        Mapping(TransportAddress address, long time)
+        {
+            this.address = address;
+            this.time = time;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon;
+
+import java.beans.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.ice4j.ice.*;
+
+/**
+ * The outcome of ICE connectivity establishment of an <tt>Agent</tt>.
+ * <p>
+ * It is registered as a state change listener of the <tt>Agent</tt>, and
+ * completes when the <tt>Agent</tt> enters COMPLETED, FAILED or TERMINATED, or
+ * when {@link #timeout()} is called first. Callers can either block in
+ * {@link #get(long, TimeUnit)} or register a listener with
+ * {@link #addListener(Runnable)}, which doesn't need a waiting thread.
+ * 
+ * @author lishunyang
+ * 
+ */
+public class IceCompletion
+    implements Future<IceProcessingState>,
+               PropertyChangeListener
+{
+    /**
+     * Released when this completes.
+     */
+    private final CountDownLatch latch = new CountDownLatch(1);
+
+    /**
+     * Listeners to run when this completes.
+     */
+    private final List<Runnable> listeners = new ArrayList<Runnable>();
+
+    /**
+     * The final state of the <tt>Agent</tt>, null if this completed by
+     * timeout or cancellation.
+     */
+    private volatile IceProcessingState state;
+
+    /**
+     * Indicates whether this has completed.
+     */
+    private boolean done = false;
+
+    /**
+     * Indicates whether this completed because of {@link #timeout()}.
+     */
+    private volatile boolean timedOut = false;
+
+    /**
+     * Indicates whether this completed because of
+     * {@link #cancel(boolean)}.
+     */
+    private volatile boolean cancelled = false;
+
+    /**
+     * Check whether an <tt>IceProcessingState</tt> is final.
+     * 
+     * @param state The state.
+     * @return <tt>true</tt> if it's COMPLETED, FAILED or TERMINATED.
+     */
+    public static boolean isFinal(Object state)
+    {
+        return IceProcessingState.COMPLETED.equals(state)
+            || IceProcessingState.FAILED.equals(state)
+            || IceProcessingState.TERMINATED.equals(state);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Complete when the <tt>Agent</tt> enters a final state.
+     */
+    @Override
+    public void propertyChange(PropertyChangeEvent ev)
+    {
+        if (Agent.PROPERTY_ICE_PROCESSING_STATE.equals(ev.getPropertyName()))
+            complete(ev.getNewValue());
+    }
+
+    /**
+     * Complete with a state of the <tt>Agent</tt>, if it is final.
+     * 
+     * @param state The state.
+     * @return <tt>true</tt> if this completed just now.
+     */
+    public boolean complete(Object state)
+    {
+        if (!isFinal(state))
+            return false;
+
+        return finish((IceProcessingState) state, false, false);
+    }
+
+    /**
+     * Complete as timed out, unless the <tt>Agent</tt> has entered a final
+     * state before.
+     * 
+     * @return <tt>true</tt> if this completed just now.
+     */
+    public boolean timeout()
+    {
+        return finish(null, true, false);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Complete as cancelled, so that waiting threads give up. The
+     * <tt>Agent</tt> itself is not stopped.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning)
+    {
+        return finish(null, false, true);
+    }
+
+    /**
+     * Add a listener which is run once this has completed. It is run at once
+     * if this has already completed, otherwise on the thread which completes
+     * this, so it should return quickly.
+     * 
+     * @param listener The listener.
+     */
+    public void addListener(Runnable listener)
+    {
+        synchronized (listeners)
+        {
+            if (!done)
+            {
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    /**
+     * Check whether ICE connectivity has been established.
+     * 
+     * @return <tt>true</tt> if this completed with COMPLETED or TERMINATED.
+     */
+    public boolean isSucceeded()
+    {
+        final IceProcessingState s = state;
+
+        return IceProcessingState.COMPLETED.equals(s)
+            || IceProcessingState.TERMINATED.equals(s);
+    }
+
+    /**
+     * Check whether this completed because of {@link #timeout()}.
+     * 
+     * @return <tt>true</tt> if it timed out.
+     */
+    public boolean isTimedOut()
+    {
+        return timedOut;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isDone()
+    {
+        return 0 == latch.getCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @return The final state, or null if this timed out.
+     */
+    @Override
+    public IceProcessingState get()
+        throws InterruptedException
+    {
+        latch.await();
+        return getState();
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @return The final state, or null if this timed out.
+     */
+    @Override
+    public IceProcessingState get(long timeout, TimeUnit unit)
+        throws InterruptedException,
+        TimeoutException
+    {
+        if (!latch.await(timeout, unit))
+            throw new TimeoutException();
+        return getState();
+    }
+
+    /**
+     * Get the final state once this has completed.
+     * 
+     * @return The final state, or null if this timed out.
+     * @throws CancellationException if this has been cancelled.
+     */
+    private IceProcessingState getState()
+    {
+        if (cancelled)
+            throw new CancellationException();
+        return state;
+    }
+
+    /**
+     * Complete this, unless it has already completed, and run the listeners.
+     * 
+     * @param state The final state, null if timed out or cancelled.
+     * @param timedOut Whether it timed out.
+     * @param cancelled Whether it has been cancelled.
+     * @return <tt>true</tt> if this completed just now.
+     */
+    private boolean finish(IceProcessingState state, boolean timedOut,
+        boolean cancelled)
+    {
+        final List<Runnable> toRun;
+
+        synchronized (listeners)
+        {
+            if (done)
+                return false;
+            done = true;
+
+            this.state = state;
+            this.timedOut = timedOut;
+            this.cancelled = cancelled;
+            toRun = new ArrayList<Runnable>(listeners);
+            listeners.clear();
+        }
+        latch.countDown();
+
+        for (Runnable listener : toRun)
+            listener.run();
+        return true;
+    }
+}
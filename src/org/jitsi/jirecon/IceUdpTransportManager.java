@@ -5,7 +5,7 @@
  */
 package org.jitsi.jirecon;
 
-import java.beans.*;
+import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
@@ -13,6 +13,7 @@ import net.java.sip.communicator.impl.protocol.jabber.extensions.jingle.*;
 import net.java.sip.communicator.impl.protocol.jabber.extensions.jingle.CandidateType;
 import org.ice4j.*;
 import org.ice4j.ice.*;
+import org.ice4j.ice.harvest.*;
 import org.jitsi.jirecon.utils.*;
 import org.jitsi.service.configuration.*;
 import org.jitsi.service.libjitsi.*;
@@ -38,9 +39,26 @@ public class IceUdpTransportManager
         .getLogger(IceUdpTransportManager.class.getName());
 
     /**
-     * The maximum time in milliseconds to wait for ICE to complete.
+     * The default maximum time in milliseconds to wait for ICE to complete.
+     */
+    static final int DEFAULT_ICE_TIMEOUT = 10000;
+
+    /**
+     * The default time in milliseconds after which a selected pair without
+     * consent is considered lost.
+     */
+    private static final int DEFAULT_CONSENT_TIMEOUT = 30000;
+
+    /**
+     * The interval in milliseconds between two consent checks.
      */
-    private static int MAX_WAIT_TIME = 10000;
+    private static final int CONSENT_CHECK_INTERVAL = 5000;
+
+    /**
+     * Timer shared by all managers, which expires {@link #iceCompletion}s
+     * and checks consent.
+     */
+    private static ScheduledExecutorService iceTimer;
 
     /**
      * Instance of <tt>Agent</tt>.
@@ -72,22 +90,117 @@ public class IceUdpTransportManager
     private final int MAX_STREAM_PORT;
 
     /**
-     * Sync root for {@link #lastUsedPort}.
+     * The <tt>PortAllocator</tt> shared by all tasks. It is created with the
+     * configured port range, and is null if there is no valid range.
      */
-    private static final Object lastUsedPortSyncRoot = new Object();
+    private static PortAllocator portAllocator;
 
     /**
-     * The last number used as preferred port number for candidate allocation.
+     * Indicates whether {@link #portAllocator} has been created.
      */
-    private static int lastUsedPort = -1;
+    private static boolean portAllocatorCreated = false;
 
-    public IceUdpTransportManager()
-    {
-        iceAgent = new Agent();
+    /**
+     * Ports which have been reserved in {@link #portAllocator} by this
+     * manager, they are released in {@link #free()}.
+     */
+    private final List<Integer> allocatedPorts = new ArrayList<Integer>();
 
-        // TODO: set the role of the Agent according to the offer we received.
-        iceAgent.setControlling(false);
+    /**
+     * Whether {@link #free()} has been called since the last agent was
+     * created.
+     */
+    private volatile boolean freed = false;
+
+    /**
+     * <tt>MediaType</tt>s which multiplex RTP and RTCP on one component
+     * (rtcp-mux). They have no RTCP component.
+     */
+    private final Set<MediaType> rtcpmuxTypes = EnumSet.noneOf(MediaType.class);
+
+    /**
+     * The outcome of ICE connectivity establishment. It is replaced on every
+     * ICE restart.
+     */
+    private volatile IceCompletion iceCompletion = new IceCompletion();
+
+    /**
+     * The maximum time in milliseconds to wait for ICE to complete.
+     */
+    private final int iceTimeout;
+
+    /**
+     * The STUN server used for server reflexive candidates, null if there is
+     * none.
+     */
+    private final String stunServer;
+
+    /**
+     * Whether this host is behind a static 1:1 NAT which keeps ports, so that
+     * server reflexive candidates can be derived from a cached mapping.
+     */
+    private final boolean staticNat;
+
+    /**
+     * The time in milliseconds after which a selected pair without consent is
+     * considered lost.
+     */
+    private final int consentTimeout;
+
+    /**
+     * When ICE connectivity was last established, used as the consent time of
+     * pairs which haven't got a consent response yet.
+     */
+    private volatile long iceEstablishedTime;
 
+    /**
+     * The periodic consent check, null if it's not running.
+     */
+    private ScheduledFuture<?> consentMonitor;
+
+    /**
+     * Map between <tt>MediaType</tt> and the SO_RCVBUF size of its sockets.
+     * <tt>MediaType</tt>s which are not in it keep the default size.
+     */
+    private final Map<MediaType, Integer> receiveBufferSizes =
+        new HashMap<MediaType, Integer>();
+
+    /**
+     * Watches the DTLS handshakes on the sockets of the stream connectors. It
+     * is replaced on every ICE restart.
+     */
+    private volatile DtlsHandshakeMonitor dtlsMonitor =
+        new DtlsHandshakeMonitor();
+
+    /**
+     * Whether the first agent only gathers host candidates up front and
+     * trickles the others, see {@link #startCandidateTrickle(TrickleListener)}.
+     */
+    private final boolean trickle;
+
+    /**
+     * The id of the next local <tt>CandidatePacketExtension</tt>, so that ids
+     * stay unique when candidates are sent in several packets.
+     */
+    private int nextCandidateId = 1;
+
+    /**
+     * Runs the candidate trickles of all tasks.
+     */
+    private static final ExecutorService trickleExecutor = Executors
+        .newCachedThreadPool(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "CandidateTrickle");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    public IceUdpTransportManager()
+    {
         LibJitsi.start();
         ConfigurationService configuration = LibJitsi.getConfigurationService();
         MIN_STREAM_PORT =
@@ -96,6 +209,131 @@ public class IceUdpTransportManager
         MAX_STREAM_PORT =
             configuration.getInt(ConfigurationKey.MAX_STREAM_PORT_KEY,
                 -1);
+        iceTimeout =
+            configuration.getInt(ConfigurationKey.ICE_TIMEOUT_KEY,
+                DEFAULT_ICE_TIMEOUT);
+        consentTimeout =
+            configuration.getInt(ConfigurationKey.CONSENT_TIMEOUT_KEY,
+                DEFAULT_CONSENT_TIMEOUT);
+        stunServer = configuration.getString(ConfigurationKey.STUN_SERVER_KEY);
+        staticNat =
+            configuration.getBoolean(ConfigurationKey.STATIC_NAT_KEY, false);
+        trickle =
+            configuration.getBoolean(ConfigurationKey.TRICKLE_ICE_KEY, false);
+
+        final String[] receiveBufferKeys = new String[]
+        { ConfigurationKey.AUDIO_RECEIVE_BUFFER_KEY,
+            ConfigurationKey.VIDEO_RECEIVE_BUFFER_KEY,
+            ConfigurationKey.DATA_RECEIVE_BUFFER_KEY };
+        final MediaType[] receiveBufferTypes = new MediaType[]
+        { MediaType.AUDIO, MediaType.VIDEO, MediaType.DATA };
+        for (int i = 0; i < receiveBufferKeys.length; i++)
+        {
+            final int size = configuration.getInt(receiveBufferKeys[i], -1);
+            if (size > 0)
+                receiveBufferSizes.put(receiveBufferTypes[i], size);
+        }
+
+        createAgent(0);
+    }
+
+    /**
+     * Create {@link #iceAgent} and its harvesters.
+     * 
+     * @param generation The ICE generation, it is increased by every restart.
+     */
+    private void createAgent(int generation)
+    {
+        iceAgent = new Agent();
+        freed = false;
+        iceAgent.setGeneration(generation);
+        synchronized (this)
+        {
+            nextCandidateId = 1;
+        }
+
+        /*
+         * Only the first agent trickles. An ICE restart is answered in one
+         * transport-info, so it gathers everything up front.
+         */
+        iceAgent.setTrickling(trickle && 0 == generation);
+
+        // TODO: set the role of the Agent according to the offer we received.
+        iceAgent.setControlling(false);
+
+        // Keep checking the selected pairs, so that we notice a dead path.
+        iceAgent.setPerformConsentFreshness(true);
+
+        if (null != stunServer)
+            addReflexiveHarvesters(stunServer);
+    }
+
+    /**
+     * Add the harvesters of server reflexive candidates.
+     * <p>
+     * Behind a static 1:1 NAT which keeps ports, a
+     * <tt>MappingCandidateHarvester</tt> is added for every host address
+     * which is behind it, so that the candidates are created from the
+     * mappings in the {@link HarvestCache} instead of asking the STUN server
+     * for every component. A mapping harvester advertises the host port, so
+     * behind any other NAT the STUN server is asked for every component.
+     * 
+     * @param stunServer The STUN server, as "host:port".
+     */
+    private void addReflexiveHarvesters(String stunServer)
+    {
+        final int colon = stunServer.lastIndexOf(':');
+        final TransportAddress stunAddress;
+        try
+        {
+            stunAddress =
+                new TransportAddress(stunServer.substring(0, colon),
+                    Integer.parseInt(stunServer.substring(colon + 1)),
+                    Transport.UDP);
+        }
+        catch (RuntimeException e)
+        {
+            logger.error("Invalid STUN server: " + stunServer);
+            return;
+        }
+
+        if (!staticNat)
+        {
+            iceAgent.addCandidateHarvester(new StunCandidateHarvester(
+                stunAddress));
+            return;
+        }
+
+        final HarvestCache cache = HarvestCache.getInstance();
+        try
+        {
+            for (InetAddress hostAddress : cache.getHostAddresses())
+            {
+                final TransportAddress mapped;
+                try
+                {
+                    mapped = cache.getReflexiveAddress(hostAddress, stunAddress);
+                }
+                catch (IOException e)
+                {
+                    logger.warn("No reflexive address of " + hostAddress
+                        + ": " + e.getMessage());
+                    continue;
+                }
+
+                if (hostAddress.equals(mapped.getAddress()))
+                    continue;
+
+                iceAgent.addCandidateHarvester(new MappingCandidateHarvester(
+                    new TransportAddress(mapped.getAddress(), 0,
+                        Transport.UDP), new TransportAddress(hostAddress, 0,
+                        Transport.UDP)));
+            }
+        }
+        catch (SocketException e)
+        {
+            logger.error("Failed to list host addresses", e);
+        }
     }
 
     /**
@@ -103,7 +341,224 @@ public class IceUdpTransportManager
      */
     public void free()
     {
+        stopConsentMonitor();
+        freeAgent();
+        freed = true;
+    }
+
+    /**
+     * Check whether {@link #free()} has been called since the last agent was
+     * created.
+     * 
+     * @return <tt>true</tt> if the agent has been freed.
+     */
+    public boolean isFreed()
+    {
+        return freed;
+    }
+
+    /**
+     * Get the number of ports this manager holds from the shared
+     * <tt>PortAllocator</tt>.
+     * 
+     * @return The number of ports.
+     */
+    public int getAllocatedPortCount()
+    {
+        synchronized (allocatedPorts)
+        {
+            return allocatedPorts.size();
+        }
+    }
+
+    /**
+     * Restart ICE: free {@link #iceAgent} with its sockets and create a new
+     * one, with new credentials and the next generation. The rtcp-mux
+     * settings are kept.
+     * <p>
+     * <strong>Warning:</strong> Local candidates have to be harvested and
+     * connectivity established again, just like the first time. The
+     * <tt>StreamConnector</tt>s and <tt>MediaStreamTarget</tt>s got before
+     * are not valid any more.
+     */
+    public void restart()
+    {
+        logger.info("restart");
+
+        final int generation = iceAgent.getGeneration() + 1;
+
+        stopConsentMonitor();
+        freeAgent();
+        streamConnectors.clear();
+        mediaStreamTargets.clear();
+        iceEstablishedTime = 0;
+        iceCompletion = new IceCompletion();
+        dtlsMonitor = new DtlsHandshakeMonitor();
+        createAgent(generation);
+    }
+
+    /**
+     * Free {@link #iceAgent}, its harvesters and the ports it used.
+     */
+    private void freeAgent()
+    {
+        iceAgent.removeStateChangeListener(iceCompletion);
+        iceCompletion.cancel(false);
         iceAgent.free();
+
+        final PortAllocator allocator = getPortAllocator();
+        if (null != allocator)
+        {
+            synchronized (allocatedPorts)
+            {
+                for (int port : allocatedPorts)
+                    allocator.release(port);
+                allocatedPorts.clear();
+            }
+        }
+    }
+
+    /**
+     * Get the <tt>PortAllocator</tt> shared by all tasks, so that its
+     * utilization can be checked before starting a new one.
+     * <p>
+     * <strong>Warning:</strong> LibJitsi must be started.
+     * 
+     * @return The <tt>PortAllocator</tt>, or null if no valid port range has
+     *         been configured.
+     */
+    public static synchronized PortAllocator getPortAllocator()
+    {
+        if (!portAllocatorCreated)
+        {
+            ConfigurationService configuration =
+                LibJitsi.getConfigurationService();
+            int minPort =
+                configuration.getInt(ConfigurationKey.MIN_STREAM_PORT_KEY, -1);
+            int maxPort =
+                configuration.getInt(ConfigurationKey.MAX_STREAM_PORT_KEY, -1);
+
+            try
+            {
+                portAllocator = new PortAllocator(minPort, maxPort);
+            }
+            catch (IllegalArgumentException e)
+            {
+                logger.warn("No port allocation: " + e.getMessage());
+            }
+            portAllocatorCreated = true;
+        }
+
+        return portAllocator;
+    }
+
+    /**
+     * Set whether RTP and RTCP of a specified <tt>MediaType</tt> are
+     * multiplexed on one component (rtcp-mux).
+     * <p>
+     * <strong>Warning:</strong> It must be set before harvesting local
+     * candidates of the <tt>MediaType</tt>.
+     * 
+     * @param mediaType The <tt>MediaType</tt>.
+     * @param rtcpmux Whether rtcp-mux is used.
+     */
+    public void setRtcpmux(MediaType mediaType, boolean rtcpmux)
+    {
+        if (rtcpmux)
+            rtcpmuxTypes.add(mediaType);
+        else
+            rtcpmuxTypes.remove(mediaType);
+    }
+
+    /**
+     * Check whether RTP and RTCP of a specified <tt>MediaType</tt> are
+     * multiplexed on one component (rtcp-mux). It is always the case for DATA,
+     * which has no RTCP.
+     * 
+     * @param mediaType The <tt>MediaType</tt>.
+     * @return <tt>true</tt> if there is no separate RTCP component.
+     */
+    public boolean isRtcpmux(MediaType mediaType)
+    {
+        return MediaType.DATA == mediaType || rtcpmuxTypes.contains(mediaType);
+    }
+
+    /**
+     * Check whether the agent only gathers host candidates when local
+     * candidates are harvested, so that the others have to be trickled.
+     * 
+     * @return <tt>true</tt> if the agent trickles.
+     */
+    public boolean isTrickling()
+    {
+        return iceAgent.isTrickling();
+    }
+
+    /**
+     * Gather the local candidates which have not been gathered by
+     * {@link #harvestLocalCandidates(MediaType)} and hand them to
+     * <tt>listener</tt> as they come, one
+     * <tt>IceUdpTransportPacketExtension</tt> per <tt>MediaType</tt>.
+     * <p>
+     * <strong>Warning:</strong> This method is asynchronous, the returned
+     * <tt>Future</tt> completes once every harvester has finished. Local
+     * candidates which are gathered after connectivity establishment has
+     * started are not paired by ice4j, so wait for it before starting.
+     * 
+     * @param listener Where the candidates are sent.
+     * @return The <tt>Future</tt> of the trickle.
+     */
+    public Future<?> startCandidateTrickle(final TrickleListener listener)
+    {
+        logger.debug("startCandidateTrickle");
+
+        final Agent iceAgent = this.iceAgent;
+        final int generation = iceAgent.getGeneration();
+
+        return trickleExecutor.submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                iceAgent.startCandidateTrickle(new TrickleCallback()
+                {
+                    @Override
+                    public void onIceCandidates(
+                        Collection<LocalCandidate> candidates)
+                    {
+                        // null is the end of the trickle.
+                        if (null == candidates || candidates.isEmpty())
+                            return;
+
+                        final Map<MediaType, IceUdpTransportPacketExtension> transportPEs =
+                            new HashMap<MediaType, IceUdpTransportPacketExtension>();
+                        for (LocalCandidate candidate : candidates)
+                        {
+                            final MediaType mediaType =
+                                MediaType.parseString(candidate
+                                    .getParentComponent().getParentStream()
+                                    .getName());
+
+                            IceUdpTransportPacketExtension transportPE =
+                                transportPEs.get(mediaType);
+                            if (null == transportPE)
+                            {
+                                transportPE =
+                                    createEmptyTransportPacketExt(iceAgent,
+                                        mediaType);
+                                transportPEs.put(mediaType, transportPE);
+                            }
+                            transportPE.addCandidate(createCandidatePacketExt(
+                                candidate, generation));
+                        }
+
+                        logger.info("Trickling " + candidates.size()
+                            + " local candidates.");
+                        listener.candidatesGathered(transportPEs);
+                    }
+                });
+            }
+        });
     }
 
     /**
@@ -115,10 +570,7 @@ public class IceUdpTransportManager
     public IceUdpTransportPacketExtension createTransportPacketExt(MediaType mediaType)
     {
         IceUdpTransportPacketExtension transportPE =
-            new IceUdpTransportPacketExtension();
-        
-        transportPE.setPassword(iceAgent.getLocalPassword());
-        transportPE.setUfrag(iceAgent.getLocalUfrag());
+            createEmptyTransportPacketExt(iceAgent, mediaType);
 
         for (CandidatePacketExtension candidatePE : createLocalCandidatePacketExts(mediaType))
         {
@@ -128,6 +580,29 @@ public class IceUdpTransportManager
         return transportPE;
     }
 
+    /**
+     * Create a <tt>IceUdpTransportPacketExtension</tt> with the credentials
+     * of <tt>iceAgent</tt> and the rtcp-mux setting, but without candidates.
+     * 
+     * @param iceAgent The agent whose credentials are used.
+     * @param mediaType Indicate which media type do you want.
+     * @return the created <tt>IceUdpTransportPacketExtension</tt>.
+     */
+    private IceUdpTransportPacketExtension createEmptyTransportPacketExt(
+        Agent iceAgent, MediaType mediaType)
+    {
+        IceUdpTransportPacketExtension transportPE =
+            new IceUdpTransportPacketExtension();
+
+        transportPE.setPassword(iceAgent.getLocalPassword());
+        transportPE.setUfrag(iceAgent.getLocalUfrag());
+
+        if (MediaType.DATA != mediaType && isRtcpmux(mediaType))
+            transportPE.addChildExtension(new RtcpmuxPacketExtension());
+
+        return transportPE;
+    }
+
     /**
      * Starts ICE connectivity establishment and returns immediately.
      * <p>
@@ -139,77 +614,215 @@ public class IceUdpTransportManager
     {
         logger.debug("startConnectivityEstablishment");
 
+        final IceCompletion iceCompletion = this.iceCompletion;
+        final Agent iceAgent = this.iceAgent;
+
+        iceAgent.addStateChangeListener(iceCompletion);
         iceAgent.startConnectivityEstablishment();
+        // The agent may have got to a final state before we listened.
+        iceCompletion.complete(iceAgent.getState());
+
+        final long startTime = System.currentTimeMillis();
+        final ScheduledFuture<?> timeoutFuture =
+            getIceTimer().schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    iceCompletion.timeout();
+                }
+            }, iceTimeout, TimeUnit.MILLISECONDS);
+
+        iceCompletion.addListener(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                timeoutFuture.cancel(false);
+                iceAgent.removeStateChangeListener(iceCompletion);
+                if (iceCompletion.isSucceeded())
+                    iceEstablishedTime = System.currentTimeMillis();
+                logger.info("ICE finished in "
+                    + (System.currentTimeMillis() - startTime) + " ms, "
+                    + (iceCompletion.isSucceeded() ? "succeeded" : "failed"));
+            }
+        });
     }
 
     /**
-     * Waits until {@link #iceAgent} enters a final state (CONNECTED, TERMINATED,
-     * or FAILED). Waits for at most 10 seconds.
-     *
-     * Note: connectivity establishment has to have been started using
-     * {@link #startConnectivityEstablishment()} before this method is called.
-     *
-     * @return <tt>true</tt> if ICE connectivity has been established, and
-     * <tt>false</tt> otherwise.
+     * Get the time since the consent of the oldest selected pair was last
+     * refreshed. A component without a selected pair counts as if it hasn't
+     * had consent since ICE was established.
+     * 
+     * @return The age in milliseconds, or -1 if ICE hasn't been established.
      */
-    public boolean wrapupConnectivityEstablishment()
+    public long getConsentAge()
     {
-        final Object syncRoot = new Object();
-        PropertyChangeListener propertyChangeListener
-                = new PropertyChangeListener()
+        final long established = iceEstablishedTime;
+        if (0 == established)
+            return -1;
+
+        final long now = System.currentTimeMillis();
+        long age = 0;
+        for (IceMediaStream stream : iceAgent.getStreams())
         {
-            @Override
-            public void propertyChange(PropertyChangeEvent ev)
+            for (Component component : stream.getComponents())
             {
-                Object newValue = ev.getNewValue();
+                final CandidatePair pair = component.getSelectedPair();
+                long freshness =
+                    null == pair ? CandidatePair.CONSENT_FRESHNESS_UNKNOWN
+                        : pair.getConsentFreshness();
+
+                if (CandidatePair.CONSENT_FRESHNESS_UNKNOWN == freshness
+                    || freshness < established)
+                    freshness = established;
+                age = Math.max(age, now - freshness);
+            }
+        }
 
-                if (IceProcessingState.COMPLETED.equals(newValue)
-                        || IceProcessingState.FAILED.equals(newValue)
-                        || IceProcessingState.TERMINATED.equals(newValue))
-                {
-                    Agent iceAgent = (Agent) ev.getSource();
+        return age;
+    }
 
-                    iceAgent.removeStateChangeListener(this);
-                    if (iceAgent == IceUdpTransportManager.this.iceAgent)
-                    {
-                        synchronized (syncRoot)
-                        {
-                            syncRoot.notify();
-                        }
-                    }
+    /**
+     * Check the consent of the selected pairs periodically, and notify a
+     * listener once it has not been refreshed for the consent timeout.
+     * <p>
+     * <strong>Warning:</strong> The listener is notified at most once, on a
+     * timer thread shared by all tasks, so it should return quickly. The
+     * monitor has to be started again after an ICE restart.
+     * 
+     * @param listener The listener to notify.
+     */
+    public synchronized void startConsentMonitor(
+        final MediaPathListener listener)
+    {
+        stopConsentMonitor();
+
+        consentMonitor = getIceTimer().scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                final long age = getConsentAge();
+                if (age > consentTimeout)
+                {
+                    stopConsentMonitor();
+                    logger.warn("No consent for " + age + " ms, media path lost.");
+                    listener.mediaPathLost(age);
                 }
             }
-        };
+        }, CONSENT_CHECK_INTERVAL, CONSENT_CHECK_INTERVAL,
+            TimeUnit.MILLISECONDS);
+    }
 
-        iceAgent.addStateChangeListener(propertyChangeListener);
-        synchronized (syncRoot)
+    /**
+     * Stop checking consent.
+     */
+    public synchronized void stopConsentMonitor()
+    {
+        if (null != consentMonitor)
         {
-            long startWait = System.currentTimeMillis();
-            do
-            {
-                IceProcessingState iceState = iceAgent.getState();
-                if (IceProcessingState.COMPLETED.equals(iceState)
-                        || IceProcessingState.TERMINATED.equals(iceState)
-                        || IceProcessingState.FAILED.equals(iceState))
-                    break;
+            consentMonitor.cancel(false);
+            consentMonitor = null;
+        }
+    }
 
-                if (System.currentTimeMillis() - startWait > MAX_WAIT_TIME)
-                    break; // Don't run for more than 10 seconds
+    /**
+     * Get the <tt>DtlsHandshakeMonitor</tt> which watches the DTLS handshakes
+     * on the sockets of the stream connectors.
+     * 
+     * @return The <tt>DtlsHandshakeMonitor</tt>.
+     */
+    public DtlsHandshakeMonitor getDtlsHandshakeMonitor()
+    {
+        return dtlsMonitor;
+    }
 
-                try
-                {
-                    syncRoot.wait(MAX_WAIT_TIME);
-                }
-                catch (InterruptedException ie)
+    /**
+     * Get the maximum time in milliseconds to wait for ICE to complete.
+     * 
+     * @return The ICE timeout.
+     */
+    public int getIceTimeout()
+    {
+        return iceTimeout;
+    }
+
+    /**
+     * Get the timer which expires {@link #iceCompletion}s, create it if it's
+     * the first time.
+     * 
+     * @return The timer.
+     */
+    private static synchronized ScheduledExecutorService getIceTimer()
+    {
+        if (null == iceTimer)
+        {
+            iceTimer =
+                Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
                 {
-                    logger.fatal("Interrupted: " + ie);
-                    break;
-                }
-            }
-            while (true);
+                    @Override
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread thread = new Thread(r, "IceTimer");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
         }
 
-        return true;
+        return iceTimer;
+    }
+
+    /**
+     * Get the outcome of ICE connectivity establishment. It completes when
+     * {@link #iceAgent} enters a final state (COMPLETED, TERMINATED or
+     * FAILED), or when the ICE timeout expires after
+     * {@link #startConnectivityEstablishment()}.
+     * 
+     * @return The <tt>IceCompletion</tt>.
+     */
+    public IceCompletion getIceCompletion()
+    {
+        return iceCompletion;
+    }
+
+    /**
+     * Waits until {@link #iceAgent} enters a final state (COMPLETED,
+     * TERMINATED, or FAILED), or until the ICE timeout expires.
+     *
+     * Note: connectivity establishment has to have been started using
+     * {@link #startConnectivityEstablishment()} before this method is called.
+     *
+     * @return <tt>true</tt> if ICE connectivity has been established, and
+     * <tt>false</tt> otherwise.
+     */
+    public boolean wrapupConnectivityEstablishment()
+    {
+        final IceCompletion iceCompletion = this.iceCompletion;
+        final IceProcessingState state;
+        try
+        {
+            state = iceCompletion.get();
+        }
+        catch (InterruptedException e)
+        {
+            logger.warn("Interrupted while waiting for ICE.");
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        catch (CancellationException e)
+        {
+            logger.info("Waiting for ICE has been cancelled.");
+            return false;
+        }
+
+        if (iceCompletion.isTimedOut())
+            logger.error("ICE timed out after " + iceTimeout + " ms.");
+        else if (!iceCompletion.isSucceeded())
+            logger.error("ICE ended in state " + state);
+
+        return iceCompletion.isSucceeded();
     }
 
     /**
@@ -227,19 +840,12 @@ public class IceUdpTransportManager
 
         try
         {
-            iceAgent.createComponent(stream, Transport.UDP, getPreferredPort(),
-                MIN_STREAM_PORT, MAX_STREAM_PORT);
+            createComponent(stream);
 
-            // We don't need an RTCP component for DATA.
-            if (MediaType.AUDIO == mediaType || MediaType.VIDEO == mediaType)
+            // We don't need an RTCP component for DATA, or with rtcp-mux.
+            if (!isRtcpmux(mediaType))
             {
-                lastUsedPort += 1;
-                iceAgent.createComponent(
-                        stream,
-                        Transport.UDP,
-                        getPreferredPort(),
-                        MIN_STREAM_PORT,
-                        MAX_STREAM_PORT);
+                createComponent(stream);
             }
         }
         catch (Exception e)
@@ -250,25 +856,80 @@ public class IceUdpTransportManager
     }
 
     /**
-     * Gets the next port number to be used as a preferred port number for
-     * candidate allocation.
-     * @return the next port number to be used as a preferred port number for
-     * candidate allocation.
+     * Create an ICE component on a free port of {@link #portAllocator}.
+     * <p>
+     * ice4j binds the next port if the preferred one is taken by another
+     * process, so the port which is actually bound is the one we keep.
+     * 
+     * @param stream The <tt>IceMediaStream</tt> the component belongs to.
+     * @throws Exception if there is no free port or the component could not
+     *             be created.
      */
-    private int getPreferredPort()
+    private void createComponent(IceMediaStream stream)
+        throws Exception
     {
-        synchronized (lastUsedPortSyncRoot)
+        final PortAllocator allocator = getPortAllocator();
+
+        if (null == allocator)
+        {
+            iceAgent.createComponent(stream, Transport.UDP, -1,
+                MIN_STREAM_PORT, MAX_STREAM_PORT);
+            return;
+        }
+
+        final int preferredPort = allocator.allocate();
+        if (preferredPort < 0)
         {
-            lastUsedPort++;
-            if (lastUsedPort < MIN_STREAM_PORT || lastUsedPort > MAX_STREAM_PORT)
-                lastUsedPort = MIN_STREAM_PORT;
-            return lastUsedPort;
+            throw new Exception("All " + allocator.getCapacity()
+                + " ports are in use");
         }
+
+        final Component component;
+        try
+        {
+            component =
+                iceAgent.createComponent(stream, Transport.UDP, preferredPort,
+                    MIN_STREAM_PORT, MAX_STREAM_PORT);
+        }
+        catch (Exception e)
+        {
+            allocator.release(preferredPort);
+            throw e;
+        }
+
+        boolean preferredPortBound = false;
+        synchronized (allocatedPorts)
+        {
+            for (LocalCandidate candidate : component.getLocalCandidates())
+            {
+                if (!(candidate instanceof HostCandidate))
+                    continue;
+
+                final int port = candidate.getTransportAddress().getPort();
+                if (port == preferredPort)
+                {
+                    if (!preferredPortBound)
+                        allocatedPorts.add(port);
+                    preferredPortBound = true;
+                }
+                else if (allocator.reserve(port))
+                {
+                    allocatedPorts.add(port);
+                }
+            }
+        }
+
+        if (!preferredPortBound)
+            allocator.release(preferredPort);
     }
 
     /**
      * Add all remote candidates from the values of <tt>transportPEs</tt> to the
      * corresponding IceMediaStream.
+     * <p>
+     * Candidates which are already known are skipped, and once connectivity
+     * establishment has started the candidates are added to the running
+     * agent, so that trickled candidates are checked too.
      *
      * @param transportPEs The <tt>IceUdpTransportPacketExtension</tt> to be
      * parsed.
@@ -277,7 +938,11 @@ public class IceUdpTransportManager
         Map<MediaType, IceUdpTransportPacketExtension> transportPEs)
     {
         logger.debug("harvestRemoteCandidates");
-        
+
+        final boolean running =
+            IceProcessingState.WAITING != iceAgent.getState();
+        final Set<Component> updatedComponents = new HashSet<Component>();
+
         for (java.util.Map.Entry<MediaType, IceUdpTransportPacketExtension> e : transportPEs
             .entrySet())
         {
@@ -301,13 +966,23 @@ public class IceUdpTransportManager
              */
             Collections.sort(candidates);
 
+            /*
+             * Only use the newest generation the remote peer offers. Its
+             * generation doesn't have to follow ours after an ICE restart.
+             */
+            int generation = 0;
+            for (CandidatePacketExtension candidate : candidates)
+                generation = Math.max(generation, candidate.getGeneration());
+
             for (CandidatePacketExtension candidate : candidates)
             {
-                if (candidate.getGeneration() != iceAgent.getGeneration())
+                if (candidate.getGeneration() != generation)
                     continue;
 
                 final Component component =
                     stream.getComponent(candidate.getComponent());
+                if (null == component)
+                    continue;
 
                 final String relAddr = candidate.getRelAddr();
                 final int relPort = candidate.getRelPort();
@@ -327,6 +1002,8 @@ public class IceUdpTransportManager
                     new TransportAddress(candidate.getIP(),
                         candidate.getPort(), Transport.parse(candidate
                             .getProtocol()));
+                if (null != component.findRemoteCandidate(mainAddress))
+                    continue;
 
                 final RemoteCandidate remoteCandidate =
                     new RemoteCandidate(mainAddress, component,
@@ -334,9 +1011,20 @@ public class IceUdpTransportManager
                             .toString()), candidate.getFoundation(),
                         candidate.getPriority(), relatedCandidate);
 
-                component.addRemoteCandidate(remoteCandidate);
+                if (running)
+                {
+                    component.addUpdateRemoteCandidates(remoteCandidate);
+                    updatedComponents.add(component);
+                }
+                else
+                {
+                    component.addRemoteCandidate(remoteCandidate);
+                }
             }
         }
+
+        for (Component component : updatedComponents)
+            component.updateRemoteCandidates();
     }
 
     /**
@@ -372,29 +1060,48 @@ public class IceUdpTransportManager
         List<CandidatePacketExtension> candidatePEs =
             new ArrayList<CandidatePacketExtension>();
 
-        int id = 1;
         for (LocalCandidate candidate : getLocalCandidates(mediaType))
         {
-            CandidatePacketExtension packetExt =
-                new CandidatePacketExtension();
-            packetExt.setComponent(candidate.getParentComponent()
-                .getComponentID());
-            packetExt.setFoundation(candidate.getFoundation());
-            packetExt.setGeneration(iceAgent.getGeneration());
-            packetExt.setID(String.valueOf(id++));
-            packetExt.setNetwork(0); // Why it is 0?
-            packetExt.setIP(candidate.getTransportAddress().getHostAddress());
-            packetExt.setPort(candidate.getTransportAddress().getPort());
-            packetExt.setPriority(candidate.getPriority());
-            packetExt.setProtocol(candidate.getTransport().toString());
-            packetExt.setType(CandidateType.valueOf(candidate.getType()
-                .toString()));
-            candidatePEs.add(packetExt);
+            candidatePEs.add(createCandidatePacketExt(candidate,
+                iceAgent.getGeneration()));
         }
 
         return candidatePEs;
     }
 
+    /**
+     * Create a <tt>CandidatePacketExtension</tt> of a local candidate, with
+     * the next candidate id.
+     * 
+     * @param candidate The local candidate.
+     * @param generation The ICE generation of the candidate.
+     * @return The <tt>CandidatePacketExtension</tt>.
+     */
+    private CandidatePacketExtension createCandidatePacketExt(
+        LocalCandidate candidate, int generation)
+    {
+        final int id;
+        synchronized (this)
+        {
+            id = nextCandidateId++;
+        }
+
+        CandidatePacketExtension packetExt = new CandidatePacketExtension();
+        packetExt.setComponent(candidate.getParentComponent()
+            .getComponentID());
+        packetExt.setFoundation(candidate.getFoundation());
+        packetExt.setGeneration(generation);
+        packetExt.setID(String.valueOf(id));
+        packetExt.setNetwork(0); // Why it is 0?
+        packetExt.setIP(candidate.getTransportAddress().getHostAddress());
+        packetExt.setPort(candidate.getTransportAddress().getPort());
+        packetExt.setPriority(candidate.getPriority());
+        packetExt.setProtocol(candidate.getTransport().toString());
+        packetExt.setType(CandidateType.valueOf(candidate.getType()
+            .toString()));
+        return packetExt;
+    }
+
     /**
      * Get local candidates of specified <tt>MediaType</tt>
      * 
@@ -461,6 +1168,10 @@ public class IceUdpTransportManager
                 }
             }
 
+            // With rtcp-mux, RTCP goes to the RTP address.
+            if (null == rtcpAddress && isRtcpmux(mediaType))
+                rtcpAddress = rtpAddress;
+
             streamTarget =
                 new MediaStreamTarget(rtpAddress, rtcpAddress);
             mediaStreamTargets.put(mediaType, streamTarget);
@@ -502,21 +1213,126 @@ public class IceUdpTransportManager
         rtpPair = stream.getComponent(Component.RTP).getSelectedPair();
         rtpSocket = rtpPair.getIceSocketWrapper().getUDPSocket();
 
-        if (MediaType.AUDIO == mediaType || MediaType.VIDEO == mediaType)
+        if (!isRtcpmux(mediaType))
         {
             rtcpPair = stream.getComponent(Component.RTCP).getSelectedPair();
             rtcpSocket = rtcpPair.getIceSocketWrapper().getUDPSocket();
         }
 
-        // We set 'rtcpmux' for the "DATA" connector, in order to prevent
-        // attempts to connect a DTLS client for an nonexistent RTCP component.
+        setReceiveBufferSize(rtpSocket, mediaType);
+        if (null != rtcpSocket)
+            setReceiveBufferSize(rtcpSocket, mediaType);
+
+        // DTLS runs on the RTP socket, watch its handshake.
+        rtpSocket = dtlsMonitor.wrapSocket(mediaType, rtpSocket);
+
+        // We set 'rtcpmux' for the "DATA" connector and for rtcp-mux streams,
+        // in order to prevent attempts to connect a DTLS client for an
+        // nonexistent RTCP component. RTCP is sent and received on the RTP
+        // socket instead.
         streamConnector
                 = new DefaultStreamConnector(rtpSocket,
                                              rtcpSocket,
-                                             MediaType.DATA.equals(mediaType));
+                                             isRtcpmux(mediaType));
 
         streamConnectors.put(mediaType, streamConnector);
 
         return streamConnector;
     }
+
+    /**
+     * Set the configured SO_RCVBUF size of a <tt>MediaType</tt> on a socket.
+     * The kernel may cap it (net.core.rmem_max), which is logged.
+     * 
+     * @param socket The socket.
+     * @param mediaType The <tt>MediaType</tt> of the socket.
+     */
+    private void setReceiveBufferSize(DatagramSocket socket,
+        MediaType mediaType)
+    {
+        final Integer size = receiveBufferSizes.get(mediaType);
+        if (null == size)
+            return;
+
+        try
+        {
+            socket.setReceiveBufferSize(size);
+            final int actualSize = socket.getReceiveBufferSize();
+            if (actualSize < size)
+            {
+                logger.warn("Receive buffer of " + mediaType + " is "
+                    + actualSize + " bytes instead of " + size
+                    + ", check net.core.rmem_max.");
+            }
+        }
+        catch (SocketException e)
+        {
+            logger.warn("Failed to set receive buffer of " + mediaType + ": "
+                + e.getMessage());
+        }
+    }
+
+    /**
+     * Get the local UDP ports of the selected pairs, so that kernel counters
+     * of their sockets can be mapped to this manager.
+     * 
+     * @return The local ports.
+     */
+    public List<Integer> getLocalPorts()
+    {
+        final List<Integer> ports = new ArrayList<Integer>();
+
+        for (IceMediaStream stream : iceAgent.getStreams())
+        {
+            for (Component component : stream.getComponents())
+            {
+                final CandidatePair pair = component.getSelectedPair();
+                if (null != pair)
+                {
+                    ports.add(pair.getLocalCandidate().getTransportAddress()
+                        .getPort());
+                }
+            }
+        }
+
+        return ports;
+    }
+
+    /**
+     * Listener which is notified when the media path has been lost.
+     * 
+     * @author lishunyang
+     * 
+     */
+    public interface MediaPathListener
+    {
+        /**
+         * The consent of a selected pair has not been refreshed for the
+         * consent timeout.
+         * 
+         * @param consentAge The time in milliseconds since the consent was
+         *            last refreshed.
+         */
+        public void mediaPathLost(long consentAge);
+    }
+
+    /**
+     * Listener which is notified when trickled local candidates have been
+     * gathered.
+     * 
+     * @author lishunyang
+     * 
+     */
+    public interface TrickleListener
+    {
+        /**
+         * Local candidates have been gathered.
+         * 
+         * @param transportPEs Map between <tt>MediaType</tt> and an
+         *            <tt>IceUdpTransportPacketExtension</tt> with the new
+         *            candidates of that type.
+         */
+        public void candidatesGathered(
+            Map<MediaType, IceUdpTransportPacketExtension> transportPEs);
+    }
 }
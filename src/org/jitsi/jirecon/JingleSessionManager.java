@@ -6,6 +6,7 @@
 package org.jitsi.jirecon;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 import net.java.sip.communicator.impl.protocol.jabber.extensions.*;
 import net.java.sip.communicator.impl.protocol.jabber.extensions.colibri.*;
@@ -15,6 +16,7 @@ import net.java.sip.communicator.util.*;
 
 import org.jitsi.jirecon.TaskEvent.*;
 import org.jitsi.jirecon.protocol.extension.*;
+import org.jitsi.jirecon.utils.*;
 import org.jitsi.service.libjitsi.*;
 import org.jitsi.service.neomedia.*;
 import org.jitsi.service.neomedia.format.*;
@@ -90,12 +92,35 @@ public class JingleSessionManager
     private final Map<String, EndpointInfo> endpoints
         = new HashMap<String, EndpointInfo>();
 
+    /**
+     * Map between the MUC occupant jids of the participants and their jids,
+     * which identify the <tt>Endpoint</tt>s.
+     */
+    private final Map<String, String> occupants =
+        new ConcurrentHashMap<String, String>();
+
+    /**
+     * Map between the MUC occupant jids whose presence hasn't come yet and
+     * the SSRCs they have added, so that their <tt>Endpoint</tt>s are keyed by
+     * their jids too. It also guards {@link #occupants} against a source-add
+     * which races with the presence.
+     */
+    private final Map<String, Map<MediaType, Long>> pendingSources =
+        new HashMap<String, Map<MediaType, Long>>();
+
     /**
      * The list of <tt>JireconSessionPacketListener</tt> which is used for
      * handling kinds of XMPP packet.
      */
     private List<JireconSessionPacketListener> packetListeners =
-        new ArrayList<JireconSessionPacketListener>();
+        new CopyOnWriteArrayList<JireconSessionPacketListener>();
+
+    /**
+     * Jingle transport-info and transport-replace packets received from the
+     * remote peer, which haven't been taken yet.
+     */
+    private final BlockingQueue<JingleIQ> transportInfos =
+        new LinkedBlockingQueue<JingleIQ>();
     
     private PacketListener sendingListener;
     
@@ -132,6 +157,55 @@ public class JingleSessionManager
             };
 
         addPacketListener(packetListener);
+
+        /*
+         * Register the packet listener to collect transport-info packets.
+         */
+        addPacketListener(new JireconSessionPacketListener()
+        {
+            @Override
+            public void handlePacket(Packet packet)
+            {
+                if (!(packet instanceof JingleIQ))
+                    return;
+
+                final JingleIQ jiq = (JingleIQ) packet;
+                if ((JingleAction.TRANSPORT_INFO.equals(jiq.getAction())
+                    || JingleAction.TRANSPORT_REPLACE.equals(jiq.getAction()))
+                    && null != sid && sid.equals(jiq.getSID()))
+                {
+                    sendAck(jiq);
+                    transportInfos.offer(jiq);
+                }
+            }
+        });
+
+        /*
+         * Register the packet listener to handle source-add and
+         * source-remove packets.
+         */
+        addPacketListener(new JireconSessionPacketListener()
+        {
+            @Override
+            public void handlePacket(Packet packet)
+            {
+                if (!(packet instanceof JingleIQ))
+                    return;
+
+                final JingleIQ jiq = (JingleIQ) packet;
+                final JingleAction action = jiq.getAction();
+                final boolean add =
+                    JingleAction.SOURCEADD.equals(action)
+                        || JingleAction.ADDSOURCE.equals(action);
+                if ((add || JingleAction.SOURCEREMOVE.equals(action)
+                    || JingleAction.REMOVESOURCE.equals(action))
+                    && null != sid && sid.equals(jiq.getSID()))
+                {
+                    sendAck(jiq);
+                    handleSourcePacket(jiq, add);
+                }
+            }
+        });
     }
     
     /**
@@ -218,19 +292,105 @@ public class JingleSessionManager
      * @param localSsrcs Local sscrs of audio and video.
      * @param transportPEs DtlsTransport packet extensions.
      * @param fingerprintPEs Fingerprint packet extensions.
+     * @param rtcpmuxTypes <tt>MediaType</tt>s which use rtcp-mux.
      */
     public void sendAcceptPacket(
         Map<MediaType, Map<MediaFormat, Byte>> formatAndPTs,
         Map<MediaType, Long> localSsrcs,
         Map<MediaType, AbstractPacketExtension> transportPEs,
-        Map<MediaType, AbstractPacketExtension> fingerprintPEs)
+        Map<MediaType, AbstractPacketExtension> fingerprintPEs,
+        Set<MediaType> rtcpmuxTypes)
     {
         logger.debug("sendAcceptPacket");
         
-        JingleIQ acceptIq = createAcceptPacket(formatAndPTs, localSsrcs, transportPEs, fingerprintPEs);
+        JingleIQ acceptIq = createAcceptPacket(formatAndPTs, localSsrcs,
+            transportPEs, fingerprintPEs, rtcpmuxTypes);
         connection.sendPacket(acceptIq);
     }
 
+    /**
+     * Send Jingle transport-info packet to the remote peer, in order to
+     * restart ICE with new credentials and candidates, or to trickle local
+     * candidates.
+     * 
+     * @param transportPEs Transport packet extensions.
+     * @param fingerprintPEs Fingerprint packet extensions, empty when
+     *            trickling candidates.
+     */
+    public void sendTransportInfo(
+        Map<MediaType, AbstractPacketExtension> transportPEs,
+        Map<MediaType, AbstractPacketExtension> fingerprintPEs)
+    {
+        logger.debug("sendTransportInfo");
+
+        List<ContentPacketExtension> contentPEs =
+            new ArrayList<ContentPacketExtension>();
+        for (MediaType mediaType : MediaType.values())
+        {
+            final AbstractPacketExtension transportPE =
+                transportPEs.get(mediaType);
+            if (null == transportPE)
+                continue;
+
+            final AbstractPacketExtension fingerprintPE =
+                fingerprintPEs.get(mediaType);
+            if (null != fingerprintPE)
+                transportPE.addChildExtension(fingerprintPE);
+
+            final ContentPacketExtension contentPE =
+                createContentPacketExtension(mediaType.toString(), null,
+                    transportPE);
+            // The contents were created by the initiator.
+            contentPE.setCreator(CreatorEnum.initiator);
+            contentPEs.add(contentPE);
+        }
+
+        connection.sendPacket(JinglePacketFactory.createTransportInfo(
+            localFullJid, remoteFullJid, sid, contentPEs));
+    }
+
+    /**
+     * Wait for a Jingle transport-info (or transport-replace) packet from the
+     * remote peer. Packets which have arrived before are returned first.
+     * 
+     * @param timeout The maximum time in milliseconds to wait.
+     * @return The packet, or null if none arrived in time.
+     */
+    public JingleIQ waitForTransportInfo(long timeout)
+    {
+        logger.info("waitForTransportInfo");
+
+        try
+        {
+            return transportInfos.poll(timeout, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Take a Jingle transport-info (or transport-replace) packet which has
+     * arrived from the remote peer, without waiting.
+     * 
+     * @return The packet, or null if none has arrived.
+     */
+    public JingleIQ pollTransportInfo()
+    {
+        return transportInfos.poll();
+    }
+
+    /**
+     * Drop the transport-info packets which have been received but not taken
+     * yet, for example before restarting ICE.
+     */
+    public void clearTransportInfos()
+    {
+        transportInfos.clear();
+    }
+
     /**
      * Send Jingle ack packet to remote peer.
      * 
@@ -433,26 +593,48 @@ public class JingleSessionManager
          */ 
         String participantJid = userExt.getItem().getJid();
 
+        Map<MediaType, Long> sources = null;
+        if (null != participantJid)
+        {
+            synchronized (pendingSources)
+            {
+                if (p.getType() == Presence.Type.unavailable)
+                    occupants.remove(p.getFrom());
+                else
+                    occupants.put(p.getFrom(), participantJid);
+                sources = pendingSources.remove(p.getFrom());
+            }
+        }
+
         /*
          * Jitsi-meeting presence packet should contain participant jid and
          * media packet extension
          */
-        if (null == participantJid || null == packetExt)
+        if (null == participantJid)
+            return;
+        // Without it, the endpoint can only have been created by source-add.
+        if (null == packetExt)
+        {
+            if (p.getType() != Presence.Type.unavailable)
+                addPendingSources(participantJid, sources);
+            else if (removeEndpoint(participantJid))
+                fireEvent(new TaskEvent(TaskEvent.Type.PARTICIPANT_LEFT));
             return;
+        }
         
         MediaExtension mediaExt = (MediaExtension) packetExt;
         Map<MediaType, Long> ssrcs = new HashMap<MediaType, Long>();
         
         for (MediaType mediaType : new MediaType[] {MediaType.AUDIO, MediaType.VIDEO})
         {
-            MediaDirection direction =
-                MediaDirection.parseString(mediaExt.getDirection(mediaType
-                    .toString()));
-            
-            if (direction.allowsSending())
+            String direction = mediaExt.getDirection(mediaType.toString());
+            String ssrc = mediaExt.getSsrc(mediaType.toString());
+
+            // A media type which isn't sent keeps the SSRC from source-add.
+            if (null != direction && null != ssrc
+                && MediaDirection.parseString(direction).allowsSending())
             {
-                ssrcs.put(mediaType,
-                    Long.valueOf(mediaExt.getSsrc(mediaType.toString())));
+                ssrcs.put(mediaType, Long.valueOf(ssrc));
             }
             
         }
@@ -467,14 +649,118 @@ public class JingleSessionManager
         // Otherwise we think that some new participant has joined the MUC.
         else
         {
-            if(addOrUpdateEndpoint(participantJid, ssrcs))
+            updateEndpoint(participantJid, ssrcs);
+            addPendingSources(participantJid, sources);
+        }
+    }
+
+    /**
+     * Add the sources which have come before the presence of their owner to
+     * its <tt>Endpoint</tt>.
+     * 
+     * @param participantJid The jid of the owner.
+     * @param sources The SSRCs of the owner, according to media type. Could
+     *            be null.
+     */
+    private void addPendingSources(String participantJid,
+        Map<MediaType, Long> sources)
+    {
+        if (null == participantJid || null == sources)
+            return;
+
+        for (Map.Entry<MediaType, Long> source : sources.entrySet())
+        {
+            if (addEndpointSsrc(participantJid, source.getKey(),
+                source.getValue()))
+            {
+                fireEvent(new TaskEvent(TaskEvent.Type.SOURCE_ADDED,
+                    participantJid, source.getKey(), source.getValue()));
+            }
+        }
+    }
+
+    /**
+     * Keep a source whose owner's presence hasn't come yet until it comes,
+     * or forget it.
+     * 
+     * @param owner The MUC occupant jid of the owner.
+     * @param mediaType The <tt>MediaType</tt> of the source.
+     * @param ssrc The SSRC of the source.
+     * @param add <tt>true</tt> if the source has been added, <tt>false</tt>
+     *            if it has been removed.
+     */
+    private void updatePendingSource(String owner, MediaType mediaType,
+        long ssrc, boolean add)
+    {
+        Map<MediaType, Long> sources = pendingSources.get(owner);
+
+        if (add)
+        {
+            if (null == sources)
             {
-                fireEvent(new TaskEvent(
-                        TaskEvent.Type.PARTICIPANT_CAME));
+                sources = new EnumMap<MediaType, Long>(MediaType.class);
+                pendingSources.put(owner, sources);
             }
+            sources.put(mediaType, ssrc);
+            logger.info("Keep " + mediaType + " SSRC " + ssrc + " of " + owner
+                + " until its presence comes.");
+        }
+        else if (null != sources
+            && Long.valueOf(ssrc).equals(sources.get(mediaType)))
+        {
+            sources.remove(mediaType);
+            if (sources.isEmpty())
+                pendingSources.remove(owner);
         }
     }
     
+    /**
+     * Handle a Jingle source-add or source-remove packet: update the SSRCs of
+     * the <tt>Endpoint</tt>s which own the sources, and tell the listeners
+     * about every source, so that they don't have to rebuild all endpoints.
+     * 
+     * @param jiq is the source-add or source-remove packet.
+     * @param add <tt>true</tt> if the sources have been added, <tt>false</tt>
+     *            if they have been removed.
+     */
+    private void handleSourcePacket(JingleIQ jiq, boolean add)
+    {
+        for (MediaType mediaType : new MediaType[]
+        { MediaType.AUDIO, MediaType.VIDEO })
+        {
+            for (Map.Entry<Long, String> source : JinglePacketParser
+                .getSources(jiq, mediaType).entrySet())
+            {
+                final long ssrc = source.getKey();
+                final String owner = source.getValue();
+                if (null == owner)
+                {
+                    logger.warn("Ignore " + jiq.getAction() + " of "
+                        + mediaType + " SSRC " + ssrc + " without owner.");
+                    continue;
+                }
+
+                // The owner could be unknown if its presence hasn't come yet.
+                final String jid;
+                synchronized (pendingSources)
+                {
+                    jid = occupants.get(owner);
+                    if (null == jid)
+                    {
+                        updatePendingSource(owner, mediaType, ssrc, add);
+                        continue;
+                    }
+                }
+                if (add ? addEndpointSsrc(jid, mediaType, ssrc)
+                    : removeEndpointSsrc(jid, mediaType, ssrc))
+                {
+                    fireEvent(new TaskEvent(add ? TaskEvent.Type.SOURCE_ADDED
+                        : TaskEvent.Type.SOURCE_REMOVED, jid, mediaType, ssrc));
+                }
+            }
+        }
+    }
+
     /**
      * Create Jingle session-accept packet.
      * 
@@ -484,7 +770,8 @@ public class JingleSessionManager
         Map<MediaType, Map<MediaFormat, Byte>> formatAndPTs,
         Map<MediaType, Long> localSsrcs,
         Map<MediaType, AbstractPacketExtension> transportPEs,
-        Map<MediaType, AbstractPacketExtension> fingerprintPEs)
+        Map<MediaType, AbstractPacketExtension> fingerprintPEs,
+        Set<MediaType> rtcpmuxTypes)
     {
         logger.debug("createSessionAcceptPacket");
         
@@ -512,6 +799,15 @@ public class JingleSessionManager
                 descriptionPE =
                     createDescriptionPacketExt(mediaType,
                         formatAndPTs.get(mediaType), localSsrcs.get(mediaType));
+
+                /*
+                 * Accept rtcp-mux, RTCP will share the RTP component.
+                 */
+                if (rtcpmuxTypes.contains(mediaType))
+                {
+                    descriptionPE
+                        .addChildExtension(new RtcpmuxPacketExtension());
+                }
             }
             
             /* 
@@ -851,47 +1147,138 @@ public class JingleSessionManager
     }
 
     /**
-     * {@inheritDoc}
+     * Get copies of the endpoints, because the stored ones are updated in
+     * place by presence and source packets.
+     * 
+     * @return The endpoints.
      */
     public List<EndpointInfo> getEndpoints()
     {
         synchronized (endpoints)
         {
-            return new LinkedList<EndpointInfo>(endpoints.values());
+            List<EndpointInfo> copy = new LinkedList<EndpointInfo>();
+            for (EndpointInfo endpoint : endpoints.values())
+            {
+                EndpointInfo endpointCopy = new EndpointInfo();
+                endpointCopy.setId(endpoint.getId());
+                endpointCopy.getSsrcs().putAll(endpoint.getSsrcs());
+                copy.add(endpointCopy);
+            }
+            return copy;
         }
     }
 
     /**
      * Add a new endpoint to {@link #endpoints}, or update the stored
-     * information for the endpoint if it is already in the list.
+     * information for the endpoint if it is already in the list. A new
+     * endpoint is reported as PARTICIPANT_CAME. The presence of a known
+     * endpoint may carry a new SSRC, for example after a camera switch or a
+     * reload, so every SSRC which has changed is reported as SOURCE_REMOVED
+     * of the old SSRC and SOURCE_ADDED of the new one. The SSRCs are merged
+     * per media type with the ones from source-add: a media type without SSRC
+     * in <tt>ssrcs</tt> keeps its SSRC.
      *
      * @param jid The endpoint id.
-     * @param ssrcs The SSRCs of the endpoint, according to media type.
-     *
-     * @return <tt>true</tt> if the endpoint was added to the list, and
-     * <tt>false</tt> otherwise.
+     * @param ssrcs The SSRCs of the endpoint, according to media type. A null
+     *            SSRC is skipped.
      */
-    private boolean addOrUpdateEndpoint(String jid, Map<MediaType, Long> ssrcs)
+    public void updateEndpoint(String jid, Map<MediaType, Long> ssrcs)
     {
+        boolean added = false;
+        Map<MediaType, Long> removed = new HashMap<MediaType, Long>();
+        Map<MediaType, Long> changed = new HashMap<MediaType, Long>();
+
         synchronized (endpoints)
         {
-            boolean added = false;
             EndpointInfo endpoint = endpoints.get(jid);
             if (endpoint == null)
             {
                 endpoint = new EndpointInfo();
+                endpoint.setId(jid);
+                endpoints.put(jid, endpoint);
                 added = true;
             }
-            
-            endpoint.setId(jid);
-            for (MediaType mediaType : new MediaType[]
-            { MediaType.AUDIO, MediaType.VIDEO })
+
+            for (Map.Entry<MediaType, Long> ssrc : ssrcs.entrySet())
             {
-                endpoint.setSsrc(mediaType, ssrcs.get(mediaType));
+                final long oldSsrc = endpoint.getSsrc(ssrc.getKey());
+                if (null == ssrc.getValue() || ssrc.getValue() == oldSsrc)
+                    continue;
+
+                if (oldSsrc >= 0)
+                    removed.put(ssrc.getKey(), oldSsrc);
+                endpoint.setSsrc(ssrc.getKey(), ssrc.getValue());
+                changed.put(ssrc.getKey(), ssrc.getValue());
             }
+        }
+
+        if (added)
+        {
+            fireEvent(new TaskEvent(TaskEvent.Type.PARTICIPANT_CAME));
+            return;
+        }
+
+        for (Map.Entry<MediaType, Long> ssrc : removed.entrySet())
+        {
+            fireEvent(new TaskEvent(TaskEvent.Type.SOURCE_REMOVED, jid,
+                ssrc.getKey(), ssrc.getValue()));
+        }
+        for (Map.Entry<MediaType, Long> ssrc : changed.entrySet())
+        {
+            fireEvent(new TaskEvent(TaskEvent.Type.SOURCE_ADDED, jid,
+                ssrc.getKey(), ssrc.getValue()));
+        }
+    }
+
+    /**
+     * Set an SSRC of an endpoint in {@link #endpoints}, and add the endpoint
+     * if it's not in the list yet.
+     * 
+     * @param jid The endpoint id.
+     * @param mediaType The <tt>MediaType</tt> of the SSRC.
+     * @param ssrc The SSRC.
+     * @return <tt>true</tt> if the SSRC has changed, and <tt>false</tt>
+     *         otherwise.
+     */
+    private boolean addEndpointSsrc(String jid, MediaType mediaType, long ssrc)
+    {
+        synchronized (endpoints)
+        {
+            EndpointInfo endpoint = endpoints.get(jid);
+            if (null == endpoint)
+            {
+                endpoint = new EndpointInfo();
+                endpoint.setId(jid);
+                endpoints.put(jid, endpoint);
+            }
+            else if (ssrc == endpoint.getSsrc(mediaType))
+                return false;
+
+            endpoint.setSsrc(mediaType, ssrc);
+            return true;
+        }
+    }
+
+    /**
+     * Remove an SSRC of an endpoint in {@link #endpoints}.
+     * 
+     * @param jid The endpoint id.
+     * @param mediaType The <tt>MediaType</tt> of the SSRC.
+     * @param ssrc The SSRC.
+     * @return <tt>true</tt> if the endpoint had the SSRC, and <tt>false</tt>
+     *         otherwise.
+     */
+    private boolean removeEndpointSsrc(String jid, MediaType mediaType,
+        long ssrc)
+    {
+        synchronized (endpoints)
+        {
+            final EndpointInfo endpoint = endpoints.get(jid);
+            if (null == endpoint || ssrc != endpoint.getSsrc(mediaType))
+                return false;
 
-            endpoints.put(jid, endpoint);
-            return added;
+            endpoint.removeSsrc(mediaType);
+            return true;
         }
     }
 
@@ -899,14 +1286,15 @@ public class JingleSessionManager
      * Remove an endpoint with the given JID specified endpoint.
      * 
      * @param jid Indicate which endpoint to remove.
+     * @return <tt>true</tt> if there was such an endpoint.
      */
-    private void removeEndpoint(String jid)
+    private boolean removeEndpoint(String jid)
     {
         logger.debug("Remove Endpoint " + jid);
         
         synchronized (endpoints)
         {
-            endpoints.remove(jid);
+            return null != endpoints.remove(jid);
         }
     }
 }
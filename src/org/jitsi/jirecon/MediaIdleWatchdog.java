@@ -0,0 +1,554 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.jitsi.impl.neomedia.*;
+import org.jitsi.impl.neomedia.transform.*;
+import org.jitsi.jirecon.utils.*;
+import org.jitsi.service.neomedia.*;
+import org.jitsi.util.*;
+
+/**
+ * Watches the time the last RTP packet of every <tt>MediaType</tt> and SSRC
+ * of a task has arrived, and applies a {@link Policy} once media is idle for
+ * longer than a configured time.
+ * <p>
+ * The packets are seen by the <tt>TransformEngine</tt>s created by
+ * {@link #createTransformEngine(MediaType, SsrcContinuityRewriter)}, which are
+ * set as external transformers of the media streams. They are also used to
+ * act on idle SSRCs: a PLI is appended to the next sent compound RTCP packet,
+ * so that the sender produces a keyframe, or an RTCP BYE is appended to the
+ * next received one by the engine of
+ * {@link #getByeTransformEngine(MediaType)}, so that the recorder closes the
+ * files of the SSRC.
+ * <p>
+ * <strong>Warning:</strong> {@link Listener#mediaIdle(long)} is called on a
+ * timer thread shared by all tasks, so it should return quickly.
+ *
+ * @author lishunyang
+ *
+ */
+public class MediaIdleWatchdog
+{
+    /**
+     * The <tt>Logger</tt>, used to log messages to standard output.
+     */
+    private static final Logger logger = Logger
+        .getLogger(MediaIdleWatchdog.class);
+
+    /**
+     * Runs the checks of all watchdogs.
+     */
+    private static final ScheduledExecutorService timer = Executors
+        .newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "MediaIdleWatchdog");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    /**
+     * What to do with idle media.
+     */
+    public enum Policy
+    {
+        /**
+         * Close the files of an idle SSRC.
+         */
+        CLOSE_SSRC,
+
+        /**
+         * Ask the sender of an idle video SSRC for a keyframe.
+         */
+        REQUEST_KEYFRAME,
+
+        /**
+         * End the task once all media is idle.
+         */
+        END_TASK;
+
+        /**
+         * Get the <tt>Policy</tt> with the specified name, ignoring case.
+         *
+         * @param name The name.
+         * @param defaultValue What to return if <tt>name</tt> is not a
+         *            <tt>Policy</tt>.
+         * @return The <tt>Policy</tt>.
+         */
+        public static Policy parse(String name, Policy defaultValue)
+        {
+            if (null == name)
+                return defaultValue;
+
+            try
+            {
+                return valueOf(name.trim().toUpperCase());
+            }
+            catch (IllegalArgumentException e)
+            {
+                logger.warn("Unknown media idle policy: " + name);
+                return defaultValue;
+            }
+        }
+    }
+
+    /**
+     * Listener of idle media.
+     *
+     * @author lishunyang
+     *
+     */
+    public interface Listener
+    {
+        /**
+         * All media of the task has been idle for the idle timeout, and the
+         * policy is {@link Policy#END_TASK}.
+         *
+         * @param idleTime How long the media has been idle in milliseconds.
+         */
+        void mediaIdle(long idleTime);
+    }
+
+    /**
+     * How long media has to be idle in milliseconds before the policy is
+     * applied.
+     */
+    private final long idleTimeout;
+
+    /**
+     * What to do with idle media.
+     */
+    private final Policy policy;
+
+    /**
+     * Who is told when all media is idle.
+     */
+    private final Listener listener;
+
+    /**
+     * Map between <tt>MediaType</tt> and the SSRCs which have sent media,
+     * mapped to the time of their last packet.
+     */
+    private final Map<MediaType, Map<Long, Long>> lastPacketTimes =
+        new EnumMap<MediaType, Map<Long, Long>>(MediaType.class);
+
+    /**
+     * Map between <tt>MediaType</tt> and the SSRCs which have been found idle
+     * and have not sent media since.
+     */
+    private final Map<MediaType, Set<Long>> idleSsrcs =
+        new EnumMap<MediaType, Set<Long>>(MediaType.class);
+
+    /**
+     * Map between <tt>MediaType</tt> and its <tt>Engine</tt>.
+     */
+    private final Map<MediaType, Engine> engines =
+        new ConcurrentHashMap<MediaType, Engine>();
+
+    /**
+     * The time the last packet of any <tt>MediaType</tt> arrived, or the
+     * watchdog was started.
+     */
+    private long lastPacketTime = -1;
+
+    /**
+     * Whether {@link #listener} has been told that all media is idle.
+     */
+    private boolean mediaIdleReported = false;
+
+    /**
+     * The periodic check, null if the watchdog is not running.
+     */
+    private ScheduledFuture<?> checkFuture;
+
+    /**
+     * Construction method.
+     *
+     * @param idleTimeout How long media has to be idle in milliseconds before
+     *            the policy is applied.
+     * @param policy What to do with idle media.
+     * @param listener Who is told when all media is idle.
+     */
+    public MediaIdleWatchdog(long idleTimeout, Policy policy,
+        Listener listener)
+    {
+        this.idleTimeout = idleTimeout;
+        this.policy = policy;
+        this.listener = listener;
+    }
+
+    /**
+     * Create the <tt>TransformEngine</tt> which watches the packets of a
+     * <tt>MediaType</tt>. It has to see the packets before they are dropped or
+     * rewritten.
+     *
+     * @param mediaType The <tt>MediaType</tt>.
+     * @param ssrcRewriter The <tt>SsrcContinuityRewriter</tt> of the stream,
+     *            null if the SSRCs are not rewritten.
+     * @return The <tt>TransformEngine</tt>.
+     */
+    public TransformEngine createTransformEngine(MediaType mediaType,
+        SsrcContinuityRewriter ssrcRewriter)
+    {
+        final Engine engine = new Engine(mediaType, ssrcRewriter);
+
+        engines.put(mediaType, engine);
+        return engine;
+    }
+
+    /**
+     * Get the <tt>TransformEngine</tt> which sends the BYEs of the idle SSRCs
+     * of a <tt>MediaType</tt> to the recorder. It has to come after the
+     * <tt>SsrcContinuityRewriter</tt>, which drops the BYEs of the SSRCs it
+     * rewrites.
+     *
+     * @param mediaType The <tt>MediaType</tt>.
+     * @return The <tt>TransformEngine</tt>, null if
+     *         {@link #createTransformEngine(MediaType, SsrcContinuityRewriter)}
+     *         has not been called for <tt>mediaType</tt>.
+     */
+    public TransformEngine getByeTransformEngine(MediaType mediaType)
+    {
+        final Engine engine = engines.get(mediaType);
+
+        return null == engine ? null : engine.byeEngine;
+    }
+
+    /**
+     * Start checking periodically. Media counts as idle from now on, until
+     * the first packet arrives.
+     */
+    public synchronized void start()
+    {
+        stop();
+
+        lastPacketTime = System.currentTimeMillis();
+        mediaIdleReported = false;
+
+        final long interval = Math.max(1000, idleTimeout / 4);
+        checkFuture = timer.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                check(System.currentTimeMillis());
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop checking.
+     */
+    public synchronized void stop()
+    {
+        if (null != checkFuture)
+        {
+            checkFuture.cancel(false);
+            checkFuture = null;
+        }
+    }
+
+    /**
+     * Record a received RTP packet.
+     *
+     * @param mediaType The <tt>MediaType</tt> of the packet.
+     * @param ssrc The SSRC of the packet.
+     * @param now When the packet arrived.
+     */
+    public synchronized void packetReceived(MediaType mediaType, long ssrc,
+        long now)
+    {
+        Map<Long, Long> times = lastPacketTimes.get(mediaType);
+        if (null == times)
+        {
+            times = new HashMap<Long, Long>();
+            lastPacketTimes.put(mediaType, times);
+        }
+        times.put(ssrc, now);
+        lastPacketTime = now;
+        mediaIdleReported = false;
+
+        final Set<Long> idle = idleSsrcs.get(mediaType);
+        if (null != idle && idle.remove(ssrc))
+            logger.info(mediaType + " SSRC " + ssrc + " is active again.");
+    }
+
+    /**
+     * Apply the policy to the media which has been idle for the idle timeout.
+     *
+     * @param now The current time.
+     */
+    public synchronized void check(long now)
+    {
+        for (Map.Entry<MediaType, Map<Long, Long>> e : lastPacketTimes
+            .entrySet())
+        {
+            final MediaType mediaType = e.getKey();
+            Set<Long> idle = idleSsrcs.get(mediaType);
+            if (null == idle)
+            {
+                idle = new HashSet<Long>();
+                idleSsrcs.put(mediaType, idle);
+            }
+
+            for (Map.Entry<Long, Long> ssrc : e.getValue().entrySet())
+            {
+                final long idleTime = now - ssrc.getValue();
+                if (idleTime < idleTimeout || !idle.add(ssrc.getKey()))
+                    continue;
+
+                logger.warn(mediaType + " SSRC " + ssrc.getKey()
+                    + " has been idle for " + idleTime + " ms.");
+                ssrcIdle(mediaType, ssrc.getKey());
+            }
+
+            // Closed SSRCs are forgotten, they'll start new files if they
+            // come back.
+            if (Policy.CLOSE_SSRC == policy)
+            {
+                e.getValue().keySet().removeAll(idle);
+                idle.clear();
+            }
+        }
+
+        final long idleTime = now - lastPacketTime;
+        if (Policy.END_TASK == policy && lastPacketTime >= 0
+            && idleTime >= idleTimeout && !mediaIdleReported)
+        {
+            mediaIdleReported = true;
+            logger.warn("All media has been idle for " + idleTime + " ms.");
+            if (null != listener)
+                listener.mediaIdle(idleTime);
+        }
+    }
+
+    /**
+     * Get the SSRCs of a <tt>MediaType</tt> which are idle.
+     *
+     * @param mediaType The <tt>MediaType</tt>.
+     * @return The SSRCs.
+     */
+    public synchronized Set<Long> getIdleSsrcs(MediaType mediaType)
+    {
+        final Set<Long> idle = idleSsrcs.get(mediaType);
+
+        return null == idle ? new HashSet<Long>() : new HashSet<Long>(idle);
+    }
+
+    /**
+     * Apply the policy to an SSRC which has just become idle.
+     *
+     * @param mediaType The <tt>MediaType</tt> of the SSRC.
+     * @param ssrc The SSRC.
+     */
+    private void ssrcIdle(MediaType mediaType, long ssrc)
+    {
+        final Engine engine = engines.get(mediaType);
+        if (null == engine)
+            return;
+
+        if (Policy.CLOSE_SSRC == policy)
+        {
+            // Close the track the SSRC is written to, unless it goes on with
+            // another SSRC.
+            final long closed =
+                null == engine.ssrcRewriter ? ssrc : engine.ssrcRewriter
+                    .getClosedSsrc(ssrc);
+            if (closed >= 0)
+                engine.pendingByes.add(closed);
+        }
+        else if (Policy.REQUEST_KEYFRAME == policy
+            && MediaType.VIDEO == mediaType)
+            engine.pendingPlis.add(ssrc);
+    }
+
+    /**
+     * The <tt>TransformEngine</tt> of a <tt>MediaType</tt>.
+     *
+     * @author lishunyang
+     *
+     */
+    private class Engine
+        implements TransformEngine
+    {
+        /**
+         * The <tt>MediaType</tt> of the stream.
+         */
+        private final MediaType mediaType;
+
+        /**
+         * The <tt>SsrcContinuityRewriter</tt> of the stream, null if the SSRCs
+         * are not rewritten.
+         */
+        private final SsrcContinuityRewriter ssrcRewriter;
+
+        /**
+         * SSRCs to send a BYE for to the recorder.
+         */
+        private final Queue<Long> pendingByes =
+            new ConcurrentLinkedQueue<Long>();
+
+        /**
+         * SSRCs to send a PLI for to the remote peer.
+         */
+        private final Queue<Long> pendingPlis =
+            new ConcurrentLinkedQueue<Long>();
+
+        /**
+         * Watches received RTP packets.
+         */
+        private final PacketTransformer rtpTransformer =
+            new PacketTransformer()
+            {
+                @Override
+                public RawPacket transform(RawPacket pkt)
+                {
+                    return pkt;
+                }
+
+                @Override
+                public RawPacket reverseTransform(RawPacket pkt)
+                {
+                    if (null != pkt && pkt.getLength() >= 12)
+                    {
+                        packetReceived(mediaType, RtcpUtils.readUint32(
+                            pkt.getBuffer(), pkt.getOffset() + 8),
+                            System.currentTimeMillis());
+                    }
+                    return pkt;
+                }
+
+                @Override
+                public void close()
+                {
+                }
+            };
+
+        /**
+         * Appends the pending PLIs to sent RTCP packets.
+         */
+        private final PacketTransformer rtcpTransformer =
+            new PacketTransformer()
+            {
+                @Override
+                public RawPacket transform(RawPacket pkt)
+                {
+                    if (null == pkt || pkt.getLength() < 8
+                        || pendingPlis.isEmpty())
+                        return pkt;
+
+                    final long senderSsrc =
+                        RtcpUtils.readUint32(pkt.getBuffer(),
+                            pkt.getOffset() + 4);
+                    final List<byte[]> plis = new ArrayList<byte[]>();
+                    Long ssrc;
+                    while (null != (ssrc = pendingPlis.poll()))
+                        plis.add(RtcpUtils.createPli(senderSsrc, ssrc));
+
+                    return RtcpUtils.append(pkt, plis);
+                }
+
+                @Override
+                public RawPacket reverseTransform(RawPacket pkt)
+                {
+                    return pkt;
+                }
+
+                @Override
+                public void close()
+                {
+                }
+            };
+
+        /**
+         * Appends the pending BYEs to received RTCP packets.
+         */
+        private final PacketTransformer byeTransformer =
+            new PacketTransformer()
+            {
+                @Override
+                public RawPacket transform(RawPacket pkt)
+                {
+                    return pkt;
+                }
+
+                @Override
+                public RawPacket reverseTransform(RawPacket pkt)
+                {
+                    if (null == pkt || pendingByes.isEmpty())
+                        return pkt;
+
+                    final List<byte[]> byes = new ArrayList<byte[]>();
+                    Long ssrc;
+                    while (null != (ssrc = pendingByes.poll()))
+                        byes.add(RtcpUtils.createBye(ssrc));
+
+                    return RtcpUtils.append(pkt, byes);
+                }
+
+                @Override
+                public void close()
+                {
+                }
+            };
+
+        /**
+         * The <tt>TransformEngine</tt> of {@link #byeTransformer}.
+         */
+        private final TransformEngine byeEngine = new TransformEngine()
+        {
+            @Override
+            public PacketTransformer getRTPTransformer()
+            {
+                return null;
+            }
+
+            @Override
+            public PacketTransformer getRTCPTransformer()
+            {
+                return byeTransformer;
+            }
+        };
+
+        /**
+         * Construction method.
+         *
+         * @param mediaType The <tt>MediaType</tt> of the stream.
+         * @param ssrcRewriter The <tt>SsrcContinuityRewriter</tt> of the
+         *            stream, null if the SSRCs are not rewritten.
+         */
+        Engine(MediaType mediaType, SsrcContinuityRewriter ssrcRewriter)
+        {
+            this.mediaType = mediaType;
+            this.ssrcRewriter = ssrcRewriter;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public PacketTransformer getRTPTransformer()
+        {
+            return rtpTransformer;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public PacketTransformer getRTCPTransformer()
+        {
+            return rtcpTransformer;
+        }
+    }
+}
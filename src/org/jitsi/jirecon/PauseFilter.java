@@ -0,0 +1,383 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.jitsi.impl.neomedia.*;
+import org.jitsi.impl.neomedia.transform.*;
+import org.jitsi.jirecon.utils.*;
+import org.jitsi.service.neomedia.*;
+import org.jitsi.service.neomedia.recording.*;
+import org.jitsi.util.*;
+
+/**
+ * A <tt>TransformEngine</tt> which drops every received RTP packet while the
+ * recording is paused, so that the session, the transport and the media
+ * streams stay alive but nothing reaches the recorder.
+ * <p>
+ * After resuming, the video packets of an SSRC are dropped until its next VP8
+ * keyframe, so that the recorded video doesn't start with frames which can't
+ * be decoded. The keyframes are asked for with a PLI per video SSRC, appended
+ * to the next sent RTCP packet. Every pause is reported to a
+ * <tt>RecorderEventHandler</tt>, so that it ends up in the meta data file.
+ * <p>
+ * <strong>Warning:</strong> This engine is meant to be set as an external
+ * transformer of a <tt>MediaStream</tt>, so that it sees packets after SRTP
+ * decryption.
+ *
+ * @author lishunyang
+ */
+public class PauseFilter
+    implements TransformEngine,
+               PacketTransformer
+{
+    /**
+     * The <tt>Logger</tt>, used to log messages to standard output.
+     */
+    private static final Logger logger = Logger.getLogger(PauseFilter.class);
+
+    /**
+     * The value of "participantDescription" of the <tt>RecorderEvent</tt>s
+     * which describe a pause in the meta data file.
+     */
+    public static final String PAUSE_GAP_DESCRIPTION = "pause";
+
+    /**
+     * The <tt>MediaType</tt> of the stream we filter.
+     */
+    private final MediaType mediaType;
+
+    /**
+     * The payload type of VP8, or -1 if we don't wait for keyframes.
+     */
+    private final int vp8PayloadType;
+
+    /**
+     * Where we report the pauses.
+     */
+    private final RecorderEventHandler eventHandler;
+
+    /**
+     * Whether the recording is paused.
+     */
+    private boolean paused = false;
+
+    /**
+     * Since when the recording has been paused.
+     */
+    private long pausedSince = -1;
+
+    /**
+     * Whether the recording has been resumed, so that SSRCs have to start on
+     * a keyframe.
+     */
+    private boolean resumed = false;
+
+    /**
+     * SSRCs which have got a keyframe since the last resume.
+     */
+    private final Set<Long> keyframeSsrcs = new HashSet<Long>();
+
+    /**
+     * The video SSRCs which have been received, they are asked for a keyframe
+     * on resume.
+     */
+    private final Set<Long> videoSsrcs = new HashSet<Long>();
+
+    /**
+     * SSRCs to send a PLI for to the remote peer.
+     */
+    private final Queue<Long> pendingPlis = new ConcurrentLinkedQueue<Long>();
+
+    /**
+     * Number of packets which have been dropped by this filter.
+     */
+    private long droppedPackets = 0;
+
+    /**
+     * Appends the pending PLIs to sent RTCP packets.
+     */
+    private final PacketTransformer rtcpTransformer = new PacketTransformer()
+    {
+        @Override
+        public RawPacket transform(RawPacket pkt)
+        {
+            if (null == pkt || pkt.getLength() < 8 || pendingPlis.isEmpty())
+                return pkt;
+
+            final long senderSsrc =
+                RtcpUtils.readUint32(pkt.getBuffer(),
+                    pkt.getOffset() + 4);
+            final List<byte[]> plis = new ArrayList<byte[]>();
+            Long ssrc;
+            while (null != (ssrc = pendingPlis.poll()))
+                plis.add(RtcpUtils.createPli(senderSsrc, ssrc));
+
+            return RtcpUtils.append(pkt, plis);
+        }
+
+        @Override
+        public RawPacket reverseTransform(RawPacket pkt)
+        {
+            return pkt;
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    };
+
+    /**
+     * Construction method.
+     *
+     * @param mediaType the <tt>MediaType</tt> of the stream we filter.
+     * @param vp8PayloadType the payload type of VP8, or -1 to resume without
+     *            waiting for keyframes.
+     * @param eventHandler where the pauses will be reported.
+     */
+    public PauseFilter(MediaType mediaType, int vp8PayloadType,
+        RecorderEventHandler eventHandler)
+    {
+        this.mediaType = mediaType;
+        this.vp8PayloadType = vp8PayloadType;
+        this.eventHandler = eventHandler;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PacketTransformer getRTPTransformer()
+    {
+        return this;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * We don't drop RTCP packets, they keep the session alive. We only append
+     * the keyframe requests of a video stream to the sent ones.
+     */
+    @Override
+    public PacketTransformer getRTCPTransformer()
+    {
+        return MediaType.VIDEO == mediaType ? rtcpTransformer : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * We only receive, so there is nothing to do with outgoing packets.
+     */
+    @Override
+    public RawPacket transform(RawPacket pkt)
+    {
+        return pkt;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Drop the packet if the recording is paused, or if its SSRC is waiting
+     * for a keyframe.
+     */
+    @Override
+    public synchronized RawPacket reverseTransform(RawPacket pkt)
+    {
+        if (null == pkt)
+            return pkt;
+
+        if (MediaType.VIDEO == mediaType && pkt.getLength() >= 12)
+        {
+            final byte[] buf = pkt.getBuffer();
+            final int off = pkt.getOffset();
+
+            if (vp8PayloadType < 0
+                || vp8PayloadType == (buf[off + 1] & 0x7F))
+                videoSsrcs.add(RtcpUtils.readUint32(buf, off + 8));
+        }
+
+        if (paused)
+        {
+            droppedPackets++;
+            return null;
+        }
+        if (!resumed || vp8PayloadType < 0)
+            return pkt;
+
+        final byte[] buf = pkt.getBuffer();
+        final int off = pkt.getOffset();
+        final int len = pkt.getLength();
+
+        if (len < 12 || vp8PayloadType != (buf[off + 1] & 0x7F))
+            return pkt;
+
+        final long ssrc = RtcpUtils.readUint32(buf, off + 8);
+        if (keyframeSsrcs.contains(ssrc))
+            return pkt;
+
+        if (isVp8Keyframe(buf, off, len))
+        {
+            keyframeSsrcs.add(ssrc);
+            return pkt;
+        }
+
+        droppedPackets++;
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Report the pause which is still in progress, so that the meta data file
+     * covers the whole recording.
+     */
+    @Override
+    public synchronized void close()
+    {
+        if (paused)
+            reportGap(System.currentTimeMillis());
+
+        logger.info("Dropped " + droppedPackets + " " + mediaType
+            + " packets while paused.");
+    }
+
+    /**
+     * Start dropping packets.
+     */
+    public synchronized void pause()
+    {
+        if (paused)
+            return;
+
+        paused = true;
+        pausedSince = System.currentTimeMillis();
+    }
+
+    /**
+     * Stop dropping packets, except the video packets which come before the
+     * next keyframe of their SSRC. Every video SSRC is asked for a keyframe,
+     * so that it doesn't take a whole keyframe interval.
+     */
+    public synchronized void resume()
+    {
+        if (!paused)
+            return;
+
+        reportGap(System.currentTimeMillis());
+        paused = false;
+        resumed = true;
+        keyframeSsrcs.clear();
+        pendingPlis.addAll(videoSsrcs);
+    }
+
+    /**
+     * Check whether the recording is paused.
+     *
+     * @return <tt>true</tt> if it's paused.
+     */
+    public synchronized boolean isPaused()
+    {
+        return paused;
+    }
+
+    /**
+     * Get the number of packets which have been dropped by this filter.
+     *
+     * @return The number of dropped packets.
+     */
+    public synchronized long getDroppedPackets()
+    {
+        return droppedPackets;
+    }
+
+    /**
+     * Report the current pause to {@link #eventHandler}.
+     *
+     * @param now The instant at which the pause ended.
+     */
+    private void reportGap(long now)
+    {
+        if (null == eventHandler)
+            return;
+
+        RecorderEvent event = new RecorderEvent();
+        event.setType(RecorderEvent.Type.OTHER);
+        event.setMediaType(mediaType);
+        event.setInstant(pausedSince);
+        event.setDuration(now - pausedSince);
+        event.setParticipantDescription(PAUSE_GAP_DESCRIPTION);
+
+        eventHandler.handleEvent(event);
+    }
+
+    /**
+     * Check whether an RTP packet carries the beginning of a VP8 keyframe
+     * (RFC 7741).
+     *
+     * @param buf The packet buffer.
+     * @param off The offset of the RTP packet in <tt>buf</tt>.
+     * @param len The length of the RTP packet.
+     * @return <tt>true</tt> if the packet starts a keyframe.
+     */
+    public static boolean isVp8Keyframe(byte[] buf, int off, int len)
+    {
+        if (null == buf || len < 12)
+            return false;
+
+        int end = off + len;
+        // Padding.
+        if (0 != (buf[off] & 0x20))
+            end -= buf[end - 1] & 0xFF;
+
+        int pos = off + 12 + 4 * (buf[off] & 0x0F);
+        // Header extension.
+        if (0 != (buf[off] & 0x10))
+        {
+            if (pos + 4 > end)
+                return false;
+            pos +=
+                4 + 4 * (((buf[pos + 2] & 0xFF) << 8) | (buf[pos + 3] & 0xFF));
+        }
+        if (pos >= end)
+            return false;
+
+        // VP8 payload descriptor.
+        final int descriptor = buf[pos++] & 0xFF;
+        final boolean startOfPartition = 0 != (descriptor & 0x10);
+        final int partitionId = descriptor & 0x07;
+
+        if (0 != (descriptor & 0x80))
+        {
+            if (pos >= end)
+                return false;
+            final int extension = buf[pos++] & 0xFF;
+
+            // PictureID, one or two bytes.
+            if (0 != (extension & 0x80))
+            {
+                if (pos >= end)
+                    return false;
+                pos += 0 != (buf[pos] & 0x80) ? 2 : 1;
+            }
+            // TL0PICIDX.
+            if (0 != (extension & 0x40))
+                pos++;
+            // TID and KEYIDX share one byte.
+            if (0 != (extension & 0x30))
+                pos++;
+        }
+
+        if (!startOfPartition || 0 != partitionId || pos >= end)
+            return false;
+
+        // The P bit of the VP8 payload header is 0 for keyframes.
+        return 0 == (buf[pos] & 0x01);
+    }
+}
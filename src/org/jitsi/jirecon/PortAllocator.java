@@ -0,0 +1,181 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon;
+
+import java.util.*;
+
+/**
+ * Hands out ports of a fixed range, and keeps track of which of them are in
+ * use with a bitmap, so that a port is not handed out again until it has been
+ * released.
+ * <p>
+ * Ports are handed out round-robin, starting after the last allocated one, so
+ * a port which has just been released is not reused immediately.
+ *
+ * @author lishunyang
+ *
+ */
+public class PortAllocator
+{
+    /**
+     * The minimum port of the range.
+     */
+    private final int minPort;
+
+    /**
+     * The maximum port of the range.
+     */
+    private final int maxPort;
+
+    /**
+     * Bit <tt>i</tt> is set if port <tt>minPort + i</tt> is in use.
+     */
+    private final BitSet used;
+
+    /**
+     * The index of the last allocated port, the next search starts after it.
+     */
+    private int lastIndex = -1;
+
+    /**
+     * The number of ports in use.
+     */
+    private int allocated = 0;
+
+    /**
+     * The number of times allocation failed because all ports were in use.
+     */
+    private long exhaustions = 0;
+
+    /**
+     * Construction method.
+     *
+     * @param minPort The minimum port of the range.
+     * @param maxPort The maximum port of the range.
+     * @throws IllegalArgumentException if the range is not valid.
+     */
+    public PortAllocator(int minPort, int maxPort)
+    {
+        if (minPort <= 0 || maxPort > 0xFFFF || minPort > maxPort)
+        {
+            throw new IllegalArgumentException("Invalid port range: "
+                + minPort + "-" + maxPort);
+        }
+
+        this.minPort = minPort;
+        this.maxPort = maxPort;
+        this.used = new BitSet(maxPort - minPort + 1);
+    }
+
+    /**
+     * Allocate a free port.
+     *
+     * @return The port, or -1 if all ports are in use.
+     */
+    public synchronized int allocate()
+    {
+        final int capacity = getCapacity();
+        int index = used.nextClearBit(lastIndex + 1);
+
+        if (index >= capacity)
+            index = used.nextClearBit(0);
+        if (index >= capacity)
+        {
+            exhaustions++;
+            return -1;
+        }
+
+        used.set(index);
+        allocated++;
+        lastIndex = index;
+        return minPort + index;
+    }
+
+    /**
+     * Mark a port as in use, for example because it was bound although it was
+     * not handed out by this allocator.
+     *
+     * @param port The port.
+     * @return <tt>true</tt> if the port was free and is in use now.
+     */
+    public synchronized boolean reserve(int port)
+    {
+        if (!contains(port) || used.get(port - minPort))
+            return false;
+
+        used.set(port - minPort);
+        allocated++;
+        return true;
+    }
+
+    /**
+     * Release a port, so that it can be handed out again.
+     *
+     * @param port The port.
+     * @return <tt>true</tt> if the port was in use.
+     */
+    public synchronized boolean release(int port)
+    {
+        if (!contains(port) || !used.get(port - minPort))
+            return false;
+
+        used.clear(port - minPort);
+        allocated--;
+        return true;
+    }
+
+    /**
+     * Check whether a port is in the range of this allocator.
+     *
+     * @param port The port.
+     * @return <tt>true</tt> if the port is in the range.
+     */
+    public boolean contains(int port)
+    {
+        return port >= minPort && port <= maxPort;
+    }
+
+    /**
+     * Get the number of ports in the range.
+     *
+     * @return The number of ports.
+     */
+    public int getCapacity()
+    {
+        return maxPort - minPort + 1;
+    }
+
+    /**
+     * Get the number of ports in use.
+     *
+     * @return The number of allocated ports.
+     */
+    public synchronized int getAllocated()
+    {
+        return allocated;
+    }
+
+    /**
+     * Get the fraction of ports in use.
+     *
+     * @return A value between 0 and 1.
+     */
+    public synchronized double getUtilization()
+    {
+        return (double) allocated / getCapacity();
+    }
+
+    /**
+     * Get the number of times allocation failed because all ports were in
+     * use.
+     *
+     * @return The number of exhaustions.
+     */
+    public synchronized long getExhaustions()
+    {
+        return exhaustions;
+    }
+}
@@ -0,0 +1,464 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon;
+
+import java.util.*;
+
+import org.jitsi.impl.neomedia.*;
+import org.jitsi.impl.neomedia.transform.*;
+import org.jitsi.jirecon.utils.*;
+import org.jitsi.service.neomedia.*;
+import org.jitsi.service.neomedia.recording.*;
+import org.jitsi.util.*;
+
+/**
+ * A <tt>TransformEngine</tt> which drops long silent runs of audio packets
+ * before they reach the recorder. It reads the RTP ssrc-audio-level header
+ * extension (RFC 6464) of every received packet and, once an SSRC has been
+ * silent for longer than a configured time, drops its packets until it
+ * becomes audible again.
+ * <p>
+ * Every dropped run is reported to a <tt>RecorderEventHandler</tt> as a
+ * silence gap, so that the gap ends up in the meta data file and playback
+ * can stay in sync.
+ * <p>
+ * <strong>Warning:</strong> This engine is meant to be set as an external
+ * transformer of an audio <tt>MediaStream</tt>, so that it sees packets after
+ * SRTP decryption.
+ *
+ * @author lishunyang
+ */
+public class SilentAudioFilter
+    implements TransformEngine,
+               PacketTransformer
+{
+    /**
+     * The <tt>Logger</tt>, used to log messages to standard output.
+     */
+    private static final Logger logger = Logger
+        .getLogger(SilentAudioFilter.class);
+
+    /**
+     * The value of "participantDescription" of the <tt>RecorderEvent</tt>s
+     * which describe a silence gap in the meta data file.
+     */
+    public static final String SILENCE_GAP_DESCRIPTION = "silence";
+
+    /**
+     * The audio level which means "digital silence" in RFC 6464.
+     */
+    public static final int MAX_AUDIO_LEVEL = 127;
+
+    /**
+     * How many milliseconds an SSRC may send nothing before its state is
+     * forgotten, a silence gap in progress ends at its last packet.
+     */
+    public static final long STATE_TIMEOUT = 30000;
+
+    /**
+     * The ID of the ssrc-audio-level header extension, as negotiated in the
+     * Jingle session.
+     */
+    private final byte extensionId;
+
+    /**
+     * The audio level at or above which a packet is considered silent.
+     */
+    private final int silenceLevel;
+
+    /**
+     * How many milliseconds an SSRC has to be silent before we start dropping
+     * its packets.
+     */
+    private final long minSilenceDuration;
+
+    /**
+     * Where we report the silence gaps.
+     */
+    private final RecorderEventHandler eventHandler;
+
+    /**
+     * Map between SSRC and its silence state.
+     */
+    private final Map<Long, SilenceState> states =
+        new HashMap<Long, SilenceState>();
+
+    /**
+     * Number of packets which have been dropped by this filter.
+     */
+    private long droppedPackets = 0;
+
+    /**
+     * When {@link #states} was last pruned of SSRCs which have gone away.
+     */
+    private long lastPruneTime = -1;
+
+    /**
+     * Construction method.
+     *
+     * @param extensionId the ID of the ssrc-audio-level header extension.
+     * @param silenceLevel the audio level at or above which a packet is
+     *            considered silent.
+     * @param minSilenceDuration how many milliseconds an SSRC has to be silent
+     *            before its packets are dropped.
+     * @param eventHandler where the silence gaps will be reported.
+     */
+    public SilentAudioFilter(byte extensionId, int silenceLevel,
+        long minSilenceDuration, RecorderEventHandler eventHandler)
+    {
+        this.extensionId = extensionId;
+        this.silenceLevel = silenceLevel;
+        this.minSilenceDuration = minSilenceDuration;
+        this.eventHandler = eventHandler;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PacketTransformer getRTPTransformer()
+    {
+        return this;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * We don't touch RTCP packets.
+     */
+    @Override
+    public PacketTransformer getRTCPTransformer()
+    {
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * We only receive, so there is nothing to do with outgoing packets.
+     */
+    @Override
+    public RawPacket transform(RawPacket pkt)
+    {
+        return pkt;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Drop the packet if its SSRC has been silent for long enough.
+     */
+    @Override
+    public RawPacket reverseTransform(RawPacket pkt)
+    {
+        return reverseTransform(pkt, System.currentTimeMillis());
+    }
+
+    /**
+     * Drop the packet if its SSRC has been silent for long enough.
+     * <p>
+     * The gaps which end are reported after {@link #states} has been
+     * released, so that the meta data file isn't written while holding it.
+     *
+     * @param pkt The received packet.
+     * @param now The current time.
+     * @return The packet, or null if it is dropped.
+     */
+    public RawPacket reverseTransform(RawPacket pkt, long now)
+    {
+        if (null == pkt)
+            return pkt;
+
+        final byte[] buf = pkt.getBuffer();
+        final int off = pkt.getOffset();
+        final int len = pkt.getLength();
+        final int level = getAudioLevel(buf, off, len, extensionId);
+
+        // No audio level in this packet, we can't tell anything.
+        if (level < 0)
+            return pkt;
+
+        final long ssrc = RtcpUtils.readUint32(buf, off + 8);
+        final long rtpTimestamp = RtcpUtils.readUint32(buf, off + 4);
+        List<RecorderEvent> gaps = null;
+        RawPacket result = pkt;
+
+        synchronized (states)
+        {
+            gaps = pruneStates(now);
+
+            SilenceState state = states.get(ssrc);
+            if (null == state)
+            {
+                state = new SilenceState();
+                states.put(ssrc, state);
+            }
+            state.lastSeen = now;
+
+            if (level < silenceLevel)
+            {
+                if (state.dropping)
+                {
+                    if (null == gaps)
+                        gaps = new ArrayList<RecorderEvent>(1);
+                    gaps.add(createGap(ssrc, state, now));
+                }
+
+                state.silentSince = -1;
+                state.dropping = false;
+            }
+            else
+            {
+                if (state.silentSince < 0)
+                    state.silentSince = now;
+
+                if (!state.dropping
+                    && now - state.silentSince >= minSilenceDuration)
+                {
+                    state.dropping = true;
+                    state.droppingSince = now;
+                    state.droppingSinceRtpTimestamp = rtpTimestamp;
+                }
+
+                if (state.dropping)
+                {
+                    droppedPackets++;
+                    result = null;
+                }
+            }
+        }
+
+        if (null != gaps)
+            reportGaps(gaps);
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Report the silence gaps which are still in progress, so that the meta
+     * data file covers the whole recording.
+     */
+    @Override
+    public void close()
+    {
+        final long now = System.currentTimeMillis();
+        final List<RecorderEvent> gaps = new ArrayList<RecorderEvent>();
+
+        synchronized (states)
+        {
+            for (Map.Entry<Long, SilenceState> e : states.entrySet())
+            {
+                if (e.getValue().dropping)
+                    gaps.add(createGap(e.getKey(), e.getValue(), now));
+            }
+            states.clear();
+        }
+        reportGaps(gaps);
+
+        logger.info("Dropped " + droppedPackets + " silent audio packets.");
+    }
+
+    /**
+     * Get the number of packets which have been dropped by this filter.
+     *
+     * @return The number of dropped packets.
+     */
+    public long getDroppedPackets()
+    {
+        synchronized (states)
+        {
+            return droppedPackets;
+        }
+    }
+
+    /**
+     * Get the number of SSRCs whose silence state is kept.
+     *
+     * @return The number of SSRCs.
+     */
+    public int getSsrcCount()
+    {
+        synchronized (states)
+        {
+            return states.size();
+        }
+    }
+
+    /**
+     * Forget the SSRCs which have sent nothing for {@link #STATE_TIMEOUT}, at
+     * most once per timeout. A silence gap in progress ends at the last
+     * packet of its SSRC.
+     * <p>
+     * <strong>Warning:</strong> {@link #states} must be held.
+     *
+     * @param now The current time.
+     * @return The gaps which end, null if there are none.
+     */
+    private List<RecorderEvent> pruneStates(long now)
+    {
+        if (lastPruneTime < 0)
+            lastPruneTime = now;
+        if (now - lastPruneTime < STATE_TIMEOUT)
+            return null;
+        lastPruneTime = now;
+
+        List<RecorderEvent> gaps = null;
+
+        for (Iterator<Map.Entry<Long, SilenceState>> it =
+            states.entrySet().iterator(); it.hasNext();)
+        {
+            final Map.Entry<Long, SilenceState> e = it.next();
+            final SilenceState state = e.getValue();
+            if (now - state.lastSeen < STATE_TIMEOUT)
+                continue;
+
+            if (state.dropping)
+            {
+                if (null == gaps)
+                    gaps = new ArrayList<RecorderEvent>();
+                gaps.add(createGap(e.getKey(), state, state.lastSeen));
+            }
+            it.remove();
+        }
+        return gaps;
+    }
+
+    /**
+     * Report silence gaps to {@link #eventHandler}.
+     *
+     * @param gaps The gaps.
+     */
+    private void reportGaps(List<RecorderEvent> gaps)
+    {
+        if (null == eventHandler)
+            return;
+
+        for (RecorderEvent event : gaps)
+            eventHandler.handleEvent(event);
+    }
+
+    /**
+     * Create the <tt>RecorderEvent</tt> of a silence gap of the specified
+     * SSRC.
+     *
+     * @param ssrc The SSRC which was silent.
+     * @param state The silence state of the SSRC.
+     * @param now The instant at which the gap ended.
+     * @return The event.
+     */
+    private static RecorderEvent createGap(long ssrc, SilenceState state,
+        long now)
+    {
+        RecorderEvent event = new RecorderEvent();
+        event.setType(RecorderEvent.Type.OTHER);
+        event.setMediaType(MediaType.AUDIO);
+        event.setSsrc(ssrc);
+        event.setInstant(state.droppingSince);
+        event.setRtpTimestamp(state.droppingSinceRtpTimestamp);
+        event.setDuration(now - state.droppingSince);
+        event.setParticipantDescription(SILENCE_GAP_DESCRIPTION);
+        return event;
+    }
+
+    /**
+     * Get the audio level carried in the one-byte RTP header extension
+     * (RFC 5285) with the specified ID.
+     *
+     * @param buf The packet buffer.
+     * @param off The offset of the RTP packet in <tt>buf</tt>.
+     * @param len The length of the RTP packet.
+     * @param id The ID of the ssrc-audio-level header extension.
+     * @return The audio level (0-127), or -1 if the packet doesn't carry one.
+     */
+    public static int getAudioLevel(byte[] buf, int off, int len, byte id)
+    {
+        // Fixed RTP header.
+        if (null == buf || len < 12)
+            return -1;
+
+        // No header extension.
+        if (0 == (buf[off] & 0x10))
+            return -1;
+
+        final int csrcCount = buf[off] & 0x0F;
+        int extOff = off + 12 + 4 * csrcCount;
+        final int end = off + len;
+
+        if (extOff + 4 > end)
+            return -1;
+
+        // Only the one-byte header (0xBEDE) is supported.
+        if ((buf[extOff] & 0xFF) != 0xBE || (buf[extOff + 1] & 0xFF) != 0xDE)
+            return -1;
+
+        final int extLen =
+            4 * (((buf[extOff + 2] & 0xFF) << 8) | (buf[extOff + 3] & 0xFF));
+        int pos = extOff + 4;
+        final int extEnd = Math.min(pos + extLen, end);
+
+        while (pos < extEnd)
+        {
+            final int elementId = (buf[pos] & 0xF0) >>> 4;
+            final int elementLen = (buf[pos] & 0x0F) + 1;
+
+            // Padding.
+            if (0 == elementId)
+            {
+                pos++;
+                continue;
+            }
+            // Reserved, stop parsing.
+            if (15 == elementId)
+                break;
+
+            if (elementId == id)
+            {
+                if (pos + 1 >= extEnd)
+                    return -1;
+                return buf[pos + 1] & 0x7F;
+            }
+
+            pos += 1 + elementLen;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Silence state of a single SSRC.
+     *
+     * @author lishunyang
+     *
+     */
+    private static class SilenceState
+    {
+        /**
+         * Since when the SSRC has been silent, or -1 if it isn't silent.
+         */
+        long silentSince = -1;
+
+        /**
+         * Whether we are dropping packets of the SSRC.
+         */
+        boolean dropping = false;
+
+        /**
+         * Since when we have been dropping packets of the SSRC.
+         */
+        long droppingSince = -1;
+
+        /**
+         * RTP timestamp of the first dropped packet.
+         */
+        long droppingSinceRtpTimestamp = -1;
+
+        /**
+         * When the last packet of the SSRC was received.
+         */
+        long lastSeen = -1;
+    }
+}
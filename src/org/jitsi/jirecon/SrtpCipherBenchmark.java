@@ -0,0 +1,449 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon;
+
+import java.util.*;
+
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+import org.bouncycastle.crypto.*;
+import org.bouncycastle.crypto.digests.*;
+import org.bouncycastle.crypto.engines.*;
+import org.bouncycastle.crypto.macs.*;
+import org.bouncycastle.crypto.modes.*;
+import org.bouncycastle.crypto.params.*;
+import org.jitsi.util.*;
+
+/**
+ * Times the available AES-CTR and HMAC-SHA1 implementations on packets of the
+ * size SRTP deals with, so that the fastest one can be used for the SRTP
+ * contexts of the <tt>DtlsControl</tt>s.
+ * <p>
+ * The workload is run in memory, once to warm up and once to be measured.
+ * Implementations which are not available, or fail, are left out of the
+ * results.
+ *
+ * @author lishunyang
+ *
+ */
+public class SrtpCipherBenchmark
+{
+    /**
+     * The <tt>Logger</tt>, used to log messages to standard output.
+     */
+    private static final Logger logger = Logger
+        .getLogger(SrtpCipherBenchmark.class);
+
+    /**
+     * The property libjitsi reads the class name of its AES factory from.
+     */
+    public static final String AES_FACTORY_PNAME =
+        "org.jitsi.impl.neomedia.transform.srtp.AES.factoryClassName";
+
+    /**
+     * Name of the BouncyCastle implementations.
+     */
+    public static final String BOUNCY_CASTLE = "BouncyCastle";
+
+    /**
+     * Name of the implementations of the SunJCE provider.
+     */
+    public static final String SUN_JCE = "SunJCE";
+
+    /**
+     * The default size of a packet of the workload.
+     */
+    private static final int DEFAULT_PACKET_SIZE = 1200;
+
+    /**
+     * The default number of packets of the workload.
+     */
+    private static final int DEFAULT_PACKETS = 20000;
+
+    /**
+     * The size of a packet of the workload.
+     */
+    private final int packetSize;
+
+    /**
+     * The number of packets of the workload.
+     */
+    private final int packets;
+
+    /**
+     * Map between name and throughput in MB/s of the AES-CTR
+     * implementations.
+     */
+    private final Map<String, Double> cipherResults =
+        new LinkedHashMap<String, Double>();
+
+    /**
+     * Map between name and throughput in MB/s of the HMAC-SHA1
+     * implementations.
+     */
+    private final Map<String, Double> macResults =
+        new LinkedHashMap<String, Double>();
+
+    /**
+     * Construction method, with the default workload.
+     */
+    public SrtpCipherBenchmark()
+    {
+        this(DEFAULT_PACKET_SIZE, DEFAULT_PACKETS);
+    }
+
+    /**
+     * Construction method.
+     *
+     * @param packetSize The size of a packet of the workload.
+     * @param packets The number of packets of the workload.
+     */
+    public SrtpCipherBenchmark(int packetSize, int packets)
+    {
+        this.packetSize = packetSize;
+        this.packets = packets;
+    }
+
+    /**
+     * Time all implementations and log the results.
+     */
+    public synchronized void run()
+    {
+        cipherResults.clear();
+        macResults.clear();
+
+        measure(cipherResults, new BouncyCastleCipher());
+        measure(cipherResults, new JceCipher(SUN_JCE));
+        measure(macResults, new BouncyCastleMac());
+        measure(macResults, new JceMac(SUN_JCE));
+
+        logger.info("SRTP cipher benchmark, AES-CTR: " + cipherResults
+            + " MB/s, HMAC-SHA1: " + macResults + " MB/s, selected "
+            + getFastestCipher() + " and " + getFastestMac());
+    }
+
+    /**
+     * Get the throughput of the AES-CTR implementations.
+     *
+     * @return Map between name and throughput in MB/s.
+     */
+    public synchronized Map<String, Double> getCipherResults()
+    {
+        return new LinkedHashMap<String, Double>(cipherResults);
+    }
+
+    /**
+     * Get the throughput of the HMAC-SHA1 implementations.
+     *
+     * @return Map between name and throughput in MB/s.
+     */
+    public synchronized Map<String, Double> getMacResults()
+    {
+        return new LinkedHashMap<String, Double>(macResults);
+    }
+
+    /**
+     * Get the name of the fastest AES-CTR implementation.
+     *
+     * @return The name, or null if none has been measured.
+     */
+    public synchronized String getFastestCipher()
+    {
+        return getFastest(cipherResults);
+    }
+
+    /**
+     * Get the name of the fastest HMAC-SHA1 implementation.
+     *
+     * @return The name, or null if none has been measured.
+     */
+    public synchronized String getFastestMac()
+    {
+        return getFastest(macResults);
+    }
+
+    /**
+     * Get the class name of the libjitsi AES factory which matches the
+     * fastest AES-CTR implementation.
+     *
+     * @return The class name, or null if none has been measured.
+     */
+    public synchronized String getAesFactoryClassName()
+    {
+        final String fastest = getFastestCipher();
+
+        if (null == fastest)
+            return null;
+        return "org.jitsi.impl.neomedia.transform.srtp.AES$" + fastest
+            + "BlockCipherFactory";
+    }
+
+    /**
+     * Get the entry with the highest throughput.
+     *
+     * @param results Map between name and throughput.
+     * @return The name, or null if <tt>results</tt> is empty.
+     */
+    private static String getFastest(Map<String, Double> results)
+    {
+        String fastest = null;
+        double best = -1;
+
+        for (Map.Entry<String, Double> e : results.entrySet())
+        {
+            if (e.getValue() > best)
+            {
+                best = e.getValue();
+                fastest = e.getKey();
+            }
+        }
+        return fastest;
+    }
+
+    /**
+     * Warm up a workload, time it and put its throughput into
+     * <tt>results</tt>.
+     *
+     * @param results Map between name and throughput in MB/s.
+     * @param workload The workload.
+     */
+    private void measure(Map<String, Double> results, Workload workload)
+    {
+        final byte[] packet = new byte[packetSize];
+
+        try
+        {
+            workload.init();
+            for (int i = 0; i < packets / 10; i++)
+                workload.process(packet);
+
+            final long start = System.nanoTime();
+            for (int i = 0; i < packets; i++)
+                workload.process(packet);
+            final long elapsed = Math.max(1, System.nanoTime() - start);
+
+            results.put(workload.getName(), (double) packetSize * packets
+                * 1000 / elapsed);
+        }
+        catch (Exception e)
+        {
+            logger.warn("SRTP cipher benchmark of " + workload.getName()
+                + " failed: " + e);
+        }
+    }
+
+    /**
+     * An implementation to be timed.
+     *
+     * @author lishunyang
+     *
+     */
+    private static abstract class Workload
+    {
+        /**
+         * Random key, so that nothing is optimized for zeros.
+         */
+        protected final byte[] key = new byte[20];
+
+        /**
+         * The name of the implementation.
+         */
+        private final String name;
+
+        /**
+         * Construction method.
+         *
+         * @param name The name of the implementation.
+         */
+        protected Workload(String name)
+        {
+            this.name = name;
+            new Random().nextBytes(key);
+        }
+
+        /**
+         * Get the name of the implementation.
+         *
+         * @return The name.
+         */
+        String getName()
+        {
+            return name;
+        }
+
+        /**
+         * Create the implementation.
+         *
+         * @throws Exception if it is not available.
+         */
+        abstract void init()
+            throws Exception;
+
+        /**
+         * Process one packet, the way SRTP does.
+         *
+         * @param packet The packet.
+         * @throws Exception if processing failed.
+         */
+        abstract void process(byte[] packet)
+            throws Exception;
+    }
+
+    /**
+     * AES-CTR of BouncyCastle.
+     */
+    private static class BouncyCastleCipher
+        extends Workload
+    {
+        /**
+         * The counter, all zeros.
+         */
+        private final byte[] iv = new byte[16];
+
+        /**
+         * The cipher.
+         */
+        private StreamCipher cipher;
+
+        BouncyCastleCipher()
+        {
+            super(BOUNCY_CASTLE);
+        }
+
+        @Override
+        void init()
+        {
+            cipher = new SICBlockCipher(new AESFastEngine());
+        }
+
+        @Override
+        void process(byte[] packet)
+        {
+            // SRTP starts every packet with a new counter.
+            cipher.init(true, new ParametersWithIV(new KeyParameter(key, 0,
+                16), iv));
+            cipher.processBytes(packet, 0, packet.length, packet, 0);
+        }
+    }
+
+    /**
+     * AES-CTR of a JCE provider.
+     */
+    private static class JceCipher
+        extends Workload
+    {
+        /**
+         * The counter, all zeros.
+         */
+        private final IvParameterSpec iv = new IvParameterSpec(new byte[16]);
+
+        /**
+         * The cipher.
+         */
+        private Cipher cipher;
+
+        /**
+         * The AES key.
+         */
+        private SecretKeySpec keySpec;
+
+        JceCipher(String provider)
+        {
+            super(provider);
+        }
+
+        @Override
+        void init()
+            throws Exception
+        {
+            cipher = Cipher.getInstance("AES/CTR/NoPadding", getName());
+            keySpec = new SecretKeySpec(key, 0, 16, "AES");
+        }
+
+        @Override
+        void process(byte[] packet)
+            throws Exception
+        {
+            cipher.init(Cipher.ENCRYPT_MODE, keySpec, iv);
+            cipher.doFinal(packet, 0, packet.length, packet, 0);
+        }
+    }
+
+    /**
+     * HMAC-SHA1 of BouncyCastle.
+     */
+    private static class BouncyCastleMac
+        extends Workload
+    {
+        /**
+         * The authentication tag.
+         */
+        private final byte[] tag = new byte[20];
+
+        /**
+         * The MAC.
+         */
+        private org.bouncycastle.crypto.Mac mac;
+
+        BouncyCastleMac()
+        {
+            super(BOUNCY_CASTLE);
+        }
+
+        @Override
+        void init()
+        {
+            mac = new HMac(new SHA1Digest());
+            mac.init(new KeyParameter(key));
+        }
+
+        @Override
+        void process(byte[] packet)
+        {
+            mac.update(packet, 0, packet.length);
+            mac.doFinal(tag, 0);
+        }
+    }
+
+    /**
+     * HMAC-SHA1 of a JCE provider.
+     */
+    private static class JceMac
+        extends Workload
+    {
+        /**
+         * The authentication tag.
+         */
+        private final byte[] tag = new byte[20];
+
+        /**
+         * The MAC.
+         */
+        private javax.crypto.Mac mac;
+
+        JceMac(String provider)
+        {
+            super(provider);
+        }
+
+        @Override
+        void init()
+            throws Exception
+        {
+            mac = javax.crypto.Mac.getInstance("HmacSHA1", getName());
+            mac.init(new SecretKeySpec(key, "HmacSHA1"));
+        }
+
+        @Override
+        void process(byte[] packet)
+            throws Exception
+        {
+            mac.update(packet, 0, packet.length);
+            mac.doFinal(tag, 0);
+        }
+    }
+}
@@ -0,0 +1,604 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon;
+
+import java.util.*;
+
+import org.jitsi.impl.neomedia.*;
+import org.jitsi.impl.neomedia.transform.*;
+import org.jitsi.jirecon.utils.*;
+import org.jitsi.service.neomedia.*;
+import org.jitsi.service.neomedia.recording.*;
+import org.jitsi.util.*;
+
+/**
+ * A <tt>TransformEngine</tt> which keeps one logical track per endpoint, so
+ * that the recorder writes one continuous file for a participant even if the
+ * SSRC changes, for example after a page reload or a camera switch.
+ * <p>
+ * The logical SSRC of an endpoint is the first SSRC it has been announced
+ * with. Received RTP packets of later SSRCs are rewritten to the logical SSRC,
+ * with sequence numbers and timestamps that continue from the last packet of
+ * the previous SSRC. The timestamps jump by the time between the two SSRCs,
+ * and every jump is reported to a <tt>RecorderEventHandler</tt>, so that it
+ * ends up in the meta data file.
+ * <p>
+ * The sender SSRC of received RTCP packets is rewritten the same way, and BYE
+ * packets of announced SSRCs are dropped, so that the recorder doesn't close
+ * the file of an endpoint whose SSRC is about to change. A track is only
+ * closed by a BYE of its logical SSRC which is added after this engine, see
+ * {@link #getClosedSsrc(long)}.
+ * <p>
+ * <strong>Warning:</strong> SSRCs which have not been announced with
+ * {@link #addSsrc(String, long)} are not rewritten. This engine is meant to be
+ * the last external transformer a received packet goes through, so that the
+ * other engines see the real SSRCs.
+ *
+ * @author lishunyang
+ */
+public class SsrcContinuityRewriter
+    implements TransformEngine
+{
+    /**
+     * The <tt>Logger</tt>, used to log messages to standard output.
+     */
+    private static final Logger logger = Logger
+        .getLogger(SsrcContinuityRewriter.class);
+
+    /**
+     * The value of "participantDescription" of the <tt>RecorderEvent</tt>s
+     * which describe the gap between two SSRCs in the meta data file.
+     */
+    public static final String SSRC_CHANGE_GAP_DESCRIPTION = "ssrc-change";
+
+    /**
+     * Packets of a previous SSRC which arrive within this many milliseconds
+     * after the last packet of the track are considered reordered, later ones
+     * make the track switch back to that SSRC.
+     */
+    private static final long REORDER_WINDOW = 500;
+
+    /**
+     * The <tt>MediaType</tt> of the stream we rewrite.
+     */
+    private final MediaType mediaType;
+
+    /**
+     * The RTP clock rate of the stream, used to turn the gap between two
+     * SSRCs into timestamp units.
+     */
+    private final long clockRate;
+
+    /**
+     * Where we report the gaps, could be null.
+     */
+    private RecorderEventHandler eventHandler;
+
+    /**
+     * Map between endpoint id and its logical track.
+     */
+    private final Map<String, Track> tracks = new HashMap<String, Track>();
+
+    /**
+     * Map between the announced SSRCs and the tracks they belong to.
+     */
+    private final Map<Long, Track> ssrcTracks = new HashMap<Long, Track>();
+
+    /**
+     * Map between the SSRCs which have sent packets and their offsets.
+     */
+    private final Map<Long, Mapping> mappings = new HashMap<Long, Mapping>();
+
+    /**
+     * Number of times a track has continued with another SSRC.
+     */
+    private long ssrcChanges = 0;
+
+    /**
+     * Rewrites received RTP packets.
+     */
+    private final PacketTransformer rtpTransformer = new PacketTransformer()
+    {
+        @Override
+        public RawPacket transform(RawPacket pkt)
+        {
+            return pkt;
+        }
+
+        @Override
+        public RawPacket reverseTransform(RawPacket pkt)
+        {
+            if (null != pkt)
+                rewriteRtp(pkt, System.currentTimeMillis());
+            return pkt;
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    };
+
+    /**
+     * Rewrites received RTCP packets.
+     */
+    private final PacketTransformer rtcpTransformer = new PacketTransformer()
+    {
+        @Override
+        public RawPacket transform(RawPacket pkt)
+        {
+            return pkt;
+        }
+
+        @Override
+        public RawPacket reverseTransform(RawPacket pkt)
+        {
+            return null == pkt ? pkt : rewriteRtcp(pkt);
+        }
+
+        @Override
+        public void close()
+        {
+            logger.info(mediaType + " tracks continued across " + ssrcChanges
+                + " SSRC changes.");
+        }
+    };
+
+    /**
+     * Construction method.
+     *
+     * @param mediaType The <tt>MediaType</tt> of the stream we rewrite.
+     * @param clockRate The RTP clock rate of the stream.
+     */
+    public SsrcContinuityRewriter(MediaType mediaType, long clockRate)
+    {
+        this.mediaType = mediaType;
+        this.clockRate = clockRate;
+    }
+
+    /**
+     * Set where the gaps between two SSRCs are reported.
+     *
+     * @param eventHandler The <tt>RecorderEventHandler</tt>, null to not
+     *            report them.
+     */
+    public synchronized void setEventHandler(RecorderEventHandler eventHandler)
+    {
+        this.eventHandler = eventHandler;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PacketTransformer getRTPTransformer()
+    {
+        return rtpTransformer;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PacketTransformer getRTCPTransformer()
+    {
+        return rtcpTransformer;
+    }
+
+    /**
+     * Announce an SSRC of an endpoint. The first SSRC of an endpoint becomes
+     * the logical SSRC of its track.
+     *
+     * @param endpointId The endpoint id.
+     * @param ssrc The SSRC.
+     * @return The logical SSRC the packets of <tt>ssrc</tt> will be written
+     *         with.
+     */
+    public synchronized long addSsrc(String endpointId, long ssrc)
+    {
+        Track track = ssrcTracks.get(ssrc);
+
+        if (null == track)
+        {
+            track = tracks.get(endpointId);
+            if (null == track)
+            {
+                track = new Track(endpointId, ssrc);
+                tracks.put(endpointId, track);
+            }
+            ssrcTracks.put(ssrc, track);
+            if (ssrc != track.logicalSsrc)
+            {
+                logger.info("Continuing " + mediaType + " track "
+                    + track.logicalSsrc + " of " + endpointId + " with SSRC "
+                    + ssrc);
+            }
+        }
+        return track.logicalSsrc;
+    }
+
+    /**
+     * Get the logical SSRC an SSRC is written with.
+     *
+     * @param ssrc The SSRC.
+     * @return The logical SSRC, or <tt>ssrc</tt> if it has not been announced.
+     */
+    public synchronized long getLogicalSsrc(long ssrc)
+    {
+        final Track track = ssrcTracks.get(ssrc);
+
+        return null == track ? ssrc : track.logicalSsrc;
+    }
+
+    /**
+     * Get the SSRC to send a BYE for to the recorder when an SSRC has become
+     * idle, so that the file of its track is closed.
+     *
+     * @param ssrc The idle SSRC.
+     * @return The logical SSRC of its track, <tt>ssrc</tt> if it has not been
+     *         announced, or -1 if its track goes on with another SSRC.
+     */
+    public synchronized long getClosedSsrc(long ssrc)
+    {
+        final Track track = ssrcTracks.get(ssrc);
+
+        if (null == track)
+            return ssrc;
+        if (-1 != track.currentSsrc && ssrc != track.currentSsrc)
+            return -1;
+        return track.logicalSsrc;
+    }
+
+    /**
+     * Get the number of times a track has continued with another SSRC.
+     *
+     * @return The number of SSRC changes.
+     */
+    public synchronized long getSsrcChanges()
+    {
+        return ssrcChanges;
+    }
+
+    /**
+     * Rewrite the SSRC, sequence number and timestamp of a received RTP
+     * packet in place.
+     *
+     * @param pkt The RTP packet.
+     * @param now The time the packet has been received.
+     */
+    synchronized void rewriteRtp(RawPacket pkt, long now)
+    {
+        final byte[] buf = pkt.getBuffer();
+        final int off = pkt.getOffset();
+
+        if (pkt.getLength() < 12)
+            return;
+
+        final long ssrc = RtcpUtils.readUint32(buf, off + 8);
+        final Track track = ssrcTracks.get(ssrc);
+        if (null == track)
+            return;
+
+        final int seq = ((buf[off + 2] & 0xFF) << 8) | (buf[off + 3] & 0xFF);
+        final long timestamp = RtcpUtils.readUint32(buf, off + 4);
+
+        Mapping mapping = mappings.get(ssrc);
+        if (null == mapping
+            || (ssrc != track.currentSsrc
+                && now - track.lastArrival > REORDER_WINDOW))
+        {
+            mapping = track.continueWith(ssrc, seq, timestamp, now);
+            mappings.put(ssrc, mapping);
+        }
+
+        final int outSeq = (seq + mapping.seqOffset) & 0xFFFF;
+        final long outTimestamp = (timestamp + mapping.timestampOffset)
+            & 0xFFFFFFFFL;
+
+        buf[off + 2] = (byte) (outSeq >>> 8);
+        buf[off + 3] = (byte) outSeq;
+        RtcpUtils.writeUint32(buf, off + 4, outTimestamp);
+        RtcpUtils.writeUint32(buf, off + 8, track.logicalSsrc);
+
+        if (ssrc == track.currentSsrc)
+            track.update(outSeq, outTimestamp, now);
+    }
+
+    /**
+     * Rewrite the sender SSRCs of a received compound RTCP packet, and drop
+     * the BYE packets of announced SSRCs.
+     *
+     * @param pkt The compound RTCP packet.
+     * @return The rewritten packet, <tt>pkt</tt> or a copy without BYEs, or
+     *         null if nothing is left.
+     */
+    synchronized RawPacket rewriteRtcp(RawPacket pkt)
+    {
+        final byte[] buf = pkt.getBuffer();
+        final int end = pkt.getOffset() + pkt.getLength();
+        List<int[]> byes = null;
+        int pos = pkt.getOffset();
+
+        while (pos + 8 <= end)
+        {
+            final int type = buf[pos + 1] & 0xFF;
+            final int length =
+                4 * ((((buf[pos + 2] & 0xFF) << 8) | (buf[pos + 3] & 0xFF))
+                    + 1);
+            if (pos + length > end)
+                break;
+
+            if (RtcpUtils.RTCP_SR == type || RtcpUtils.RTCP_RR == type)
+            {
+                final long ssrc = RtcpUtils.readUint32(buf, pos + 4);
+                final Mapping mapping = mappings.get(ssrc);
+                if (null != mapping)
+                {
+                    RtcpUtils.writeUint32(buf, pos + 4,
+                        mapping.track.logicalSsrc);
+                    // The RTP timestamp of the sender info.
+                    if (RtcpUtils.RTCP_SR == type && length >= 28)
+                    {
+                        RtcpUtils.writeUint32(buf, pos + 16,
+                            (RtcpUtils.readUint32(buf, pos + 16)
+                                + mapping.timestampOffset) & 0xFFFFFFFFL);
+                    }
+                }
+            }
+            else if (RtcpUtils.RTCP_SDES == type)
+                rewriteSdes(buf, pos, length);
+            else if (RtcpUtils.RTCP_BYE == type && isAnnouncedBye(buf, pos))
+            {
+                if (null == byes)
+                    byes = new ArrayList<int[]>();
+                byes.add(new int[] { pos, length });
+            }
+            pos += length;
+        }
+
+        return null == byes ? pkt : remove(pkt, byes);
+    }
+
+    /**
+     * Rewrite the SSRCs of the chunks of an SDES packet in place.
+     *
+     * @param buf The buffer.
+     * @param pos Where the SDES packet starts.
+     * @param length The length of the SDES packet.
+     */
+    private void rewriteSdes(byte[] buf, int pos, int length)
+    {
+        final int end = pos + length;
+        int chunks = buf[pos] & 0x1F;
+        int chunk = pos + 4;
+
+        while (chunks-- > 0 && chunk + 4 <= end)
+        {
+            final Track track =
+                ssrcTracks.get(RtcpUtils.readUint32(buf, chunk));
+            if (null != track)
+                RtcpUtils.writeUint32(buf, chunk, track.logicalSsrc);
+
+            // Skip the items up to the null item, and the padding.
+            int item = chunk + 4;
+            while (item < end && 0 != buf[item])
+            {
+                if (item + 1 >= end)
+                    return;
+                item += 2 + (buf[item + 1] & 0xFF);
+            }
+            chunk = pos + ((item - pos + 4) & ~3);
+        }
+    }
+
+    /**
+     * Check whether a BYE packet concerns an announced SSRC.
+     *
+     * @param buf The buffer.
+     * @param pos Where the BYE packet starts.
+     * @return <tt>true</tt> if one of its SSRCs has been announced.
+     */
+    private boolean isAnnouncedBye(byte[] buf, int pos)
+    {
+        final int count = buf[pos] & 0x1F;
+
+        for (int i = 0; i < count; i++)
+        {
+            if (ssrcTracks.containsKey(
+                RtcpUtils.readUint32(buf, pos + 4 + 4 * i)))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Remove packets from a compound RTCP packet.
+     *
+     * @param pkt The compound RTCP packet.
+     * @param removed The position and length of every packet to remove, in
+     *            order.
+     * @return A new <tt>RawPacket</tt> without them, or null if nothing is
+     *         left.
+     */
+    private static RawPacket remove(RawPacket pkt, List<int[]> removed)
+    {
+        int length = pkt.getLength();
+        for (int[] r : removed)
+            length -= r[1];
+        if (0 == length)
+            return null;
+
+        final byte[] buf = new byte[length];
+        int from = pkt.getOffset();
+        int to = 0;
+        for (int[] r : removed)
+        {
+            System.arraycopy(pkt.getBuffer(), from, buf, to, r[0] - from);
+            to += r[0] - from;
+            from = r[0] + r[1];
+        }
+        System.arraycopy(pkt.getBuffer(), from, buf, to, length - to);
+        return new RawPacket(buf, 0, length);
+    }
+
+    /**
+     * Report a gap between two SSRCs of a track to {@link #eventHandler}.
+     *
+     * @param track The track.
+     * @param ssrc The new SSRC.
+     * @param now The instant at which the gap ended.
+     */
+    private void reportGap(Track track, long ssrc, long now)
+    {
+        ssrcChanges++;
+        logger.info(mediaType + " track " + track.logicalSsrc + " of "
+            + track.endpointId + " continues with SSRC " + ssrc + " after "
+            + (now - track.lastArrival) + " ms");
+
+        if (null == eventHandler)
+            return;
+
+        RecorderEvent event = new RecorderEvent();
+        event.setType(RecorderEvent.Type.OTHER);
+        event.setMediaType(mediaType);
+        event.setSsrc(track.logicalSsrc);
+        event.setEndpointId(track.endpointId);
+        event.setInstant(track.lastArrival);
+        event.setRtpTimestamp(track.lastTimestamp);
+        event.setDuration(now - track.lastArrival);
+        event.setParticipantDescription(SSRC_CHANGE_GAP_DESCRIPTION);
+
+        eventHandler.handleEvent(event);
+    }
+
+    /**
+     * The logical track of an endpoint.
+     *
+     * @author lishunyang
+     *
+     */
+    private class Track
+    {
+        /**
+         * The endpoint id.
+         */
+        final String endpointId;
+
+        /**
+         * The SSRC all packets of the track are written with.
+         */
+        final long logicalSsrc;
+
+        /**
+         * The SSRC which is currently sending, -1 before the first packet.
+         */
+        long currentSsrc = -1;
+
+        /**
+         * The highest sequence number written.
+         */
+        int lastSeq;
+
+        /**
+         * The timestamp of the packet with {@link #lastSeq}.
+         */
+        long lastTimestamp;
+
+        /**
+         * When the last packet of {@link #currentSsrc} has been received.
+         */
+        long lastArrival;
+
+        Track(String endpointId, long logicalSsrc)
+        {
+            this.endpointId = endpointId;
+            this.logicalSsrc = logicalSsrc;
+        }
+
+        /**
+         * Make an SSRC the current one, so that its packets continue from the
+         * last packet written.
+         *
+         * @param ssrc The SSRC.
+         * @param seq The sequence number of its first packet.
+         * @param timestamp The timestamp of its first packet.
+         * @param now The time its first packet has been received.
+         * @return The offsets of the SSRC.
+         */
+        Mapping continueWith(long ssrc, int seq, long timestamp, long now)
+        {
+            final Mapping mapping;
+
+            if (-1 == currentSsrc)
+                mapping = new Mapping(this, 0, 0);
+            else
+            {
+                final long gap =
+                    Math.max(1, (now - lastArrival) * clockRate / 1000);
+                mapping =
+                    new Mapping(this, lastSeq + 1 - seq, lastTimestamp + gap
+                        - timestamp);
+                reportGap(this, ssrc, now);
+            }
+
+            currentSsrc = ssrc;
+            lastSeq = (seq + mapping.seqOffset - 1) & 0xFFFF;
+            lastTimestamp = (timestamp + mapping.timestampOffset) & 0xFFFFFFFFL;
+            lastArrival = now;
+            return mapping;
+        }
+
+        /**
+         * Remember a packet written for the current SSRC.
+         *
+         * @param seq The written sequence number.
+         * @param timestamp The written timestamp.
+         * @param now The time the packet has been received.
+         */
+        void update(int seq, long timestamp, long now)
+        {
+            lastArrival = now;
+
+            final int delta = (seq - lastSeq) & 0xFFFF;
+            if (0 != delta && delta < 0x8000)
+            {
+                lastSeq = seq;
+                lastTimestamp = timestamp;
+            }
+        }
+    }
+
+    /**
+     * The offsets which map an SSRC onto its track.
+     *
+     * @author lishunyang
+     *
+     */
+    private static class Mapping
+    {
+        /**
+         * The track.
+         */
+        final Track track;
+
+        /**
+         * Added to the sequence numbers.
+         */
+        final int seqOffset;
+
+        /**
+         * Added to the timestamps.
+         */
+        final long timestampOffset;
+
+        Mapping(Track track, int seqOffset, long timestampOffset)
+        {
+            this.track = track;
+            this.seqOffset = seqOffset;
+            this.timestampOffset = timestampOffset;
+        }
+    }
+}
@@ -6,21 +6,24 @@
 package org.jitsi.jirecon;
 
 import java.io.*;
+import java.net.*;
 import java.util.*;
 import java.util.Map.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 import org.jitsi.impl.neomedia.recording.*;
 import org.jitsi.impl.neomedia.rtp.translator.*;
+import org.jitsi.impl.neomedia.transform.*;
 import org.jitsi.jirecon.TaskEvent.*;
 import org.jitsi.jirecon.datachannel.*;
+import org.jitsi.jirecon.utils.*;
+import org.jitsi.service.configuration.*;
 import org.jitsi.service.libjitsi.*;
 import org.jitsi.service.neomedia.*;
 import org.jitsi.service.neomedia.format.*;
 import org.jitsi.service.neomedia.recording.*;
 import org.jitsi.util.*;
-import org.json.simple.*;
-import org.json.simple.parser.*;
 
  /**
  * <tt>StreamRecorderManager</tt> is used to record media
@@ -37,6 +40,29 @@ public class StreamRecorderManager
     private static final Logger logger = Logger
         .getLogger(StreamRecorderManager.class);
 
+    /**
+     * Maximum wait time in milliseconds for the data channel to be set up.
+     */
+    private static final int MAX_WAIT_TIME = 10000;
+
+    /**
+     * Maximum number of data channel messages waiting to be handled. Messages
+     * which arrive when the queue is full are dropped.
+     */
+    private static final int DATA_CHANNEL_QUEUE_CAPACITY = 256;
+
+    /**
+     * A data channel message which waited longer than this many milliseconds
+     * in the queue is counted as late.
+     */
+    private static final long DATA_CHANNEL_LATE_THRESHOLD = 1000;
+
+    /**
+     * Name of the file in the output directory which every data channel
+     * message is appended to, if enabled.
+     */
+    private static final String DATA_CHANNEL_LOG_FILENAME = "datachannel.log";
+
     /**
      * The map between <tt>MediaType</tt> and <tt>MediaStream</tt>. Those are
      * used to receiving media streams.
@@ -63,12 +89,37 @@ public class StreamRecorderManager
     private Map<MediaType, Recorder> recorders =
         new HashMap<MediaType, Recorder>();
 
+    /**
+     * The map between <tt>MediaType</tt> and the <tt>PauseFilter</tt> of its
+     * <tt>MediaStream</tt>.
+     */
+    private Map<MediaType, PauseFilter> pauseFilters =
+        new ConcurrentHashMap<MediaType, PauseFilter>();
+
+    /**
+     * The map between <tt>MediaType</tt> and the
+     * <tt>SsrcContinuityRewriter</tt> of its <tt>MediaStream</tt>, empty if
+     * SSRC continuity is disabled.
+     */
+    private Map<MediaType, SsrcContinuityRewriter> ssrcRewriters =
+        new ConcurrentHashMap<MediaType, SsrcContinuityRewriter>();
+
+    /**
+     * Watches the media streams for idle media, null if it's disabled.
+     */
+    private MediaIdleWatchdog mediaIdleWatchdog;
+
     /**
      * SCTP data channel. It's used for receiving some event packets, such as
      * SPEAKER_CHANGE event.
      */
     private DataChannelAdapter dataChannel;
 
+    /**
+     * Whether {@link #dataChannel} has been closed.
+     */
+    private boolean dataChannelClosed = false;
+
     /**
      * Used for handling recorder's event.
      */
@@ -82,10 +133,18 @@ public class StreamRecorderManager
         new ArrayList<TaskEventListener>();
 
     /**
-     * Active endpoints in the meeting currently.
+     * Active endpoints in the meeting currently. If SSRC continuity is
+     * enabled, their SSRCs are the logical ones the recorders see.
      */
     private List<EndpointInfo> endpoints = new ArrayList<EndpointInfo>();
 
+    /**
+     * Active endpoints in the meeting currently, with the SSRCs they have
+     * announced.
+     */
+    private List<EndpointInfo> announcedEndpoints =
+        new ArrayList<EndpointInfo>();
+
     /**
      * The endpoints sync root.
      */
@@ -135,12 +194,20 @@ public class StreamRecorderManager
         createMediaStreams(dtlsControls);
         createDataChannel(dtlsControls.get(MediaType.DATA));
 
+        if (LibJitsi.getConfigurationService().getBoolean(
+            ConfigurationKey.SSRC_CONTINUITY_KEY, false))
+        {
+            createSsrcRewriters();
+        }
+
     }
 
     /**
      * Start recording media streams.
      * 
      * @param formatAndDynamicPTs
+     * @param rtpExtensionIds is the map between <tt>MediaType</tt> and the
+     *            RTP header extensions (URI and ID) negotiated for it.
      * @param connectors is the map between <tt>MediaType</tt> and
      *            <tt>StreamConnector</tt>. <tt>JireconRecorder</tt> needs those
      *            connectors to transfer stream data.
@@ -152,6 +219,7 @@ public class StreamRecorderManager
      */
     public void startRecording(
         Map<MediaType, Map<MediaFormat, Byte>> formatAndDynamicPTs,
+        Map<MediaType, Map<String, Byte>> rtpExtensionIds,
         Map<MediaType, StreamConnector> connectors,
         Map<MediaType, MediaStreamTarget> targets)
         throws Exception
@@ -164,15 +232,23 @@ public class StreamRecorderManager
         eventHandler = new RecorderEventHandlerImpl(outputDir + "/" + filename);
 
         /*
-         * 1. Open sctp data channel, if there is data connector and target.
+         * 1. Prepare audio and video media streams.
          */
-        openDataChannel(connectors.get(MediaType.DATA),
-            targets.get(MediaType.DATA));
+        prepareMediaStreams(formatAndDynamicPTs, rtpExtensionIds, connectors,
+            targets);
 
         /*
-         * 2. Prepare audio and video media streams.
+         * 2. Open sctp data channel, if there is data connector and target.
+         * It's opened right before the media streams start, so that all DTLS
+         * handshakes run at the same time.
          */
-        prepareMediaStreams(formatAndDynamicPTs, connectors, targets);
+        if (LibJitsi.getConfigurationService().getBoolean(
+            ConfigurationKey.DATA_CHANNEL_LOG_KEY, false))
+        {
+            dataChannel.openLog(outputDir + "/" + DATA_CHANNEL_LOG_FILENAME);
+        }
+        openDataChannel(connectors.get(MediaType.DATA),
+            targets.get(MediaType.DATA));
 
         /*
          * 3. Start receiving audio and video streams
@@ -190,6 +266,54 @@ public class StreamRecorderManager
         startRecordingStreams();
     }
 
+    /**
+     * Set the <tt>MediaIdleWatchdog</tt> which watches the media streams.
+     * <p>
+     * <strong>Warning:</strong> It must be set before
+     * {@link #startRecording(Map, Map, Map, Map)}.
+     * 
+     * @param watchdog The <tt>MediaIdleWatchdog</tt>, null to disable it.
+     */
+    public void setMediaIdleWatchdog(MediaIdleWatchdog watchdog)
+    {
+        this.mediaIdleWatchdog = watchdog;
+    }
+
+    /**
+     * Move the media streams to new connectors and targets, for example after
+     * an ICE restart. The streams and recorders are kept, so they go on
+     * writing to the same files.
+     * <p>
+     * <strong>Warning:</strong> The data channel is not moved, its SCTP
+     * association is lost with the old connector.
+     * 
+     * @param connectors is the map between <tt>MediaType</tt> and the new
+     *            <tt>StreamConnector</tt>.
+     * @param targets is the map between <tt>MediaType</tt> and the new
+     *            <tt>MediaStreamTarget</tt>.
+     */
+    public void updateConnectors(Map<MediaType, StreamConnector> connectors,
+        Map<MediaType, MediaStreamTarget> targets)
+    {
+        logger.debug("updateConnectors");
+
+        for (Entry<MediaType, MediaStream> e : streams.entrySet())
+        {
+            final MediaType mediaType = e.getKey();
+            final StreamConnector connector = connectors.get(mediaType);
+            final MediaStreamTarget target = targets.get(mediaType);
+
+            if (null == connector || null == target)
+            {
+                logger.warn("No new connector for " + mediaType);
+                continue;
+            }
+
+            e.getValue().setConnector(connector);
+            e.getValue().setTarget(target);
+        }
+    }
+
     /**
      * Stop the recording.
      */
@@ -210,6 +334,8 @@ public class StreamRecorderManager
      * streams.
      * 
      * @param formatAndPTs
+     * @param rtpExtensionIds is the map between <tt>MediaType</tt> and the
+     *            RTP header extensions (URI and ID) negotiated for it.
      * @param connectors is the map between <tt>MediaType</tt> and
      *            <tt>StreamConnector</tt>. Those connectors are used to
      *            transfer stream data.
@@ -221,6 +347,7 @@ public class StreamRecorderManager
      */
     private void prepareMediaStreams(
         Map<MediaType, Map<MediaFormat, Byte>> formatAndPTs,
+        Map<MediaType, Map<String, Byte>> rtpExtensionIds,
         Map<MediaType, StreamConnector> connectors,
         Map<MediaType, MediaStreamTarget> targets)
         throws Exception
@@ -243,10 +370,202 @@ public class StreamRecorderManager
                     stream.setFormat(f.getKey());
             }
 
+            final Map<String, Byte> extensionIds =
+                rtpExtensionIds.get(mediaType);
+            if (null != extensionIds)
+            {
+                for (Entry<String, Byte> x : extensionIds.entrySet())
+                {
+                    stream.addRTPExtension(x.getValue(), new RTPExtension(
+                        new URI(x.getKey())));
+                }
+            }
+
+            final SsrcContinuityRewriter ssrcRewriter =
+                ssrcRewriters.get(mediaType);
+            if (null != ssrcRewriter)
+                ssrcRewriter.setEventHandler(eventHandler);
+
+            final PauseFilter pauseFilter =
+                new PauseFilter(mediaType, getVp8PayloadType(mediaType,
+                    formatAndPTs.get(mediaType)), eventHandler);
+            pauseFilters.put(mediaType, pauseFilter);
+
+            SilentAudioFilter silentAudioFilter = null;
+            if (MediaType.AUDIO == mediaType && null != extensionIds)
+            {
+                silentAudioFilter = createSilentAudioFilter(
+                    extensionIds.get(RTPExtension.SSRC_AUDIO_LEVEL_URN));
+            }
+
+            /*
+             * The chain reverse transforms from the last engine to the first
+             * one, so the idle watchdog sees every packet, paused packets
+             * are dropped before the SSRCs are rewritten, and the silent
+             * audio filter reports its gaps with the logical SSRCs, which
+             * the recorder and the endpoints know. The BYEs of idle SSRCs
+             * are added after the rewriter, which drops BYEs.
+             */
+            final List<TransformEngine> engines =
+                new ArrayList<TransformEngine>();
+            TransformEngine idleEngine = null;
+            if (null != mediaIdleWatchdog)
+            {
+                idleEngine =
+                    mediaIdleWatchdog.createTransformEngine(mediaType,
+                        ssrcRewriter);
+                engines.add(mediaIdleWatchdog.getByeTransformEngine(mediaType));
+            }
+            if (null != silentAudioFilter)
+                engines.add(silentAudioFilter);
+            if (null != ssrcRewriter)
+                engines.add(ssrcRewriter);
+            engines.add(pauseFilter);
+            if (null != idleEngine)
+                engines.add(idleEngine);
+
+            if (1 == engines.size())
+                stream.setExternalTransformer(engines.get(0));
+            else
+            {
+                stream.setExternalTransformer(new TransformEngineChain(engines
+                    .toArray(new TransformEngine[engines.size()])));
+            }
+
             stream.setRTPTranslator(getTranslator(mediaType));
         }
     }
 
+    /**
+     * Create a <tt>SilentAudioFilter</tt> for the audio <tt>MediaStream</tt>
+     * if it is enabled in the configuration, so that long silent runs are not
+     * recorded.
+     * 
+     * @param audioLevelId The ID of the ssrc-audio-level header extension. It
+     *            could be null if the remote peer doesn't support it.
+     * @return The <tt>SilentAudioFilter</tt>, or null if it's disabled or
+     *         can't work.
+     */
+    private SilentAudioFilter createSilentAudioFilter(Byte audioLevelId)
+    {
+        final ConfigurationService cfg = LibJitsi.getConfigurationService();
+
+        if (!cfg.getBoolean(ConfigurationKey.DROP_SILENT_AUDIO_KEY, false))
+            return null;
+
+        if (null == audioLevelId)
+        {
+            logger.warn("Could not drop silent audio, remote peer doesn't "
+                + "support the ssrc-audio-level header extension.");
+            return null;
+        }
+
+        final int silenceLevel =
+            cfg.getInt(ConfigurationKey.SILENCE_LEVEL_KEY,
+                SilentAudioFilter.MAX_AUDIO_LEVEL);
+        final long minSilenceDuration =
+            cfg.getLong(ConfigurationKey.SILENCE_MIN_DURATION_KEY, 2000);
+
+        return new SilentAudioFilter(audioLevelId, silenceLevel,
+            minSilenceDuration, eventHandler);
+    }
+
+    /**
+     * Create a <tt>SsrcContinuityRewriter</tt> for every <tt>MediaStream</tt>,
+     * so that every endpoint is recorded into one file per media type even if
+     * its SSRCs change.
+     */
+    private void createSsrcRewriters()
+    {
+        for (MediaType mediaType : streams.keySet())
+        {
+            // Opus and VP8, the formats the recorders support.
+            final long clockRate = MediaType.AUDIO == mediaType ? 48000 : 90000;
+
+            ssrcRewriters.put(mediaType, new SsrcContinuityRewriter(mediaType,
+                clockRate));
+        }
+
+        // Endpoints may have been announced before.
+        synchronized (endpointsSyncRoot)
+        {
+            setEndpoints(announcedEndpoints);
+        }
+    }
+
+    /**
+     * Find the payload type of VP8, so that video can be resumed on a
+     * keyframe.
+     * 
+     * @param mediaType The <tt>MediaType</tt> of the stream.
+     * @param formatAndPTs The map between <tt>MediaFormat</tt> and its
+     *            dynamic payload type, could be null.
+     * @return The payload type, or -1 if it's not video or VP8 has not been
+     *         negotiated.
+     */
+    private static int getVp8PayloadType(MediaType mediaType,
+        Map<MediaFormat, Byte> formatAndPTs)
+    {
+        if (MediaType.VIDEO != mediaType || null == formatAndPTs)
+            return -1;
+
+        for (Entry<MediaFormat, Byte> e : formatAndPTs.entrySet())
+        {
+            if ("VP8".equalsIgnoreCase(e.getKey().getEncoding()))
+                return e.getValue();
+        }
+        return -1;
+    }
+
+    /**
+     * Pause recording. The session, the transport and the media streams stay
+     * alive, but the received media is dropped right after decryption.
+     * 
+     * @return <tt>true</tt> if the recording has been paused.
+     */
+    public boolean pauseRecording()
+    {
+        if (!isRecording)
+            return false;
+
+        for (PauseFilter filter : pauseFilters.values())
+            filter.pause();
+        logger.info("Recording paused.");
+        return true;
+    }
+
+    /**
+     * Resume a paused recording. Video starts on the next keyframe of every
+     * SSRC, which is asked for with a PLI.
+     * 
+     * @return <tt>true</tt> if the recording has been resumed.
+     */
+    public boolean resumeRecording()
+    {
+        if (!isRecording)
+            return false;
+
+        for (PauseFilter filter : pauseFilters.values())
+            filter.resume();
+        logger.info("Recording resumed.");
+        return true;
+    }
+
+    /**
+     * Check whether the recording is paused.
+     * 
+     * @return <tt>true</tt> if it's paused.
+     */
+    public boolean isPaused()
+    {
+        for (PauseFilter filter : pauseFilters.values())
+        {
+            if (filter.isPaused())
+                return true;
+        }
+        return false;
+    }
+
     /**
      * The shared synchronizer between the audio and the video recorder.
      */
@@ -373,9 +692,82 @@ public class StreamRecorderManager
         isRecording = true;
     }
 
-    private void closeDataChannel()
+    /**
+     * Close the data channel and shut the SCTP stack down. It does nothing if
+     * it has already been closed.
+     */
+    public void closeDataChannel()
     {
-        dataChannel.disconnect();
+        synchronized (this)
+        {
+            if (dataChannelClosed)
+                return;
+            dataChannelClosed = true;
+        }
+
+        if (null != dataChannel)
+            dataChannel.disconnect();
+    }
+
+    /**
+     * Get the <tt>MediaType</tt>s whose recorders have not been stopped.
+     * 
+     * @return The <tt>MediaType</tt>s.
+     */
+    public Set<MediaType> getRecorderMediaTypes()
+    {
+        synchronized (recorders)
+        {
+            return new HashSet<MediaType>(recorders.keySet());
+        }
+    }
+
+    /**
+     * Stop the recorder of a <tt>MediaType</tt> and finalize its files. It
+     * can be called for several <tt>MediaType</tt>s concurrently.
+     * 
+     * @param mediaType The <tt>MediaType</tt>.
+     */
+    public void stopRecorder(MediaType mediaType)
+    {
+        final Recorder recorder;
+        synchronized (recorders)
+        {
+            recorder = recorders.remove(mediaType);
+        }
+
+        if (null != recorder)
+        {
+            final long start = System.currentTimeMillis();
+            recorder.stop();
+            logger.info("Stopped " + mediaType + " recorder in "
+                + (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+
+    /**
+     * Stop the recorders which are still recording and close the media
+     * streams.
+     */
+    public void closeStreams()
+    {
+        stopRecordingStreams();
+        stopReceivingStreams();
+    }
+
+    /**
+     * Check whether any media stream or recorder is still open.
+     * 
+     * @return <tt>true</tt> if a media stream or a recorder is open.
+     */
+    public boolean hasOpenStreams()
+    {
+        synchronized (recorders)
+        {
+            if (!recorders.isEmpty())
+                return true;
+        }
+        return !streams.isEmpty();
     }
 
     /**
@@ -388,11 +780,17 @@ public class StreamRecorderManager
         if (!isRecording)
             return;
 
-        for (Entry<MediaType, Recorder> e : recorders.entrySet())
+        final List<Recorder> toStop;
+        synchronized (recorders)
         {
-            e.getValue().stop();
+            toStop = new ArrayList<Recorder>(recorders.values());
+            recorders.clear();
+        }
+
+        for (Recorder recorder : toStop)
+        {
+            recorder.stop();
         }
-        recorders.clear();
         isRecording = false;
     }
 
@@ -402,16 +800,16 @@ public class StreamRecorderManager
     private void stopReceivingStreams()
     {
         logger.debug("Stop receiving streams");
-        
-        if (!isReceiving)
-            return;
 
+        // The streams are created in init, close them even if they have
+        // never been started.
         for (Map.Entry<MediaType, MediaStream> e : streams.entrySet())
         {
             e.getValue().close();
         }
 
         streams.clear();
+        pauseFilters.clear();
         isReceiving = false;
     }
 
@@ -608,11 +1006,133 @@ public class StreamRecorderManager
     {
         synchronized (endpointsSyncRoot)
         {
-            endpoints = newEndpoints;
+            announcedEndpoints = newEndpoints;
+            endpoints = getLogicalEndpoints(newEndpoints);
             updateSynchronizers();
         }
     }
 
+    /**
+     * Set an SSRC of an endpoint, without rebuilding the other endpoints.
+     * 
+     * @param endpointId The endpoint id.
+     * @param mediaType The <tt>MediaType</tt> of the SSRC.
+     * @param ssrc The SSRC.
+     */
+    public void addEndpointSsrc(String endpointId, MediaType mediaType,
+        long ssrc)
+    {
+        synchronized (endpointsSyncRoot)
+        {
+            announcedEndpoints =
+                withSsrc(announcedEndpoints, endpointId, mediaType, ssrc);
+
+            final SsrcContinuityRewriter rewriter =
+                ssrcRewriters.get(mediaType);
+            final long logicalSsrc =
+                null == rewriter ? ssrc : rewriter.addSsrc(endpointId, ssrc);
+            endpoints = withSsrc(endpoints, endpointId, mediaType, logicalSsrc);
+
+            final Recorder recorder;
+            synchronized (recorders)
+            {
+                recorder = recorders.get(mediaType);
+            }
+            if (null != recorder)
+                recorder.getSynchronizer().setEndpoint(logicalSsrc, endpointId);
+            logger.info("endpoint: " + endpointId + " " + mediaType + " "
+                + ssrc);
+        }
+    }
+
+    /**
+     * Remove an SSRC of an endpoint, without rebuilding the other endpoints.
+     * 
+     * @param endpointId The endpoint id.
+     * @param mediaType The <tt>MediaType</tt> of the SSRC.
+     */
+    public void removeEndpointSsrc(String endpointId, MediaType mediaType)
+    {
+        synchronized (endpointsSyncRoot)
+        {
+            announcedEndpoints =
+                withSsrc(announcedEndpoints, endpointId, mediaType, -1);
+            endpoints = withSsrc(endpoints, endpointId, mediaType, -1);
+        }
+    }
+
+    /**
+     * Copy a list of endpoints, with one SSRC of an endpoint changed. The
+     * endpoints are not modified, because they could be shared.
+     * 
+     * @param list The endpoints.
+     * @param endpointId The endpoint id, the endpoint is added to the copy if
+     *            it's not in <tt>list</tt>.
+     * @param mediaType The <tt>MediaType</tt> of the SSRC.
+     * @param ssrc The new SSRC, -1 to remove it.
+     * @return The copy.
+     */
+    private static List<EndpointInfo> withSsrc(List<EndpointInfo> list,
+        String endpointId, MediaType mediaType, long ssrc)
+    {
+        final List<EndpointInfo> copy = new ArrayList<EndpointInfo>(list);
+        final EndpointInfo endpoint = new EndpointInfo();
+        endpoint.setId(endpointId);
+
+        int index = copy.size();
+        for (int i = 0; i < copy.size(); i++)
+        {
+            if (endpointId.equals(copy.get(i).getId()))
+            {
+                endpoint.getSsrcs().putAll(copy.get(i).getSsrcs());
+                index = i;
+                break;
+            }
+        }
+
+        if (ssrc < 0)
+            endpoint.removeSsrc(mediaType);
+        else
+            endpoint.setSsrc(mediaType, ssrc);
+
+        if (index < copy.size())
+            copy.set(index, endpoint);
+        else
+            copy.add(endpoint);
+        return copy;
+    }
+
+    /**
+     * Announce the SSRCs of endpoints to the <tt>SsrcContinuityRewriter</tt>s,
+     * and get the endpoints with the logical SSRCs the recorders see.
+     * 
+     * @param announced The endpoints with their announced SSRCs.
+     * @return The endpoints with their logical SSRCs, <tt>announced</tt> if
+     *         SSRC continuity is disabled.
+     */
+    private List<EndpointInfo> getLogicalEndpoints(List<EndpointInfo> announced)
+    {
+        if (ssrcRewriters.isEmpty())
+            return announced;
+
+        final List<EndpointInfo> logical = new ArrayList<EndpointInfo>();
+        for (EndpointInfo endpoint : announced)
+        {
+            final EndpointInfo copy = new EndpointInfo();
+            copy.setId(endpoint.getId());
+
+            for (Entry<MediaType, Long> ssrc : endpoint.getSsrcs().entrySet())
+            {
+                final SsrcContinuityRewriter rewriter =
+                    ssrcRewriters.get(ssrc.getKey());
+                copy.setSsrc(ssrc.getKey(), null == rewriter ? ssrc.getValue()
+                    : rewriter.addSsrc(endpoint.getId(), ssrc.getValue()));
+            }
+            logical.add(copy);
+        }
+        return logical;
+    }
+
     void updateSynchronizers()
     {
         synchronized (endpointsSyncRoot)
@@ -623,7 +1143,11 @@ public class StreamRecorderManager
                 for (Entry<MediaType, Long> ssrc : endpoint.getSsrcs()
                     .entrySet())
                 {
-                    Recorder recorder = recorders.get(ssrc.getKey());
+                    final Recorder recorder;
+                    synchronized (recorders)
+                    {
+                        recorder = recorders.get(ssrc.getKey());
+                    }
                     // During the ICE connectivity establishment and after we've
                     // joined the MUC, there is a high probability that we
                     // process a media type/ssrc for which we *don't* have a
@@ -879,6 +1403,41 @@ public class StreamRecorderManager
         
         private ExecutorService executorService = Executors
             .newSingleThreadExecutor();
+
+        /**
+         * Handles data channel messages off the SCTP thread, so that parsing
+         * and meta data I/O never block SCTP. Its queue is bounded, messages
+         * which don't fit are dropped.
+         */
+        private final ThreadPoolExecutor messageExecutor =
+            new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(DATA_CHANNEL_QUEUE_CAPACITY),
+                new RejectedExecutionHandler()
+                {
+                    @Override
+                    public void rejectedExecution(Runnable r,
+                        ThreadPoolExecutor executor)
+                    {
+                        droppedMessages.incrementAndGet();
+                    }
+                });
+
+        /**
+         * Number of data channel messages dropped because the queue was full.
+         */
+        private final AtomicLong droppedMessages = new AtomicLong();
+
+        /**
+         * Number of data channel messages which waited longer than
+         * {@link StreamRecorderManager#DATA_CHANNEL_LATE_THRESHOLD} in the
+         * queue.
+         */
+        private final AtomicLong lateMessages = new AtomicLong();
+
+        /**
+         * Where every received message is appended, or null if it's disabled.
+         */
+        private volatile DataChannelLog messageLog;
         
         private final Object syncRoot = new Object();
         
@@ -906,20 +1465,42 @@ public class StreamRecorderManager
                 @Override
                 public void run()
                 {
-                    synchronized (syncRoot)
+                    try
                     {
-                        try
+                        if (!streamManager.waitForReady(MAX_WAIT_TIME))
                         {
-                            syncRoot.wait();
+                            logger.error("SCTP association is not ready after "
+                                + MAX_WAIT_TIME + " ms, ignore data channel.");
+                            return;
                         }
-                        catch (InterruptedException e)
+
+                        final long deadline =
+                            System.currentTimeMillis() + MAX_WAIT_TIME;
+                        synchronized (syncRoot)
                         {
-                            // TODO Auto-generated catch block
-                            e.printStackTrace();
+                            while (null == dataChannel)
+                            {
+                                long remaining =
+                                    deadline - System.currentTimeMillis();
+                                if (remaining <= 0)
+                                    break;
+                                syncRoot.wait(remaining);
+                            }
                         }
                     }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
 
-                    logger.info("DataChannel connected (?)");
+                    if (null == dataChannel)
+                    {
+                        logger.error("No data channel was opened by remote peer.");
+                        return;
+                    }
+
+                    logger.info("DataChannel connected.");
                     prepareDataChannel();
                 }
 
@@ -930,15 +1511,40 @@ public class StreamRecorderManager
         {
             streamManager.shutdown();
             dtlsControl.cleanup(null);
+            messageExecutor.shutdown();
+            if (null != messageLog)
+            {
+                messageLog.close();
+                messageLog = null;
+            }
+
+            logger.info("Data channel messages dropped: "
+                + droppedMessages.get() + ", late: " + lateMessages.get());
+        }
+
+        /**
+         * Append every message received from now on to a log file.
+         * 
+         * @param filename Path of the log file.
+         */
+        public void openLog(String filename)
+        {
+            try
+            {
+                messageLog = new DataChannelLog(filename);
+            }
+            catch (IOException e)
+            {
+                logger.error("Failed to open data channel log " + filename, e);
+            }
         }
 
         @Override
         public void onChannelOpened(WebRtcDataStream channel)
         {
-            dataChannel = channel;
-            
             synchronized (syncRoot)
             {
+                dataChannel = channel;
                 syncRoot.notify();
             }
         }
@@ -948,48 +1554,80 @@ public class StreamRecorderManager
             dataChannel.setDataCallback(new WebRtcDataStream.DataCallback()
             {
                 @Override
-                public void onStringData(WebRtcDataStream src, String msg)
+                public void onStringData(WebRtcDataStream src,
+                    final String msg)
                 {
-                    try
-                    {
-                        /*
-                         * Once we got an legal message(SPEAKER_CHANGE event),
-                         * we create a RecorderEvent and let event handler to
-                         * handle it.
-                         */
-                        JSONParser parser = new JSONParser();
-                        JSONObject json = (JSONObject) parser.parse(msg);
-                        String endpointId =
-                            json.get("dominantSpeakerEndpoint").toString();
-
-                        logger.debug("Hey! " + endpointId);
-                        System.out.println("Event: " + msg);
-                        System.out.println("Hey! " + endpointId);
-
-                        RecorderEvent event = new RecorderEvent();
-                        event.setMediaType(MediaType.AUDIO);
-                        event.setType(RecorderEvent.Type.SPEAKER_CHANGED);
-                        event.setEndpointId(endpointId);
-                        event.setAudioSsrc(getEndpointSsrc(endpointId,
-                            MediaType.AUDIO));
-                        event.setInstant(System.currentTimeMillis());
+                    final long receivedAt = System.currentTimeMillis();
+                    final DataChannelLog log = messageLog;
 
-                        eventHandler.handleEvent(event);
-                    }
-                    catch (ParseException e)
+                    if (null != log)
+                        log.append(src.getSid(), msg, receivedAt);
+
+                    messageExecutor.execute(new Runnable()
                     {
-                        e.printStackTrace();
-                    }
+                        @Override
+                        public void run()
+                        {
+                            handleStringData(msg, receivedAt);
+                        }
+                    });
                 }
 
                 @Override
                 public void onBinaryData(WebRtcDataStream src, byte[] data)
                 {
                     /*
-                     * We don't care about binary data.
+                     * We don't handle binary data, only keep it in the log.
                      */
+                    final DataChannelLog log = messageLog;
+
+                    if (null != log)
+                    {
+                        log.append(src.getSid(), data,
+                            System.currentTimeMillis());
+                    }
                 }
             });
         }
+
+        /**
+         * Handle a string message received on the data channel. Once we got a
+         * legal message (SPEAKER_CHANGE event), we create a
+         * <tt>RecorderEvent</tt> and let event handler handle it.
+         * <p>
+         * <strong>Warning:</strong> It runs on {@link #messageExecutor}.
+         * 
+         * @param msg The message.
+         * @param receivedAt When the message was received.
+         */
+        private void handleStringData(String msg, long receivedAt)
+        {
+            if (System.currentTimeMillis() - receivedAt
+                > DATA_CHANNEL_LATE_THRESHOLD)
+            {
+                lateMessages.incrementAndGet();
+            }
+
+            final String endpointId =
+                ColibriMessageParser.getField(msg,
+                    ColibriMessageParser.DOMINANT_SPEAKER_ENDPOINT);
+            if (null == endpointId)
+            {
+                if (logger.isDebugEnabled())
+                    logger.debug("Ignore data channel message: " + msg);
+                return;
+            }
+
+            logger.debug("Dominant speaker changed: " + endpointId);
+
+            RecorderEvent event = new RecorderEvent();
+            event.setMediaType(MediaType.AUDIO);
+            event.setType(RecorderEvent.Type.SPEAKER_CHANGED);
+            event.setEndpointId(endpointId);
+            event.setAudioSsrc(getEndpointSsrc(endpointId, MediaType.AUDIO));
+            event.setInstant(receivedAt);
+
+            eventHandler.handleEvent(event);
+        }
     }
 }
@@ -8,9 +8,11 @@ package org.jitsi.jirecon;
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 import net.java.sip.communicator.impl.protocol.jabber.extensions.*;
 import net.java.sip.communicator.impl.protocol.jabber.extensions.jingle.*;
+import net.java.sip.communicator.impl.protocol.jabber.extensions.jingle.Reason;
 
 import org.jitsi.jirecon.*;
 import org.jitsi.jirecon.TaskEvent.*;
@@ -35,6 +37,7 @@ import org.jivesoftware.smack.*;
 public class Task
     implements JireconEventListener, 
                TaskEventListener,
+               TaskWatchdog.WatchedTask,
                Runnable
 {
     /**
@@ -76,22 +79,117 @@ public class Task
     private ExecutorService taskExecutor;
 
     /**
-     * Indicate whether this task has stopped.
+     * Indicate whether this task has stopped, or is stopping.
      */
-    private boolean isStopped = false;
+    private volatile boolean isStopped = false;
+
+    /**
+     * Claimed by the first call of {@link #stop()}, so that the task is only
+     * torn down once.
+     */
+    private final AtomicBoolean stopClaimed = new AtomicBoolean(false);
+
+    /**
+     * Counted down once the teardown of {@link #stop()} has finished.
+     */
+    private final CountDownLatch stopDone = new CountDownLatch(1);
     
     /**
      * Indicate whether this task has aborted. We need this to identify the
      * situation when method "stop" is called. In case to fire appropriate
      * FINISHED or ABORTED event.
      */
-    private boolean isAborted = false;
+    private volatile boolean isAborted = false;
+
+    /**
+     * Indicate whether this task has been recording, so that there is data
+     * worth keeping if it gets stuck.
+     */
+    private volatile boolean hasRecorded = false;
     
     /**
      * Record the task info. <tt>JireconTaskInfo</tt> can be accessed by outside
      * system.
      */
     private TaskInfo info = new TaskInfo();
+
+    /**
+     * The default maximum number of ICE restarts.
+     */
+    private static final int DEFAULT_MAX_ICE_RESTARTS = 3;
+
+    /**
+     * The maximum number of ICE restarts.
+     */
+    private int maxIceRestarts;
+
+    /**
+     * The number of times ICE has been restarted.
+     */
+    private int iceRestarts = 0;
+
+    /**
+     * How often in milliseconds trickled remote candidates are added while
+     * ICE is running.
+     */
+    private static final int TRICKLE_POLL_INTERVAL = 50;
+
+    /**
+     * The <tt>MediaType</tt>s negotiated in session-accept.
+     */
+    private MediaType[] supportedMediaTypes;
+
+    /**
+     * The default maximum time in milliseconds to wait for the DTLS
+     * handshakes.
+     */
+    static final int DEFAULT_DTLS_TIMEOUT = 10000;
+
+    /**
+     * The maximum time in milliseconds to wait for the DTLS handshakes.
+     */
+    private int dtlsTimeout;
+
+    /**
+     * The default maximum time in milliseconds to wait for a teardown step
+     * other than finalizing a recorder.
+     */
+    static final int DEFAULT_TEARDOWN_TIMEOUT = 5000;
+
+    /**
+     * The maximum time in milliseconds to wait for a teardown step other than
+     * finalizing a recorder.
+     */
+    private int teardownTimeout;
+
+    /**
+     * The default maximum time in milliseconds to wait for a recorder to
+     * finalize its files.
+     */
+    static final int DEFAULT_RECORDER_STOP_TIMEOUT = 30000;
+
+    /**
+     * The maximum time in milliseconds to wait for a recorder to finalize its
+     * files.
+     */
+    private int recorderStopTimeout;
+
+    /**
+     * The default time in milliseconds without any received media after which
+     * the media idle policy is applied. The watchdog is disabled by default,
+     * because a conference where everybody is muted sends no media.
+     */
+    private static final int DEFAULT_MEDIA_IDLE_TIMEOUT = 0;
+
+    /**
+     * Watches the media streams for idle media, null if it's disabled.
+     */
+    private MediaIdleWatchdog mediaIdleWatchdog;
+
+    /**
+     * Why this task finished, null if it was asked to.
+     */
+    private TaskManagerEvent.Reason finishReason;
     
     /**
      * Initialize a <tt>JireconTask</tt>. Specify which Jitsi-meet you want to
@@ -116,6 +214,18 @@ public class Task
         info.setMucJid(mucJid);
         info.setNickname(configuration
             .getString(ConfigurationKey.NICK_KEY));
+        maxIceRestarts =
+            configuration.getInt(ConfigurationKey.MAX_ICE_RESTARTS_KEY,
+                DEFAULT_MAX_ICE_RESTARTS);
+        dtlsTimeout =
+            configuration.getInt(ConfigurationKey.DTLS_TIMEOUT_KEY,
+                DEFAULT_DTLS_TIMEOUT);
+        teardownTimeout =
+            configuration.getInt(ConfigurationKey.TEARDOWN_TIMEOUT_KEY,
+                DEFAULT_TEARDOWN_TIMEOUT);
+        recorderStopTimeout =
+            configuration.getInt(ConfigurationKey.RECORDER_STOP_TIMEOUT_KEY,
+                DEFAULT_RECORDER_STOP_TIMEOUT);
 
         taskExecutor =
             Executors.newSingleThreadExecutor(new HandlerThreadFactory());
@@ -131,6 +241,34 @@ public class Task
 
         recorderMgr = new StreamRecorderManager();
         recorderMgr.addTaskEventListener(this);
+
+        final int mediaIdleTimeout =
+            configuration.getInt(ConfigurationKey.MEDIA_IDLE_TIMEOUT_KEY,
+                DEFAULT_MEDIA_IDLE_TIMEOUT);
+        if (mediaIdleTimeout > 0)
+        {
+            mediaIdleWatchdog =
+                new MediaIdleWatchdog(mediaIdleTimeout,
+                    MediaIdleWatchdog.Policy.parse(configuration
+                        .getString(ConfigurationKey.MEDIA_IDLE_POLICY_KEY),
+                        MediaIdleWatchdog.Policy.END_TASK),
+                    new MediaIdleWatchdog.Listener()
+                    {
+                        @Override
+                        public void mediaIdle(long idleTime)
+                        {
+                            execute(new Runnable()
+                            {
+                                @Override
+                                public void run()
+                                {
+                                    finish(TaskManagerEvent.Reason.MEDIA_IDLE);
+                                }
+                            });
+                        }
+                    });
+            recorderMgr.setMediaIdleWatchdog(mediaIdleWatchdog);
+        }
         recorderMgr.init(savingDir, dtlsControlMgr.getAllDtlsControl());
     }
 
@@ -162,6 +300,27 @@ public class Task
         }
         
         info = new TaskInfo();
+        info.setState(TaskInfo.State.STOPPED);
+        taskExecutor.shutdown();
+    }
+
+    /**
+     * Run something on the task thread, unless the task has been aborted and
+     * its thread shut down.
+     * 
+     * @param runnable What to run.
+     */
+    private void execute(Runnable runnable)
+    {
+        try
+        {
+            taskExecutor.execute(runnable);
+        }
+        catch (RejectedExecutionException e)
+        {
+            logger.warn("Task " + info.getMucJid()
+                + " has been shut down, not running " + runnable);
+        }
     }
 
     /**
@@ -178,27 +337,244 @@ public class Task
 
     /**
      * Stop the <tt>JireconTask</tt>.
+     * <p>
+     * Leaving the session, freeing the ICE transport and closing the data
+     * channel don't wait for the recorders, which finalize their files
+     * concurrently. Every step has a timeout, so this returns even if a step
+     * hangs.
+     * <p>
+     * Only the first call tears the task down, the calls made meanwhile wait
+     * until it has finished.
      */
     public void stop()
     {
-        if (!isStopped)
+        final long timeout = recorderStopTimeout + 2 * teardownTimeout;
+
+        if (!stopClaimed.compareAndSet(false, true))
         {
-            logger.info(this.getClass() + " stop.");
-            transportMgr.free();
-            recorderMgr.stopRecording();
-            jingleSessionMgr.disconnect(Reason.SUCCESS, "OK, gotta go.");
-            isStopped = true;
-            
-            /*
-             * We should only fire TASK_FINISHED event when the task has really
-             * finished, because when task is aborted, this "stop" method will
-             * also be called, and in this scene we shouldn't fire TASK_FINISHED
-             * event.
-             */
-            if (!isAborted)
-                fireEvent(new TaskManagerEvent(info.getMucJid(),
-                    TaskManagerEvent.Type.TASK_FINISED));
+            try
+            {
+                if (!stopDone.await(timeout, TimeUnit.MILLISECONDS))
+                    logger.warn("Gave up waiting for " + info.getMucJid()
+                        + " to stop.");
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+
+        logger.info(this.getClass() + " stop.");
+        isStopped = true;
+        info.setState(TaskInfo.State.STOPPING);
+        if (null != mediaIdleWatchdog)
+            mediaIdleWatchdog.stop();
+        createTeardownPlan().execute(timeout);
+        info.setState(TaskInfo.State.STOPPED);
+        // Listeners may stop this task again from the event.
+        stopDone.countDown();
+
+        /*
+         * We should only fire TASK_FINISHED event when the task has really
+         * finished, because when task is aborted, this "stop" method will
+         * also be called, and in this scene we shouldn't fire TASK_FINISHED
+         * event.
+         */
+        if (!isAborted)
+            fireEvent(new TaskManagerEvent(info.getMucJid(),
+                TaskManagerEvent.Type.TASK_FINISED, finishReason));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public TaskInfo.State getState()
+    {
+        return info.getState();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getStateTime()
+    {
+        return info.getStateTime();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Interrupt the task thread, which may be blocked in {@link #run()}, and
+     * tell the listeners that the task has aborted, so that it is stopped. A
+     * task which has been recording, for example one stuck restarting ICE,
+     * keeps its data.
+     */
+    @Override
+    public void forceAbort()
+    {
+        if (isStopped)
+        {
+            logger.error("Task " + info.getMucJid()
+                + " is stuck stopping, its teardown steps time out.");
+            return;
+        }
+
+        logger.error("Aborting stuck task " + info.getMucJid() + " in state "
+            + info.getState());
+        isAborted = true;
+        taskExecutor.shutdownNow();
+        fireEvent(new TaskManagerEvent(info.getMucJid(),
+            TaskManagerEvent.Type.TASK_ABORTED,
+            TaskManagerEvent.Reason.STUCK));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getUnreleasedResources()
+    {
+        final List<String> resources = new ArrayList<String>();
+
+        if (!transportMgr.isFreed())
+            resources.add("ICE agent");
+        final int ports = transportMgr.getAllocatedPortCount();
+        if (0 != ports)
+            resources.add(ports + " ports");
+        if (recorderMgr.hasOpenStreams())
+            resources.add("media streams");
+        if (!taskExecutor.isTerminated())
+            resources.add("task thread");
+        return resources;
+    }
+
+    /**
+     * Stop the <tt>JireconTask</tt> on its own, and tell the listeners why.
+     * What has been recorded so far is kept.
+     * 
+     * @param reason Why the task finished.
+     */
+    private void finish(TaskManagerEvent.Reason reason)
+    {
+        if (isStopped)
+            return;
+
+        logger.warn("Finishing task " + info.getMucJid() + ": " + reason);
+        finishReason = reason;
+        stop();
+    }
+
+    /**
+     * Pause recording. The session, the transport and the media streams are
+     * kept, only the received media is dropped.
+     * 
+     * @return <tt>true</tt> if the recording has been paused.
+     */
+    public boolean pause()
+    {
+        if (isStopped)
+            return false;
+
+        return recorderMgr.pauseRecording();
+    }
+
+    /**
+     * Resume a paused recording.
+     * 
+     * @return <tt>true</tt> if the recording has been resumed.
+     */
+    public boolean resume()
+    {
+        if (isStopped)
+            return false;
+
+        return recorderMgr.resumeRecording();
+    }
+
+    /**
+     * Check whether this task has been recording, even if it isn't anymore.
+     * 
+     * @return <tt>true</tt> if it has reached {@link TaskInfo.State#RECORDING}.
+     */
+    public boolean hasRecorded()
+    {
+        return hasRecorded;
+    }
+
+    /**
+     * Check whether the recording is paused.
+     * 
+     * @return <tt>true</tt> if it's paused.
+     */
+    public boolean isPaused()
+    {
+        return recorderMgr.isPaused();
+    }
+
+    /**
+     * Create the steps which tear this task down.
+     * 
+     * @return The <tt>TeardownPlan</tt>.
+     */
+    private TeardownPlan createTeardownPlan()
+    {
+        final TeardownPlan plan =
+            new TeardownPlan("Task " + info.getMucJid());
+
+        plan.add("session", teardownTimeout, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                jingleSessionMgr.disconnect(Reason.SUCCESS, "OK, gotta go.");
+            }
+        });
+        plan.add("transport", teardownTimeout, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                transportMgr.free();
+            }
+        });
+        plan.add("datachannel", teardownTimeout, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                recorderMgr.closeDataChannel();
+            }
+        });
+
+        final List<TeardownPlan.Step> recorderSteps =
+            new ArrayList<TeardownPlan.Step>();
+        for (final MediaType mediaType : recorderMgr.getRecorderMediaTypes())
+        {
+            recorderSteps.add(plan.add("recorder-" + mediaType,
+                recorderStopTimeout, new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        recorderMgr.stopRecorder(mediaType);
+                    }
+                }));
         }
+
+        // The streams feed the recorders, close them once they are done.
+        plan.add("streams", teardownTimeout, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                recorderMgr.closeStreams();
+            }
+        }, recorderSteps.toArray(new TeardownPlan.Step[recorderSteps.size()]));
+
+        return plan;
     }
 
     /**
@@ -211,11 +587,13 @@ public class Task
         try
         {
             /* 1. Join MUC. */
+            info.setState(TaskInfo.State.JOINING);
             jingleSessionMgr.connect(info.getMucJid(), info.getNickname());
 
             /* 2. Wait for session-init packet. */
+            info.setState(TaskInfo.State.WAITING_FOR_SESSION);
             JingleIQ initIq = jingleSessionMgr.waitForInitPacket();
-            MediaType[] supportedMediaTypes =
+            supportedMediaTypes =
                 JinglePacketParser.getSupportedMediaTypes(initIq);
 
             /*
@@ -229,11 +607,24 @@ public class Task
                     .getFormatAndDynamicPTs(initIq, mediaType));
             }
 
+            // RTP header extensions, such as ssrc-audio-level.
+            Map<MediaType, Map<String, Byte>> rtpExtensionIds =
+                new HashMap<MediaType, Map<String, Byte>>();
+            for (MediaType mediaType : new MediaType[] {MediaType.AUDIO, MediaType.VIDEO})
+            {
+                rtpExtensionIds.put(mediaType, JinglePacketParser
+                    .getRtpExtensionIds(initIq, mediaType));
+            }
+
             Map<MediaType, Long> localSsrcs = recorderMgr.getLocalSsrcs();
-            
-            // Transport packet extension.
+
+            info.setState(TaskInfo.State.CONNECTING);
+            // Transport packet extension. Use rtcp-mux whenever the remote
+            // peer offers it, so that we need one component less.
             for (MediaType mediaType : supportedMediaTypes)
             {
+                transportMgr.setRtcpmux(mediaType,
+                    JinglePacketParser.isRtcpMux(initIq, mediaType));
                 transportMgr.harvestLocalCandidates(mediaType);
             }
 
@@ -260,8 +651,25 @@ public class Task
             }
 
             /* 3.2 Send session-accept packet. */
+            Set<MediaType> rtcpmuxTypes = new HashSet<MediaType>();
+            for (MediaType mediaType : supportedMediaTypes)
+            {
+                if (MediaType.DATA != mediaType
+                    && transportMgr.isRtcpmux(mediaType))
+                    rtcpmuxTypes.add(mediaType);
+            }
             jingleSessionMgr.sendAcceptPacket(formatAndPTs, localSsrcs, transportPEs,
-                fingerprintPEs);
+                fingerprintPEs, rtcpmuxTypes);
+
+            /*
+             * With trickle ICE session-accept only has the host candidates,
+             * the others are gathered while it's on its way and sent in
+             * transport-info.
+             */
+            final boolean trickling = transportMgr.isTrickling();
+            Future<?> trickle = null;
+            if (trickling)
+                trickle = startCandidateTrickle();
 
             /* 3.3 Wait for session-ack packet. */
             // Go on with ICE, no need to waste an RTT here.
@@ -277,6 +685,11 @@ public class Task
                 remoteTransportPEs.put(mediaType, JinglePacketParser.getTransportPacketExt(initIq, mediaType));
             }
             transportMgr.addRemoteCandidates(remoteTransportPEs);
+            if (trickling)
+            {
+                addTrickledCandidates();
+                waitForCandidateTrickle(trickle);
+            }
 
             /*
              * 4.2 Start establishing ICE connectivity. Warning: that this
@@ -287,6 +700,8 @@ public class Task
             /*
              * 4.3 Wait for ICE to complete (or fail).
              */
+            if (trickling)
+                waitForIceWithTrickle();
             if(!transportMgr.wrapupConnectivityEstablishment())
             {
                 logger.error("Failed to establish an ICE session.");
@@ -320,11 +735,25 @@ public class Task
             }
             
             /* 5.2 Start recording. */
-            recorderMgr.startRecording(formatAndPTs, streamConnectors,
-                mediaStreamTargets);
+            info.setState(TaskInfo.State.SECURING);
+            recorderMgr.startRecording(formatAndPTs, rtpExtensionIds,
+                streamConnectors, mediaStreamTargets);
+
+            /* 5.3 Wait for the DTLS handshakes of the media streams. */
+            if (!waitForDtls(true))
+                throw new Exception("DTLS handshakes have not completed.");
 
+            info.setState(TaskInfo.State.RECORDING);
+            hasRecorded = true;
             fireEvent(new TaskManagerEvent(info.getMucJid(),
                 TaskManagerEvent.Type.TASK_STARTED));
+
+            /* 6. Watch the media path, restart ICE if it's lost. */
+            startConsentMonitor();
+
+            /* 7. Watch for idle media. */
+            if (null != mediaIdleWatchdog)
+                mediaIdleWatchdog.start();
         }
         catch (Exception e)
         {
@@ -334,6 +763,297 @@ public class Task
         }
     }
 
+    /**
+     * Wait for the DTLS handshakes of audio and video, which have been
+     * started together, for at most the DTLS timeout. The data channel
+     * handshake is only reported, the data channel waits for itself.
+     * 
+     * @param withData Whether the data channel handshake is reported, it
+     *            isn't watched after an ICE restart.
+     * @return <tt>true</tt> if all media handshakes have completed.
+     */
+    private boolean waitForDtls(boolean withData)
+    {
+        final DtlsHandshakeMonitor monitor =
+            transportMgr.getDtlsHandshakeMonitor();
+        final List<MediaType> mediaTypes = new ArrayList<MediaType>();
+        boolean hasData = false;
+
+        for (MediaType mediaType : supportedMediaTypes)
+        {
+            if (MediaType.DATA == mediaType)
+                hasData = withData;
+            else
+                mediaTypes.add(mediaType);
+        }
+
+        final Set<MediaType> incomplete =
+            monitor.waitForAll(mediaTypes, dtlsTimeout);
+        if (hasData)
+            monitor.waitForAll(Collections.singleton(MediaType.DATA), 0);
+
+        if (!incomplete.isEmpty())
+        {
+            logger.error("DTLS handshakes of " + incomplete
+                + " have not completed in " + dtlsTimeout + " ms.");
+        }
+        return incomplete.isEmpty();
+    }
+
+    /**
+     * Start trickling the local candidates which have not been sent in
+     * session-accept, every batch is sent in a Jingle transport-info.
+     * 
+     * @return The <tt>Future</tt> of the trickle.
+     */
+    private Future<?> startCandidateTrickle()
+    {
+        final Map<MediaType, AbstractPacketExtension> noFingerprints =
+            Collections.emptyMap();
+
+        return transportMgr.startCandidateTrickle(
+            new IceUdpTransportManager.TrickleListener()
+            {
+                @Override
+                public void candidatesGathered(
+                    Map<MediaType, IceUdpTransportPacketExtension> transportPEs)
+                {
+                    if (isStopped)
+                        return;
+
+                    jingleSessionMgr.sendTransportInfo(
+                        new HashMap<MediaType, AbstractPacketExtension>(
+                            transportPEs), noFingerprints);
+                }
+            });
+    }
+
+    /**
+     * Wait until all local candidates have been trickled, so that ice4j pairs
+     * them when connectivity establishment starts. Remote candidates which
+     * arrive meanwhile are queued in {@link JingleSessionManager}.
+     * 
+     * @param trickle The <tt>Future</tt> of the trickle.
+     */
+    private void waitForCandidateTrickle(Future<?> trickle)
+    {
+        try
+        {
+            trickle.get(transportMgr.getIceTimeout(), TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e)
+        {
+            logger.warn("Local candidates are still being trickled, start "
+                + "ICE without them.");
+        }
+        catch (ExecutionException e)
+        {
+            logger.warn("Failed to trickle local candidates: "
+                + e.getCause());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Add the remote candidates of the Jingle transport-info packets which
+     * have arrived, to the running agent if ICE has started.
+     */
+    private void addTrickledCandidates()
+    {
+        JingleIQ jiq;
+        while (null != (jiq = jingleSessionMgr.pollTransportInfo()))
+        {
+            Map<MediaType, IceUdpTransportPacketExtension> remoteTransportPEs =
+                new HashMap<MediaType, IceUdpTransportPacketExtension>();
+            for (MediaType mediaType : supportedMediaTypes)
+            {
+                IceUdpTransportPacketExtension transportPE =
+                    JinglePacketParser.getTransportPacketExt(jiq, mediaType);
+                if (null != transportPE)
+                    remoteTransportPEs.put(mediaType, transportPE);
+            }
+            transportMgr.addRemoteCandidates(remoteTransportPEs);
+        }
+    }
+
+    /**
+     * Wait for ICE to complete (or fail), and meanwhile add the remote
+     * candidates which the remote peer trickles.
+     */
+    private void waitForIceWithTrickle()
+    {
+        final IceCompletion iceCompletion = transportMgr.getIceCompletion();
+
+        while (!iceCompletion.isDone() && !isStopped)
+        {
+            addTrickledCandidates();
+            try
+            {
+                iceCompletion.get(TRICKLE_POLL_INTERVAL,
+                    TimeUnit.MILLISECONDS);
+            }
+            catch (TimeoutException e)
+            {
+                // Not done yet, look for new candidates.
+            }
+            catch (CancellationException e)
+            {
+                return;
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Start watching the consent of the selected ICE pairs. Once the media
+     * path is lost, ICE is restarted on the task thread.
+     */
+    private void startConsentMonitor()
+    {
+        transportMgr.startConsentMonitor(
+            new IceUdpTransportManager.MediaPathListener()
+            {
+                @Override
+                public void mediaPathLost(long consentAge)
+                {
+                    execute(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            restartIce();
+                        }
+                    });
+                }
+            });
+    }
+
+    /**
+     * Restart ICE after the media path has been lost: offer new credentials
+     * and candidates in a Jingle transport-info, wait for the remote peer's
+     * transport-info, establish connectivity again and move the media streams
+     * to the new sockets. The recorders keep writing to the same files.
+     * <p>
+     * If it fails, or if there have been too many restarts, the task is
+     * stopped and what has been recorded so far is kept. The data channel is
+     * closed, it is not restarted.
+     */
+    private void restartIce()
+    {
+        if (isStopped)
+            return;
+
+        if (iceRestarts >= maxIceRestarts)
+        {
+            logger.error("Media path lost again after " + iceRestarts
+                + " ICE restarts, stop recording " + info.getMucJid());
+            stop();
+            return;
+        }
+        iceRestarts++;
+        logger.warn("Media path lost, restarting ICE (" + iceRestarts + "/"
+            + maxIceRestarts + ") for " + info.getMucJid());
+
+        /*
+         * The SCTP association can't be moved, so only restart media. The
+         * restart frees the socket of the data channel, so close it first
+         * instead of letting it die silently.
+         */
+        List<MediaType> mediaTypes = new ArrayList<MediaType>();
+        for (MediaType mediaType : supportedMediaTypes)
+        {
+            if (MediaType.DATA == mediaType)
+            {
+                logger.warn("Closing the data channel of " + info.getMucJid()
+                    + ", it can't survive an ICE restart.");
+                recorderMgr.closeDataChannel();
+                continue;
+            }
+            mediaTypes.add(mediaType);
+        }
+
+        try
+        {
+            /* 1. New agent, new local candidates. */
+            info.setState(TaskInfo.State.CONNECTING);
+            transportMgr.restart();
+            Map<MediaType, AbstractPacketExtension> transportPEs =
+                new HashMap<MediaType, AbstractPacketExtension>();
+            Map<MediaType, AbstractPacketExtension> fingerprintPEs =
+                new HashMap<MediaType, AbstractPacketExtension>();
+            for (MediaType mediaType : mediaTypes)
+            {
+                transportMgr.harvestLocalCandidates(mediaType);
+                transportPEs.put(mediaType,
+                    transportMgr.createTransportPacketExt(mediaType));
+                fingerprintPEs.put(mediaType,
+                    dtlsControlMgr.createFingerprintPacketExt(mediaType));
+            }
+
+            /* 2. Exchange transport-info. */
+            jingleSessionMgr.clearTransportInfos();
+            jingleSessionMgr.sendTransportInfo(transportPEs, fingerprintPEs);
+            JingleIQ remoteIq =
+                jingleSessionMgr.waitForTransportInfo(transportMgr
+                    .getIceTimeout());
+            if (null == remoteIq)
+                throw new Exception("No transport-info from remote peer.");
+
+            Map<MediaType, IceUdpTransportPacketExtension> remoteTransportPEs =
+                new HashMap<MediaType, IceUdpTransportPacketExtension>();
+            for (MediaType mediaType : mediaTypes)
+            {
+                IceUdpTransportPacketExtension transportPE =
+                    JinglePacketParser.getTransportPacketExt(remoteIq,
+                        mediaType);
+                if (null == transportPE)
+                    throw new Exception("No " + mediaType
+                        + " transport in transport-info.");
+                remoteTransportPEs.put(mediaType, transportPE);
+            }
+
+            /* 3. Establish connectivity again. */
+            transportMgr.addRemoteCandidates(remoteTransportPEs);
+            transportMgr.startConnectivityEstablishment();
+            if (!transportMgr.wrapupConnectivityEstablishment())
+                throw new Exception("ICE restart failed.");
+
+            /* 4. Move the media streams to the new sockets. */
+            Map<MediaType, StreamConnector> streamConnectors =
+                new HashMap<MediaType, StreamConnector>();
+            Map<MediaType, MediaStreamTarget> mediaStreamTargets =
+                new HashMap<MediaType, MediaStreamTarget>();
+            for (MediaType mediaType : mediaTypes)
+            {
+                streamConnectors.put(mediaType,
+                    transportMgr.getStreamConnector(mediaType));
+                mediaStreamTargets.put(mediaType,
+                    transportMgr.getStreamTarget(mediaType));
+            }
+            info.setState(TaskInfo.State.SECURING);
+            recorderMgr.updateConnectors(streamConnectors, mediaStreamTargets);
+            if (!waitForDtls(false))
+                throw new Exception("DTLS handshakes have not completed.");
+
+            info.setState(TaskInfo.State.RECORDING);
+            logger.info("ICE restarted (" + info.getMucJid() + ")");
+            startConsentMonitor();
+        }
+        catch (Exception e)
+        {
+            logger.error("Failed to restart ICE for " + info.getMucJid()
+                + ": " + e.getMessage());
+            stop();
+        }
+    }
+
     /**
      * Register an event listener to this <tt>JireconTask</tt>.
      * 
@@ -364,6 +1084,19 @@ public class Task
         return info;
     }
 
+    /**
+     * Get the local UDP ports the task receives media on.
+     * 
+     * @return The local ports.
+     */
+    public List<Integer> getLocalPorts()
+    {
+        // The task may not have been initialized yet.
+        if (null == transportMgr)
+            return new ArrayList<Integer>();
+        return transportMgr.getLocalPorts();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -391,6 +1124,18 @@ public class Task
             recorderMgr.setEndpoints(endpoints);
         }
 
+        else if (event.getType() == TaskEvent.Type.SOURCE_ADDED)
+        {
+            recorderMgr.addEndpointSsrc(event.getEndpointId(),
+                event.getMediaType(), event.getSsrc());
+        }
+
+        else if (event.getType() == TaskEvent.Type.SOURCE_REMOVED)
+        {
+            recorderMgr.removeEndpointSsrc(event.getEndpointId(),
+                event.getMediaType());
+        }
+
         else if (event.getType() == TaskEvent.Type.PARTICIPANT_LEFT)
         {
             List<EndpointInfo> endpoints =
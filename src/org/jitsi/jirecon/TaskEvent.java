@@ -5,6 +5,8 @@
  */
 package org.jitsi.jirecon;
 
+import org.jitsi.service.neomedia.*;
+
 /**
  * Task event which can be used by <tt>JireconSession</tt> and
  * <tt>JireconRecorder</tt> to notify outside system, such as
@@ -20,6 +22,22 @@ public class TaskEvent
      */
     private Type type;
 
+    /**
+     * The endpoint whose source has changed, null for other events.
+     */
+    private String endpointId;
+
+    /**
+     * The <tt>MediaType</tt> of the source which has changed, null for other
+     * events.
+     */
+    private MediaType mediaType;
+
+    /**
+     * The SSRC of the source which has changed, -1 for other events.
+     */
+    private long ssrc = -1;
+
     /**
      * Construction method.
      * 
@@ -30,6 +48,24 @@ public class TaskEvent
         this.type = type;
     }
 
+    /**
+     * Construction method of a {@link Type#SOURCE_ADDED} or
+     * {@link Type#SOURCE_REMOVED} event.
+     * 
+     * @param type
+     * @param endpointId The endpoint whose source has changed.
+     * @param mediaType The <tt>MediaType</tt> of the source.
+     * @param ssrc The SSRC of the source.
+     */
+    public TaskEvent(Type type, String endpointId, MediaType mediaType,
+        long ssrc)
+    {
+        this.type = type;
+        this.endpointId = endpointId;
+        this.mediaType = mediaType;
+        this.ssrc = ssrc;
+    }
+
     /**
      * Get event type.
      * 
@@ -40,6 +76,36 @@ public class TaskEvent
         return type;
     }
 
+    /**
+     * Get the endpoint whose source has changed.
+     * 
+     * @return The endpoint id, or null for other events.
+     */
+    public String getEndpointId()
+    {
+        return endpointId;
+    }
+
+    /**
+     * Get the <tt>MediaType</tt> of the source which has changed.
+     * 
+     * @return The <tt>MediaType</tt>, or null for other events.
+     */
+    public MediaType getMediaType()
+    {
+        return mediaType;
+    }
+
+    /**
+     * Get the SSRC of the source which has changed.
+     * 
+     * @return The SSRC, or -1 for other events.
+     */
+    public long getSsrc()
+    {
+        return ssrc;
+    }
+
     /**
      * <tt>JireconTaskEvent</tt> type.
      * 
@@ -58,6 +124,16 @@ public class TaskEvent
          */
         PARTICIPANT_LEFT("PARTICIPANT_LEFT"),
 
+        /**
+         * A participant has added a source.
+         */
+        SOURCE_ADDED("SOURCE_ADDED"),
+
+        /**
+         * A participant has removed a source.
+         */
+        SOURCE_REMOVED("SOURCE_REMOVED"),
+
         /**
          * Recorder has broken for some reasons.
          */
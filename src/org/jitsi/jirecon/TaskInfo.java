@@ -31,6 +31,16 @@ public class TaskInfo
      */
     private String outputDir;
 
+    /**
+     * The lifecycle state of JireconTask.
+     */
+    private volatile State state = State.INITIALIZED;
+
+    /**
+     * Since when JireconTask has been in {@link #state}.
+     */
+    private volatile long stateTime = System.currentTimeMillis();
+
     /**
      * Set Jitsi-meeting jid.
      * 
@@ -90,4 +100,84 @@ public class TaskInfo
     {
         return outputDir;
     }
+
+    /**
+     * Set the lifecycle state, and remember since when it's been in it.
+     * 
+     * @param state
+     */
+    public void setState(State state)
+    {
+        this.stateTime = System.currentTimeMillis();
+        this.state = state;
+    }
+
+    /**
+     * Get the lifecycle state.
+     * 
+     * @return
+     */
+    public State getState()
+    {
+        return state;
+    }
+
+    /**
+     * Get since when JireconTask has been in its lifecycle state.
+     * 
+     * @return The time in milliseconds since the epoch.
+     */
+    public long getStateTime()
+    {
+        return stateTime;
+    }
+
+    /**
+     * Lifecycle state of a JireconTask.
+     * 
+     * @author lishunyang
+     * 
+     */
+    public enum State
+    {
+        /**
+         * Initialized, not running yet.
+         */
+        INITIALIZED,
+
+        /**
+         * Joining the MUC.
+         */
+        JOINING,
+
+        /**
+         * Waiting for the session-initiate of the focus.
+         */
+        WAITING_FOR_SESSION,
+
+        /**
+         * Establishing ICE connectivity.
+         */
+        CONNECTING,
+
+        /**
+         * Waiting for the DTLS handshakes.
+         */
+        SECURING,
+
+        /**
+         * Recording.
+         */
+        RECORDING,
+
+        /**
+         * Releasing its resources.
+         */
+        STOPPING,
+
+        /**
+         * Stopped.
+         */
+        STOPPED
+    }
 }
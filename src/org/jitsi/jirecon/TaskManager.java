@@ -7,10 +7,14 @@ package org.jitsi.jirecon;
 
 import java.text.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import net.java.sip.communicator.impl.protocol.jabber.*;
+import net.java.sip.communicator.impl.protocol.jabber.extensions.*;
+import net.java.sip.communicator.impl.protocol.jabber.extensions.colibri.*;
 import net.java.sip.communicator.impl.protocol.jabber.extensions.jingle.*;
 import org.jitsi.jirecon.TaskManagerEvent.*;
+import org.jitsi.jirecon.datachannel.*;
 import org.jitsi.jirecon.protocol.extension.*;
 import org.jitsi.jirecon.utils.*;
 import org.jitsi.service.configuration.*;
@@ -64,6 +68,52 @@ public class TaskManager
      */
     private boolean isInitialized = false;
 
+    /**
+     * The default interval in milliseconds between two collections of the
+     * UDP drop counters.
+     */
+    private static final int DEFAULT_UDP_STATS_INTERVAL = 10000;
+
+    /**
+     * Collects the UDP drop counters periodically, null if it's disabled.
+     */
+    private ScheduledExecutorService statsExecutor;
+
+    /**
+     * The SRTP cipher benchmark run at initialization, null if it has not
+     * been run.
+     */
+    private SrtpCipherBenchmark srtpCipherBenchmark;
+
+    /**
+     * The default interval in milliseconds between two checks of the task
+     * watchdog.
+     */
+    private static final int DEFAULT_TASK_WATCHDOG_INTERVAL = 5000;
+
+    /**
+     * The default time in milliseconds a stopped task has to release its
+     * resources.
+     */
+    private static final int DEFAULT_TASK_RELEASE_TIMEOUT = 10000;
+
+    /**
+     * Tracks the lifecycle state of the tasks and aborts the stuck ones.
+     * Created by {@link #init(String)}.
+     */
+    private TaskWatchdog taskWatchdog;
+
+    /**
+     * Runs the checks of {@link #taskWatchdog}, null if they are disabled.
+     */
+    private ScheduledExecutorService watchdogExecutor;
+
+    /**
+     * Runs the aborts of the tasks which {@link #taskWatchdog} has found
+     * stuck.
+     */
+    private ExecutorService abortExecutor;
+
     /**
      * Initialize <tt>Jirecon</tt>.
      * <p>
@@ -131,9 +181,222 @@ public class TaskManager
             throw e;
         }
         
+        if (cfg.getBoolean(ConfigurationKey.SRTP_BENCHMARK_KEY, true))
+            selectSrtpCipher(cfg);
+
+        // Start generating DTLS certificates before the first task.
+        DtlsControlPool.getInstance();
+
+        startUdpStats(cfg.getInt(ConfigurationKey.UDP_STATS_INTERVAL_KEY,
+            DEFAULT_UDP_STATS_INTERVAL));
+
+        startTaskWatchdog(cfg);
+
         isInitialized = true;
     }
 
+    /**
+     * Time the AES implementations and make libjitsi use the fastest one,
+     * unless one has been configured.
+     * 
+     * @param cfg The <tt>ConfigurationService</tt>.
+     */
+    private void selectSrtpCipher(ConfigurationService cfg)
+    {
+        final String configured =
+            cfg.getString(SrtpCipherBenchmark.AES_FACTORY_PNAME);
+
+        if (!StringUtils.isNullOrEmpty(configured))
+        {
+            logger.info("Using configured AES factory: " + configured);
+            return;
+        }
+
+        final SrtpCipherBenchmark benchmark = new SrtpCipherBenchmark();
+        benchmark.run();
+
+        final String className = benchmark.getAesFactoryClassName();
+        if (null != className)
+        {
+            cfg.setProperty(SrtpCipherBenchmark.AES_FACTORY_PNAME, className);
+            logger.info("Using AES factory: " + className);
+        }
+        srtpCipherBenchmark = benchmark;
+    }
+
+    /**
+     * Get the SRTP cipher benchmark run at initialization.
+     * 
+     * @return The benchmark, or null if it has not been run.
+     */
+    public SrtpCipherBenchmark getSrtpCipherBenchmark()
+    {
+        return srtpCipherBenchmark;
+    }
+
+    /**
+     * Start collecting the UDP drop counters periodically.
+     * 
+     * @param interval The interval in milliseconds, 0 to disable it.
+     */
+    private void startUdpStats(int interval)
+    {
+        if (interval <= 0)
+            return;
+
+        final UdpStats udpStats = new UdpStats();
+        final ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "UdpStats");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        executor.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                Map<String, List<Integer>> taskPorts =
+                    new HashMap<String, List<Integer>>();
+                synchronized (tasks)
+                {
+                    for (Map.Entry<String, Task> e : tasks.entrySet())
+                        taskPorts.put(e.getKey(), e.getValue().getLocalPorts());
+                }
+
+                // Give up on platforms without the counters.
+                if (!udpStats.collect(taskPorts))
+                    executor.shutdown();
+            }
+        }, 0, interval, TimeUnit.MILLISECONDS);
+        statsExecutor = executor;
+    }
+
+    /**
+     * Create the task watchdog with the configured deadlines, and start
+     * checking the tasks periodically.
+     * 
+     * @param cfg The <tt>ConfigurationService</tt>.
+     */
+    private void startTaskWatchdog(ConfigurationService cfg)
+    {
+        final long iceTimeout =
+            cfg.getLong(ConfigurationKey.ICE_TIMEOUT_KEY,
+                IceUdpTransportManager.DEFAULT_ICE_TIMEOUT);
+        final long dtlsTimeout =
+            cfg.getLong(ConfigurationKey.DTLS_TIMEOUT_KEY,
+                Task.DEFAULT_DTLS_TIMEOUT);
+        // Task.stop() waits for the recorders, then for two teardown steps.
+        final long stopTimeout =
+            cfg.getLong(ConfigurationKey.RECORDER_STOP_TIMEOUT_KEY,
+                Task.DEFAULT_RECORDER_STOP_TIMEOUT)
+                + 2 * cfg.getLong(ConfigurationKey.TEARDOWN_TIMEOUT_KEY,
+                    Task.DEFAULT_TEARDOWN_TIMEOUT);
+        final Map<TaskInfo.State, Long> deadlines =
+            TaskWatchdog.getDefaultDeadlines(iceTimeout, dtlsTimeout,
+                stopTimeout);
+
+        for (TaskInfo.State state : TaskInfo.State.values())
+        {
+            final String pname =
+                ConfigurationKey.TASK_STATE_TIMEOUT_PREFIX + state;
+            final Long deadline = deadlines.get(state);
+            final long configured =
+                cfg.getLong(pname, null == deadline ? 0 : deadline);
+
+            // 0 means the state may last forever.
+            if (configured > 0)
+                deadlines.put(state, configured);
+            else
+                deadlines.remove(state);
+        }
+        abortExecutor = Executors.newCachedThreadPool(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "TaskAbort");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        taskWatchdog =
+            new TaskWatchdog(deadlines, cfg.getInt(
+                ConfigurationKey.TASK_RELEASE_TIMEOUT_KEY,
+                DEFAULT_TASK_RELEASE_TIMEOUT), abortExecutor);
+
+        final int interval =
+            cfg.getInt(ConfigurationKey.TASK_WATCHDOG_INTERVAL_KEY,
+                DEFAULT_TASK_WATCHDOG_INTERVAL);
+        if (interval <= 0)
+            return;
+
+        final TaskWatchdog watchdog = taskWatchdog;
+        watchdogExecutor =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "TaskWatchdog");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        watchdogExecutor.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    watchdog.check(System.currentTimeMillis());
+                }
+                catch (Exception e)
+                {
+                    // Keep checking, an exception would cancel the schedule.
+                    logger.error("Task watchdog check failed.", e);
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get the number of running tasks in every lifecycle state.
+     * 
+     * @return Map between <tt>TaskInfo.State</tt> and number of tasks.
+     */
+    public Map<TaskInfo.State, Integer> getTaskStateCounts()
+    {
+        return taskWatchdog.getStateCounts();
+    }
+
+    /**
+     * Get the number of threads which receive for the data channels of all
+     * tasks. Every open data channel holds one of them.
+     * 
+     * @return The number of data channel receive threads.
+     */
+    public int getDataChannelReceiveThreads()
+    {
+        return IceUdpDtlsLink.getReceiveThreadCount();
+    }
+
+    /**
+     * Get the task watchdog, which also counts the aborted and leaking tasks.
+     * 
+     * @return The <tt>TaskWatchdog</tt>.
+     */
+    public TaskWatchdog getTaskWatchdog()
+    {
+        return taskWatchdog;
+    }
+
     /**
      * Uninitialize <tt>Jirecon</tt>, prepare for GC.
      * <p>
@@ -153,6 +416,23 @@ public class TaskManager
             return;
         }
 
+        if (null != statsExecutor)
+        {
+            statsExecutor.shutdownNow();
+            statsExecutor = null;
+        }
+        if (null != watchdogExecutor)
+        {
+            watchdogExecutor.shutdownNow();
+            watchdogExecutor = null;
+        }
+        if (null != abortExecutor)
+        {
+            // The running aborts stop their tasks.
+            abortExecutor.shutdown();
+            abortExecutor = null;
+        }
+
         synchronized (tasks)
         {
             for (Task task : tasks.values())
@@ -161,6 +441,7 @@ public class TaskManager
             }
         }
         closeConnection();
+        SctpRuntime.shutdown();
         LibJitsi.stop();
     }
 
@@ -199,6 +480,7 @@ public class TaskManager
 
         task.addEventListener(this);
         task.init(mucJid, connection, outputDir);
+        taskWatchdog.watch(task, mucJid);
 
         task.start();
         return true;
@@ -231,10 +513,99 @@ public class TaskManager
         {
             task.stop();
             task.uninit(keepData);
+            taskWatchdog.released(task, System.currentTimeMillis());
         }
         return true;
     }
 
+    /**
+     * Pauses the recording task of a specified Jitsi Meet conference, without
+     * leaving the conference.
+     * 
+     * @param mucJid the MUC JID of the Jitsi Meet conference to pause.
+     * @return <tt>true</tt> if the task was paused successfully and
+     * <tt>false</tt> otherwise.
+     */
+    public boolean pauseJireconTask(String mucJid)
+    {
+        logger.info("Pausing task: " + mucJid);
+
+        Task task;
+        synchronized (tasks)
+        {
+            task = tasks.get(mucJid);
+        }
+
+        if (task == null)
+        {
+            logger.info("Failed to pause non-existent task: " + mucJid);
+            return false;
+        }
+        return task.pause();
+    }
+
+    /**
+     * Resumes the paused recording task of a specified Jitsi Meet conference.
+     * 
+     * @param mucJid the MUC JID of the Jitsi Meet conference to resume.
+     * @return <tt>true</tt> if the task was resumed successfully and
+     * <tt>false</tt> otherwise.
+     */
+    public boolean resumeJireconTask(String mucJid)
+    {
+        logger.info("Resuming task: " + mucJid);
+
+        Task task;
+        synchronized (tasks)
+        {
+            task = tasks.get(mucJid);
+        }
+
+        if (task == null)
+        {
+            logger.info("Failed to resume non-existent task: " + mucJid);
+            return false;
+        }
+        return task.resume();
+    }
+
+    /**
+     * Get the lifecycle state of the recording task of a specified Jitsi Meet
+     * conference.
+     * 
+     * @param mucJid the MUC JID of the Jitsi Meet conference.
+     * @return The <tt>TaskInfo.State</tt> of the task, or null if there is no
+     *         such task.
+     */
+    public TaskInfo.State getJireconTaskState(String mucJid)
+    {
+        Task task;
+        synchronized (tasks)
+        {
+            task = tasks.get(mucJid);
+        }
+
+        return null == task ? null : task.getState();
+    }
+
+    /**
+     * Check whether the recording task of a specified Jitsi Meet conference
+     * is paused.
+     * 
+     * @param mucJid the MUC JID of the Jitsi Meet conference.
+     * @return <tt>true</tt> if the task exists and is paused.
+     */
+    public boolean isJireconTaskPaused(String mucJid)
+    {
+        Task task;
+        synchronized (tasks)
+        {
+            task = tasks.get(mucJid);
+        }
+
+        return null != task && task.isPaused();
+    }
+
     /**
      * Creates {@link #connection} and connects to the XMPP server.
      * 
@@ -321,6 +692,23 @@ public class TaskManager
                 SctpMapExtension.ELEMENT_NAME,
                 SctpMapExtension.NAMESPACE,
                 new SctpMapExtensionProvider());
+
+        // The sources of Jingle source-add and source-remove packets.
+        providerManager.addExtensionProvider(
+                SourcePacketExtension.ELEMENT_NAME,
+                SourcePacketExtension.NAMESPACE,
+                new DefaultPacketExtensionProvider<SourcePacketExtension>(
+                    SourcePacketExtension.class));
+        providerManager.addExtensionProvider(
+                ParameterPacketExtension.ELEMENT_NAME,
+                SourcePacketExtension.NAMESPACE,
+                new DefaultPacketExtensionProvider<ParameterPacketExtension>(
+                    ParameterPacketExtension.class));
+        providerManager.addExtensionProvider(
+                SsrcInfoPacketExtension.ELEMENT_NAME,
+                SsrcInfoPacketExtension.NAMESPACE,
+                new DefaultPacketExtensionProvider<SsrcInfoPacketExtension>(
+                    SsrcInfoPacketExtension.class));
     }
 
     /**
@@ -358,14 +746,15 @@ public class TaskManager
         switch (evt.getType())
         {
         case TASK_ABORTED:
-            stopJireconTask(mucJid, false);
+            stopJireconTask(mucJid, isRecordingStuck(evt));
             logger.info("Recording task of MUC " + mucJid + " failed.");
             fireEvent(evt);
             break;
         case TASK_FINISED:
             stopJireconTask(mucJid, true);
             logger.info("Recording task of MUC: " + mucJid
-                + " finished successfully.");
+                + " finished successfully"
+                + (null == evt.getReason() ? "." : ", " + evt.getReason()));
             fireEvent(evt);
             break;
         case TASK_STARTED:
@@ -377,6 +766,27 @@ public class TaskManager
         }
     }
 
+    /**
+     * Check whether a TASK_ABORTED event comes from a task which has been
+     * aborted by {@link #taskWatchdog} after it has been recording, so that
+     * its data is kept.
+     * 
+     * @param evt the TASK_ABORTED event.
+     * @return <tt>true</tt> if the data of the task should be kept.
+     */
+    private boolean isRecordingStuck(TaskManagerEvent evt)
+    {
+        if (TaskManagerEvent.Reason.STUCK != evt.getReason())
+            return false;
+
+        Task task;
+        synchronized (tasks)
+        {
+            task = tasks.get(evt.getMucJid());
+        }
+        return null != task && task.hasRecorded();
+    }
+
     /**
      * Notifies the registered <tt>JireconEventListener</tt> of a
      * <tt>TaskManagerEvent</tt>.
@@ -26,6 +26,11 @@ public class TaskManagerEvent
      */
     private String mucJid;
 
+    /**
+     * Why the task finished or aborted, null if it's not specified.
+     */
+    private Reason reason;
+
     /**
      * Construction method.
      * 
@@ -33,9 +38,22 @@ public class TaskManagerEvent
      * @param type indicates the event type.
      */
     public TaskManagerEvent(String mucJid, Type type)
+    {
+        this(mucJid, type, null);
+    }
+
+    /**
+     * Construction method.
+     * 
+     * @param mucJid indicates which task this event comes from.
+     * @param type indicates the event type.
+     * @param reason why the task finished or aborted, could be null.
+     */
+    public TaskManagerEvent(String mucJid, Type type, Reason reason)
     {
         this.mucJid = mucJid;
         this.type = type;
+        this.reason = reason;
     }
 
     /**
@@ -58,6 +76,16 @@ public class TaskManagerEvent
         return mucJid;
     }
 
+    /**
+     * Get why the task finished or aborted.
+     * 
+     * @return The reason, or null if it's not specified.
+     */
+    public Reason getReason()
+    {
+        return reason;
+    }
+
     /**
      * <tt>JireconEvent</tt> type.
      * 
@@ -95,6 +123,38 @@ public class TaskManagerEvent
         }
     }
     
+    /**
+     * Why a task finished or aborted, when it's not because it was asked to.
+     * 
+     * @author lishunyang
+     * 
+     */
+    public enum Reason
+    {
+        /**
+         * No media has been received for the media idle timeout.
+         */
+        MEDIA_IDLE("MEDIA_IDLE"),
+
+        /**
+         * The task has been in a lifecycle state for longer than its deadline.
+         */
+        STUCK("STUCK");
+
+        private String name;
+
+        private Reason(String name)
+        {
+            this.name = name;
+        }
+
+        @Override
+        public String toString()
+        {
+            return name;
+        }
+    }
+
     /**
      * Listener interface of <tt>JireconEvent</tt>.
      * 
@@ -0,0 +1,323 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.jitsi.jirecon.TaskInfo.State;
+import org.jitsi.util.*;
+
+/**
+ * Keeps track of the lifecycle state of all tasks, aborts the tasks which
+ * have been in a state for longer than its deadline, and checks that stopped
+ * tasks have released their resources.
+ * <p>
+ * States without a deadline, such as {@link State#RECORDING}, can last
+ * forever.
+ *
+ * @author lishunyang
+ *
+ */
+public class TaskWatchdog
+{
+    /**
+     * The <tt>Logger</tt>, used to log messages to standard output.
+     */
+    private static final Logger logger = Logger.getLogger(TaskWatchdog.class);
+
+    /**
+     * A task watched by <tt>TaskWatchdog</tt>.
+     *
+     * @author lishunyang
+     *
+     */
+    public interface WatchedTask
+    {
+        /**
+         * Get the lifecycle state of the task.
+         *
+         * @return The state.
+         */
+        State getState();
+
+        /**
+         * Get since when the task has been in its state.
+         *
+         * @return The time in milliseconds since the epoch.
+         */
+        long getStateTime();
+
+        /**
+         * Abort the task, which has been in its state for too long.
+         */
+        void forceAbort();
+
+        /**
+         * Get the resources the task still holds.
+         *
+         * @return Descriptions of the resources, empty if everything has been
+         *         released.
+         */
+        List<String> getUnreleasedResources();
+    }
+
+    /**
+     * Map between <tt>State</tt> and its deadline in milliseconds.
+     */
+    private final Map<State, Long> deadlines;
+
+    /**
+     * How long in milliseconds a stopped task has to release its resources.
+     */
+    private final long releaseTimeout;
+
+    /**
+     * Runs the aborts, so that a task which takes long to stop doesn't delay
+     * the checks of the other tasks.
+     */
+    private final Executor abortExecutor;
+
+    /**
+     * Map between the running tasks and their MUC jids.
+     */
+    private final Map<WatchedTask, String> watched =
+        new LinkedHashMap<WatchedTask, String>();
+
+    /**
+     * The stopped tasks whose resources have not been checked yet.
+     */
+    private final List<Released> released = new LinkedList<Released>();
+
+    /**
+     * Number of tasks which have been aborted because they were stuck.
+     */
+    private long abortedTasks = 0;
+
+    /**
+     * Number of stopped tasks which have not released all their resources.
+     */
+    private long leakingTasks = 0;
+
+    /**
+     * Construction method.
+     *
+     * @param deadlines Map between <tt>State</tt> and how long in
+     *            milliseconds a task may be in it.
+     * @param releaseTimeout How long in milliseconds a stopped task has to
+     *            release its resources.
+     * @param abortExecutor The <tt>Executor</tt> which runs the aborts of the
+     *            stuck tasks.
+     */
+    public TaskWatchdog(Map<State, Long> deadlines, long releaseTimeout,
+        Executor abortExecutor)
+    {
+        this.deadlines = new EnumMap<State, Long>(State.class);
+        this.deadlines.putAll(deadlines);
+        this.releaseTimeout = releaseTimeout;
+        this.abortExecutor = abortExecutor;
+    }
+
+    /**
+     * How long in milliseconds a task may be in a state after the timeouts of
+     * the state have expired.
+     */
+    public static final long DEADLINE_MARGIN = 10000;
+
+    /**
+     * Get the default deadlines for the configured timeouts. A task is
+     * CONNECTING while it waits for the candidates and then for ICE, both for
+     * at most the ICE timeout, and SECURING while it waits for the DTLS
+     * handshakes. This holds for an ICE restart too, so that a recording is
+     * only aborted if the restart hangs.
+     *
+     * @param iceTimeout The ICE timeout in milliseconds.
+     * @param dtlsTimeout The DTLS timeout in milliseconds.
+     * @param stopTimeout How long in milliseconds stopping a task may take.
+     * @return Map between <tt>State</tt> and its deadline in milliseconds.
+     */
+    public static Map<State, Long> getDefaultDeadlines(long iceTimeout,
+        long dtlsTimeout, long stopTimeout)
+    {
+        final Map<State, Long> deadlines =
+            new EnumMap<State, Long>(State.class);
+
+        deadlines.put(State.INITIALIZED, 10000L);
+        deadlines.put(State.JOINING, 20000L);
+        deadlines.put(State.WAITING_FOR_SESSION, 60000L);
+        deadlines.put(State.CONNECTING, 2 * iceTimeout + DEADLINE_MARGIN);
+        deadlines.put(State.SECURING, dtlsTimeout + DEADLINE_MARGIN);
+        deadlines.put(State.STOPPING, stopTimeout + DEADLINE_MARGIN);
+        return deadlines;
+    }
+
+    /**
+     * Start watching a task.
+     *
+     * @param task The task.
+     * @param mucJid The MUC jid of the task, used in log messages.
+     */
+    public synchronized void watch(WatchedTask task, String mucJid)
+    {
+        watched.put(task, mucJid);
+    }
+
+    /**
+     * Stop watching a task which has been stopped, and check its resources
+     * once it has had {@link #releaseTimeout} to release them.
+     *
+     * @param task The task.
+     * @param now The current time.
+     */
+    public synchronized void released(WatchedTask task, long now)
+    {
+        final String mucJid = watched.remove(task);
+
+        if (null != mucJid)
+            released.add(new Released(task, mucJid, now));
+    }
+
+    /**
+     * Abort the tasks which have broken the deadline of their state, and
+     * check the resources of the tasks which have been stopped long enough.
+     *
+     * @param now The current time.
+     * @return The number of tasks which have been aborted.
+     */
+    public int check(long now)
+    {
+        final List<WatchedTask> stuck = new ArrayList<WatchedTask>();
+
+        synchronized (this)
+        {
+            for (Iterator<Map.Entry<WatchedTask, String>> it =
+                watched.entrySet().iterator(); it.hasNext();)
+            {
+                final Map.Entry<WatchedTask, String> e = it.next();
+                final WatchedTask task = e.getKey();
+                final State state = task.getState();
+                final Long deadline = deadlines.get(state);
+                final long time = now - task.getStateTime();
+
+                if (null == deadline || time <= deadline)
+                    continue;
+
+                logger.error("Task " + e.getValue() + " has been " + state
+                    + " for " + time + " ms, aborting it.");
+                it.remove();
+                released.add(new Released(task, e.getValue(), now));
+                stuck.add(task);
+                abortedTasks++;
+            }
+
+            for (Iterator<Released> it = released.iterator(); it.hasNext();)
+            {
+                final Released r = it.next();
+                if (now - r.time < releaseTimeout)
+                    continue;
+
+                it.remove();
+                final List<String> resources =
+                    r.task.getUnreleasedResources();
+                if (!resources.isEmpty())
+                {
+                    leakingTasks++;
+                    logger.error("Task " + r.mucJid
+                        + " has not released: " + resources);
+                }
+            }
+        }
+
+        // Aborting stops the task, which takes a while.
+        for (final WatchedTask task : stuck)
+        {
+            abortExecutor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    task.forceAbort();
+                }
+            });
+        }
+
+        return stuck.size();
+    }
+
+    /**
+     * Get the number of running tasks in every state.
+     *
+     * @return Map between <tt>State</tt> and number of tasks, states without
+     *         tasks are included.
+     */
+    public synchronized Map<State, Integer> getStateCounts()
+    {
+        final Map<State, Integer> counts =
+            new EnumMap<State, Integer>(State.class);
+
+        for (State state : State.values())
+            counts.put(state, 0);
+        for (WatchedTask task : watched.keySet())
+        {
+            final State state = task.getState();
+            counts.put(state, counts.get(state) + 1);
+        }
+        return counts;
+    }
+
+    /**
+     * Get the number of tasks which have been aborted because they were
+     * stuck.
+     *
+     * @return The number of aborted tasks.
+     */
+    public synchronized long getAbortedTasks()
+    {
+        return abortedTasks;
+    }
+
+    /**
+     * Get the number of stopped tasks which have not released all their
+     * resources.
+     *
+     * @return The number of leaking tasks.
+     */
+    public synchronized long getLeakingTasks()
+    {
+        return leakingTasks;
+    }
+
+    /**
+     * A stopped task whose resources have to be checked.
+     *
+     * @author lishunyang
+     *
+     */
+    private static class Released
+    {
+        /**
+         * The task.
+         */
+        final WatchedTask task;
+
+        /**
+         * The MUC jid of the task.
+         */
+        final String mucJid;
+
+        /**
+         * When the task was stopped.
+         */
+        final long time;
+
+        Released(WatchedTask task, String mucJid, long time)
+        {
+            this.task = task;
+            this.mucJid = mucJid;
+            this.time = time;
+        }
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.jitsi.util.*;
+
+/**
+ * A set of teardown steps which are run concurrently, a step is started once
+ * the steps it depends on have finished or timed out.
+ * <p>
+ * Every step has its own timeout and is timed. A step which times out is not
+ * interrupted, it keeps running in the background, but the steps which depend
+ * on it and {@link #execute(long)} don't wait for it any more.
+ * <p>
+ * <strong>Warning:</strong> Steps must be added after the steps they depend
+ * on, and a plan can only be executed once.
+ *
+ * @author lishunyang
+ *
+ */
+public class TeardownPlan
+{
+    /**
+     * The <tt>Logger</tt>, used to log messages to standard output.
+     */
+    private static final Logger logger = Logger.getLogger(TeardownPlan.class);
+
+    /**
+     * Runs the steps of all plans, and their actions.
+     */
+    private static final ExecutorService executor = Executors
+        .newCachedThreadPool(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "Teardown");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    /**
+     * The name of this plan, used in log messages.
+     */
+    private final String name;
+
+    /**
+     * The steps, in the order they have been added.
+     */
+    private final List<Step> steps = new ArrayList<Step>();
+
+    /**
+     * Construction method.
+     *
+     * @param name The name of this plan, used in log messages.
+     */
+    public TeardownPlan(String name)
+    {
+        this.name = name;
+    }
+
+    /**
+     * Add a step.
+     *
+     * @param stepName The name of the step, unique in this plan.
+     * @param timeout The maximum time in milliseconds to wait for the step.
+     * @param action What the step does.
+     * @param dependencies The steps which must have finished before this one
+     *            starts.
+     * @return The step.
+     */
+    public Step add(String stepName, long timeout, Runnable action,
+        Step... dependencies)
+    {
+        final Step step =
+            new Step(stepName, timeout, action, Arrays.asList(dependencies));
+
+        synchronized (steps)
+        {
+            steps.add(step);
+        }
+        return step;
+    }
+
+    /**
+     * Start all steps and wait until they have finished or timed out.
+     *
+     * @param timeout The maximum time in milliseconds to wait for the whole
+     *            plan.
+     * @return <tt>true</tt> if every step finished in time, <tt>false</tt>
+     *         otherwise.
+     */
+    public boolean execute(long timeout)
+    {
+        final List<Step> toRun;
+        synchronized (steps)
+        {
+            toRun = new ArrayList<Step>(steps);
+        }
+
+        final long start = System.currentTimeMillis();
+        for (final Step step : toRun)
+        {
+            executor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    step.run();
+                }
+            });
+        }
+
+        boolean completed = true;
+        final long deadline = start + timeout;
+        try
+        {
+            for (Step step : toRun)
+            {
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0
+                    || !step.settled.await(remaining, TimeUnit.MILLISECONDS))
+                {
+                    logger.warn(name + ": gave up waiting for step "
+                        + step.name);
+                    completed = false;
+                }
+                else if (!step.isSucceeded())
+                    completed = false;
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            completed = false;
+        }
+
+        logger.info(name + " teardown took "
+            + (System.currentTimeMillis() - start) + " ms, steps: "
+            + getDurations());
+        return completed;
+    }
+
+    /**
+     * Get how long every step took.
+     *
+     * @return Map between step name and duration in milliseconds, -1 if the
+     *         step has not settled.
+     */
+    public Map<String, Long> getDurations()
+    {
+        final Map<String, Long> durations = new LinkedHashMap<String, Long>();
+
+        synchronized (steps)
+        {
+            for (Step step : steps)
+                durations.put(step.name, step.duration);
+        }
+        return durations;
+    }
+
+    /**
+     * Get the names of the steps which timed out.
+     *
+     * @return The names.
+     */
+    public Set<String> getTimedOut()
+    {
+        final Set<String> timedOut = new LinkedHashSet<String>();
+
+        synchronized (steps)
+        {
+            for (Step step : steps)
+            {
+                if (step.timedOut)
+                    timedOut.add(step.name);
+            }
+        }
+        return timedOut;
+    }
+
+    /**
+     * A teardown step.
+     *
+     * @author lishunyang
+     *
+     */
+    public class Step
+    {
+        /**
+         * The name of the step.
+         */
+        private final String name;
+
+        /**
+         * The maximum time in milliseconds to wait for the action.
+         */
+        private final long timeout;
+
+        /**
+         * What the step does.
+         */
+        private final Runnable action;
+
+        /**
+         * The steps which must have settled before this one starts.
+         */
+        private final List<Step> dependencies;
+
+        /**
+         * Counted down when the action has finished, failed or timed out.
+         */
+        private final CountDownLatch settled = new CountDownLatch(1);
+
+        /**
+         * How long the action took in milliseconds, -1 if it has not settled.
+         */
+        private volatile long duration = -1;
+
+        /**
+         * Whether the action timed out.
+         */
+        private volatile boolean timedOut = false;
+
+        /**
+         * Whether the action threw an exception.
+         */
+        private volatile boolean failed = false;
+
+        /**
+         * Construction method.
+         *
+         * @param name The name of the step.
+         * @param timeout The maximum time in milliseconds to wait for the
+         *            action.
+         * @param action What the step does.
+         * @param dependencies The steps which must have settled before this
+         *            one starts.
+         */
+        private Step(String name, long timeout, Runnable action,
+            List<Step> dependencies)
+        {
+            this.name = name;
+            this.timeout = timeout;
+            this.action = action;
+            this.dependencies = dependencies;
+        }
+
+        /**
+         * Check whether the action has finished in time without an exception.
+         *
+         * @return <tt>true</tt> if the step succeeded.
+         */
+        public boolean isSucceeded()
+        {
+            return 0 == settled.getCount() && !timedOut && !failed;
+        }
+
+        /**
+         * Wait for the dependencies, then run the action and wait for it
+         * until it times out.
+         */
+        private void run()
+        {
+            try
+            {
+                for (Step dependency : dependencies)
+                    dependency.settled.await();
+
+                final long start = System.currentTimeMillis();
+                final Future<?> future = executor.submit(action);
+                try
+                {
+                    future.get(timeout, TimeUnit.MILLISECONDS);
+                }
+                catch (TimeoutException e)
+                {
+                    timedOut = true;
+                    logger.warn(TeardownPlan.this.name + ": step " + name
+                        + " timed out after " + timeout + " ms");
+                }
+                catch (ExecutionException e)
+                {
+                    failed = true;
+                    logger.error(TeardownPlan.this.name + ": step " + name
+                        + " failed", e.getCause());
+                }
+                duration = System.currentTimeMillis() - start;
+            }
+            catch (InterruptedException e)
+            {
+                failed = true;
+                Thread.currentThread().interrupt();
+            }
+            finally
+            {
+                settled.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon;
+
+import java.io.*;
+import java.util.*;
+
+import org.jitsi.util.*;
+
+/**
+ * Collects the UDP receive error counters of the kernel and the drops of
+ * every UDP socket, and reports how much they have grown since the last
+ * collection, in total and per task.
+ * <p>
+ * Receive buffer errors mean that we didn't read fast enough (local
+ * overload), unlike packets which were lost before reaching us.
+ * <p>
+ * <strong>Warning:</strong> The counters are read from <tt>/proc/net</tt>, so
+ * this only works on Linux.
+ *
+ * @author lishunyang
+ *
+ */
+public class UdpStats
+{
+    /**
+     * The <tt>Logger</tt>, used to log messages to standard output.
+     */
+    private static final Logger logger = Logger.getLogger(UdpStats.class);
+
+    /**
+     * The file with the UDP counters of the kernel.
+     */
+    private static final String SNMP_FILE = "/proc/net/snmp";
+
+    /**
+     * The files with the UDP sockets of the kernel.
+     */
+    private static final String[] SOCKET_FILES = new String[]
+    { "/proc/net/udp", "/proc/net/udp6" };
+
+    /**
+     * The counter of datagrams which could not be received.
+     */
+    public static final String IN_ERRORS = "InErrors";
+
+    /**
+     * The counter of datagrams dropped because a receive buffer was full.
+     */
+    public static final String RCVBUF_ERRORS = "RcvbufErrors";
+
+    /**
+     * The kernel counters of the last collection.
+     */
+    private Map<String, Long> lastCounters;
+
+    /**
+     * The socket drops of every task at the last collection.
+     */
+    private final Map<String, Long> lastTaskDrops = new HashMap<String, Long>();
+
+    /**
+     * Read the counters and the socket drops, and log how much they have
+     * grown since the last collection.
+     *
+     * @param taskPorts Map between the MUC jid of a task and the local UDP
+     *            ports of its sockets.
+     * @return <tt>false</tt> if the counters could not be read.
+     */
+    public synchronized boolean collect(Map<String, List<Integer>> taskPorts)
+    {
+        final Map<String, Long> counters;
+        final Map<Integer, Long> socketDrops = new HashMap<Integer, Long>();
+        try
+        {
+            counters = parseCounters(readLines(SNMP_FILE));
+            for (String file : SOCKET_FILES)
+            {
+                if (new File(file).exists())
+                    parseSocketDrops(readLines(file), socketDrops);
+            }
+        }
+        catch (IOException e)
+        {
+            logger.warn("Failed to read UDP counters: " + e.getMessage());
+            return false;
+        }
+
+        final StringBuilder taskReport = new StringBuilder();
+        final Map<String, Long> taskDrops = new HashMap<String, Long>();
+        for (Map.Entry<String, List<Integer>> e : taskPorts.entrySet())
+        {
+            long drops = 0;
+            for (int port : e.getValue())
+            {
+                final Long d = socketDrops.get(port);
+                if (null != d)
+                    drops += d;
+            }
+            taskDrops.put(e.getKey(), drops);
+
+            final Long last = lastTaskDrops.get(e.getKey());
+            final long delta = drops - (null == last ? 0 : last);
+            if (delta > 0)
+            {
+                taskReport.append(", ").append(e.getKey()).append(": ")
+                    .append(delta);
+            }
+        }
+        lastTaskDrops.clear();
+        lastTaskDrops.putAll(taskDrops);
+
+        if (null != lastCounters)
+        {
+            final long inErrors = delta(counters, IN_ERRORS);
+            final long rcvbufErrors = delta(counters, RCVBUF_ERRORS);
+
+            if (inErrors > 0 || rcvbufErrors > 0 || taskReport.length() > 0)
+            {
+                logger.warn("UDP receive errors: " + inErrors
+                    + ", receive buffer errors: " + rcvbufErrors
+                    + ", socket drops by task" + taskReport);
+            }
+        }
+        lastCounters = counters;
+
+        return true;
+    }
+
+    /**
+     * Get how much a counter has grown since {@link #lastCounters}.
+     *
+     * @param counters The current counters.
+     * @param name The name of the counter.
+     * @return The difference, 0 if the counter is unknown.
+     */
+    private long delta(Map<String, Long> counters, String name)
+    {
+        final Long now = counters.get(name);
+        final Long last = lastCounters.get(name);
+
+        return null == now || null == last ? 0 : now - last;
+    }
+
+    /**
+     * Parse the "Udp:" counters of <tt>/proc/net/snmp</tt>. They are in two
+     * lines, the names and then the values.
+     *
+     * @param lines The lines of the file.
+     * @return Map between the name and the value of every UDP counter.
+     */
+    public static Map<String, Long> parseCounters(List<String> lines)
+    {
+        final Map<String, Long> counters = new HashMap<String, Long>();
+        String[] names = null;
+
+        for (String line : lines)
+        {
+            if (!line.startsWith("Udp:"))
+                continue;
+
+            final String[] fields = line.trim().split("\\s+");
+            if (null == names)
+            {
+                names = fields;
+                continue;
+            }
+
+            for (int i = 1; i < fields.length && i < names.length; i++)
+            {
+                try
+                {
+                    counters.put(names[i], Long.parseLong(fields[i]));
+                }
+                catch (NumberFormatException e)
+                {
+                    // Not a counter, skip it.
+                }
+            }
+            break;
+        }
+
+        return counters;
+    }
+
+    /**
+     * Parse the drops of every socket in <tt>/proc/net/udp</tt> or
+     * <tt>/proc/net/udp6</tt>, and add them up by local port.
+     *
+     * @param lines The lines of the file, with the header.
+     * @param drops Map between local port and drops, which is added to.
+     */
+    public static void parseSocketDrops(List<String> lines,
+        Map<Integer, Long> drops)
+    {
+        for (String line : lines)
+        {
+            final String[] fields = line.trim().split("\\s+");
+
+            // sl local_address rem_address st ... drops, the last field.
+            if (fields.length < 13 || !fields[0].endsWith(":"))
+                continue;
+
+            final String localAddress = fields[1];
+            final int colon = localAddress.lastIndexOf(':');
+            try
+            {
+                final int port =
+                    Integer.parseInt(localAddress.substring(colon + 1), 16);
+                final long d = Long.parseLong(fields[fields.length - 1]);
+                final Long sum = drops.get(port);
+
+                drops.put(port, null == sum ? d : sum + d);
+            }
+            catch (NumberFormatException e)
+            {
+                // Not a socket line, skip it.
+            }
+        }
+    }
+
+    /**
+     * Read all lines of a file.
+     *
+     * @param filename The file.
+     * @return The lines.
+     * @throws IOException if the file could not be read.
+     */
+    private static List<String> readLines(String filename)
+        throws IOException
+    {
+        final List<String> lines = new ArrayList<String>();
+        final BufferedReader reader =
+            new BufferedReader(new FileReader(filename));
+
+        try
+        {
+            String line;
+            while (null != (line = reader.readLine()))
+                lines.add(line);
+        }
+        finally
+        {
+            reader.close();
+        }
+
+        return lines;
+    }
+}
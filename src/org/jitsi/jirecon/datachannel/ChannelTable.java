@@ -0,0 +1,106 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.datachannel;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A table of channels keyed by SCTP stream id ("sid").
+ * <p>
+ * Lookups don't lock and don't box the sid. The sids which are lower than
+ * {@link #DIRECT_SIZE} are kept in an array, which covers the streams we
+ * negotiate. Higher sids fall back to a <tt>ConcurrentHashMap</tt>.
+ *
+ * @author lishunyang
+ *
+ * @param <T> The channel type.
+ */
+public class ChannelTable<T>
+{
+    /**
+     * Number of sids which are kept in {@link #direct}.
+     */
+    public final static int DIRECT_SIZE = 1024;
+
+    /**
+     * Channels whose sid is lower than {@link #DIRECT_SIZE}, indexed by sid.
+     */
+    private final AtomicReferenceArray<T> direct =
+        new AtomicReferenceArray<T>(DIRECT_SIZE);
+
+    /**
+     * Channels whose sid is {@link #DIRECT_SIZE} or higher.
+     */
+    private final ConcurrentMap<Integer, T> overflow =
+        new ConcurrentHashMap<Integer, T>();
+
+    /**
+     * Get the channel with specified sid.
+     *
+     * @param sid The SCTP stream id.
+     * @return The channel, or null if there is no channel on the sid.
+     */
+    public T get(int sid)
+    {
+        if (sid >= 0 && sid < DIRECT_SIZE)
+            return direct.get(sid);
+
+        return overflow.get(sid);
+    }
+
+    /**
+     * Put a channel on specified sid, unless there is one already.
+     *
+     * @param sid The SCTP stream id.
+     * @param channel The channel.
+     * @return The channel which was already on the sid, or null if
+     *         <tt>channel</tt> has been put.
+     */
+    public T putIfAbsent(int sid, T channel)
+    {
+        if (sid >= 0 && sid < DIRECT_SIZE)
+        {
+            while (true)
+            {
+                if (direct.compareAndSet(sid, null, channel))
+                    return null;
+
+                // Retry if the channel was removed in the meantime.
+                final T existing = direct.get(sid);
+                if (null != existing)
+                    return existing;
+            }
+        }
+
+        return overflow.putIfAbsent(sid, channel);
+    }
+
+    /**
+     * Remove the channel with specified sid, only if it is the specified one.
+     *
+     * @param sid The SCTP stream id.
+     * @param channel The channel which is expected on the sid.
+     * @return <tt>true</tt> if the channel has been removed.
+     */
+    public boolean remove(int sid, T channel)
+    {
+        if (sid >= 0 && sid < DIRECT_SIZE)
+            return direct.compareAndSet(sid, channel, null);
+
+        return overflow.remove(sid, channel);
+    }
+
+    /**
+     * Remove all channels.
+     */
+    public void clear()
+    {
+        for (int i = 0; i < DIRECT_SIZE; i++)
+            direct.set(i, null);
+        overflow.clear();
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.datachannel;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+
+/**
+ * Encoder and decoder of WebRTC Data Channel Establishment Protocol (DCEP)
+ * messages. The fields are read directly from the SCTP payload, so decoding a
+ * message doesn't wrap or copy it.
+ * <p>
+ * See http://tools.ietf.org/html/draft-ietf-rtcweb-data-protocol-07
+ * <p>
+ * <strong>Warning:</strong> There are only static methods.
+ *
+ * @author lishunyang
+ *
+ */
+public class DcepCodec
+{
+    /**
+     * Message type used to acknowledge WebRTC data channel allocation on SCTP
+     * stream ID on which <tt>MSG_OPEN_CHANNEL</tt> message arrives.
+     */
+    public final static int MSG_CHANNEL_ACK = 0x2;
+
+    /**
+     * Message with this type sent over control PPID in order to open new WebRTC
+     * data channel on SCTP stream ID that this message is sent.
+     */
+    public final static int MSG_OPEN_CHANNEL = 0x3;
+
+    /**
+     * Length of the fixed part of a DATA_CHANNEL_OPEN message, before label
+     * and protocol.
+     */
+    public final static int OPEN_HEADER_LENGTH = 12;
+
+    /**
+     * The DATA_CHANNEL_ACK message. It has no other field than the message
+     * type, so one instance is shared.
+     */
+    private static final byte[] ACK_MESSAGE = new byte[] { MSG_CHANNEL_ACK };
+
+    /**
+     * Minimum length of each message type, indexed by message type. Zero means
+     * that the message type is unknown.
+     */
+    private static final int[] MIN_LENGTHS = new int[256];
+
+    /**
+     * Indicates whether a channel type is valid, indexed by channel type.
+     */
+    private static final boolean[] VALID_CHANNEL_TYPES = new boolean[256];
+
+    static
+    {
+        MIN_LENGTHS[MSG_CHANNEL_ACK] = 1;
+        MIN_LENGTHS[MSG_OPEN_CHANNEL] = OPEN_HEADER_LENGTH;
+
+        // DATA_CHANNEL_RELIABLE and its unordered variant.
+        VALID_CHANNEL_TYPES[0x00] = true;
+        VALID_CHANNEL_TYPES[0x80] = true;
+        // DATA_CHANNEL_PARTIAL_RELIABLE_REXMIT and its unordered variant.
+        VALID_CHANNEL_TYPES[0x01] = true;
+        VALID_CHANNEL_TYPES[0x81] = true;
+        // DATA_CHANNEL_PARTIAL_RELIABLE_TIMED and its unordered variant.
+        VALID_CHANNEL_TYPES[0x02] = true;
+        VALID_CHANNEL_TYPES[0x82] = true;
+    }
+
+    /**
+     * Get the type of a DCEP message, if the message is well formed.
+     *
+     * @param data The SCTP payload which arrived on the control PPID.
+     * @return The message type, or -1 if the message is unknown or malformed.
+     */
+    public static int getMessageType(byte[] data)
+    {
+        if (null == data || 0 == data.length)
+            return -1;
+
+        final int type = data[0] & 0xFF;
+        final int minLength = MIN_LENGTHS[type];
+
+        if (0 == minLength || data.length < minLength)
+            return -1;
+
+        if (MSG_OPEN_CHANNEL == type)
+        {
+            if (!VALID_CHANNEL_TYPES[getChannelType(data)])
+                return -1;
+
+            if (data.length < OPEN_HEADER_LENGTH + getLabelLength(data)
+                + getProtocolLength(data))
+                return -1;
+        }
+
+        return type;
+    }
+
+    /**
+     * Get the channel type of a DATA_CHANNEL_OPEN message.
+     *
+     * @param data The message.
+     * @return The channel type.
+     */
+    public static int getChannelType(byte[] data)
+    {
+        return data[1] & 0xFF;
+    }
+
+    /**
+     * Get the priority of a DATA_CHANNEL_OPEN message.
+     *
+     * @param data The message.
+     * @return The priority.
+     */
+    public static int getPriority(byte[] data)
+    {
+        return readUint16(data, 2);
+    }
+
+    /**
+     * Get the reliability parameter of a DATA_CHANNEL_OPEN message.
+     *
+     * @param data The message.
+     * @return The reliability parameter.
+     */
+    public static long getReliability(byte[] data)
+    {
+        return ((data[4] & 0xFFL) << 24) | ((data[5] & 0xFFL) << 16)
+            | ((data[6] & 0xFFL) << 8) | (data[7] & 0xFFL);
+    }
+
+    /**
+     * Get the label length of a DATA_CHANNEL_OPEN message.
+     *
+     * @param data The message.
+     * @return The label length in bytes.
+     */
+    public static int getLabelLength(byte[] data)
+    {
+        return readUint16(data, 8);
+    }
+
+    /**
+     * Get the protocol length of a DATA_CHANNEL_OPEN message.
+     *
+     * @param data The message.
+     * @return The protocol length in bytes.
+     */
+    public static int getProtocolLength(byte[] data)
+    {
+        return readUint16(data, 10);
+    }
+
+    /**
+     * Get the label of a DATA_CHANNEL_OPEN message.
+     *
+     * @param data The message.
+     * @return The label. It's an empty string if the label is empty.
+     * @throws IOException if the label is not valid UTF-8.
+     */
+    public static String getLabel(byte[] data)
+        throws IOException
+    {
+        final int length = getLabelLength(data);
+
+        if (0 == length)
+            return "";
+
+        // new String() would replace the malformed bytes silently.
+        return Charset.forName("UTF-8").newDecoder()
+            .onMalformedInput(CodingErrorAction.REPORT)
+            .onUnmappableCharacter(CodingErrorAction.REPORT)
+            .decode(ByteBuffer.wrap(data, OPEN_HEADER_LENGTH, length))
+            .toString();
+    }
+
+    /**
+     * Check whether the protocol of a DATA_CHANNEL_OPEN message is the
+     * specified one, without decoding it.
+     *
+     * @param data The message.
+     * @param protocol The UTF-8 encoded protocol.
+     * @return <tt>true</tt> if the protocols are equal.
+     */
+    public static boolean isProtocol(byte[] data, byte[] protocol)
+    {
+        final int length = getProtocolLength(data);
+
+        if (length != protocol.length)
+            return false;
+
+        final int off = OPEN_HEADER_LENGTH + getLabelLength(data);
+        for (int i = 0; i < length; i++)
+        {
+            if (data[off + i] != protocol[i])
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Get the DATA_CHANNEL_ACK message.
+     * <p>
+     * <strong>Warning:</strong> The returned array is shared, don't modify it.
+     *
+     * @return The DATA_CHANNEL_ACK message.
+     */
+    public static byte[] encodeAck()
+    {
+        return ACK_MESSAGE;
+    }
+
+    /**
+     * Create a DATA_CHANNEL_OPEN message.
+     *
+     * @param type The channel type.
+     * @param prio The channel priority.
+     * @param reliab The reliability parameter.
+     * @param label The UTF-8 encoded label, it could be null.
+     * @param protocol The UTF-8 encoded protocol, it could be null.
+     * @return The DATA_CHANNEL_OPEN message.
+     */
+    public static byte[] encodeOpen(int type, int prio, long reliab,
+        byte[] label, byte[] protocol)
+    {
+        final int labelLength =
+            null == label ? 0 : Math.min(label.length, 0xFFFF);
+        final int protocolLength =
+            null == protocol ? 0 : Math.min(protocol.length, 0xFFFF);
+        final byte[] data =
+            new byte[OPEN_HEADER_LENGTH + labelLength + protocolLength];
+
+        data[0] = (byte) MSG_OPEN_CHANNEL;
+        data[1] = (byte) type;
+        writeUint16(data, 2, prio);
+        data[4] = (byte) (reliab >>> 24);
+        data[5] = (byte) (reliab >>> 16);
+        data[6] = (byte) (reliab >>> 8);
+        data[7] = (byte) reliab;
+        writeUint16(data, 8, labelLength);
+        writeUint16(data, 10, protocolLength);
+
+        if (0 != labelLength)
+            System.arraycopy(label, 0, data, OPEN_HEADER_LENGTH, labelLength);
+        if (0 != protocolLength)
+        {
+            System.arraycopy(protocol, 0, data, OPEN_HEADER_LENGTH
+                + labelLength, protocolLength);
+        }
+
+        return data;
+    }
+
+    /**
+     * Read an unsigned 16-bit integer in network byte order.
+     *
+     * @param data The buffer to read from.
+     * @param off Where the integer starts.
+     * @return The integer.
+     */
+    private static int readUint16(byte[] data, int off)
+    {
+        return ((data[off] & 0xFF) << 8) | (data[off + 1] & 0xFF);
+    }
+
+    /**
+     * Write an unsigned 16-bit integer in network byte order.
+     *
+     * @param data The buffer to write to.
+     * @param off Where the integer starts.
+     * @param value The integer.
+     */
+    private static void writeUint16(byte[] data, int off, int value)
+    {
+        data[off] = (byte) (value >>> 8);
+        data[off + 1] = (byte) value;
+    }
+}
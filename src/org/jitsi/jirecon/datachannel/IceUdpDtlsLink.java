@@ -13,6 +13,7 @@ import org.jitsi.impl.neomedia.transform.dtls.*;
 import org.jitsi.sctp4j.*;
 import org.jitsi.service.libjitsi.*;
 import org.jitsi.service.packetlogging.*;
+import org.jitsi.util.*;
 
 /**
  * An implementation of <tt>NetworkLink</tt> which is used for receiving and
@@ -51,8 +52,42 @@ public class IceUdpDtlsLink
      */
     private DtlsPacketTransformer transformer;
 
-    private ExecutorService executorService = Executors
-        .newSingleThreadExecutor();
+    /**
+     * The <tt>Logger</tt>, used to log messages to standard output.
+     */
+    private static final Logger logger = Logger
+        .getLogger(IceUdpDtlsLink.class);
+
+    /**
+     * The pool of <tt>Thread</tt>s which run the receive loops of all links.
+     * Threads are daemons and are reused once a link has been closed, so
+     * links don't leak threads.
+     * <p>
+     * The ICE socket has no selectable channel, so every open link blocks one
+     * thread in <tt>receive</tt>. The thread count grows with the number of
+     * open links, see {@link #getReceiveThreadCount()}.
+     */
+    private static ThreadPoolExecutor receivePool;
+
+    /**
+     * Indicates whether this link has been closed. The receive loop exits
+     * once it notices it.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * The <tt>RawPacket</tt> which wraps the receive buffer. It is reused for
+     * every received datagram, so that the receive loop doesn't allocate in
+     * steady state.
+     */
+    private final RawPacket receivePacket = new RawPacket();
+
+    /**
+     * The <tt>RawPacket</tt> which wraps outgoing SCTP packets before they are
+     * passed to the DTLS transformer. Reused for every packet, access is
+     * synchronized on itself.
+     */
+    private final RawPacket sendPacket = new RawPacket();
 
     /**
      * Switch used for debugging SCTP traffic purposes. FIXME to be removed
@@ -85,9 +120,62 @@ public class IceUdpDtlsLink
         startReceiving();
     }
 
+    /**
+     * Close this link. The receive loop stops once the ICE socket is freed,
+     * without reporting an error.
+     * <p>
+     * <strong>Warning:</strong> The ICE socket is owned by the ICE agent, so
+     * it won't be closed here.
+     */
+    public void close()
+    {
+        closed = true;
+    }
+
+    /**
+     * Get {@link #receivePool}, create it if it's the first time.
+     * 
+     * @return The pool.
+     */
+    private static synchronized ThreadPoolExecutor getReceivePool()
+    {
+        if (null == receivePool)
+        {
+            receivePool =
+                new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60,
+                    TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                    new ThreadFactory()
+                    {
+                        @Override
+                        public Thread newThread(Runnable r)
+                        {
+                            Thread thread =
+                                new Thread(r, IceUdpDtlsLink.class.getName());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return receivePool;
+    }
+
+    /**
+     * Get the number of <tt>Thread</tt>s in {@link #receivePool}. It is the
+     * number of open links, plus the idle threads which haven't timed out yet.
+     * 
+     * @return The number of receive threads.
+     */
+    public static synchronized int getReceiveThreadCount()
+    {
+        return null == receivePool ? 0 : receivePool.getPoolSize();
+    }
+
+    /**
+     * Start the receive loop of this link on {@link #receivePool}.
+     */
     private void startReceiving()
     {
-        executorService.execute(new Runnable()
+        getReceivePool().execute(new Runnable()
         {
             public void run()
             {
@@ -98,18 +186,25 @@ public class IceUdpDtlsLink
                 try
                 {
                     /*
-                     * Once SctpSocket is closed, this loop will be broken down,
-                     * so we don't have to worry about closing this link.
+                     * Once the link is closed or the ICE socket is freed, this
+                     * loop will be broken down.
                      */
-                    do
+                    while (!closed)
                     {
+                        rcvPacket.setLength(receiveBuffer.length);
                         datagramSocket.receive(rcvPacket);
 
-                        RawPacket raw =
-                            new RawPacket(rcvPacket.getData(), rcvPacket
-                                .getOffset(), rcvPacket.getLength());
+                        receivePacket.setBuffer(rcvPacket.getData());
+                        receivePacket.setOffset(rcvPacket.getOffset());
+                        receivePacket.setLength(rcvPacket.getLength());
 
-                        raw = transformer.reverseTransform(raw);
+                        /*
+                         * Don't assign the result to receivePacket, DTLS may
+                         * hand back a different packet with the application
+                         * data.
+                         */
+                        RawPacket raw =
+                            transformer.reverseTransform(receivePacket);
                         // Check for app data
                         if (raw == null)
                             continue;
@@ -131,11 +226,13 @@ public class IceUdpDtlsLink
                         sctpSocket.onConnIn(raw.getBuffer(), raw.getOffset(),
                             raw.getLength());
                     }
-                    while (true);
                 }
                 catch (IOException e)
                 {
-                    e.printStackTrace();
+                    if (closed)
+                        logger.debug("Receive loop stopped: " + e);
+                    else
+                        logger.error("Receive loop failed", e);
                 }
             }
         });
@@ -148,13 +245,18 @@ public class IceUdpDtlsLink
     public void onConnOut(final SctpSocket s, final byte[] packetData)
         throws IOException
     {
-        RawPacket rawPacket = new RawPacket();
+        synchronized (sendPacket)
+        {
+            // Send through DTLS transport
+            sendPacket.setBuffer(packetData);
+            sendPacket.setOffset(0);
+            sendPacket.setLength(packetData.length);
 
-        // Send through DTLS transport
-        rawPacket.setBuffer(packetData);
-        rawPacket.setLength(packetData.length);
+            transformer.transform(sendPacket);
 
-        transformer.transform(rawPacket);
+            // Don't keep a reference to the SCTP stack's buffer.
+            sendPacket.setBuffer(null);
+        }
     }
 
     private static synchronized int generateDebugId()
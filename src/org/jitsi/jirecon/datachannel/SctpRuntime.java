@@ -0,0 +1,180 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.datachannel;
+
+import java.io.*;
+import java.util.concurrent.atomic.*;
+import org.jitsi.sctp4j.*;
+import org.jitsi.util.*;
+
+/**
+ * The process-wide usrsctp stack shared by all <tt>WebRtcDataStreamManager</tt>
+ * s.
+ * <p>
+ * The native stack is initialized lazily by the first user and is kept alive
+ * while there are users, so starting and stopping a data channel only costs
+ * the work of its own association. It is finished by {@link #shutdown()} once
+ * nobody uses it anymore.
+ * <p>
+ * <strong>Warning:</strong> There are only static methods.
+ *
+ * @author lishunyang
+ *
+ */
+public class SctpRuntime
+{
+    /**
+     * The <tt>Logger</tt>, used to log messages to standard output.
+     */
+    private static final Logger logger = Logger.getLogger(SctpRuntime.class);
+
+    /**
+     * Sync root for {@link #users} and {@link #initialized}.
+     */
+    private static final Object syncRoot = new Object();
+
+    /**
+     * The number of users which hold the SCTP stack.
+     */
+    private static int users = 0;
+
+    /**
+     * Indicates whether the native SCTP stack has been initialized.
+     */
+    private static boolean initialized = false;
+
+    /**
+     * The number of SCTP associations which are up at the moment.
+     */
+    private static final AtomicInteger activeAssociations =
+        new AtomicInteger();
+
+    /**
+     * The number of SCTP associations which have come up since start.
+     */
+    private static final AtomicLong totalAssociations = new AtomicLong();
+
+    /**
+     * Hold the SCTP stack, initialize it if it's the first time.
+     * <p>
+     * Every call must be paired with a call to {@link #release()}.
+     */
+    public static void acquire()
+    {
+        synchronized (syncRoot)
+        {
+            if (!initialized)
+            {
+                logger.info("Initialize SCTP stack.");
+                Sctp.init();
+                initialized = true;
+            }
+            users++;
+        }
+    }
+
+    /**
+     * Release the SCTP stack. The stack is kept alive even though there are no
+     * users anymore, so that the next data channel doesn't have to initialize
+     * it again.
+     */
+    public static void release()
+    {
+        synchronized (syncRoot)
+        {
+            if (users <= 0)
+            {
+                logger.warn("SCTP stack released more times than acquired.");
+                return;
+            }
+            users--;
+        }
+    }
+
+    /**
+     * Finish the SCTP stack if nobody uses it.
+     *
+     * @return <tt>true</tt> if the stack is not initialized anymore, or
+     *         <tt>false</tt> if it is still in use.
+     */
+    public static boolean shutdown()
+    {
+        synchronized (syncRoot)
+        {
+            if (!initialized)
+                return true;
+
+            if (users > 0)
+            {
+                logger.warn("Could not finish SCTP stack, " + users
+                    + " users are still holding it.");
+                return false;
+            }
+
+            try
+            {
+                Sctp.finish();
+            }
+            catch (IOException e)
+            {
+                logger.error("Failed to finish SCTP stack", e);
+            }
+            initialized = false;
+            logger.info("SCTP stack finished.");
+            return true;
+        }
+    }
+
+    /**
+     * Get the number of users which hold the SCTP stack.
+     *
+     * @return The number of users.
+     */
+    public static int getUsers()
+    {
+        synchronized (syncRoot)
+        {
+            return users;
+        }
+    }
+
+    /**
+     * Get the number of SCTP associations which are up at the moment.
+     *
+     * @return The number of active associations.
+     */
+    public static int getActiveAssociations()
+    {
+        return activeAssociations.get();
+    }
+
+    /**
+     * Get the number of SCTP associations which have come up since start.
+     *
+     * @return The total number of associations.
+     */
+    public static long getTotalAssociations()
+    {
+        return totalAssociations.get();
+    }
+
+    /**
+     * Called when an SCTP association comes up.
+     */
+    static void associationUp()
+    {
+        activeAssociations.incrementAndGet();
+        totalAssociations.incrementAndGet();
+    }
+
+    /**
+     * Called when an SCTP association goes down.
+     */
+    static void associationDown()
+    {
+        activeAssociations.decrementAndGet();
+    }
+}
@@ -7,9 +7,9 @@ package org.jitsi.jirecon.datachannel;
 
 import java.io.*;
 import java.net.*;
-import java.nio.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import javax.media.rtp.*;
 import org.jitsi.impl.neomedia.*;
 import org.jitsi.impl.neomedia.transform.dtls.*;
@@ -32,21 +32,6 @@ public class WebRtcDataStreamManager
     private static final Logger logger = Logger
         .getLogger(WebRtcDataStreamManager.class);
     
-    /**
-     * Message type used to acknowledge WebRTC data channel allocation on SCTP
-     * stream ID on which <tt>MSG_OPEN_CHANNEL</tt> message arrives.
-     */
-    private final static int MSG_CHANNEL_ACK = 0x2;
-
-    private static final byte[] MSG_CHANNEL_ACK_BYTES = new byte[]
-    { MSG_CHANNEL_ACK };
-
-    /**
-     * Message with this type sent over control PPID in order to open new WebRTC
-     * data channel on SCTP stream ID that this message is sent.
-     */
-    private final static int MSG_OPEN_CHANNEL = 0x3;
-
     /**
      * The <tt>String</tt> value of the <tt>Protocol</tt> field of the
      * <tt>DATA_CHANNEL_OPEN</tt> message.
@@ -55,27 +40,71 @@ public class WebRtcDataStreamManager
         "http://jitsi.org/protocols/colibri";
 
     /**
-     * The pool of <tt>Thread</tt>s which run <tt>SctpConnection</tt>s.
+     * UTF-8 encoded {@link #WEBRTC_DATA_CHANNEL_PROTOCOL}, so that we don't
+     * encode it for every channel we open.
      */
-    private static final ExecutorService threadPool = ExecutorUtils
-        .newCachedThreadPool(true, WebRtcDataStreamManager.class.getName());
+    private static final byte[] WEBRTC_DATA_CHANNEL_PROTOCOL_BYTES =
+        getUtf8Bytes(WEBRTC_DATA_CHANNEL_PROTOCOL);
 
     /**
      * Indicates whether the STCP association is ready and has not been ended by
-     * a subsequent state change.
+     * a subsequent state change. The SCTP thread and the teardown both end
+     * the association, so it only changes with <tt>compareAndSet</tt>, and
+     * {@link SctpRuntime} counts every transition once.
      */
-    private boolean assocIsUp = false;
+    private final AtomicBoolean assocIsUp = new AtomicBoolean(false);
 
     /**
      * The indicator which determines whether an SCTP peer address has been
      * confirmed.
      */
-    private boolean peerAddrIsConfirmed = false;
+    private volatile boolean peerAddrIsConfirmed = false;
+
+    /**
+     * Indicates whether we run as the SCTP server side, in which case the
+     * association has to be accepted once it is up.
+     */
+    private volatile boolean isServer = false;
+
+    /**
+     * Indicates whether the association has been accepted, which is only
+     * needed when we run as the server side.
+     */
+    private volatile boolean accepted = false;
+
+    /**
+     * Accepts the associations of all managers. The SCTP stack must not be
+     * called back from inside its notification callback, so accepting is
+     * handed off to this thread.
+     */
+    private static final ExecutorService acceptExecutor = Executors
+        .newSingleThreadExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "SctpAccept");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    /**
+     * Counted down once {@link #isReady()} becomes <tt>true</tt>, so that
+     * callers can wait for it instead of polling.
+     */
+    private final CountDownLatch readyLatch = new CountDownLatch(1);
 
     /**
      * <tt>SctpSocket</tt> used for sending SCTP data.
      */
-    private SctpSocket sctpSocket;
+    private volatile SctpSocket sctpSocket;
+
+    /**
+     * The <tt>IceUdpDtlsLink</tt> which carries the SCTP packets of
+     * {@link #sctpSocket}.
+     */
+    private IceUdpDtlsLink link;
 
     /**
      * Owner endpoint id.
@@ -83,10 +112,11 @@ public class WebRtcDataStreamManager
     private String endpointId;
 
     /**
-     * Map of "sid" and <tt>WebRtcDataStream</tt>.
+     * Table of "sid" and <tt>WebRtcDataStream</tt>. It's read on every
+     * received message, so it doesn't lock.
      */
-    private Map<Integer, WebRtcDataStream> channels =
-        new HashMap<Integer, WebRtcDataStream>();
+    private final ChannelTable<WebRtcDataStream> channels =
+        new ChannelTable<WebRtcDataStream>();
 
     /**
      * This receiver is used for handling control packets and forward message
@@ -110,6 +140,10 @@ public class WebRtcDataStreamManager
      * start SCTP connection and wait for SCTP handshake packet sent from client
      * side.
      * <p>
+     * This method returns immediately. The association is accepted once the
+     * SCTP stack notifies us that it is up, use {@link #waitForReady(long)} to
+     * wait for it.
+     * <p>
      * This method will start <tt>DtlsControl</tt>.
      * 
      * @param connector We need this to receive packets.
@@ -121,27 +155,9 @@ public class WebRtcDataStreamManager
     {
         try
         {
+            isServer = true;
             initSctp(connector, streamTarget, dtlsControl);
-
-            // FIXME manage threads
-            threadPool.execute(new Runnable()
-            {
-                @Override
-                public void run()
-                {
-                    try
-                    {
-                        while (!sctpSocket.accept())
-                        {
-                            Thread.sleep(100);
-                        }
-                    }
-                    catch (Exception e)
-                    {
-                        logger.error("Error accepting SCTP connection", e);
-                    }
-                }
-            });
+            sctpSocket.listen();
         }
         catch (Exception e)
         {
@@ -198,7 +214,73 @@ public class WebRtcDataStreamManager
      */
     public boolean isReady()
     {
-        return assocIsUp && peerAddrIsConfirmed;
+        return assocIsUp.get() && peerAddrIsConfirmed
+            && (!isServer || accepted);
+    }
+
+    /**
+     * Wait until this <tt>WebRtcDataStreamManager</tt> is ready, see
+     * {@link #isReady()}.
+     * 
+     * @param timeout The maximum time to wait in milliseconds.
+     * @return <tt>true</tt> if it is ready, or <tt>false</tt> if the time out
+     *         elapsed first.
+     * @throws InterruptedException if the current thread is interrupted while
+     *             waiting.
+     */
+    public boolean waitForReady(long timeout)
+        throws InterruptedException
+    {
+        return readyLatch.await(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Release the threads which wait for readiness if we have just become
+     * ready.
+     */
+    private void checkReady()
+    {
+        if (isReady())
+            readyLatch.countDown();
+    }
+
+    /**
+     * Accept the SCTP association which has just come up on
+     * {@link #acceptExecutor}. It's only needed when we run as the server
+     * side.
+     * 
+     * @param socket The <tt>SctpSocket</tt> whose association is up.
+     */
+    private void acceptAssociation(final SctpSocket socket)
+    {
+        acceptExecutor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                // It may have been shut down meanwhile.
+                if (socket != sctpSocket)
+                    return;
+
+                try
+                {
+                    if (socket.accept())
+                    {
+                        accepted = true;
+                        checkReady();
+                    }
+                    else
+                    {
+                        logger.warn("SCTP association is up, but accept "
+                            + "failed.");
+                    }
+                }
+                catch (Exception e)
+                {
+                    logger.error("Error accepting SCTP connection", e);
+                }
+            }
+        });
     }
 
     /**
@@ -208,11 +290,9 @@ public class WebRtcDataStreamManager
      * @param sid
      * @return
      */
-    public synchronized WebRtcDataStream getChannel(int sid)
+    public WebRtcDataStream getChannel(int sid)
     {
-        WebRtcDataStream channel = null;
-
-        channel = channels.get(sid);
+        final WebRtcDataStream channel = channels.get(sid);
         if (null == channel)
         {
             logger.error("No channel found for sid: " + sid);
@@ -225,6 +305,35 @@ public class WebRtcDataStreamManager
     {
         this.listener = listener;
     }
+
+    /**
+     * Get the listener which is notified of opened channels.
+     * 
+     * @return The listener, or null if there is none.
+     */
+    private synchronized WebRtcDataStreamListener getListener()
+    {
+        return listener;
+    }
+
+    /**
+     * Encode a <tt>String</tt> as UTF-8.
+     * 
+     * @param str The <tt>String</tt>.
+     * @return UTF-8 bytes of <tt>str</tt>.
+     */
+    private static byte[] getUtf8Bytes(String str)
+    {
+        try
+        {
+            return str.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            // UTF-8 is always supported.
+            throw new IllegalStateException(e);
+        }
+    }
     
     /**
      * Create <tt>SctpSocket</tt> and initialize it.
@@ -244,8 +353,31 @@ public class WebRtcDataStreamManager
             return;
         }
 
-        Sctp.init();
-        
+        SctpRuntime.acquire();
+        try
+        {
+            createSctpSocket(connector, streamTarget, dtlsControl);
+        }
+        catch (Exception e)
+        {
+            SctpRuntime.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Start <tt>DtlsControl</tt> and create the <tt>SctpSocket</tt> on top of
+     * it.
+     * 
+     * @param connector We need this to receive packets.
+     * @param streamTarget Indicate where to send packet.
+     * @param dtlsControl
+     * @throws Exception
+     */
+    private void createSctpSocket(StreamConnector connector,
+        MediaStreamTarget streamTarget, DtlsControl dtlsControl)
+        throws Exception
+    {
         dtlsControl.start(MediaType.DATA);
 
         RTPConnectorUDPImpl rtpConnector = new RTPConnectorUDPImpl(connector);
@@ -263,18 +395,35 @@ public class WebRtcDataStreamManager
         final DatagramSocket iceUdpSocket = rtpConnector.getDataSocket();
 
         sctpSocket = Sctp.createSocket(5000);
-        sctpSocket.setLink(new IceUdpDtlsLink(sctpSocket, iceUdpSocket,
-            transformer));
+        link = new IceUdpDtlsLink(sctpSocket, iceUdpSocket, transformer);
+        sctpSocket.setLink(link);
         sctpSocket.setNotificationListener(packetReceiver);
         sctpSocket.setDataCallback(packetReceiver);
     }
 
     private void uinitSctp() throws IOException
     {
+        if (null == sctpSocket)
+            return;
+
+        if (null != link)
+        {
+            link.close();
+            link = null;
+        }
         sctpSocket.close();
         // TODO: Don't we need to remove callback from SctpSocket?
         sctpSocket = null;
-        Sctp.finish();
+        channels.clear();
+
+        if (assocIsUp.compareAndSet(true, false))
+            SctpRuntime.associationDown();
+
+        /*
+         * The SCTP stack is shared by all tasks, so we only release it here.
+         * It will be finished when Jirecon is uninitialized.
+         */
+        SctpRuntime.release();
     }
 
     /**
@@ -283,20 +432,18 @@ public class WebRtcDataStreamManager
      * @param data raw packet data that arrived on control PPID.
      * @param sid SCTP stream id on which the data has arrived.
      */
-    private synchronized void onCtrlPacket(byte[] data, int sid)
+    private void onCtrlPacket(byte[] data, int sid)
         throws IOException
     {
-        System.out.print("Control Packet");
-        for (byte b : data)
+        if (logger.isTraceEnabled())
         {
-            System.out.printf("%03d ", b);
+            logger.trace("Control packet on SID: " + sid + " "
+                + Arrays.toString(data));
         }
-        System.out.println();
 
-        ByteBuffer buffer = ByteBuffer.wrap(data);
-        int messageType = /* 1 byte unsigned integer */0xFF & buffer.get();
+        final int messageType = DcepCodec.getMessageType(data);
 
-        if (messageType == MSG_CHANNEL_ACK)
+        if (messageType == DcepCodec.MSG_CHANNEL_ACK)
         {
             if (logger.isDebugEnabled())
             {
@@ -322,71 +469,42 @@ public class WebRtcDataStreamManager
                 logger.error("No channel exists on sid: " + sid);
             }
         }
-        else if (messageType == MSG_OPEN_CHANNEL)
+        else if (messageType == DcepCodec.MSG_OPEN_CHANNEL)
         {
-            int channelType = /* 1 byte unsigned integer */0xFF & buffer.get();
-            int priority =
-            /* 2 bytes unsigned integer */0xFFFF & buffer.getShort();
-            long reliability =
-            /* 4 bytes unsigned integer */0xFFFFFFFFL & buffer.getInt();
-            int labelLength =
-            /* 2 bytes unsigned integer */0xFFFF & buffer.getShort();
-            int protocolLength =
-            /* 2 bytes unsigned integer */0xFFFF & buffer.getShort();
-            String label;
-            String protocol;
-
-            if (labelLength == 0)
-            {
-                label = "";
-            }
-            else
-            {
-                byte[] labelBytes = new byte[labelLength];
-
-                buffer.get(labelBytes);
-                label = new String(labelBytes, "UTF-8");
-            }
-            if (protocolLength == 0)
-            {
-                protocol = "";
-            }
-            else
-            {
-                byte[] protocolBytes = new byte[protocolLength];
-
-                buffer.get(protocolBytes);
-                protocol = new String(protocolBytes, "UTF-8");
-            }
+            final String label = DcepCodec.getLabel(data);
 
             if (logger.isDebugEnabled())
             {
-                logger.debug("!!! " + endpointId
-                    + " data channel open request on SID: " + sid + " type: "
-                    + channelType + " prio: " + priority + " reliab: "
-                    + reliability + " label: " + label + " proto: " + protocol);
+                logger.debug(endpointId + " data channel open request on SID: "
+                    + sid + " type: " + DcepCodec.getChannelType(data)
+                    + " prio: " + DcepCodec.getPriority(data) + " reliab: "
+                    + DcepCodec.getReliability(data) + " label: " + label
+                    + " known proto: "
+                    + DcepCodec.isProtocol(data,
+                        WEBRTC_DATA_CHANNEL_PROTOCOL_BYTES));
             }
 
-            if (channels.containsKey(sid))
+            WebRtcDataStream newChannel =
+                new WebRtcDataStream(sctpSocket, sid, label, true);
+            if (null != channels.putIfAbsent(sid, newChannel))
             {
                 logger.error("Channel on sid: " + sid + " already exists");
+                return;
             }
 
-            WebRtcDataStream newChannel =
-                new WebRtcDataStream(sctpSocket, sid, label, true);
-            channels.put(sid, newChannel);
-
             sendOpenChannelAck(sid);
 
             /*
              * Notify listener that we have built a new channel
              */
+            final WebRtcDataStreamListener listener = getListener();
             if (null != listener)
                 listener.onChannelOpened(newChannel);
         }
         else
         {
-            logger.error("Unexpected ctrl msg type: " + messageType);
+            logger.error("Unexpected or malformed ctrl msg on SID: " + sid
+                + ", type: " + (data.length > 0 ? (data[0] & 0xFF) : -1));
         }
     }
 
@@ -423,97 +541,38 @@ public class WebRtcDataStreamManager
      *         WebRTC data channel.
      * @throws IOException if IO error occurs.
      */
-    public synchronized WebRtcDataStream openChannel(int type, int prio,
-        long reliab, int sid, String label) throws IOException
+    public WebRtcDataStream openChannel(int type, int prio, long reliab,
+        int sid, String label) throws IOException
     {
-        if (channels.containsKey(sid))
-        {
-            throw new IOException("Channel on sid: " + sid + " already exists");
-        }
-
-        // Label Length & Label
-        byte[] labelBytes;
-        int labelByteLength;
-
-        if (label == null)
-        {
-            labelBytes = null;
-            labelByteLength = 0;
-        }
-        else
-        {
-            labelBytes = label.getBytes("UTF-8");
-            labelByteLength = labelBytes.length;
-            if (labelByteLength > 0xFFFF)
-                labelByteLength = 0xFFFF;
-        }
-
-        // Protocol Length & Protocol
-        String protocol = WEBRTC_DATA_CHANNEL_PROTOCOL;
-        byte[] protocolBytes;
-        int protocolByteLength;
+        final WebRtcDataStream channel =
+            new WebRtcDataStream(sctpSocket, sid, label, false);
 
-        if (protocol == null)
-        {
-            protocolBytes = null;
-            protocolByteLength = 0;
-        }
-        else
+        // Reserve the sid first, so that concurrent opens can't both win.
+        if (null != channels.putIfAbsent(sid, channel))
         {
-            protocolBytes = protocol.getBytes("UTF-8");
-            protocolByteLength = protocolBytes.length;
-            if (protocolByteLength > 0xFFFF)
-                protocolByteLength = 0xFFFF;
+            throw new IOException("Channel on sid: " + sid + " already exists");
         }
 
-        ByteBuffer packet =
-            ByteBuffer.allocate(12 + labelByteLength + protocolByteLength);
-
-        // Message open new channel on current sid
-        // Message Type
-        packet.put((byte) MSG_OPEN_CHANNEL);
-        // Channel Type
-        packet.put((byte) type);
-        // Priority
-        packet.putShort((short) prio);
-        // Reliability Parameter
-        packet.putInt((int) reliab);
-        // Label Length
-        packet.putShort((short) labelByteLength);
-        // Protocol Length
-        packet.putShort((short) protocolByteLength);
-        // Label
-        if (labelByteLength != 0)
-        {
-            packet.put(labelBytes, 0, labelByteLength);
-        }
-        // Protocol
-        if (protocolByteLength != 0)
-        {
-            packet.put(protocolBytes, 0, protocolByteLength);
-        }
+        final byte[] packet =
+            DcepCodec.encodeOpen(type, prio, reliab, null == label ? null
+                : getUtf8Bytes(label), WEBRTC_DATA_CHANNEL_PROTOCOL_BYTES);
 
-        System.out.print("openChannel: ");
-        for (byte b : packet.array())
+        if (logger.isTraceEnabled())
         {
-            System.out.printf("%03d ", b);
+            logger.trace("openChannel on SID: " + sid + " "
+                + Arrays.toString(packet));
         }
-        System.out.println();
 
-        int sentCount =
-            sctpSocket.send(packet.array(), true, sid,
+        final int sentCount =
+            sctpSocket.send(packet, true, sid,
                 WebRtcDataStream.WEB_RTC_PPID_CTRL);
 
-        if (sentCount != packet.capacity())
+        if (sentCount != packet.length)
         {
+            channels.remove(sid, channel);
             throw new IOException("Failed to open new chanel on sid: " + sid);
         }
 
-        WebRtcDataStream channel =
-            new WebRtcDataStream(sctpSocket, sid, label, false);
-
-        channels.put(sid, channel);
-
         return channel;
     }
 
@@ -525,7 +584,7 @@ public class WebRtcDataStreamManager
     private void sendOpenChannelAck(int sid) throws IOException
     {
         // Send ACK
-        byte[] ack = MSG_CHANNEL_ACK_BYTES;
+        byte[] ack = DcepCodec.encodeAck();
         int sendAck =
             sctpSocket.send(ack, true, sid, WebRtcDataStream.WEB_RTC_PPID_CTRL);
 
@@ -623,15 +682,19 @@ public class WebRtcDataStreamManager
                 switch (assocChange.state)
                 {
                 case SctpNotification.AssociationChange.SCTP_COMM_UP:
-                    if (!assocIsUp)
+                    if (assocIsUp.compareAndSet(false, true))
                     {
-                        assocIsUp = true;
+                        if (isServer)
+                            acceptAssociation(socket);
+                        SctpRuntime.associationUp();
+                        checkReady();
                     }
                     break;
 
                 case SctpNotification.AssociationChange.SCTP_COMM_LOST:
-                    break;
                 case SctpNotification.AssociationChange.SCTP_SHUTDOWN_COMP:
+                    if (assocIsUp.compareAndSet(true, false))
+                        SctpRuntime.associationDown();
                     break;
                 case SctpNotification.AssociationChange.SCTP_CANT_STR_ASSOC:
                     sctpSocket.close();
@@ -650,6 +713,7 @@ public class WebRtcDataStreamManager
                     if (!peerAddrIsConfirmed)
                     {
                         peerAddrIsConfirmed = true;
+                        checkReady();
                     }
                     break;
                 }
@@ -0,0 +1,62 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.protocol.extension;
+
+import net.java.sip.communicator.impl.protocol.jabber.extensions.*;
+
+/**
+ * The "ssrc-info" element the focus adds to the "source" elements of Jingle
+ * source-add and source-remove packets, telling which MUC occupant owns the
+ * source.
+ * 
+ * @author lishunyang
+ */
+public class SsrcInfoPacketExtension
+    extends AbstractPacketExtension
+{
+    /**
+     * The name of the "ssrc-info" element.
+     */
+    public static final String ELEMENT_NAME = "ssrc-info";
+
+    /**
+     * The namespace of the "ssrc-info" element.
+     */
+    public static final String NAMESPACE = "http://jitsi.org/jitmeet";
+
+    /**
+     * The name of the "owner" attribute.
+     */
+    public static final String OWNER_ATTR_NAME = "owner";
+
+    /**
+     * Creates an empty <tt>SsrcInfoPacketExtension</tt>.
+     */
+    public SsrcInfoPacketExtension()
+    {
+        super(NAMESPACE, ELEMENT_NAME);
+    }
+
+    /**
+     * Get the MUC occupant jid of the owner of the source.
+     * 
+     * @return The jid, or null if it's not set.
+     */
+    public String getOwner()
+    {
+        return getAttributeAsString(OWNER_ATTR_NAME);
+    }
+
+    /**
+     * Set the MUC occupant jid of the owner of the source.
+     * 
+     * @param owner The jid.
+     */
+    public void setOwner(String owner)
+    {
+        setAttribute(OWNER_ATTR_NAME, owner);
+    }
+}
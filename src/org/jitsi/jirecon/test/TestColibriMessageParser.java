@@ -0,0 +1,50 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.test;
+
+import org.jitsi.jirecon.utils.*;
+
+import junit.framework.TestCase;
+
+public class TestColibriMessageParser
+    extends TestCase
+{
+    public void testGetField()
+    {
+        String field = ColibriMessageParser.DOMINANT_SPEAKER_ENDPOINT;
+
+        assertEquals("abc", ColibriMessageParser.getField(
+            "{\"colibriClass\":\"DominantSpeakerEndpointChangeEvent\","
+                + "\"dominantSpeakerEndpoint\":\"abc\"}", field));
+
+        // Nested values and escapes are skipped.
+        assertEquals("a\"b/c", ColibriMessageParser.getField(
+            " { \"x\" : {\"dominantSpeakerEndpoint\":\"no\", \"y\":[1,\"]\"]},"
+                + " \"n\": -1.5e3, \"dominantSpeakerEndpoint\" : "
+                + "\"a\\\"b\\/c\" }", field));
+
+        assertEquals("\u00e9", ColibriMessageParser.getField(
+            "{\"dominantSpeakerEndpoint\":\"\\u00e9\"}", field));
+        assertEquals("42", ColibriMessageParser.getField(
+            "{\"dominantSpeakerEndpoint\":42}", field));
+    }
+
+    public void testMissingOrMalformed()
+    {
+        String field = ColibriMessageParser.DOMINANT_SPEAKER_ENDPOINT;
+
+        assertNull(ColibriMessageParser.getField(null, field));
+        assertNull(ColibriMessageParser.getField("", field));
+        assertNull(ColibriMessageParser.getField("{}", field));
+        assertNull(ColibriMessageParser.getField("[\"a\"]", field));
+        assertNull(ColibriMessageParser.getField("{\"a\":1}", field));
+        assertNull(ColibriMessageParser.getField(
+            "{\"dominantSpeakerEndpoint\":null}", field));
+        assertNull(ColibriMessageParser.getField(
+            "{\"dominantSpeakerEndpoint\":\"abc", field));
+        assertNull(ColibriMessageParser.getField("{\"a\" 1}", field));
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.test;
+
+import java.io.*;
+import java.util.*;
+
+import org.jitsi.jirecon.DataChannelLog;
+
+import junit.framework.TestCase;
+
+public class TestDataChannelLog
+    extends TestCase
+{
+    private File file;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        file = File.createTempFile("datachannel", ".log");
+        file.delete();
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        file.delete();
+    }
+
+    public void testRoundTrip()
+        throws Exception
+    {
+        DataChannelLog log = new DataChannelLog(file.getPath());
+        final String msg = "{\"colibriClass\":\"LastNEndpointsChangeEvent\"}";
+        log.append(3, msg, 1000L);
+        log.append(5, new byte[] { 1, 2, (byte) 0xFF }, 2000L);
+        log.append(3, "\u00e9", Long.MAX_VALUE);
+        log.close();
+
+        DataInputStream in =
+            new DataInputStream(new FileInputStream(file));
+        try
+        {
+            readHeader(in);
+
+            byte[] payload =
+                readRecord(in, 1000L, 3, DataChannelLog.TYPE_STRING);
+            assertEquals(msg, new String(payload, "UTF-8"));
+
+            payload = readRecord(in, 2000L, 5, DataChannelLog.TYPE_BINARY);
+            assertTrue(Arrays.equals(new byte[] { 1, 2, (byte) 0xFF },
+                payload));
+
+            payload = readRecord(in, Long.MAX_VALUE, 3,
+                DataChannelLog.TYPE_STRING);
+            assertEquals(2, payload.length);
+            assertEquals("\u00e9", new String(payload, "UTF-8"));
+
+            assertEquals(-1, in.read());
+        }
+        finally
+        {
+            in.close();
+        }
+        assertEquals(3, log.getWrittenRecords());
+        assertEquals(0, log.getDroppedRecords());
+    }
+
+    public void testCloseDrainsQueue()
+        throws Exception
+    {
+        final int count = 2000;
+        DataChannelLog log = new DataChannelLog(file.getPath());
+        for (int i = 0; i < count; i++)
+            log.append(i, new byte[] { (byte) i }, i);
+        log.close();
+
+        assertEquals(count, log.getWrittenRecords());
+        assertEquals(0, log.getDroppedRecords());
+
+        // Appending after close is dropped.
+        log.append(1, "late", 0);
+        assertEquals(1, log.getDroppedRecords());
+
+        DataInputStream in =
+            new DataInputStream(new FileInputStream(file));
+        try
+        {
+            readHeader(in);
+            for (int i = 0; i < count; i++)
+            {
+                byte[] payload =
+                    readRecord(in, i, i, DataChannelLog.TYPE_BINARY);
+                assertEquals((byte) i, payload[0]);
+            }
+            assertEquals(-1, in.read());
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    public void testAppendWhileClosingIsCounted()
+        throws Exception
+    {
+        final int count = 5000;
+        final DataChannelLog log = new DataChannelLog(file.getPath());
+        Thread[] appenders = new Thread[4];
+        for (int t = 0; t < appenders.length; t++)
+        {
+            appenders[t] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for (int i = 0; i < count; i++)
+                        log.append(i, "message", i);
+                }
+            };
+            appenders[t].start();
+        }
+        Thread.sleep(1);
+        log.close();
+        for (Thread appender : appenders)
+            appender.join();
+
+        assertEquals(appenders.length * count, log.getWrittenRecords()
+            + log.getDroppedRecords());
+    }
+
+    public void testReopenAppendsWithoutHeader()
+        throws Exception
+    {
+        DataChannelLog log = new DataChannelLog(file.getPath());
+        log.append(1, "a", 1);
+        log.close();
+        log = new DataChannelLog(file.getPath());
+        log.append(2, "b", 2);
+        log.close();
+
+        DataInputStream in =
+            new DataInputStream(new FileInputStream(file));
+        try
+        {
+            readHeader(in);
+            assertEquals("a", new String(readRecord(in, 1, 1,
+                DataChannelLog.TYPE_STRING), "UTF-8"));
+            assertEquals("b", new String(readRecord(in, 2, 2,
+                DataChannelLog.TYPE_STRING), "UTF-8"));
+            assertEquals(-1, in.read());
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private static void readHeader(DataInputStream in)
+        throws IOException
+    {
+        byte[] magic = new byte[DataChannelLog.MAGIC.length];
+        in.readFully(magic);
+        assertTrue(Arrays.equals(DataChannelLog.MAGIC, magic));
+        assertEquals(DataChannelLog.VERSION, in.readByte());
+    }
+
+    private static byte[] readRecord(DataInputStream in, long receivedAt,
+        int sid, byte type)
+        throws IOException
+    {
+        byte[] payload = new byte[in.readInt()];
+        assertEquals(receivedAt, in.readLong());
+        assertEquals(sid, in.readInt());
+        assertEquals(type, in.readByte());
+        in.readFully(payload);
+        return payload;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.test;
+
+import java.io.*;
+
+import org.jitsi.jirecon.datachannel.*;
+
+import junit.framework.TestCase;
+
+public class TestDcepCodec
+    extends TestCase
+{
+    public void testOpenRoundTrip() throws Exception
+    {
+        byte[] protocol = "http://jitsi.org/protocols/colibri".getBytes("UTF-8");
+        byte[] msg =
+            DcepCodec.encodeOpen(0x81, 256, 0xFFFFFFFEL,
+                "label".getBytes("UTF-8"), protocol);
+
+        assertEquals(DcepCodec.MSG_OPEN_CHANNEL, DcepCodec.getMessageType(msg));
+        assertEquals(0x81, DcepCodec.getChannelType(msg));
+        assertEquals(256, DcepCodec.getPriority(msg));
+        assertEquals(0xFFFFFFFEL, DcepCodec.getReliability(msg));
+        assertEquals("label", DcepCodec.getLabel(msg));
+        assertTrue(DcepCodec.isProtocol(msg, protocol));
+        assertFalse(DcepCodec.isProtocol(msg, new byte[0]));
+
+        msg = DcepCodec.encodeOpen(0, 0, 0, null, null);
+        assertEquals(DcepCodec.MSG_OPEN_CHANNEL, DcepCodec.getMessageType(msg));
+        assertEquals("", DcepCodec.getLabel(msg));
+    }
+
+    public void testInvalidUtf8Label() throws Exception
+    {
+        byte[] msg =
+            DcepCodec.encodeOpen(0, 0, 0, new byte[] { 'a', (byte) 0xC3 },
+                null);
+
+        try
+        {
+            DcepCodec.getLabel(msg);
+            fail("Invalid UTF-8 label decoded");
+        }
+        catch (IOException e)
+        {
+            // Expected.
+        }
+    }
+
+    public void testMalformed() throws Exception
+    {
+        assertEquals(DcepCodec.MSG_CHANNEL_ACK,
+            DcepCodec.getMessageType(DcepCodec.encodeAck()));
+        assertEquals(-1, DcepCodec.getMessageType(null));
+        assertEquals(-1, DcepCodec.getMessageType(new byte[0]));
+        assertEquals(-1, DcepCodec.getMessageType(new byte[] { 0x7 }));
+
+        byte[] msg =
+            DcepCodec.encodeOpen(0, 0, 0, "label".getBytes("UTF-8"), null);
+
+        // Truncated label.
+        byte[] truncated = new byte[msg.length - 1];
+        System.arraycopy(msg, 0, truncated, 0, truncated.length);
+        assertEquals(-1, DcepCodec.getMessageType(truncated));
+
+        // Unknown channel type.
+        msg[1] = 0x03;
+        assertEquals(-1, DcepCodec.getMessageType(msg));
+    }
+
+    public void testChannelTable()
+    {
+        ChannelTable<String> table = new ChannelTable<String>();
+        int high = ChannelTable.DIRECT_SIZE + 1;
+
+        assertNull(table.putIfAbsent(1, "a"));
+        assertNull(table.putIfAbsent(high, "b"));
+        assertEquals("a", table.putIfAbsent(1, "c"));
+        assertEquals("b", table.get(high));
+
+        assertFalse(table.remove(1, "c"));
+        assertTrue(table.remove(1, "a"));
+        assertNull(table.get(1));
+
+        table.clear();
+        assertNull(table.get(high));
+    }
+}
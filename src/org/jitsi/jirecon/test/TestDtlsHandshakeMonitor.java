@@ -0,0 +1,58 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.test;
+
+import org.jitsi.jirecon.DtlsHandshakeMonitor;
+
+import junit.framework.TestCase;
+
+public class TestDtlsHandshakeMonitor
+    extends TestCase
+{
+    private static byte[] record(int contentType, int epoch, int messageSeq,
+        int fragmentOffset)
+    {
+        byte[] buf = new byte[13 + 12];
+        buf[0] = (byte) contentType;
+        buf[1] = (byte) 0xFE;
+        buf[2] = (byte) 0xFF;
+        buf[4] = (byte) epoch;
+        buf[13] = 1; // client_hello
+        buf[17] = (byte) (messageSeq >> 8);
+        buf[18] = (byte) messageSeq;
+        buf[20] = (byte) (fragmentOffset >> 8);
+        buf[21] = (byte) fragmentOffset;
+        return buf;
+    }
+
+    public void testFragmentId()
+    {
+        byte[] first = record(22, 0, 1, 0);
+        byte[] second = record(22, 0, 1, 1000);
+
+        assertEquals(1L << 24, DtlsHandshakeMonitor.getFragmentId(first, 0,
+            first.length));
+        assertEquals((1L << 24) | 1000, DtlsHandshakeMonitor.getFragmentId(
+            second, 0, second.length));
+
+        // Encrypted handshake (Finished) and RTP are ignored.
+        byte[] encrypted = record(22, 1, 4, 0);
+        assertEquals(-1, DtlsHandshakeMonitor.getFragmentId(encrypted, 0,
+            encrypted.length));
+        byte[] rtp = new byte[25];
+        rtp[0] = (byte) 0x80;
+        assertEquals(-1, DtlsHandshakeMonitor.getFragmentId(rtp, 0, rtp.length));
+    }
+
+    public void testChangeCipherSpec()
+    {
+        byte[] ccs = record(20, 0, 0, 0);
+
+        assertTrue(DtlsHandshakeMonitor.isRecord(ccs, 0, ccs.length, 20));
+        assertFalse(DtlsHandshakeMonitor.isRecord(ccs, 0, 5, 20));
+        assertFalse(DtlsHandshakeMonitor.isRecord(ccs, 0, ccs.length, 22));
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.test;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.ice4j.*;
+import org.jitsi.jirecon.HarvestCache;
+
+import junit.framework.TestCase;
+
+public class TestHarvestCache
+    extends TestCase
+{
+    public void testCachedUntilExpired()
+        throws Exception
+    {
+        FakeHarvestCache cache = new FakeHarvestCache(60000);
+        InetAddress local = InetAddress.getByName("10.0.0.1");
+        TransportAddress stun =
+            new TransportAddress("192.0.2.1", 3478, Transport.UDP);
+
+        cache.addresses.add(local);
+        assertEquals(Arrays.asList(local), cache.getHostAddresses());
+        assertEquals(Arrays.asList(local), cache.getHostAddresses());
+        assertEquals(1, cache.hostDiscoveries);
+
+        assertEquals("198.51.100.1", cache.getReflexiveAddress(local, stun)
+            .getHostAddress());
+        cache.getReflexiveAddress(local, stun);
+        assertEquals(1, cache.reflexiveDiscoveries);
+        assertEquals(2, cache.getMisses());
+    }
+
+    public void testChangeDropsMappings()
+        throws Exception
+    {
+        FakeHarvestCache cache = new FakeHarvestCache(0);
+        InetAddress local = InetAddress.getByName("10.0.0.1");
+        TransportAddress stun =
+            new TransportAddress("192.0.2.1", 3478, Transport.UDP);
+
+        cache.addresses.add(local);
+        cache.getHostAddresses();
+        assertEquals(0, cache.getChanges());
+
+        cache.addresses.add(InetAddress.getByName("10.0.0.2"));
+        assertEquals(2, cache.getHostAddresses().size());
+        assertEquals(1, cache.getChanges());
+
+        cache.getReflexiveAddress(local, stun);
+        cache.getReflexiveAddress(local, stun);
+        assertEquals(2, cache.reflexiveDiscoveries);
+    }
+
+    public void testFailureIsCached()
+        throws Exception
+    {
+        FakeHarvestCache cache = new FakeHarvestCache(60000);
+        InetAddress local = InetAddress.getByName("10.0.0.1");
+        TransportAddress stun =
+            new TransportAddress("192.0.2.1", 3478, Transport.UDP);
+
+        cache.addresses.add(local);
+        cache.answer = null;
+        for (int i = 0; i < 2; i++)
+        {
+            try
+            {
+                cache.getReflexiveAddress(local, stun);
+                fail("No answer should fail");
+            }
+            catch (IOException e)
+            {
+            }
+        }
+        assertEquals(1, cache.reflexiveDiscoveries);
+    }
+
+    public void testDiscoveryDoesNotBlockCache()
+        throws Exception
+    {
+        final FakeHarvestCache cache = new FakeHarvestCache(60000);
+        final InetAddress local = InetAddress.getByName("10.0.0.1");
+        final TransportAddress stun =
+            new TransportAddress("192.0.2.1", 3478, Transport.UDP);
+
+        cache.addresses.add(local);
+        cache.block = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try
+        {
+            Callable<TransportAddress> lookup =
+                new Callable<TransportAddress>()
+                {
+                    @Override
+                    public TransportAddress call()
+                        throws IOException
+                    {
+                        return cache.getReflexiveAddress(local, stun);
+                    }
+                };
+            Future<TransportAddress> first = executor.submit(lookup);
+            Future<TransportAddress> second = executor.submit(lookup);
+
+            // The discovery is stuck, the host addresses are still served.
+            assertTrue(cache.started.await(5, TimeUnit.SECONDS));
+            assertEquals(Arrays.asList(local), cache.getHostAddresses());
+            assertFalse(first.isDone());
+
+            cache.block.countDown();
+            assertEquals("198.51.100.1",
+                first.get(5, TimeUnit.SECONDS).getHostAddress());
+            assertEquals("198.51.100.1",
+                second.get(5, TimeUnit.SECONDS).getHostAddress());
+            assertEquals(1, cache.reflexiveDiscoveries);
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    private static class FakeHarvestCache
+        extends HarvestCache
+    {
+        final List<InetAddress> addresses = new ArrayList<InetAddress>();
+
+        int hostDiscoveries = 0;
+
+        volatile int reflexiveDiscoveries = 0;
+
+        TransportAddress answer =
+            new TransportAddress("198.51.100.1", 40000, Transport.UDP);
+
+        CountDownLatch block;
+
+        final CountDownLatch started = new CountDownLatch(1);
+
+        FakeHarvestCache(long ttl)
+        {
+            super(ttl);
+        }
+
+        @Override
+        protected List<InetAddress> discoverHostAddresses()
+        {
+            hostDiscoveries++;
+            return new ArrayList<InetAddress>(addresses);
+        }
+
+        @Override
+        protected TransportAddress discoverReflexiveAddress(
+            InetAddress localAddress, TransportAddress stunServer)
+            throws IOException
+        {
+            reflexiveDiscoveries++;
+            started.countDown();
+            if (null != block)
+            {
+                try
+                {
+                    block.await();
+                }
+                catch (InterruptedException e)
+                {
+                    throw new InterruptedIOException();
+                }
+            }
+            return answer;
+        }
+    }
+}
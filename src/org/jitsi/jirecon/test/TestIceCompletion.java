@@ -0,0 +1,92 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.test;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.ice4j.ice.*;
+import org.jitsi.jirecon.IceCompletion;
+
+import junit.framework.TestCase;
+
+public class TestIceCompletion
+    extends TestCase
+{
+    public void testCompleteWithFinalState()
+        throws Exception
+    {
+        IceCompletion completion = new IceCompletion();
+        final AtomicInteger runs = new AtomicInteger();
+        completion.addListener(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                runs.incrementAndGet();
+            }
+        });
+
+        assertFalse(completion.complete(IceProcessingState.RUNNING));
+        assertFalse(completion.isDone());
+        try
+        {
+            completion.get(10, TimeUnit.MILLISECONDS);
+            fail("Should time out.");
+        }
+        catch (TimeoutException e)
+        {
+        }
+
+        assertTrue(completion.complete(IceProcessingState.FAILED));
+        assertFalse(completion.timeout());
+        assertTrue(completion.isDone());
+        assertFalse(completion.isSucceeded());
+        assertFalse(completion.isTimedOut());
+        assertEquals(IceProcessingState.FAILED, completion.get());
+        assertEquals(1, runs.get());
+    }
+
+    public void testTimeoutAndLateListener()
+        throws Exception
+    {
+        IceCompletion completion = new IceCompletion();
+
+        assertTrue(completion.timeout());
+        assertFalse(completion.complete(IceProcessingState.COMPLETED));
+        assertTrue(completion.isTimedOut());
+        assertFalse(completion.isSucceeded());
+        assertNull(completion.get(0, TimeUnit.MILLISECONDS));
+
+        final AtomicInteger runs = new AtomicInteger();
+        completion.addListener(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                runs.incrementAndGet();
+            }
+        });
+        assertEquals(1, runs.get());
+    }
+
+    public void testCancel()
+        throws Exception
+    {
+        IceCompletion completion = new IceCompletion();
+
+        assertTrue(completion.cancel(false));
+        assertTrue(completion.isCancelled());
+        try
+        {
+            completion.get();
+            fail("Should be cancelled.");
+        }
+        catch (CancellationException e)
+        {
+        }
+    }
+}
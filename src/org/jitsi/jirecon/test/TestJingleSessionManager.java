@@ -0,0 +1,87 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.test;
+
+import java.util.*;
+
+import org.jitsi.jirecon.*;
+import org.jitsi.jirecon.TaskEvent.*;
+import org.jitsi.service.neomedia.MediaType;
+
+import junit.framework.TestCase;
+
+public class TestJingleSessionManager
+    extends TestCase
+{
+    private final List<TaskEvent> events = new ArrayList<TaskEvent>();
+
+    private JingleSessionManager createManager()
+    {
+        JingleSessionManager mgr = new JingleSessionManager();
+        mgr.addTaskEventListener(new TaskEventListener()
+        {
+            @Override
+            public void handleTaskEvent(TaskEvent event)
+            {
+                events.add(event);
+            }
+        });
+        return mgr;
+    }
+
+    private static Map<MediaType, Long> ssrcs(MediaType mediaType, long ssrc)
+    {
+        Map<MediaType, Long> ssrcs = new HashMap<MediaType, Long>();
+        ssrcs.put(mediaType, ssrc);
+        return ssrcs;
+    }
+
+    public void testPresenceChangesSsrc()
+    {
+        JingleSessionManager mgr = createManager();
+
+        mgr.updateEndpoint("a", ssrcs(MediaType.VIDEO, 1));
+        assertEquals(1, events.size());
+        assertEquals(TaskEvent.Type.PARTICIPANT_CAME, events.get(0).getType());
+
+        mgr.updateEndpoint("a", ssrcs(MediaType.VIDEO, 1));
+        assertEquals(1, events.size());
+
+        mgr.updateEndpoint("a", ssrcs(MediaType.VIDEO, 2));
+        assertEquals(3, events.size());
+        TaskEvent event = events.get(1);
+        assertEquals(TaskEvent.Type.SOURCE_REMOVED, event.getType());
+        assertEquals(1, event.getSsrc());
+        event = events.get(2);
+        assertEquals(TaskEvent.Type.SOURCE_ADDED, event.getType());
+        assertEquals("a", event.getEndpointId());
+        assertEquals(MediaType.VIDEO, event.getMediaType());
+        assertEquals(2, event.getSsrc());
+        assertEquals(2, mgr.getEndpoints().get(0).getSsrc(MediaType.VIDEO));
+    }
+
+    public void testPresenceKeepsOtherSsrcs()
+    {
+        JingleSessionManager mgr = createManager();
+
+        mgr.updateEndpoint("a", ssrcs(MediaType.AUDIO, 1));
+        EndpointInfo announced = mgr.getEndpoints().get(0);
+        events.clear();
+
+        Map<MediaType, Long> ssrcs = ssrcs(MediaType.VIDEO, 2);
+        ssrcs.put(MediaType.AUDIO, null);
+        mgr.updateEndpoint("a", ssrcs);
+
+        assertEquals(1, events.size());
+        assertEquals(TaskEvent.Type.SOURCE_ADDED, events.get(0).getType());
+        assertEquals(MediaType.VIDEO, events.get(0).getMediaType());
+
+        EndpointInfo endpoint = mgr.getEndpoints().get(0);
+        assertEquals(1, endpoint.getSsrc(MediaType.AUDIO));
+        assertEquals(2, endpoint.getSsrc(MediaType.VIDEO));
+        assertEquals(-1, announced.getSsrc(MediaType.VIDEO));
+    }
+}
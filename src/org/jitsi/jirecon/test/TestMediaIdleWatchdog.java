@@ -0,0 +1,117 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.test;
+
+import java.util.*;
+
+import org.jitsi.impl.neomedia.RawPacket;
+import org.jitsi.jirecon.MediaIdleWatchdog;
+import org.jitsi.jirecon.SsrcContinuityRewriter;
+import org.jitsi.jirecon.utils.RtcpUtils;
+import org.jitsi.service.neomedia.MediaType;
+
+import junit.framework.TestCase;
+
+public class TestMediaIdleWatchdog
+    extends TestCase
+{
+    public void testEndTask()
+    {
+        final List<Long> idleTimes = new ArrayList<Long>();
+        MediaIdleWatchdog watchdog =
+            new MediaIdleWatchdog(1000, MediaIdleWatchdog.Policy.END_TASK,
+                new MediaIdleWatchdog.Listener()
+                {
+                    @Override
+                    public void mediaIdle(long idleTime)
+                    {
+                        idleTimes.add(idleTime);
+                    }
+                });
+
+        watchdog.packetReceived(MediaType.AUDIO, 1, 0);
+        watchdog.packetReceived(MediaType.VIDEO, 2, 500);
+        watchdog.check(1200);
+        assertEquals(Collections.singleton(1L),
+            watchdog.getIdleSsrcs(MediaType.AUDIO));
+        assertTrue(idleTimes.isEmpty());
+
+        watchdog.check(1600);
+        assertEquals(Collections.singletonList(1100L), idleTimes);
+        // Reported once.
+        watchdog.check(2000);
+        assertEquals(1, idleTimes.size());
+
+        // Media comes back.
+        watchdog.packetReceived(MediaType.AUDIO, 1, 2100);
+        assertTrue(watchdog.getIdleSsrcs(MediaType.AUDIO).isEmpty());
+        watchdog.check(3200);
+        assertEquals(2, idleTimes.size());
+    }
+
+    public void testCloseSsrc()
+    {
+        MediaIdleWatchdog watchdog =
+            new MediaIdleWatchdog(1000, MediaIdleWatchdog.Policy.CLOSE_SSRC,
+                null);
+
+        watchdog.packetReceived(MediaType.VIDEO, 2, 0);
+        watchdog.check(1500);
+        // Closed SSRCs are forgotten.
+        assertTrue(watchdog.getIdleSsrcs(MediaType.VIDEO).isEmpty());
+    }
+
+    public void testCloseSsrcAfterRewriter()
+    {
+        MediaIdleWatchdog watchdog =
+            new MediaIdleWatchdog(1000, MediaIdleWatchdog.Policy.CLOSE_SSRC,
+                null);
+        SsrcContinuityRewriter rewriter =
+            new SsrcContinuityRewriter(MediaType.VIDEO, 90000);
+        rewriter.addSsrc("a", 1);
+        rewriter.addSsrc("a", 2);
+        watchdog.createTransformEngine(MediaType.VIDEO, rewriter);
+
+        // The track of "a" goes on with SSRC 2.
+        for (long ssrc = 1; ssrc <= 2; ssrc++)
+        {
+            byte[] rtp = new byte[12];
+            rtp[0] = (byte) 0x80;
+            rtp[11] = (byte) ssrc;
+            rewriter.getRTPTransformer().reverseTransform(
+                new RawPacket(rtp, 0, rtp.length));
+            watchdog.packetReceived(MediaType.VIDEO, ssrc, 0);
+        }
+        watchdog.check(1500);
+
+        // Only one BYE, with the logical SSRC.
+        byte[] rr = new byte[] { (byte) 0x80, (byte) 201, 0, 1, 0, 0, 0, 7 };
+        RawPacket received =
+            watchdog.getByeTransformEngine(MediaType.VIDEO)
+                .getRTCPTransformer().reverseTransform(new RawPacket(rr, 0, 8));
+        assertEquals(16, received.getLength());
+        byte[] bye = new byte[8];
+        System.arraycopy(received.getBuffer(), received.getOffset() + 8, bye,
+            0, 8);
+        assertTrue(Arrays.equals(RtcpUtils.createBye(1), bye));
+
+        assertNull(watchdog.getByeTransformEngine(MediaType.AUDIO));
+    }
+
+    public void testRtcpPackets()
+    {
+        byte[] bye = RtcpUtils.createBye(0xCAFEBABEL);
+        assertTrue(Arrays.equals(new byte[] { (byte) 0x81, (byte) 203, 0, 1,
+            (byte) 0xCA, (byte) 0xFE, (byte) 0xBA, (byte) 0xBE }, bye));
+
+        byte[] pli = RtcpUtils.createPli(1, 2);
+        assertEquals(12, pli.length);
+        assertEquals((byte) 206, pli[1]);
+        assertEquals(2, pli[3]);
+        assertEquals(1, pli[7]);
+        assertEquals(2, pli[11]);
+    }
+}
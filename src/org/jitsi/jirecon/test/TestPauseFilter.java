@@ -0,0 +1,94 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.test;
+
+import java.util.*;
+
+import org.jitsi.impl.neomedia.RawPacket;
+import org.jitsi.jirecon.PauseFilter;
+import org.jitsi.jirecon.utils.RtcpUtils;
+import org.jitsi.service.neomedia.MediaType;
+
+import junit.framework.TestCase;
+
+public class TestPauseFilter
+    extends TestCase
+{
+    public void testVp8Keyframe()
+    {
+        // RTP header, descriptor with X, I (two byte PictureID) and S set,
+        // then the VP8 payload header of a keyframe.
+        byte[] keyframe = new byte[] {
+            (byte) 0x80, 100, 0, 1, 0, 0, 0, 1, 0, 0, 0, 42,
+            (byte) 0x90, (byte) 0x80, (byte) 0x81, 0x23,
+            0x10, 0x02, 0x00 };
+        assertTrue(PauseFilter.isVp8Keyframe(keyframe, 0, keyframe.length));
+
+        // P bit set: interframe.
+        byte[] interframe = keyframe.clone();
+        interframe[16] = 0x11;
+        assertFalse(PauseFilter
+            .isVp8Keyframe(interframe, 0, interframe.length));
+
+        // Not the start of a partition.
+        byte[] continuation = keyframe.clone();
+        continuation[12] = (byte) 0x80;
+        assertFalse(PauseFilter.isVp8Keyframe(continuation, 0,
+            continuation.length));
+
+        // Truncated descriptor.
+        assertFalse(PauseFilter.isVp8Keyframe(keyframe, 0, 15));
+    }
+
+    public void testVp8KeyframeWithHeaderExtension()
+    {
+        // RTP header with a one word header extension, plain descriptor.
+        byte[] keyframe = new byte[] {
+            (byte) 0x90, 100, 0, 1, 0, 0, 0, 1, 0, 0, 0, 42,
+            (byte) 0xBE, (byte) 0xDE, 0, 1, 0x10, 0x7F, 0, 0,
+            0x10, 0x00 };
+        assertTrue(PauseFilter.isVp8Keyframe(keyframe, 0, keyframe.length));
+        assertFalse(PauseFilter.isVp8Keyframe(keyframe, 0, 20));
+    }
+
+    public void testResumeRequestsKeyframes()
+    {
+        PauseFilter filter = new PauseFilter(MediaType.VIDEO, 100, null);
+        byte[] interframe = new byte[] {
+            (byte) 0x80, 100, 0, 1, 0, 0, 0, 1, 0, 0, 0, 42,
+            0x10, 0x01 };
+        // A receiver report with sender SSRC 7 and no report blocks.
+        byte[] rr = new byte[] { (byte) 0x80, (byte) 201, 0, 1, 0, 0, 0, 7 };
+
+        assertNotNull(filter.getRTPTransformer().reverseTransform(
+            new RawPacket(interframe, 0, interframe.length)));
+        filter.pause();
+        assertNull(filter.getRTPTransformer().reverseTransform(
+            new RawPacket(interframe, 0, interframe.length)));
+
+        // Nothing is asked for while paused.
+        RawPacket sent =
+            filter.getRTCPTransformer().transform(new RawPacket(rr, 0, 8));
+        assertEquals(8, sent.getLength());
+
+        filter.resume();
+        assertNull(filter.getRTPTransformer().reverseTransform(
+            new RawPacket(interframe, 0, interframe.length)));
+
+        sent = filter.getRTCPTransformer().transform(new RawPacket(rr, 0, 8));
+        assertEquals(20, sent.getLength());
+        byte[] pli = new byte[12];
+        System.arraycopy(sent.getBuffer(), sent.getOffset() + 8, pli, 0, 12);
+        assertTrue(Arrays.equals(RtcpUtils.createPli(7, 42), pli));
+
+        // Only once.
+        sent = filter.getRTCPTransformer().transform(new RawPacket(rr, 0, 8));
+        assertEquals(8, sent.getLength());
+
+        assertNull(new PauseFilter(MediaType.AUDIO, -1, null)
+            .getRTCPTransformer());
+    }
+}
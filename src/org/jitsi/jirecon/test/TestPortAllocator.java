@@ -0,0 +1,51 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.test;
+
+import org.jitsi.jirecon.PortAllocator;
+
+import junit.framework.TestCase;
+
+public class TestPortAllocator
+    extends TestCase
+{
+    public void testAllocateAndRelease()
+    {
+        PortAllocator allocator = new PortAllocator(8000, 8002);
+
+        assertEquals(3, allocator.getCapacity());
+        assertEquals(8000, allocator.allocate());
+        assertEquals(8001, allocator.allocate());
+        assertTrue(allocator.release(8000));
+        assertFalse(allocator.release(8000));
+
+        // Round-robin, the released port is not reused immediately.
+        assertEquals(8002, allocator.allocate());
+        assertEquals(8000, allocator.allocate());
+        assertEquals(1.0, allocator.getUtilization(), 0.0001);
+
+        assertEquals(-1, allocator.allocate());
+        assertEquals(1, allocator.getExhaustions());
+
+        assertTrue(allocator.release(8001));
+        assertTrue(allocator.reserve(8001));
+        assertFalse(allocator.reserve(8001));
+        assertFalse(allocator.reserve(9000));
+        assertEquals(3, allocator.getAllocated());
+    }
+
+    public void testInvalidRange()
+    {
+        try
+        {
+            new PortAllocator(-1, -1);
+            fail();
+        }
+        catch (IllegalArgumentException e)
+        {
+        }
+    }
+}
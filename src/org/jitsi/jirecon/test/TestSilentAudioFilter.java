@@ -0,0 +1,194 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.test;
+
+import java.util.*;
+
+import org.jitsi.impl.neomedia.RawPacket;
+import org.jitsi.jirecon.SilentAudioFilter;
+import org.jitsi.jirecon.SsrcContinuityRewriter;
+import org.jitsi.service.neomedia.MediaType;
+import org.jitsi.service.neomedia.recording.*;
+
+import junit.framework.TestCase;
+
+public class TestSilentAudioFilter
+    extends TestCase
+{
+    private static final byte ID = 1;
+
+    private final List<RecorderEvent> events = new ArrayList<RecorderEvent>();
+
+    private final RecorderEventHandler handler = new RecorderEventHandler()
+    {
+        @Override
+        public boolean handleEvent(RecorderEvent event)
+        {
+            events.add(event);
+            return true;
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    };
+
+    public void testAudioLevel()
+    {
+        byte[] pkt = packet(42, 100);
+        assertEquals(100,
+            SilentAudioFilter.getAudioLevel(pkt, 0, pkt.length, ID));
+        assertEquals(-1,
+            SilentAudioFilter.getAudioLevel(pkt, 0, pkt.length, (byte) 2));
+
+        // No header extension.
+        byte[] plain = pkt.clone();
+        plain[0] = (byte) 0x80;
+        assertEquals(-1,
+            SilentAudioFilter.getAudioLevel(plain, 0, plain.length, ID));
+
+        // Two-byte header (0x1000) is not supported.
+        byte[] twoByte = pkt.clone();
+        twoByte[12] = 0x10;
+        twoByte[13] = 0x00;
+        assertEquals(-1,
+            SilentAudioFilter.getAudioLevel(twoByte, 0, twoByte.length, ID));
+
+        // Truncated before the extension header, and before the level.
+        assertEquals(-1, SilentAudioFilter.getAudioLevel(pkt, 0, 14, ID));
+        assertEquals(-1, SilentAudioFilter.getAudioLevel(pkt, 0, 17, ID));
+    }
+
+    public void testAudioLevelAfterPaddingAndOtherElements()
+    {
+        // One CSRC, then padding, a two byte element with ID 3, the level
+        // and a reserved element which ends the parsing.
+        byte[] pkt = new byte[] {
+            (byte) 0x91, 111, 0, 1, 0, 0, 0, 1, 0, 0, 0, 42,
+            0, 0, 0, 7,
+            (byte) 0xBE, (byte) 0xDE, 0, 2,
+            0x00, 0x31, 0x55, 0x66, 0x10, (byte) 0x8A, (byte) 0xF0, 0x00 };
+        assertEquals(10,
+            SilentAudioFilter.getAudioLevel(pkt, 0, pkt.length, ID));
+        assertEquals(-1,
+            SilentAudioFilter.getAudioLevel(pkt, 0, pkt.length, (byte) 5));
+
+        // The extension length is larger than the packet.
+        byte[] tooLong = pkt.clone();
+        tooLong[19] = 9;
+        assertEquals(10,
+            SilentAudioFilter.getAudioLevel(tooLong, 0, tooLong.length, ID));
+        assertEquals(-1, SilentAudioFilter.getAudioLevel(tooLong, 0, 25, ID));
+
+        // An offset into a bigger buffer.
+        byte[] shifted = new byte[pkt.length + 3];
+        System.arraycopy(pkt, 0, shifted, 3, pkt.length);
+        assertEquals(10,
+            SilentAudioFilter.getAudioLevel(shifted, 3, pkt.length, ID));
+    }
+
+    public void testDropAndReport()
+    {
+        SilentAudioFilter filter =
+            new SilentAudioFilter(ID, 100, 1000, handler);
+
+        assertNotNull(filter.reverseTransform(rtp(42, 127), 0));
+        assertNotNull(filter.reverseTransform(rtp(42, 127), 999));
+        assertNull(filter.reverseTransform(rtp(42, 127), 1000));
+        assertNull(filter.reverseTransform(rtp(42, 110), 1500));
+
+        // Packets without a level always pass.
+        RawPacket noLevel = rtp(42, 127);
+        noLevel.getBuffer()[0] = (byte) 0x80;
+        assertNotNull(filter.reverseTransform(noLevel, 1600));
+        assertTrue(events.isEmpty());
+
+        // Audible again: the gap is reported.
+        assertNotNull(filter.reverseTransform(rtp(42, 30), 2000));
+        assertEquals(2, filter.getDroppedPackets());
+        assertEquals(1, events.size());
+        assertEquals(42, events.get(0).getSsrc());
+        assertEquals(1000, events.get(0).getDuration());
+        assertEquals(SilentAudioFilter.SILENCE_GAP_DESCRIPTION, events.get(0)
+            .getParticipantDescription());
+
+        // Another SSRC has its own state.
+        assertNotNull(filter.reverseTransform(rtp(43, 127), 2000));
+        assertNotNull(filter.reverseTransform(rtp(42, 127), 2500));
+        assertEquals(2, filter.getSsrcCount());
+    }
+
+    public void testGoneSsrcIsPruned()
+    {
+        SilentAudioFilter filter =
+            new SilentAudioFilter(ID, 100, 1000, handler);
+
+        filter.reverseTransform(rtp(42, 127), 0);
+        assertNull(filter.reverseTransform(rtp(42, 127), 1000));
+        assertNull(filter.reverseTransform(rtp(42, 127), 3000));
+
+        // 42 goes away while silent, a packet of 43 prunes it.
+        long later = 3000 + SilentAudioFilter.STATE_TIMEOUT;
+        assertNotNull(filter.reverseTransform(rtp(43, 30), later));
+        assertEquals(1, filter.getSsrcCount());
+        assertEquals(1, events.size());
+        assertEquals(42, events.get(0).getSsrc());
+        assertEquals(2000, events.get(0).getDuration());
+    }
+
+    public void testCloseReportsGapInProgress()
+    {
+        SilentAudioFilter filter =
+            new SilentAudioFilter(ID, 100, 0, handler);
+
+        assertNull(filter.reverseTransform(rtp(42, 127),
+            System.currentTimeMillis()));
+        filter.close();
+        assertEquals(1, events.size());
+        assertEquals(0, filter.getSsrcCount());
+    }
+
+    public void testGapAfterRewriterHasLogicalSsrc()
+    {
+        SsrcContinuityRewriter rewriter =
+            new SsrcContinuityRewriter(MediaType.AUDIO, 48000);
+        rewriter.addSsrc("a", 42);
+        rewriter.addSsrc("a", 43);
+        SilentAudioFilter filter =
+            new SilentAudioFilter(ID, 100, 1000, handler);
+
+        // The same order as the chain of the audio stream.
+        assertNotNull(filter.reverseTransform(rewriter.getRTPTransformer()
+            .reverseTransform(rtp(43, 127)), 0));
+        assertNull(filter.reverseTransform(rewriter.getRTPTransformer()
+            .reverseTransform(rtp(43, 127)), 1000));
+        assertNotNull(filter.reverseTransform(rewriter.getRTPTransformer()
+            .reverseTransform(rtp(43, 30)), 2000));
+
+        assertEquals(1, events.size());
+        assertEquals(42, events.get(0).getSsrc());
+    }
+
+    /**
+     * An RTP packet with a one word one-byte header extension carrying the
+     * audio level with {@link #ID}.
+     */
+    private static byte[] packet(int ssrc, int level)
+    {
+        return new byte[] {
+            (byte) 0x90, 111, 0, 1, 0, 0, 0, 1, 0, 0, 0, (byte) ssrc,
+            (byte) 0xBE, (byte) 0xDE, 0, 1,
+            (byte) (ID << 4), (byte) (0x80 | level), 0, 0,
+            0x01, 0x02 };
+    }
+
+    private static RawPacket rtp(int ssrc, int level)
+    {
+        byte[] buf = packet(ssrc, level);
+        return new RawPacket(buf, 0, buf.length);
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.test;
+
+import java.util.*;
+
+import org.jitsi.jirecon.SrtpCipherBenchmark;
+
+import junit.framework.TestCase;
+
+public class TestSrtpCipherBenchmark
+    extends TestCase
+{
+    public void testRun()
+    {
+        SrtpCipherBenchmark benchmark = new SrtpCipherBenchmark(1200, 200);
+
+        assertNull(benchmark.getFastestCipher());
+        assertNull(benchmark.getAesFactoryClassName());
+
+        benchmark.run();
+
+        Map<String, Double> ciphers = benchmark.getCipherResults();
+        Map<String, Double> macs = benchmark.getMacResults();
+        assertTrue(ciphers.containsKey(SrtpCipherBenchmark.BOUNCY_CASTLE));
+        assertTrue(macs.containsKey(SrtpCipherBenchmark.BOUNCY_CASTLE));
+        assertTrue(ciphers.containsKey(benchmark.getFastestCipher()));
+        assertTrue(macs.containsKey(benchmark.getFastestMac()));
+        for (double throughput : ciphers.values())
+            assertTrue(throughput > 0);
+
+        assertEquals("org.jitsi.impl.neomedia.transform.srtp.AES$"
+            + benchmark.getFastestCipher() + "BlockCipherFactory",
+            benchmark.getAesFactoryClassName());
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.test;
+
+import java.util.*;
+
+import org.jitsi.impl.neomedia.RawPacket;
+import org.jitsi.impl.neomedia.transform.PacketTransformer;
+import org.jitsi.jirecon.SsrcContinuityRewriter;
+import org.jitsi.service.neomedia.MediaType;
+import org.jitsi.service.neomedia.recording.*;
+
+import junit.framework.TestCase;
+
+public class TestSsrcContinuityRewriter
+    extends TestCase
+{
+    public void testLogicalSsrc()
+    {
+        SsrcContinuityRewriter rewriter =
+            new SsrcContinuityRewriter(MediaType.VIDEO, 90000);
+
+        assertEquals(1, rewriter.addSsrc("a", 1));
+        assertEquals(1, rewriter.addSsrc("a", 2));
+        assertEquals(3, rewriter.addSsrc("b", 3));
+        assertEquals(1, rewriter.getLogicalSsrc(2));
+        assertEquals(4, rewriter.getLogicalSsrc(4));
+    }
+
+    public void testContinuity()
+    {
+        final List<RecorderEvent> events = new ArrayList<RecorderEvent>();
+        SsrcContinuityRewriter rewriter =
+            new SsrcContinuityRewriter(MediaType.VIDEO, 90000);
+        rewriter.setEventHandler(new RecorderEventHandler()
+        {
+            @Override
+            public boolean handleEvent(RecorderEvent event)
+            {
+                events.add(event);
+                return true;
+            }
+
+            @Override
+            public void close()
+            {
+            }
+        });
+        rewriter.addSsrc("a", 1);
+        rewriter.addSsrc("a", 2);
+        PacketTransformer rtp = rewriter.getRTPTransformer();
+
+        RawPacket first = rtp.reverseTransform(createRtp(1, 65535, 1000));
+        assertEquals(1, getSsrc(first));
+        assertEquals(65535, getSeq(first));
+        assertEquals(1000, getTimestamp(first));
+
+        RawPacket second = rtp.reverseTransform(createRtp(2, 100, 500000));
+        assertEquals(1, getSsrc(second));
+        assertEquals(0, getSeq(second));
+        assertTrue(getTimestamp(second) > 1000);
+        assertEquals(1, rewriter.getSsrcChanges());
+        assertEquals(1, events.size());
+        assertEquals(1, events.get(0).getSsrc());
+        assertEquals("a", events.get(0).getEndpointId());
+        assertEquals(SsrcContinuityRewriter.SSRC_CHANGE_GAP_DESCRIPTION,
+            events.get(0).getParticipantDescription());
+
+        RawPacket third = rtp.reverseTransform(createRtp(2, 101, 503000));
+        assertEquals(1, getSeq(third));
+        assertEquals(getTimestamp(second) + 3000, getTimestamp(third));
+
+        // Only the current SSRC closes the track.
+        assertEquals(-1, rewriter.getClosedSsrc(1));
+        assertEquals(1, rewriter.getClosedSsrc(2));
+        assertEquals(9, rewriter.getClosedSsrc(9));
+    }
+
+    public void testUnknownSsrc()
+    {
+        SsrcContinuityRewriter rewriter =
+            new SsrcContinuityRewriter(MediaType.AUDIO, 48000);
+
+        RawPacket pkt =
+            rewriter.getRTPTransformer().reverseTransform(
+                createRtp(7, 10, 20));
+        assertEquals(7, getSsrc(pkt));
+        assertEquals(10, getSeq(pkt));
+        assertEquals(20, getTimestamp(pkt));
+    }
+
+    public void testRtcp()
+    {
+        SsrcContinuityRewriter rewriter =
+            new SsrcContinuityRewriter(MediaType.AUDIO, 48000);
+        rewriter.addSsrc("a", 1);
+        rewriter.addSsrc("a", 2);
+        rewriter.getRTPTransformer().reverseTransform(createRtp(1, 10, 20));
+        rewriter.getRTPTransformer().reverseTransform(createRtp(2, 10, 20));
+
+        // A receiver report of SSRC 2, followed by a BYE of SSRC 1.
+        byte[] buf = new byte[16];
+        buf[0] = (byte) 0x80;
+        buf[1] = (byte) 201;
+        buf[3] = 1;
+        buf[7] = 2;
+        buf[8] = (byte) 0x81;
+        buf[9] = (byte) 203;
+        buf[11] = 1;
+        buf[15] = 1;
+
+        RawPacket pkt =
+            rewriter.getRTCPTransformer().reverseTransform(
+                new RawPacket(buf, 0, buf.length));
+        assertEquals(8, pkt.getLength());
+        assertEquals(1, pkt.getBuffer()[pkt.getOffset() + 7]);
+    }
+
+    private static RawPacket createRtp(long ssrc, int seq, long timestamp)
+    {
+        byte[] buf = new byte[20];
+        buf[0] = (byte) 0x80;
+        buf[1] = 100;
+        buf[2] = (byte) (seq >>> 8);
+        buf[3] = (byte) seq;
+        writeUint32(buf, 4, timestamp);
+        writeUint32(buf, 8, ssrc);
+        return new RawPacket(buf, 0, buf.length);
+    }
+
+    private static void writeUint32(byte[] buf, int off, long value)
+    {
+        buf[off] = (byte) (value >>> 24);
+        buf[off + 1] = (byte) (value >>> 16);
+        buf[off + 2] = (byte) (value >>> 8);
+        buf[off + 3] = (byte) value;
+    }
+
+    private static long readUint32(byte[] buf, int off)
+    {
+        return ((buf[off] & 0xFFL) << 24) | ((buf[off + 1] & 0xFFL) << 16)
+            | ((buf[off + 2] & 0xFFL) << 8) | (buf[off + 3] & 0xFFL);
+    }
+
+    private static long getSsrc(RawPacket pkt)
+    {
+        return readUint32(pkt.getBuffer(), pkt.getOffset() + 8);
+    }
+
+    private static long getTimestamp(RawPacket pkt)
+    {
+        return readUint32(pkt.getBuffer(), pkt.getOffset() + 4);
+    }
+
+    private static int getSeq(RawPacket pkt)
+    {
+        final byte[] buf = pkt.getBuffer();
+        return ((buf[pkt.getOffset() + 2] & 0xFF) << 8)
+            | (buf[pkt.getOffset() + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.test;
+
+import java.io.*;
+
+import net.java.sip.communicator.impl.protocol.jabber.extensions.*;
+import net.java.sip.communicator.impl.protocol.jabber.extensions.colibri.*;
+import net.java.sip.communicator.impl.protocol.jabber.extensions.jingle.*;
+
+import org.jitsi.jirecon.protocol.extension.*;
+import org.jivesoftware.smack.provider.*;
+import org.xmlpull.mxp1.*;
+import org.xmlpull.v1.*;
+
+import junit.framework.TestCase;
+
+public class TestSsrcInfoPacketExtension
+    extends TestCase
+{
+    private static final String SOURCE =
+        "<source xmlns='urn:xmpp:jingle:apps:rtp:ssma:0' ssrc='3735928559'>"
+            + "<parameter name='msid' value='stream track'/>"
+            + "<ssrc-info xmlns='http://jitsi.org/jitmeet'"
+            + " owner='room@conference.example.com/abcd'/>"
+            + "</source>";
+
+    public void testParseSource() throws Exception
+    {
+        ProviderManager providerManager = ProviderManager.getInstance();
+        providerManager.addExtensionProvider(
+            ParameterPacketExtension.ELEMENT_NAME,
+            SourcePacketExtension.NAMESPACE,
+            new DefaultPacketExtensionProvider<ParameterPacketExtension>(
+                ParameterPacketExtension.class));
+        providerManager.addExtensionProvider(
+            SsrcInfoPacketExtension.ELEMENT_NAME,
+            SsrcInfoPacketExtension.NAMESPACE,
+            new DefaultPacketExtensionProvider<SsrcInfoPacketExtension>(
+                SsrcInfoPacketExtension.class));
+
+        XmlPullParser parser = new MXParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        parser.setInput(new StringReader(SOURCE));
+        parser.next();
+
+        SourcePacketExtension source =
+            new DefaultPacketExtensionProvider<SourcePacketExtension>(
+                SourcePacketExtension.class).parseExtension(parser);
+
+        assertEquals(3735928559L, source.getSSRC());
+        assertEquals(1, source.getParameters().size());
+        SsrcInfoPacketExtension ssrcInfo =
+            source.getFirstChildOfType(SsrcInfoPacketExtension.class);
+        assertNotNull(ssrcInfo);
+        assertEquals("room@conference.example.com/abcd", ssrcInfo.getOwner());
+    }
+}
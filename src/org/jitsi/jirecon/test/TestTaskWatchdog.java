@@ -0,0 +1,169 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.test;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.jitsi.jirecon.TaskInfo.State;
+import org.jitsi.jirecon.TaskWatchdog;
+
+import junit.framework.TestCase;
+
+public class TestTaskWatchdog
+    extends TestCase
+{
+    private static final Executor DIRECT = new Executor()
+    {
+        @Override
+        public void execute(Runnable command)
+        {
+            command.run();
+        }
+    };
+
+    public void testAbortDoesNotBlockCheck()
+    {
+        final List<Runnable> aborts = new ArrayList<Runnable>();
+        TaskWatchdog watchdog =
+            new TaskWatchdog(TaskWatchdog.getDefaultDeadlines(10000, 10000,
+                40000), 1000, new Executor()
+            {
+                @Override
+                public void execute(Runnable command)
+                {
+                    aborts.add(command);
+                }
+            });
+        FakeTask joining = new FakeTask(State.JOINING, 0);
+
+        watchdog.watch(joining, "joining");
+        assertEquals(1, watchdog.check(20001));
+        assertFalse(joining.aborted);
+        assertEquals(1, aborts.size());
+
+        aborts.get(0).run();
+        assertTrue(joining.aborted);
+    }
+
+    public void testAbortsStuckTask()
+    {
+        TaskWatchdog watchdog =
+            new TaskWatchdog(TaskWatchdog.getDefaultDeadlines(10000, 10000,
+                40000), 1000, DIRECT);
+        FakeTask joining = new FakeTask(State.JOINING, 0);
+        FakeTask recording = new FakeTask(State.RECORDING, 0);
+
+        watchdog.watch(joining, "joining");
+        watchdog.watch(recording, "recording");
+
+        assertEquals(0, watchdog.check(20000));
+        assertEquals(1, watchdog.check(20001));
+        assertTrue(joining.aborted);
+        // RECORDING has no deadline.
+        assertFalse(recording.aborted);
+        assertEquals(0, watchdog.check(1000000));
+        assertEquals(1, watchdog.getAbortedTasks());
+    }
+
+    public void testDeadlinesFollowTimeouts()
+    {
+        Map<State, Long> deadlines =
+            TaskWatchdog.getDefaultDeadlines(20000, 5000, 100000);
+
+        assertEquals(40000 + TaskWatchdog.DEADLINE_MARGIN, deadlines.get(
+            State.CONNECTING).longValue());
+        assertEquals(5000 + TaskWatchdog.DEADLINE_MARGIN, deadlines.get(
+            State.SECURING).longValue());
+        assertEquals(100000 + TaskWatchdog.DEADLINE_MARGIN, deadlines.get(
+            State.STOPPING).longValue());
+        assertNull(deadlines.get(State.RECORDING));
+    }
+
+    public void testStateCounts()
+    {
+        TaskWatchdog watchdog =
+            new TaskWatchdog(TaskWatchdog.getDefaultDeadlines(10000, 10000,
+                40000), 1000, DIRECT);
+
+        watchdog.watch(new FakeTask(State.CONNECTING, 0), "a");
+        watchdog.watch(new FakeTask(State.CONNECTING, 0), "b");
+        watchdog.watch(new FakeTask(State.RECORDING, 0), "c");
+
+        Map<State, Integer> counts = watchdog.getStateCounts();
+        assertEquals(State.values().length, counts.size());
+        assertEquals(2, counts.get(State.CONNECTING).intValue());
+        assertEquals(1, counts.get(State.RECORDING).intValue());
+        assertEquals(0, counts.get(State.JOINING).intValue());
+    }
+
+    public void testLeakingTask()
+    {
+        TaskWatchdog watchdog =
+            new TaskWatchdog(TaskWatchdog.getDefaultDeadlines(10000, 10000,
+                40000), 1000, DIRECT);
+        FakeTask clean = new FakeTask(State.STOPPED, 0);
+        FakeTask leaking = new FakeTask(State.STOPPED, 0);
+        leaking.resources.add("ICE agent");
+
+        watchdog.watch(clean, "clean");
+        watchdog.watch(leaking, "leaking");
+        watchdog.released(clean, 0);
+        watchdog.released(leaking, 0);
+        assertEquals(0,
+            watchdog.getStateCounts().get(State.STOPPED).intValue());
+
+        watchdog.check(999);
+        assertEquals(0, watchdog.getLeakingTasks());
+        watchdog.check(1000);
+        assertEquals(1, watchdog.getLeakingTasks());
+        // Checked only once.
+        watchdog.check(2000);
+        assertEquals(1, watchdog.getLeakingTasks());
+    }
+
+    private static class FakeTask
+        implements TaskWatchdog.WatchedTask
+    {
+        final State state;
+
+        final long stateTime;
+
+        final List<String> resources = new ArrayList<String>();
+
+        boolean aborted = false;
+
+        FakeTask(State state, long stateTime)
+        {
+            this.state = state;
+            this.stateTime = stateTime;
+        }
+
+        @Override
+        public State getState()
+        {
+            return state;
+        }
+
+        @Override
+        public long getStateTime()
+        {
+            return stateTime;
+        }
+
+        @Override
+        public void forceAbort()
+        {
+            aborted = true;
+        }
+
+        @Override
+        public List<String> getUnreleasedResources()
+        {
+            return resources;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.test;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.jitsi.jirecon.TeardownPlan;
+
+import junit.framework.TestCase;
+
+public class TestTeardownPlan
+    extends TestCase
+{
+    public void testDependencies()
+    {
+        final List<String> order =
+            Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch bothStarted = new CountDownLatch(2);
+        TeardownPlan plan = new TeardownPlan("test");
+
+        TeardownPlan.Step audio =
+            plan.add("audio", 1000, new Finalizer("audio", order, bothStarted));
+        TeardownPlan.Step video =
+            plan.add("video", 1000, new Finalizer("video", order, bothStarted));
+        plan.add("streams", 1000, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                order.add("streams");
+            }
+        }, audio, video);
+
+        assertTrue(plan.execute(3000));
+        assertEquals(3, order.size());
+        // Both recorders ran concurrently, or they would have timed out.
+        assertEquals("streams", order.get(2));
+        assertTrue(plan.getTimedOut().isEmpty());
+        for (long duration : plan.getDurations().values())
+            assertTrue(duration >= 0);
+    }
+
+    public void testTimeout()
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch dependentRan = new CountDownLatch(1);
+        TeardownPlan plan = new TeardownPlan("test");
+
+        TeardownPlan.Step hanging = plan.add("hanging", 100, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    release.await();
+                }
+                catch (InterruptedException e)
+                {
+                }
+            }
+        });
+        plan.add("dependent", 1000, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                dependentRan.countDown();
+            }
+        }, hanging);
+
+        long start = System.currentTimeMillis();
+        assertFalse(plan.execute(5000));
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertEquals(0, dependentRan.getCount());
+        assertEquals(Collections.singleton("hanging"), plan.getTimedOut());
+        release.countDown();
+    }
+
+    private static class Finalizer
+        implements Runnable
+    {
+        private final String name;
+
+        private final List<String> order;
+
+        private final CountDownLatch bothStarted;
+
+        Finalizer(String name, List<String> order, CountDownLatch bothStarted)
+        {
+            this.name = name;
+            this.order = order;
+            this.bothStarted = bothStarted;
+        }
+
+        @Override
+        public void run()
+        {
+            bothStarted.countDown();
+            try
+            {
+                bothStarted.await();
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            order.add(name);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.test;
+
+import java.util.*;
+
+import org.jitsi.jirecon.UdpStats;
+
+import junit.framework.TestCase;
+
+public class TestUdpStats
+    extends TestCase
+{
+    public void testParseCounters()
+    {
+        Map<String, Long> counters =
+            UdpStats.parseCounters(Arrays.asList(
+                "Ip: Forwarding DefaultTTL",
+                "Ip: 1 64",
+                "Udp: InDatagrams NoPorts InErrors OutDatagrams RcvbufErrors",
+                "Udp: 1000 3 42 900 40",
+                "UdpLite: InDatagrams NoPorts InErrors",
+                "UdpLite: 0 0 0"));
+
+        assertEquals(Long.valueOf(42), counters.get(UdpStats.IN_ERRORS));
+        assertEquals(Long.valueOf(40), counters.get(UdpStats.RCVBUF_ERRORS));
+        assertEquals(Long.valueOf(1000), counters.get("InDatagrams"));
+    }
+
+    public void testParseSocketDrops()
+    {
+        Map<Integer, Long> drops = new HashMap<Integer, Long>();
+        UdpStats.parseSocketDrops(Arrays.asList(
+            "   sl  local_address rem_address   st tx_queue rx_queue tr tm->when"
+                + " retrnsmt   uid  timeout inode ref pointer drops",
+            "  12: 0100007F:2710 00000000:0000 07 00000000:00000000 00:00000000"
+                + " 00000000  1000        0 12345 2 0000000000000000 7",
+            "  13: 00000000:2710 00000000:0000 07 00000000:00000000 00:00000000"
+                + " 00000000  1000        0 12346 2 0000000000000000 3",
+            "  14: 00000000:2711 00000000:0000 07 00000000:00000000 00:00000000"
+                + " 00000000  1000        0 12347 2 0000000000000000 0"),
+            drops);
+
+        assertEquals(Long.valueOf(10), drops.get(10000));
+        assertEquals(Long.valueOf(0), drops.get(10001));
+        assertEquals(2, drops.size());
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.utils;
+
+/**
+ * A streaming parser which is used to extract single fields from the colibri
+ * JSON messages sent over the data channel, such as
+ * <tt>dominantSpeakerEndpoint</tt>.
+ * <p>
+ * It scans the message once and stops at the requested field. Other fields are
+ * skipped without building any object, so a message we don't care about costs
+ * no more than a scan.
+ * <p>
+ * <strong>Warning:</strong> There are only static methods.
+ *
+ * @author lishunyang
+ *
+ */
+public class ColibriMessageParser
+{
+    /**
+     * The field of the message which is sent when the dominant speaker
+     * changes.
+     */
+    public static final String DOMINANT_SPEAKER_ENDPOINT =
+        "dominantSpeakerEndpoint";
+
+    /**
+     * Get the value of a top-level field from a JSON object.
+     *
+     * @param json The JSON message.
+     * @param field The name of the field.
+     * @return The value of the field. String values are unescaped, other values
+     *         are returned as they appear. Null if the field was not found, its
+     *         value is null, or the message is malformed.
+     */
+    public static String getField(String json, String field)
+    {
+        if (null == json || null == field)
+            return null;
+
+        final int len = json.length();
+        int pos = skipWhitespace(json, 0);
+
+        if (pos >= len || json.charAt(pos) != '{')
+            return null;
+        pos = skipWhitespace(json, pos + 1);
+        if (pos < len && json.charAt(pos) == '}')
+            return null;
+
+        while (pos < len)
+        {
+            if (json.charAt(pos) != '"')
+                return null;
+
+            final int keyEnd = skipString(json, pos);
+            if (keyEnd < 0)
+                return null;
+            final boolean matched = keyEquals(json, pos + 1, keyEnd - 1, field);
+
+            pos = skipWhitespace(json, keyEnd);
+            if (pos >= len || json.charAt(pos) != ':')
+                return null;
+            pos = skipWhitespace(json, pos + 1);
+            if (pos >= len)
+                return null;
+
+            final int valueEnd = skipValue(json, pos);
+            if (valueEnd < 0)
+                return null;
+
+            if (matched)
+            {
+                if (json.charAt(pos) == '"')
+                    return unescape(json, pos + 1, valueEnd - 1);
+
+                final String value = json.substring(pos, valueEnd);
+                return "null".equals(value) ? null : value;
+            }
+
+            pos = skipWhitespace(json, valueEnd);
+            if (pos >= len)
+                return null;
+            if (json.charAt(pos) == '}')
+                return null;
+            if (json.charAt(pos) != ',')
+                return null;
+            pos = skipWhitespace(json, pos + 1);
+        }
+
+        return null;
+    }
+
+    /**
+     * Skip the whitespaces.
+     *
+     * @param json The JSON message.
+     * @param pos Where to start.
+     * @return The position of the first non-whitespace character.
+     */
+    private static int skipWhitespace(String json, int pos)
+    {
+        final int len = json.length();
+
+        while (pos < len)
+        {
+            final char c = json.charAt(pos);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r')
+                break;
+            pos++;
+        }
+
+        return pos;
+    }
+
+    /**
+     * Skip a JSON string.
+     *
+     * @param json The JSON message.
+     * @param pos The position of the opening quote.
+     * @return The position right after the closing quote, or -1 if the string
+     *         is not terminated.
+     */
+    private static int skipString(String json, int pos)
+    {
+        final int len = json.length();
+
+        for (pos++; pos < len; pos++)
+        {
+            final char c = json.charAt(pos);
+            if (c == '\\')
+                pos++;
+            else if (c == '"')
+                return pos + 1;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Skip a JSON value of any type.
+     *
+     * @param json The JSON message.
+     * @param pos The position of the first character of the value.
+     * @return The position right after the value, or -1 if the value is
+     *         malformed.
+     */
+    private static int skipValue(String json, int pos)
+    {
+        final int len = json.length();
+        final char first = json.charAt(pos);
+
+        if (first == '"')
+            return skipString(json, pos);
+
+        if (first == '{' || first == '[')
+        {
+            int depth = 0;
+            while (pos < len)
+            {
+                final char c = json.charAt(pos);
+                if (c == '"')
+                {
+                    pos = skipString(json, pos);
+                    if (pos < 0)
+                        return -1;
+                    continue;
+                }
+                if (c == '{' || c == '[')
+                    depth++;
+                else if (c == '}' || c == ']')
+                {
+                    depth--;
+                    if (0 == depth)
+                        return pos + 1;
+                }
+                pos++;
+            }
+            return -1;
+        }
+
+        // Number, true, false or null.
+        final int start = pos;
+        while (pos < len)
+        {
+            final char c = json.charAt(pos);
+            if (c == ',' || c == '}' || c == ']' || c == ' ' || c == '\t'
+                || c == '\n' || c == '\r')
+                break;
+            pos++;
+        }
+
+        return pos == start ? -1 : pos;
+    }
+
+    /**
+     * Check whether a raw key is the expected field, without unescaping it
+     * unless it contains escapes.
+     *
+     * @param json The JSON message.
+     * @param start Where the raw key starts.
+     * @param end Where the raw key ends, exclusive.
+     * @param field The expected field.
+     * @return <tt>true</tt> if the key is the field.
+     */
+    private static boolean keyEquals(String json, int start, int end,
+        String field)
+    {
+        if (indexOfEscape(json, start, end) >= 0)
+            return field.equals(unescape(json, start, end));
+
+        return end - start == field.length()
+            && json.regionMatches(start, field, 0, field.length());
+    }
+
+    /**
+     * Find the first backslash in a range of the message.
+     *
+     * @param json The JSON message.
+     * @param start Where the range starts.
+     * @param end Where the range ends, exclusive.
+     * @return The position of the backslash, or -1 if there is none.
+     */
+    private static int indexOfEscape(String json, int start, int end)
+    {
+        for (int pos = start; pos < end; pos++)
+        {
+            if (json.charAt(pos) == '\\')
+                return pos;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Unescape the content of a JSON string.
+     *
+     * @param json The JSON message.
+     * @param start Where the content starts.
+     * @param end Where the content ends, exclusive.
+     * @return The unescaped content, or null if it is malformed.
+     */
+    private static String unescape(String json, int start, int end)
+    {
+        final int firstEscape = indexOfEscape(json, start, end);
+
+        if (firstEscape < 0)
+            return json.substring(start, end);
+
+        final StringBuilder sb = new StringBuilder(end - start);
+        sb.append(json, start, firstEscape);
+
+        for (int pos = firstEscape; pos < end; pos++)
+        {
+            char c = json.charAt(pos);
+            if (c != '\\')
+            {
+                sb.append(c);
+                continue;
+            }
+
+            if (++pos >= end)
+                return null;
+            c = json.charAt(pos);
+            switch (c)
+            {
+            case 'b':
+                sb.append('\b');
+                break;
+            case 'f':
+                sb.append('\f');
+                break;
+            case 'n':
+                sb.append('\n');
+                break;
+            case 'r':
+                sb.append('\r');
+                break;
+            case 't':
+                sb.append('\t');
+                break;
+            case 'u':
+                if (pos + 4 >= end)
+                    return null;
+                try
+                {
+                    sb.append((char) Integer.parseInt(
+                        json.substring(pos + 1, pos + 5), 16));
+                }
+                catch (NumberFormatException e)
+                {
+                    return null;
+                }
+                pos += 4;
+                break;
+            default:
+                // '"', '\\' and '/'.
+                sb.append(c);
+                break;
+            }
+        }
+
+        return sb.toString();
+    }
+}
@@ -65,4 +65,184 @@ public class ConfigurationKey
      */
     public final static String MAX_STREAM_PORT_KEY = PREFIX
         + ".MAX_STREAM_PORT";
+
+    /**
+     * Whether audio packets which the RTP ssrc-audio-level header extension
+     * marks as silent should be dropped (per SSRC) instead of being recorded.
+     */
+    public final static String DROP_SILENT_AUDIO_KEY = PREFIX
+        + ".DROP_SILENT_AUDIO";
+
+    /**
+     * The audio level (in -dBov, 0 is the loudest and 127 is silence) at or
+     * above which an audio packet is considered silent.
+     */
+    public final static String SILENCE_LEVEL_KEY = PREFIX + ".SILENCE_LEVEL";
+
+    /**
+     * How many milliseconds an SSRC has to stay silent before we start
+     * dropping its packets. Shorter pauses are recorded as usual.
+     */
+    public final static String SILENCE_MIN_DURATION_KEY = PREFIX
+        + ".SILENCE_MIN_DURATION";
+
+    /**
+     * Whether every message received on the data channel should be appended
+     * to a log file in the output directory, so it can be replayed later.
+     */
+    public final static String DATA_CHANNEL_LOG_KEY = PREFIX
+        + ".DATA_CHANNEL_LOG";
+
+    /**
+     * The maximum time in milliseconds to wait for ICE connectivity
+     * establishment of a task.
+     */
+    public final static String ICE_TIMEOUT_KEY = PREFIX + ".ICE_TIMEOUT";
+
+    /**
+     * The STUN server ("host:port") used to discover the server reflexive
+     * addresses of this host.
+     */
+    public final static String STUN_SERVER_KEY = PREFIX + ".STUN_SERVER";
+
+    /**
+     * The time in milliseconds discovered host and reflexive addresses are
+     * cached before they are discovered again.
+     */
+    public final static String HARVEST_CACHE_TTL_KEY = PREFIX
+        + ".HARVEST_CACHE_TTL";
+
+    /**
+     * Whether this host is behind a static 1:1 NAT which keeps ports, so that
+     * server reflexive candidates can be derived from one cached STUN mapping
+     * per host address.
+     */
+    public final static String STATIC_NAT_KEY = PREFIX + ".STATIC_NAT";
+
+    /**
+     * The time in milliseconds after which a selected ICE pair without
+     * consent is considered lost, and ICE is restarted.
+     */
+    public final static String CONSENT_TIMEOUT_KEY = PREFIX
+        + ".CONSENT_TIMEOUT";
+
+    /**
+     * The maximum number of ICE restarts of a task. The task is stopped when
+     * the media path is lost once more.
+     */
+    public final static String MAX_ICE_RESTARTS_KEY = PREFIX
+        + ".MAX_ICE_RESTARTS";
+
+    /**
+     * The SO_RCVBUF size in bytes of the audio sockets.
+     */
+    public final static String AUDIO_RECEIVE_BUFFER_KEY = PREFIX
+        + ".AUDIO_RECEIVE_BUFFER";
+
+    /**
+     * The SO_RCVBUF size in bytes of the video sockets.
+     */
+    public final static String VIDEO_RECEIVE_BUFFER_KEY = PREFIX
+        + ".VIDEO_RECEIVE_BUFFER";
+
+    /**
+     * The SO_RCVBUF size in bytes of the data channel sockets.
+     */
+    public final static String DATA_RECEIVE_BUFFER_KEY = PREFIX
+        + ".DATA_RECEIVE_BUFFER";
+
+    /**
+     * The interval in milliseconds between two collections of the UDP drop
+     * counters, 0 to disable them.
+     */
+    public final static String UDP_STATS_INTERVAL_KEY = PREFIX
+        + ".UDP_STATS_INTERVAL";
+
+    /**
+     * The number of DTLS controls created in advance for every media type, 0
+     * to create them when a task starts.
+     */
+    public final static String DTLS_POOL_SIZE_KEY = PREFIX + ".DTLS_POOL_SIZE";
+
+    /**
+     * The time in milliseconds a DTLS control created in advance may be used,
+     * after that its certificate is thrown away.
+     */
+    public final static String DTLS_ROTATION_PERIOD_KEY = PREFIX
+        + ".DTLS_ROTATION_PERIOD";
+
+    /**
+     * The maximum time in milliseconds to wait for the DTLS handshakes of a
+     * task.
+     */
+    public final static String DTLS_TIMEOUT_KEY = PREFIX + ".DTLS_TIMEOUT";
+
+    /**
+     * Whether to time the AES implementations at startup and use the fastest
+     * one for SRTP.
+     */
+    public final static String SRTP_BENCHMARK_KEY = PREFIX + ".SRTP_BENCHMARK";
+
+    /**
+     * The maximum time in milliseconds to wait for a step of stopping a task,
+     * other than finalizing a recorder.
+     */
+    public final static String TEARDOWN_TIMEOUT_KEY = PREFIX
+        + ".TEARDOWN_TIMEOUT";
+
+    /**
+     * The maximum time in milliseconds to wait for a recorder to finalize its
+     * files when a task stops.
+     */
+    public final static String RECORDER_STOP_TIMEOUT_KEY = PREFIX
+        + ".RECORDER_STOP_TIMEOUT";
+
+    /**
+     * The time in milliseconds without received media after which the media
+     * idle policy is applied, 0 to disable it. The default is 0.
+     */
+    public final static String MEDIA_IDLE_TIMEOUT_KEY = PREFIX
+        + ".MEDIA_IDLE_TIMEOUT";
+
+    /**
+     * What to do with idle media: CLOSE_SSRC, REQUEST_KEYFRAME or END_TASK.
+     */
+    public final static String MEDIA_IDLE_POLICY_KEY = PREFIX
+        + ".MEDIA_IDLE_POLICY";
+
+    /**
+     * Prefix of the maximum time in milliseconds a task may be in a lifecycle
+     * state, followed by the name of the state, 0 for no limit.
+     */
+    public final static String TASK_STATE_TIMEOUT_PREFIX = PREFIX
+        + ".TASK_STATE_TIMEOUT.";
+
+    /**
+     * The time in milliseconds a stopped task has to release its resources
+     * before it is reported as leaking.
+     */
+    public final static String TASK_RELEASE_TIMEOUT_KEY = PREFIX
+        + ".TASK_RELEASE_TIMEOUT";
+
+    /**
+     * The interval in milliseconds between two checks of the task watchdog, 0
+     * to disable it.
+     */
+    public final static String TASK_WATCHDOG_INTERVAL_KEY = PREFIX
+        + ".TASK_WATCHDOG_INTERVAL";
+
+    /**
+     * Whether to record every endpoint into one file per media type even if
+     * its SSRCs change, by rewriting the SSRCs, sequence numbers and
+     * timestamps of later SSRCs.
+     */
+    public final static String SSRC_CONTINUITY_KEY = PREFIX
+        + ".SSRC_CONTINUITY";
+
+    /**
+     * Whether to send session-accept with the host candidates only and trickle
+     * the other local candidates in transport-info, and accept remote
+     * candidates from transport-info while ICE is running.
+     */
+    public final static String TRICKLE_ICE_KEY = PREFIX + ".TRICKLE_ICE";
 }
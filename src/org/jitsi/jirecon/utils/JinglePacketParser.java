@@ -7,8 +7,10 @@ package org.jitsi.jirecon.utils;
 
 import java.util.*;
 import org.jitsi.impl.neomedia.format.*;
+import org.jitsi.jirecon.protocol.extension.*;
 import org.jitsi.service.neomedia.*;
 import org.jitsi.service.neomedia.format.*;
+import net.java.sip.communicator.impl.protocol.jabber.extensions.colibri.*;
 import net.java.sip.communicator.impl.protocol.jabber.extensions.jingle.*;
 
 /**
@@ -126,6 +128,72 @@ public class JinglePacketParser
         return formatAndPTs;
     }
 
+    /**
+     * Get maps between RTP header extension URI and its ID from a specified
+     * <tt>JingleIQ</tt> and <tt>MediaType</tt>.
+     *
+     * @param jiq The Jingle packet.
+     * @param mediaType The media type.
+     * @return map between header extension URI and ID. Null if no associated
+     *         packet was found.
+     */
+    public static Map<String, Byte> getRtpExtensionIds(JingleIQ jiq,
+        MediaType mediaType)
+    {
+        if (null == jiq || null == mediaType)
+            return null;
+
+        RtpDescriptionPacketExtension description =
+            getDescriptionPacketExt(jiq, mediaType);
+        if (null == description)
+            return null;
+
+        final Map<String, Byte> extensionIds = new HashMap<String, Byte>();
+
+        for (RTPHdrExtPacketExtension extmap : description.getExtmapList())
+        {
+            if (null == extmap.getURI() || null == extmap.getID())
+                continue;
+
+            try
+            {
+                extensionIds.put(extmap.getURI().toString(),
+                    Byte.valueOf(extmap.getID()));
+            }
+            catch (NumberFormatException e)
+            {
+                // Not a valid extension ID, just ignore it.
+            }
+        }
+
+        return extensionIds;
+    }
+
+    /**
+     * Check whether the remote peer offers to multiplex RTP and RTCP on one
+     * port (rtcp-mux) for a specified <tt>MediaType</tt>. The
+     * <tt>rtcp-mux</tt> element may be in either description or transport.
+     * 
+     * @param jiq The Jingle packet.
+     * @param mediaType The media type.
+     * @return <tt>true</tt> if rtcp-mux is offered.
+     */
+    public static boolean isRtcpMux(JingleIQ jiq, MediaType mediaType)
+    {
+        RtpDescriptionPacketExtension description =
+            getDescriptionPacketExt(jiq, mediaType);
+        if (null != description
+            && null != description
+                .getFirstChildOfType(RtcpmuxPacketExtension.class))
+            return true;
+
+        IceUdpTransportPacketExtension transport =
+            getTransportPacketExt(jiq, mediaType);
+        return null != transport
+            && null != transport
+                .getFirstChildOfType(RtcpmuxPacketExtension.class);
+    }
+
     /**
      * Get <tt>DtlsFingerprintPacketExtension</tt> from a <tt>JingleIQ</tt> with
      * specified <tt>MediaType</tt>.
@@ -173,6 +241,40 @@ public class JinglePacketParser
         return mediaTypes;
     }
 
+    /**
+     * Get the sources of a <tt>JingleIQ</tt> of specified <tt>MediaType</tt>,
+     * for example of a source-add or source-remove packet.
+     * 
+     * @param jiq The Jingle packet.
+     * @param mediaType The media type.
+     * @return Map between SSRC and the MUC occupant jid of its owner, which is
+     *         null if the focus didn't tell it. Empty if no source was found.
+     */
+    public static Map<Long, String> getSources(JingleIQ jiq,
+        MediaType mediaType)
+    {
+        final Map<Long, String> sources = new LinkedHashMap<Long, String>();
+        final RtpDescriptionPacketExtension description =
+            getDescriptionPacketExt(jiq, mediaType);
+
+        if (null == description)
+            return sources;
+
+        for (SourcePacketExtension source : description
+            .getChildExtensionsOfType(SourcePacketExtension.class))
+        {
+            if (source.getSSRC() < 0)
+                continue;
+
+            final SsrcInfoPacketExtension ssrcInfo =
+                source.getFirstChildOfType(SsrcInfoPacketExtension.class);
+            sources.put(source.getSSRC(),
+                null == ssrcInfo ? null : ssrcInfo.getOwner());
+        }
+
+        return sources;
+    }
+
     /**
      * Get a list of <tt>PayloadTypePacketExtension</tt> from a
      * <tt>RtpDescriptionPacketExtension</tt>.
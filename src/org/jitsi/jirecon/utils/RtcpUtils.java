@@ -0,0 +1,136 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.utils;
+
+import java.util.*;
+
+import org.jitsi.impl.neomedia.*;
+
+/**
+ * Helpers which read and write the fields of RTP and RTCP packets, and build
+ * the RTCP packets Jirecon sends or injects itself.
+ * <p>
+ * <strong>Warning:</strong> There are only static methods.
+ *
+ * @author lishunyang
+ *
+ */
+public class RtcpUtils
+{
+    /**
+     * RTCP packet type of a sender report.
+     */
+    public static final int RTCP_SR = 200;
+
+    /**
+     * RTCP packet type of a receiver report.
+     */
+    public static final int RTCP_RR = 201;
+
+    /**
+     * RTCP packet type of a source description.
+     */
+    public static final int RTCP_SDES = 202;
+
+    /**
+     * RTCP packet type of a goodbye.
+     */
+    public static final int RTCP_BYE = 203;
+
+    /**
+     * RTCP packet type of payload-specific feedback, which PLI belongs to.
+     */
+    public static final int RTCP_PSFB = 206;
+
+    /**
+     * Create an RTCP BYE packet.
+     *
+     * @param ssrc The SSRC which leaves.
+     * @return The packet.
+     */
+    public static byte[] createBye(long ssrc)
+    {
+        final byte[] buf = new byte[8];
+
+        buf[0] = (byte) 0x81;
+        buf[1] = (byte) RTCP_BYE;
+        buf[3] = 1;
+        writeUint32(buf, 4, ssrc);
+        return buf;
+    }
+
+    /**
+     * Create an RTCP PLI packet (RFC 4585).
+     *
+     * @param senderSsrc The SSRC of the sender of the PLI.
+     * @param mediaSsrc The SSRC which is asked for a keyframe.
+     * @return The packet.
+     */
+    public static byte[] createPli(long senderSsrc, long mediaSsrc)
+    {
+        final byte[] buf = new byte[12];
+
+        buf[0] = (byte) 0x81;
+        buf[1] = (byte) RTCP_PSFB;
+        buf[3] = 2;
+        writeUint32(buf, 4, senderSsrc);
+        writeUint32(buf, 8, mediaSsrc);
+        return buf;
+    }
+
+    /**
+     * Append RTCP packets to a compound RTCP packet.
+     *
+     * @param pkt The compound RTCP packet.
+     * @param packets The packets to append.
+     * @return A new <tt>RawPacket</tt> with the packets appended.
+     */
+    public static RawPacket append(RawPacket pkt, List<byte[]> packets)
+    {
+        int length = pkt.getLength();
+        for (byte[] p : packets)
+            length += p.length;
+
+        final byte[] buf = new byte[length];
+        int off = pkt.getLength();
+
+        System.arraycopy(pkt.getBuffer(), pkt.getOffset(), buf, 0, off);
+        for (byte[] p : packets)
+        {
+            System.arraycopy(p, 0, buf, off, p.length);
+            off += p.length;
+        }
+        return new RawPacket(buf, 0, length);
+    }
+
+    /**
+     * Write an unsigned 32-bit integer in network byte order.
+     *
+     * @param buf The buffer to write to.
+     * @param off Where the integer starts.
+     * @param value The integer.
+     */
+    public static void writeUint32(byte[] buf, int off, long value)
+    {
+        buf[off] = (byte) (value >>> 24);
+        buf[off + 1] = (byte) (value >>> 16);
+        buf[off + 2] = (byte) (value >>> 8);
+        buf[off + 3] = (byte) value;
+    }
+
+    /**
+     * Read an unsigned 32-bit integer in network byte order.
+     *
+     * @param buf The buffer to read from.
+     * @param off Where the integer starts.
+     * @return The integer.
+     */
+    public static long readUint32(byte[] buf, int off)
+    {
+        return ((buf[off] & 0xFFL) << 24) | ((buf[off + 1] & 0xFFL) << 16)
+            | ((buf[off + 2] & 0xFFL) << 8) | (buf[off + 3] & 0xFFL);
+    }
+}
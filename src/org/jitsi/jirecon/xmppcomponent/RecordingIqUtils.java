@@ -32,11 +32,13 @@ import org.xmpp.packet.*;
  * mucjid, dst and rid:
  * <ol>
  * <li>
- * 1. action. Possible values are: 'start', 'stop', 'info'. 'start'/'stop' means
- * to start/stop a recording, 'info' means to notify recording information.</li>
+ * 1. action. Possible values are: 'start', 'stop', 'pause', 'resume', 'info'.
+ * 'start'/'stop' means to start/stop a recording, 'pause'/'resume' means to
+ * pause/resume a recording without leaving the meeting, 'info' means to notify
+ * recording information.</li>
  * <li>
  * 2. status. Possible values are: 'initiating', 'recording', 'stopping',
- * 'stopped'. It MUST be set in packet sent from component. Status of specified
+ * 'paused', 'stopped'. It MUST be set in packet sent from component. Status of specified
  * recording session.</li>
  * <li>
  * 3. mucjid. JID of specified recorded Jitsi-meeting. It is ONLY set in
@@ -186,6 +188,19 @@ public class RecordingIqUtils
          */
         STOP("stop"),
 
+        /**
+         * It can only be set in packet sent from client to component, in order
+         * to let Jirecon component pause an specified recording session
+         * without leaving the meeting.
+         */
+        PAUSE("pause"),
+
+        /**
+         * It can only be set in packet sent from client to component, in order
+         * to let Jirecon component resume a paused recording session.
+         */
+        RESUME("resume"),
+
         /**
          * It can be set both in packet sent from client to component or packet
          * sent from component to client, in order to notify the opposite with
@@ -235,6 +250,12 @@ public class RecordingIqUtils
          */
         STOPPING("stopping"),
 
+        /**
+         * It can only be set in packet sent from component to client, notify
+         * the opposite that recording session has been paused.
+         */
+        PAUSED("paused"),
+
         /**
          * It can only be set in packet sent from component to client, notify
          * the opposite that recording session has been stopped successfully.
@@ -277,6 +277,17 @@ public class XMPPComponent
         {
             result = stopRecording(iq);
         }
+        // Pause recording.
+        else if (0 == action.compareTo(RecordingIqUtils.Action.PAUSE.toString()))
+        {
+            result = pauseRecording(iq, true);
+        }
+        // Resume recording.
+        else if (0 == action
+            .compareTo(RecordingIqUtils.Action.RESUME.toString()))
+        {
+            result = pauseRecording(iq, false);
+        }
 
         return result;
     }
@@ -417,6 +428,74 @@ public class XMPPComponent
             rid);
     }
 
+    /**
+     * Pause or resume a specified recording session according to a "pause" or
+     * "resume" command IQ. The session keeps the meeting, so this takes
+     * effect right away.
+     * 
+     * @param iq "pause" or "resume" command IQ.
+     * @param pause <tt>true</tt> to pause, <tt>false</tt> to resume.
+     * @return The result IQ which will be sent back to client. Its status is
+     *         the one of the task after the command, whether it succeeded or
+     *         not.
+     */
+    private IQ pauseRecording(IQ iq, boolean pause)
+    {
+        final String rid =
+            RecordingIqUtils.getAttribute(iq, RecordingIqUtils.RID_NAME);
+
+        RecordingSession session = null;
+        synchronized (recordingSessions)
+        {
+            for (RecordingSession s : recordingSessions)
+            {
+                if (0 == rid.compareTo(s.getRid()))
+                {
+                    session = s;
+                    break;
+                }
+            }
+        }
+
+        if (null == session)
+        {
+            logger.error("Failed to " + (pause ? "pause" : "resume")
+                + " a recording session, no such session: " + rid);
+            return createIqResult(iq,
+                RecordingIqUtils.Status.ABORTED.toString(), rid);
+        }
+
+        if (pause)
+            jirecon.pauseJireconTask(session.getMucJid());
+        else
+            jirecon.resumeJireconTask(session.getMucJid());
+
+        return createIqResult(iq, getStatus(session.getMucJid()).toString(),
+            rid);
+    }
+
+    /**
+     * Get the status of the recording task of a specified Jitsi Meet
+     * conference, as it is reported to the client.
+     * 
+     * @param mucJid the MUC JID of the Jitsi Meet conference.
+     * @return The <tt>RecordingIqUtils.Status</tt> of the task.
+     */
+    private RecordingIqUtils.Status getStatus(String mucJid)
+    {
+        final TaskInfo.State state = jirecon.getJireconTaskState(mucJid);
+
+        if (null == state || TaskInfo.State.STOPPED == state)
+            return RecordingIqUtils.Status.STOPPED;
+        if (TaskInfo.State.STOPPING == state)
+            return RecordingIqUtils.Status.STOPPING;
+        if (TaskInfo.State.RECORDING != state)
+            return RecordingIqUtils.Status.INITIATING;
+
+        return jirecon.isJireconTaskPaused(mucJid)
+            ? RecordingIqUtils.Status.PAUSED : RecordingIqUtils.Status.STARTED;
+    }
+
     /**
      * As for <tt>JireconComponent</tt>, it will send two kinds of "result" IQ
      * (action="info"). The only difference between them is the attribute